@@ -0,0 +1,255 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.benchmarks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogService;
+
+import com.pavlovmedia.oss.osgi.gelf.impl.AbstractGelfTransporter;
+import com.pavlovmedia.oss.osgi.gelf.impl.BundleFieldCache;
+import com.pavlovmedia.oss.osgi.gelf.impl.PavlovGelfTcpTransporter;
+import com.pavlovmedia.oss.osgi.gelf.impl.external.IronValueHelper;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessage;
+
+/**
+ * Canned log entries, messages and transporters shared by the benchmarks
+ */
+final class BenchmarkFixtures {
+    static final String MESSAGE = "Processed request 42 for account 1234 in 17ms";
+    static final AtomicBoolean TRACE_OFF = new AtomicBoolean(false);
+    /** The same fields {@link #config(int)} configures, as a transporter hands them to each message */
+    static final Map<String, String> STATIC_FIELDS;
+
+    static {
+        Map<String, String> fields = new HashMap<>();
+        fields.put("environment", "benchmark");
+        fields.put("datacenter", "local");
+        STATIC_FIELDS = Collections.unmodifiableMap(fields);
+    }
+
+    private BenchmarkFixtures() { }
+
+    /**
+     * @return a Bundle that answers the calls the converter makes
+     */
+    static Bundle bundle(final long id, final String symbolicName) {
+        Dictionary<String, String> headers = new Hashtable<>();
+        headers.put("Bundle-Version", "2.1.0");
+        headers.put("Bundle-Name", "Benchmark " + symbolicName);
+
+        return (Bundle) Proxy.newProxyInstance(Bundle.class.getClassLoader(), new Class<?>[] { Bundle.class },
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getBundleId":
+                        return id;
+                    case "getSymbolicName":
+                        return symbolicName;
+                    case "getHeaders":
+                        return headers;
+                    case "hashCode":
+                        return (int) id;
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return symbolicName;
+                    default:
+                        return null;
+                }
+            });
+    }
+
+    static LogEntry entry(final Bundle bundle, final int level, final String message, final Throwable exception) {
+        long time = System.currentTimeMillis();
+        return new LogEntry() {
+            public Bundle getBundle() {
+                return bundle;
+            }
+
+            @SuppressWarnings("rawtypes")
+            public ServiceReference getServiceReference() {
+                return null;
+            }
+
+            public int getLevel() {
+                return level;
+            }
+
+            public String getMessage() {
+                return message;
+            }
+
+            public Throwable getException() {
+                return exception;
+            }
+
+            public long getTime() {
+                return time;
+            }
+        };
+    }
+
+    static LogEntry infoEntry() {
+        return entry(bundle(42, "com.example.benchmark"), LogService.LOG_INFO, MESSAGE, null);
+    }
+
+    static LogEntry errorEntry() {
+        Exception cause = new IllegalStateException("connection reset");
+        return entry(bundle(42, "com.example.benchmark"), LogService.LOG_ERROR, MESSAGE,
+                new RuntimeException("request failed", cause));
+    }
+
+    /**
+     * @return a message shaped like the converter's output
+     */
+    static GelfMessage message() {
+        GelfMessage message = new GelfMessage();
+        message.host = "bench-host.example.com";
+        message.short_message = MESSAGE;
+        message.full_message = MESSAGE;
+        message.timestamp = System.currentTimeMillis();
+        message.level = 1;
+        message.sharedFields = BundleFieldCache.buildFields(bundle(42, "com.example.benchmark"));
+        message.staticFields = STATIC_FIELDS;
+        return message;
+    }
+
+    /**
+     * Base transporter configuration, the queue blocks so producers are
+     * paced by the sender rather than dropping
+     */
+    static Map<String, Object> config(final int port) {
+        Map<String, Object> config = new HashMap<>();
+        config.put("graylog.active", true);
+        config.put("graylog.host", "127.0.0.1");
+        config.put("graylog.port", port);
+        config.put("graylog.additional.fields", new String[] { "environment:benchmark", "datacenter:local" });
+        config.put("graylog.queue.overflow", "block");
+        config.put("graylog.queue.blockMillis", 10000);
+        return config;
+    }
+
+    /**
+     * A transporter that encodes messages and throws the bytes away,
+     * for measuring everything up to the wire
+     */
+    static final class DiscardingTransporter extends AbstractGelfTransporter {
+        final AtomicLong bytes = new AtomicLong();
+
+        void start(final Map<String, Object> config) {
+            activate(config);
+        }
+
+        void stop() {
+            deactivate();
+        }
+
+        @Override
+        protected void startTransport(final IronValueHelper helper) {
+            // Nothing to connect to
+        }
+
+        @Override
+        protected void stopTransport() {
+            // Nothing to close
+        }
+
+        @Override
+        protected boolean send(final ByteBuffer frame, final GelfMessage message) {
+            bytes.lazySet(bytes.get() + frame.remaining());
+            return true;
+        }
+
+        @Override
+        protected void flush(final boolean force) {
+            // Nothing is buffered
+        }
+    }
+
+    /**
+     * The real TCP transporter, opened up for the benchmarks
+     */
+    static final class TcpTransporter extends PavlovGelfTcpTransporter {
+        void start(final Map<String, Object> config) {
+            activate(config);
+        }
+
+        void stop() {
+            deactivate();
+        }
+    }
+
+    /**
+     * A local GELF TCP input that reads and discards everything
+     */
+    static final class LoopbackSink implements Closeable {
+        private final ServerSocket server;
+        private final Thread reader;
+        final AtomicLong frames = new AtomicLong();
+
+        LoopbackSink() throws IOException {
+            server = new ServerSocket(0);
+            reader = new Thread(this::read, "benchmark-loopback-sink");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        int getPort() {
+            return server.getLocalPort();
+        }
+
+        private void read() {
+            byte[] buffer = new byte[64 * 1024];
+            while (!server.isClosed()) {
+                try (Socket socket = server.accept(); InputStream in = socket.getInputStream()) {
+                    int read;
+                    while ((read = in.read(buffer)) > 0) {
+                        long count = 0;
+                        for (int i = 0; i < read; i++) {
+                            if (0 == buffer[i]) {
+                                count++;
+                            }
+                        }
+                        frames.addAndGet(count);
+                    }
+                } catch (IOException e) {
+                    // Closed, or the transporter reconnects
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+    }
+}
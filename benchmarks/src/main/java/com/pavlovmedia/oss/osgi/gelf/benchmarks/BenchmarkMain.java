@@ -0,0 +1,52 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler turned on, so every result
+ * comes with its allocation rate. Takes the usual JMH command line,
+ * for example a regex to pick benchmarks. Runs one fork with 3 warmup and
+ * 5 measurement iterations unless the command line says otherwise.
+ */
+public final class BenchmarkMain {
+    private BenchmarkMain() { }
+
+    public static void main(final String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions options = new CommandLineOptions(args);
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+                .parent(options)
+                .addProfiler(GCProfiler.class);
+        // Shorter runs by default, -f, -wi and -i on the command line still win
+        if (!options.getForkCount().hasValue()) {
+            builder.forks(1);
+        }
+        if (!options.getWarmupIterations().hasValue()) {
+            builder.warmupIterations(3);
+        }
+        if (!options.getMeasurementIterations().hasValue()) {
+            builder.measurementIterations(5);
+        }
+        new Runner(builder.build()).run();
+    }
+}
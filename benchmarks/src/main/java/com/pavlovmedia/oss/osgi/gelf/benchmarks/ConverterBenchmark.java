@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.benchmarks;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.osgi.service.log.LogEntry;
+
+import com.pavlovmedia.oss.osgi.gelf.impl.BundleFieldCache;
+import com.pavlovmedia.oss.osgi.gelf.impl.GelfMessageConverter;
+import com.pavlovmedia.oss.osgi.gelf.impl.StackTraceCache;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessage;
+
+/**
+ * Cost of turning an OSGi LogEntry into a GelfMessage
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ConverterBenchmark {
+    private final AtomicBoolean traceOn = new AtomicBoolean(false);
+    private final BundleFieldCache bundleFields = new BundleFieldCache();
+    private final GelfMessageConverter.Context cachedTraces = new GelfMessageConverter.Context(
+            null, new StackTraceCache(256, 0, 0), null, null);
+    private final GelfMessageConverter.Context cachedFields = new GelfMessageConverter.Context(
+            bundleFields, null, null, null);
+    private LogEntry infoEntry;
+    private LogEntry errorEntry;
+
+    @Setup
+    public void setup() {
+        infoEntry = BenchmarkFixtures.infoEntry();
+        errorEntry = BenchmarkFixtures.errorEntry();
+    }
+
+    @Benchmark
+    public Optional<GelfMessage> fromOsgiMessage() {
+        return GelfMessageConverter.fromOsgiMessage(infoEntry, traceOn);
+    }
+
+    @Benchmark
+    public Optional<GelfMessage> fromOsgiMessageWithException() {
+        return GelfMessageConverter.fromOsgiMessage(errorEntry, traceOn, cachedTraces);
+    }
+
+    @Benchmark
+    public Optional<GelfMessage> fromOsgiMessageWithExceptionUncached() {
+        return GelfMessageConverter.fromOsgiMessage(errorEntry, traceOn);
+    }
+
+    @Benchmark
+    public Optional<GelfMessage> fromOsgiMessageCachedFields() {
+        return GelfMessageConverter.fromOsgiMessage(infoEntry, traceOn, cachedFields);
+    }
+}
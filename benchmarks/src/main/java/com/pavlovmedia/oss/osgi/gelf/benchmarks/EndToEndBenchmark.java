@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.osgi.service.log.LogEntry;
+
+import com.pavlovmedia.oss.osgi.gelf.benchmarks.BenchmarkFixtures.LoopbackSink;
+import com.pavlovmedia.oss.osgi.gelf.benchmarks.BenchmarkFixtures.TcpTransporter;
+import com.pavlovmedia.oss.osgi.gelf.impl.GelfMessageConverter;
+
+/**
+ * Convert, serialize, frame and send through the TCP transporter to a
+ * local socket. The queue blocks when full, so the producer rate settles
+ * at what the whole pipeline can push through.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EndToEndBenchmark {
+    private LoopbackSink sink;
+    private TcpTransporter transporter;
+    private LogEntry entry;
+
+    @Setup
+    public void setup() throws IOException {
+        sink = new LoopbackSink();
+        transporter = new TcpTransporter();
+        transporter.start(BenchmarkFixtures.config(sink.getPort()));
+        entry = BenchmarkFixtures.infoEntry();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        transporter.stop();
+        sink.close();
+    }
+
+    private void logged() {
+        GelfMessageConverter.fromOsgiMessage(entry, BenchmarkFixtures.TRACE_OFF)
+            .ifPresent(transporter::logGelfMessage);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void loopback1() {
+        logged();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void loopback4() {
+        logged();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void loopback16() {
+        logged();
+    }
+}
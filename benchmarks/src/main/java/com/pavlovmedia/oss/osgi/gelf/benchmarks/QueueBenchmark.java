@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogListener;
+
+import com.pavlovmedia.oss.osgi.gelf.benchmarks.BenchmarkFixtures.DiscardingTransporter;
+import com.pavlovmedia.oss.osgi.gelf.impl.SinkHarness;
+
+/**
+ * Hand-off from logging threads into the transporter queue, with the
+ * sending thread encoding and discarding so the queue never fills. The
+ * logged benchmarks go through the log sink, which only queues the entry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class QueueBenchmark {
+    private DiscardingTransporter transporter;
+    private LogListener sink;
+    private LogEntry entry;
+
+    @Setup
+    public void setup() {
+        transporter = new DiscardingTransporter();
+        transporter.start(BenchmarkFixtures.config(0));
+        sink = SinkHarness.sink(transporter, BenchmarkFixtures.config(0));
+        entry = BenchmarkFixtures.infoEntry();
+    }
+
+    @TearDown
+    public void tearDown() {
+        transporter.stop();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void logGelfMessage1() {
+        transporter.logGelfMessage(BenchmarkFixtures.message());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void logGelfMessage4() {
+        transporter.logGelfMessage(BenchmarkFixtures.message());
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void logGelfMessage16() {
+        transporter.logGelfMessage(BenchmarkFixtures.message());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void logged1() {
+        sink.logged(entry);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void logged4() {
+        sink.logged(entry);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void logged16() {
+        sink.logged(entry);
+    }
+}
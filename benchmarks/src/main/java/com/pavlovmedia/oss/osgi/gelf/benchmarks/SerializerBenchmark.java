@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessage;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessageEncoder;
+
+/**
+ * Jackson with GelfMessageSerializer against the streaming GelfMessageEncoder
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SerializerBenchmark {
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final GelfMessageEncoder encoder = new GelfMessageEncoder();
+    private GelfMessage message;
+
+    @Setup
+    public void setup() throws JsonProcessingException {
+        message = BenchmarkFixtures.message();
+
+        // Comparing speed only means something if both produce the same frame
+        ByteBuffer encoded = encoder.encode(message);
+        byte[] streaming = new byte[encoded.remaining()];
+        encoded.get(streaming);
+        if (!Arrays.equals(mapper.writeValueAsBytes(message), streaming)) {
+            throw new IllegalStateException("Encoder output differs from GelfMessageSerializer");
+        }
+    }
+
+    @Benchmark
+    public byte[] jackson() throws JsonProcessingException {
+        return mapper.writeValueAsBytes(message);
+    }
+
+    @Benchmark
+    public ByteBuffer encoder() {
+        return encoder.encode(message);
+    }
+}
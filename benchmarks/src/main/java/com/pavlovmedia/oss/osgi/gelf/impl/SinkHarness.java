@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Wires components together the way SCR would, for harnesses that run
+ * the real pipeline outside a framework. It lives in the implementation
+ * package so it can reach the lifecycle methods and references.
+ */
+public final class SinkHarness {
+    private SinkHarness() { }
+
+    /**
+     * Activates a transporter with the given configuration
+     */
+    public static void start(final AbstractGelfTransporter transporter, final Map<String, Object> config) {
+        transporter.activate(config);
+    }
+
+    public static void stop(final AbstractGelfTransporter transporter) {
+        transporter.deactivate();
+    }
+
+    /**
+     * @return a log sink bound to the transporter, ready for {@link GelfLogSink#logged}
+     */
+    public static GelfLogSink sink(final AbstractGelfTransporter transporter, final Map<String, Object> config) {
+        // SCR would fill in the metatype defaults
+        Map<String, Object> sinkConfig = new HashMap<>(config);
+        sinkConfig.putIfAbsent(GelfLogSink.TRACE_ENABLE, false);
+        sinkConfig.putIfAbsent(GelfLogSink.SYSLOG_LEVELS, false);
+
+        GelfLogSink sink = new GelfLogSink();
+        sink.gelfServer = transporter;
+        sink.configure(sinkConfig);
+        return sink;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.osgi.framework.Bundle;
+import org.osgi.service.log.LogListener;
+import org.osgi.service.log.LogService;
+
+/**
+ * Drives a log listener from several producer threads, each logging
+ * "load p=&lt;producer&gt; s=&lt;sequence&gt;" so a
+ * {@link com.pavlovmedia.oss.osgi.gelf.impl.FakeGraylogServer} can account
+ * for every message. Each call to {@link LogListener#logged}
+ * is timed, which is the latency a logging thread actually sees.
+ */
+public class LoadGenerator {
+    private final LogListener listener;
+    private final int threads;
+    private final long ratePerThread;
+
+    private final List<Producer> producers = new ArrayList<>();
+    private volatile boolean running;
+    private long startNanos;
+    private long stopNanos;
+
+    /**
+     * @param listener where entries are logged
+     * @param threads number of producer threads
+     * @param ratePerThread messages per second per thread, 0 for as fast as possible
+     */
+    public LoadGenerator(final LogListener listener, final int threads, final long ratePerThread) {
+        this.listener = listener;
+        this.threads = threads;
+        this.ratePerThread = ratePerThread;
+    }
+
+    /**
+     * Runs every producer for the duration, then returns
+     */
+    public void run(final long duration, final TimeUnit unit) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(threads);
+        running = true;
+        startNanos = System.nanoTime();
+        for (int p = 0; p < threads; p++) {
+            Producer producer = new Producer(p, done);
+            producers.add(producer);
+            Thread thread = new Thread(producer, "load-generator-" + p);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        unit.sleep(duration);
+        running = false;
+        done.await();
+        stopNanos = System.nanoTime();
+    }
+
+    /**
+     * @return messages handed to the listener
+     */
+    public long getSent() {
+        return producers.stream().mapToLong(producer -> producer.sent).sum();
+    }
+
+    public long getSent(final int producer) {
+        return producers.get(producer).sent;
+    }
+
+    public double getMessagesPerSecond() {
+        return getSent() / ((stopNanos - startNanos) / 1e9);
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the latency of a single logged call at that percentile, in nanoseconds
+     */
+    public long getLatencyNanos(final double percentile) {
+        LatencyHistogram total = new LatencyHistogram();
+        producers.forEach(producer -> total.add(producer.latency));
+        return total.percentile(percentile);
+    }
+
+    private final class Producer implements Runnable {
+        private final int id;
+        private final CountDownLatch done;
+        private final Bundle bundle;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private volatile long sent;
+
+        Producer(final int id, final CountDownLatch done) {
+            this.id = id;
+            this.done = done;
+            this.bundle = BenchmarkFixtures.bundle(100 + id, "com.example.load" + id);
+        }
+
+        @Override
+        public void run() {
+            long intervalNanos = ratePerThread > 0 ? TimeUnit.SECONDS.toNanos(1) / ratePerThread : 0;
+            long next = System.nanoTime();
+            try {
+                for (long sequence = 0; running; sequence++) {
+                    if (intervalNanos > 0) {
+                        next += intervalNanos;
+                        long wait = next - System.nanoTime();
+                        if (wait > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                    String message = "load p=" + id + " s=" + sequence;
+                    long start = System.nanoTime();
+                    listener.logged(BenchmarkFixtures.entry(bundle, LogService.LOG_INFO, message, null));
+                    latency.record(System.nanoTime() - start);
+                    sent = sequence + 1;
+                }
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * A fixed size log-linear histogram, values are kept to within about 6%
+     * which is plenty for reporting tail latency
+     */
+    static final class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private final long[] counts = new long[64 * SUB_BUCKETS];
+        private long total;
+
+        void record(final long value) {
+            counts[index(Math.max(0, value))]++;
+            total++;
+        }
+
+        void add(final LatencyHistogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+        }
+
+        long percentile(final double percentile) {
+            long target = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target && seen > 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        private static int index(final long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+            int sub = (int) (value >>> magnitude) - SUB_BUCKETS / 2;
+            return magnitude * SUB_BUCKETS / 2 + SUB_BUCKETS / 2 + sub;
+        }
+
+        private static long upperBound(final int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int magnitude = (index - SUB_BUCKETS / 2) / (SUB_BUCKETS / 2);
+            int sub = (index - SUB_BUCKETS / 2) % (SUB_BUCKETS / 2) + SUB_BUCKETS / 2;
+            return ((long) (sub + 1) << magnitude) - 1;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.benchmarks;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.service.log.LogListener;
+
+import com.pavlovmedia.oss.osgi.gelf.impl.AbstractGelfTransporter;
+import com.pavlovmedia.oss.osgi.gelf.impl.FakeGraylogServer;
+import com.pavlovmedia.oss.osgi.gelf.impl.FakeGraylogServer.Fault;
+import com.pavlovmedia.oss.osgi.gelf.impl.FakeGraylogServer.ProducerTracker;
+import com.pavlovmedia.oss.osgi.gelf.impl.GelfMetrics;
+import com.pavlovmedia.oss.osgi.gelf.impl.GelfRingBuffer.DropReason;
+import com.pavlovmedia.oss.osgi.gelf.impl.PavlovGelfHttpTransporter;
+import com.pavlovmedia.oss.osgi.gelf.impl.PavlovGelfNioTransporter;
+import com.pavlovmedia.oss.osgi.gelf.impl.PavlovGelfPooledTcpTransporter;
+import com.pavlovmedia.oss.osgi.gelf.impl.PavlovGelfTcpTransporter;
+import com.pavlovmedia.oss.osgi.gelf.impl.PavlovGelfUdpTransporter;
+import com.pavlovmedia.oss.osgi.gelf.impl.SinkHarness;
+
+/**
+ * Soak and failure testing against a {@link FakeGraylogServer}. Runs the
+ * real log sink and transporter under load while the server misbehaves on
+ * a schedule, then reports throughput, tail enqueue latency, loss,
+ * duplicates and reordering.
+ *
+ * <pre>
+ * SoakMain &lt;tcp|nio|pool|http|http-gzip|udp|udp-gzip|udp-zlib&gt; &lt;threads&gt; &lt;seconds&gt; [rate] [fault:atSecond:forSeconds ...]
+ * </pre>
+ *
+ * Faults are none, accept_then_close, slow_read, reset and refuse. Any
+ * graylog.* system property is passed to the transporter configuration,
+ * for example -Dgraylog.queue.overflow=dropOldest.
+ */
+public final class SoakMain {
+    private static final long DRAIN_TIMEOUT_MILLIS = 30000;
+
+    private SoakMain() { }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: SoakMain <tcp|nio|pool|http|http-gzip|udp|udp-gzip|udp-zlib> <threads>"
+                    + " <seconds> [rate] [fault:atSecond:forSeconds ...]");
+            System.exit(1);
+        }
+        String protocol = args[0].toLowerCase(Locale.ROOT);
+        int threads = Integer.parseInt(args[1]);
+        int seconds = Integer.parseInt(args[2]);
+        int faultStart = 3;
+        long rate = 0;
+        if (args.length > 3 && !args[3].contains(":")) {
+            rate = Long.parseLong(args[3]);
+            faultStart = 4;
+        }
+
+        try (FakeGraylogServer server = new FakeGraylogServer()) {
+            Map<String, Object> config = BenchmarkFixtures.config(server.getPort());
+            AbstractGelfTransporter transporter = transporter(protocol, config, server);
+            System.getProperties().stringPropertyNames().stream()
+                .filter(name -> name.startsWith("graylog."))
+                .forEach(name -> config.put(name, System.getProperty(name)));
+            SinkHarness.start(transporter, config);
+            try {
+                LogListener sink = SinkHarness.sink(transporter, config);
+                ScheduledExecutorService faults = scheduleFaults(server, args, faultStart);
+                LoadGenerator load = new LoadGenerator(sink, threads, rate);
+                load.run(seconds, TimeUnit.SECONDS);
+                faults.shutdownNow();
+
+                long received = awaitDrain(server, load.getSent());
+                report(server, load, transporter, threads, received);
+            } finally {
+                SinkHarness.stop(transporter);
+            }
+        }
+    }
+
+    /**
+     * Schedules each fault:atSecond:forSeconds argument
+     */
+    private static ScheduledExecutorService scheduleFaults(final FakeGraylogServer server,
+            final String[] args, final int first) {
+        ScheduledExecutorService faults = Executors.newSingleThreadScheduledExecutor();
+        for (int i = first; i < args.length; i++) {
+            String[] spec = args[i].split(":");
+            Fault fault = Fault.valueOf(spec[0].toUpperCase(Locale.ROOT));
+            long forSeconds = Long.parseLong(spec[2]);
+            faults.schedule(() -> {
+                System.out.printf("Injecting %s for %ds%n", fault, forSeconds);
+                server.inject(fault, forSeconds, TimeUnit.SECONDS);
+            }, Long.parseLong(spec[1]), TimeUnit.SECONDS);
+        }
+        return faults;
+    }
+
+    private static AbstractGelfTransporter transporter(final String protocol, final Map<String, Object> config,
+            final FakeGraylogServer server) {
+        switch (protocol) {
+            case "tcp":
+                return new PavlovGelfTcpTransporter();
+            case "nio":
+                return new PavlovGelfNioTransporter();
+            case "pool":
+                return new PavlovGelfPooledTcpTransporter();
+            case "http-gzip":
+                config.put("graylog.http.gzip", true);
+                // Fall through
+            case "http":
+                config.put("graylog.port", server.getHttpPort());
+                config.put("graylog.http.bulk", true);
+                return new PavlovGelfHttpTransporter();
+            case "udp-gzip":
+            case "udp-zlib":
+                config.put("graylog.udp.compression", protocol.substring(4));
+                return new PavlovGelfUdpTransporter();
+            case "udp":
+                return new PavlovGelfUdpTransporter();
+            default:
+                throw new IllegalArgumentException("Unknown protocol " + protocol);
+        }
+    }
+
+    /**
+     * Waits until everything sent has arrived, or nothing more arrives
+     * for a while
+     */
+    private static long awaitDrain(final FakeGraylogServer server, final long sent) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        long received = received(server);
+        long lastProgress = System.currentTimeMillis();
+        while (received < sent && System.currentTimeMillis() < deadline
+                && System.currentTimeMillis() - lastProgress < 5000) {
+            Thread.sleep(100);
+            long now = received(server);
+            if (now != received) {
+                received = now;
+                lastProgress = System.currentTimeMillis();
+            }
+        }
+        return received;
+    }
+
+    private static long received(final FakeGraylogServer server) {
+        return server.getProducers().values().stream().mapToLong(ProducerTracker::getReceived).sum();
+    }
+
+    private static void report(final FakeGraylogServer server, final LoadGenerator load,
+            final AbstractGelfTransporter transporter, final int threads, final long received) {
+        long reordered = 0;
+        long duplicates = 0;
+        for (ProducerTracker tracker : server.getProducers().values()) {
+            reordered += tracker.getReordered();
+            duplicates += tracker.getDuplicates();
+        }
+        long sent = load.getSent();
+
+        System.out.printf("Sent            %d from %d threads%n", sent, threads);
+        System.out.printf("Throughput      %.0f msg/s%n", load.getMessagesPerSecond());
+        System.out.printf("Enqueue p50     %.1f us%n", load.getLatencyNanos(50) / 1e3);
+        System.out.printf("Enqueue p99     %.1f us%n", load.getLatencyNanos(99) / 1e3);
+        System.out.printf("Enqueue p99.9   %.1f us%n", load.getLatencyNanos(99.9) / 1e3);
+        System.out.printf("Received        %d%n", received);
+        System.out.printf("Lost            %d (%.3f%%)%n", sent - received,
+                sent == 0 ? 0.0 : 100.0 * (sent - received) / sent);
+        System.out.printf("Duplicates      %d%n", duplicates);
+        System.out.printf("Reordered       %d%n", reordered);
+        System.out.printf("Connections     %d%n", server.getConnectionsAccepted());
+        for (DropReason reason : DropReason.values()) {
+            System.out.printf("Queue drops     %-13s %d%n", reason, transporter.getDropCount(reason));
+        }
+        System.out.printf("Retry drops     %d%n", transporter.getRetryDropCount());
+
+        List<GelfMetrics> connections = transporter instanceof PavlovGelfPooledTcpTransporter
+                ? ((PavlovGelfPooledTcpTransporter) transporter).getConnectionMetrics()
+                : Collections.singletonList(transporter.getMetrics());
+        for (GelfMetrics metrics : connections) {
+            System.out.printf("Metrics         received %d, enqueued %d, sent %d, %d bytes, %d reconnects%n",
+                    metrics.getReceivedCount(), metrics.getEnqueuedCount(), metrics.getSentCount(),
+                    metrics.getBytesSent(), metrics.getReconnectCount());
+            System.out.printf("Serialize p99   %.1f us%n", metrics.getSerializationNanos(99) / 1e3);
+            System.out.printf("Write p99       %.1f us%n", metrics.getWriteLatencyNanos(99) / 1e3);
+        }
+    }
+}
@@ -0,0 +1,1249 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.PropertyOption;
+import org.apache.felix.scr.annotations.PropertyUnbounded;
+import org.osgi.service.log.LogService;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pavlovmedia.oss.osgi.gelf.impl.GelfRingBuffer.DropReason;
+import com.pavlovmedia.oss.osgi.gelf.impl.GelfRingBuffer.OverflowPolicy;
+import com.pavlovmedia.oss.osgi.gelf.impl.external.IronValueHelper;
+import com.pavlovmedia.oss.osgi.gelf.impl.external.ThreadPoolUtils;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessage;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessageEncoder;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessageSource;
+import com.pavlovmedia.oss.osgi.gelf.lib.IGelfTransporter;
+
+/**
+ * The parts every GELF transporter shares: configuration, the bounded
+ * message queue and the background thread that drains it.
+ *
+ * Subclasses only deal with getting serialized frames onto the wire, see
+ * {@link #send(ByteBuffer, GelfMessage)} and {@link #flush(boolean)}, and
+ * report their writes and connections to {@link #metrics}.
+ */
+@Component(componentAbstract = true, metatype = true)
+@Properties({
+        @Property(
+            name = AbstractGelfTransporter.GRAYLOG_ACTIVE,
+            boolValue = false,
+            label = "Active",
+            description = "Graylog2 Active"),
+        @Property(
+            name = AbstractGelfTransporter.GRAYLOG_HOST,
+            label = "Host",
+            description = "Graylog2 Target Host"),
+        @Property(
+            name = AbstractGelfTransporter.GRAYLOG_PORT,
+            intValue = AbstractGelfTransporter.GRAYLOG_PORT_DEFAULT,
+            label = "Port",
+            description = "Graylog2 Port"),
+        @Property(
+            name = AbstractGelfTransporter.GRAYLOG_LOG_CONSOLE,
+            boolValue = false,
+            label = "Console Messages",
+            description = "Log messages to the console"),
+        @Property(
+            name = AbstractGelfTransporter.GRAYLOG_ADD_FIELDS,
+            value = "",
+            unbounded = PropertyUnbounded.VECTOR,
+            label = "Additional Fields",
+            description = "Additional fields to add to the record in key:value pairs"),
+        @Property(
+            name = AbstractGelfTransporter.GRAYLOG_IDLE_MILLIS,
+            intValue = AbstractGelfTransporter.GRAYLOG_IDLE_MILLIS_DEFAULT,
+            label = "Idle timeout",
+            description = "Milliseconds without messages before the sending thread is released, 0 to keep it"),
+        @Property(
+                name=AbstractGelfTransporter.GRAYLOG_HOSTNAME,
+                label="Source hostname",
+                description="If non-empty, this will be used as the hostname in logging messages"),
+        @Property(
+            name = AbstractGelfTransporter.GRAYLOG_QUEUE_CAPACITY,
+            intValue = AbstractGelfTransporter.GRAYLOG_QUEUE_CAPACITY_DEFAULT,
+            label = "Queue capacity",
+            description = "Maximum number of messages waiting to be sent (rounded up to a power of two)"),
+        @Property(
+            name = AbstractGelfTransporter.GRAYLOG_QUEUE_OVERFLOW,
+            value = AbstractGelfTransporter.GRAYLOG_QUEUE_OVERFLOW_DEFAULT,
+            label = "Queue overflow policy",
+            description = "What to do with a message when the queue is full",
+            options = {
+                @PropertyOption(name = "dropNewest", value = "Drop the new message"),
+                @PropertyOption(name = "dropOldest", value = "Drop the oldest queued message"),
+                @PropertyOption(name = "dropBelowLevel", value = "Drop the new or else the oldest message if it is below the drop level"),
+                @PropertyOption(name = "block", value = "Block the logging thread up to the block timeout")
+            }),
+        @Property(
+            name = AbstractGelfTransporter.GRAYLOG_QUEUE_DROP_LEVEL,
+            intValue = AbstractGelfTransporter.GRAYLOG_QUEUE_DROP_LEVEL_DEFAULT,
+            label = "Queue drop level",
+            description = "For dropBelowLevel, OSGi log level (1=error .. 4=debug) below which messages are dropped when full"),
+        @Property(
+            name = AbstractGelfTransporter.GRAYLOG_QUEUE_BLOCK_MILLIS,
+            intValue = AbstractGelfTransporter.GRAYLOG_QUEUE_BLOCK_MILLIS_DEFAULT,
+            label = "Queue block timeout",
+            description = "For block, how long in milliseconds a logging thread waits for room"),
+        @Property(
+            name = AbstractGelfTransporter.GRAYLOG_BATCH_BYTES,
+            intValue = AbstractGelfTransporter.GRAYLOG_BATCH_BYTES_DEFAULT,
+            label = "Batch size",
+            description = "Bytes to buffer before writing a batch of messages to the socket"),
+        @Property(
+            name = AbstractGelfTransporter.GRAYLOG_BATCH_LINGER_MILLIS,
+            intValue = AbstractGelfTransporter.GRAYLOG_BATCH_LINGER_MILLIS_DEFAULT,
+            label = "Batch linger",
+            description = "Longest time in milliseconds a message waits in a partial batch before being written"),
+        @Property(
+            name = AbstractGelfTransporter.GRAYLOG_RETRY_MAX_ATTEMPTS,
+            intValue = AbstractGelfTransporter.GRAYLOG_RETRY_MAX_ATTEMPTS_DEFAULT,
+            label = "Write attempts",
+            description = "How many times a batch is written before its messages are dropped"),
+        @Property(
+            name = AbstractGelfTransporter.GRAYLOG_LIMIT_SHORT_MESSAGE_BYTES,
+            intValue = 0,
+            label = "Short message limit",
+            description = "Most UTF-8 bytes of short_message, longer ones are cut, 0 for no limit"),
+        @Property(
+            name = AbstractGelfTransporter.GRAYLOG_LIMIT_FULL_MESSAGE_BYTES,
+            intValue = 0,
+            label = "Full message limit",
+            description = "Most UTF-8 bytes of full_message, longer ones are cut, 0 for no limit"),
+        @Property(
+            name = AbstractGelfTransporter.GRAYLOG_LIMIT_FIELDS,
+            intValue = 0,
+            label = "Field limit",
+            description = "Most additional fields per message, 0 for no limit"),
+        @Property(
+            name = AbstractGelfTransporter.GRAYLOG_LIMIT_FIELD_VALUE_BYTES,
+            intValue = 0,
+            label = "Field value limit",
+            description = "Most UTF-8 bytes of each additional field value, 0 for no limit"),
+        @Property(
+            name = AbstractGelfTransporter.GRAYLOG_ENCODER,
+            value = AbstractGelfTransporter.GRAYLOG_ENCODER_DEFAULT,
+            label = "Encoder",
+            description = "How messages are turned into JSON",
+            options = {
+                @PropertyOption(name = "streaming", value = "Streaming encoder"),
+                @PropertyOption(name = "jackson", value = "Jackson ObjectMapper")
+            }),
+        @Property(
+            name = AbstractGelfTransporter.GRAYLOG_SHUTDOWN_DRAIN_MILLIS,
+            intValue = AbstractGelfTransporter.GRAYLOG_SHUTDOWN_DRAIN_MILLIS_DEFAULT,
+            label = "Shutdown drain",
+            description = "Longest time in milliseconds spent sending what is queued when stopping, 0 to drop it")
+        })
+public abstract class AbstractGelfTransporter implements IGelfTransporter {
+    static final String GRAYLOG_ACTIVE = "graylog.active";
+    static final String GRAYLOG_HOST = "graylog.host";
+    static final String GRAYLOG_LOG_CONSOLE = "graylog.console";
+    static final String GRAYLOG_ADD_FIELDS = "graylog.additional.fields";
+
+    static final String GRAYLOG_PORT = "graylog.port";
+    static final int GRAYLOG_PORT_DEFAULT = 12201;
+
+    static final String GRAYLOG_IDLE_MILLIS = "graylog.idleMillis";
+    static final int GRAYLOG_IDLE_MILLIS_DEFAULT = 60000;
+
+    static final String GRAYLOG_HOSTNAME = "source.hostname";
+
+    static final int GRAYLOG_SLEEP_DEFAULT_IN_MILLIS = 1000;
+
+    static final String GRAYLOG_QUEUE_CAPACITY = "graylog.queue.capacity";
+    static final int GRAYLOG_QUEUE_CAPACITY_DEFAULT = 16384;
+
+    static final String GRAYLOG_QUEUE_OVERFLOW = "graylog.queue.overflow";
+    static final String GRAYLOG_QUEUE_OVERFLOW_DEFAULT = "dropNewest";
+
+    static final String GRAYLOG_QUEUE_DROP_LEVEL = "graylog.queue.dropLevel";
+    static final int GRAYLOG_QUEUE_DROP_LEVEL_DEFAULT = LogService.LOG_WARNING;
+
+    static final String GRAYLOG_QUEUE_BLOCK_MILLIS = "graylog.queue.blockMillis";
+    static final int GRAYLOG_QUEUE_BLOCK_MILLIS_DEFAULT = 100;
+
+    static final String GRAYLOG_BATCH_BYTES = "graylog.batch.bytes";
+    static final int GRAYLOG_BATCH_BYTES_DEFAULT = 64 * 1024;
+
+    static final String GRAYLOG_BATCH_LINGER_MILLIS = "graylog.batch.lingerMillis";
+    static final int GRAYLOG_BATCH_LINGER_MILLIS_DEFAULT = 5;
+
+    static final String GRAYLOG_RETRY_MAX_ATTEMPTS = "graylog.retry.maxAttempts";
+    static final int GRAYLOG_RETRY_MAX_ATTEMPTS_DEFAULT = 3;
+
+    static final String GRAYLOG_LIMIT_SHORT_MESSAGE_BYTES = "graylog.limits.shortMessageBytes";
+    static final String GRAYLOG_LIMIT_FULL_MESSAGE_BYTES = "graylog.limits.fullMessageBytes";
+    static final String GRAYLOG_LIMIT_FIELDS = "graylog.limits.fields";
+    static final String GRAYLOG_LIMIT_FIELD_VALUE_BYTES = "graylog.limits.fieldValueBytes";
+
+    static final String GRAYLOG_ENCODER = "graylog.encoder";
+    static final String GRAYLOG_ENCODER_JACKSON = "jackson";
+    static final String GRAYLOG_ENCODER_DEFAULT = "streaming";
+
+    static final String GRAYLOG_SHUTDOWN_DRAIN_MILLIS = "graylog.shutdown.drainMillis";
+    static final int GRAYLOG_SHUTDOWN_DRAIN_MILLIS_DEFAULT = 5000;
+
+    /** How long the sender waits on an empty queue before checking if it should stop */
+    static final long GRAYLOG_QUEUE_POLL_MILLIS = 500;
+
+    /** The most messages the sender pulls off the queue in one go */
+    static final int GRAYLOG_DRAIN_MAX = 1024;
+
+    /** Longest the old transport is given to write what was queued for it before a switch */
+    static final long GRAYLOG_SWITCH_DRAIN_MILLIS = 5000;
+
+    /** Longest a stopping sender is waited for before it is interrupted */
+    static final long GRAYLOG_SENDER_STOP_MILLIS = 1000;
+
+    /** This machine's name, looked up once in the background */
+    private static volatile String localHostname;
+    private static final AtomicBoolean hostnameLookupStarted = new AtomicBoolean(false);
+    /** Used until the lookup finishes, the environment's idea of the name */
+    private static final String FALLBACK_HOSTNAME = environmentHostname();
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final GelfMessageEncoder encoder = new GelfMessageEncoder();
+
+    /** The current configuration, replaced whole when it changes */
+    private volatile GelfTransporterConfig config = GelfTransporterConfig.INACTIVE;
+    /** Set when the queue or transport may need to catch up with {@link #config} */
+    private final AtomicBoolean reconfigure = new AtomicBoolean(false);
+    private volatile String loggedAsHostname;
+    private volatile boolean syslogLevels;
+
+    protected final AtomicBoolean active = new AtomicBoolean(false);
+    /** The endpoint the transport was started for */
+    protected String hostname;
+    protected int port;
+
+    private volatile ThreadPoolExecutor executorService;
+
+    private volatile Future<?> processGelfMessageFuture;
+    private volatile Thread senderThread;
+    /** Set while a sending task is running or about to, one flag per executor */
+    private volatile AtomicBoolean senderRunning = new AtomicBoolean(false);
+    /** Empty until the first start builds it, transporters that pass messages on never do */
+    private volatile GelfRingBuffer<GelfMessageSource> gelfMessageQueue =
+            new GelfRingBuffer<>(2, OverflowPolicy.DROP_NEWEST, 0, m -> false);
+    private final AtomicBoolean gelfMessageProcessingActive = new AtomicBoolean(false);
+    protected final GelfMetrics metrics = new GelfMetrics(() -> gelfMessageQueue);
+
+    /** Each flush takes a ticket, the sender completes tickets in order */
+    private final AtomicLong flushRequested = new AtomicLong(0);
+    private final Object flushLock = new Object();
+    private long flushCompleted;
+    /** Messages the sender still held when it stopped */
+    private volatile int heldOnStop;
+    /** When a stopping transport gives up on what it is still writing */
+    private volatile long stopDeadlineNanos = System.nanoTime();
+
+    // Owned by the sending thread, or by whoever starts it while it is not running
+    /** What the queue and transport were built for */
+    private GelfTransporterConfig appliedConfig = GelfTransporterConfig.INACTIVE;
+    /** Queues replaced by a resize, drained ahead of the current one */
+    private final List<RetiredQueue> retiredQueues = new ArrayList<>();
+    /**
+     * Set while the old transport is being drained ahead of a switch, and
+     * how many of the messages queued before it the old transport is still owed
+     */
+    private boolean switching;
+    private long switchDeadlineNanos;
+    private long switchOwed;
+    /** The flush ticket being worked on, and how many queued messages it is still owed */
+    private long flushServing;
+    private long flushOwed;
+
+    /**
+     * A queue that was replaced, kept until nothing can still be put on it
+     */
+    private static final class RetiredQueue {
+        final GelfRingBuffer<GelfMessageSource> queue;
+        final long forgetNanos;
+
+        RetiredQueue(final GelfRingBuffer<GelfMessageSource> queue, final long graceMillis) {
+            this.queue = queue;
+            this.forgetNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(graceMillis);
+        }
+    }
+
+    /**
+     * This method will return the hostname of this machine. The lookup can
+     * take seconds where reverse DNS is slow, so it is done in the background
+     * and a name from the environment is used until it finishes.
+     * @return the hostname of the system
+     */
+    public static String getHostname() {
+        String name = localHostname;
+        if (null == name) {
+            resolveHostname();
+            return FALLBACK_HOSTNAME;
+        }
+        return name;
+    }
+
+    private static String environmentHostname() {
+        for (String variable : new String[] { "HOSTNAME", "COMPUTERNAME" }) {
+            String name = System.getenv(variable);
+            if (null != name && !name.trim().isEmpty()) {
+                return name.trim();
+            }
+        }
+        return "Unknown";
+    }
+
+    /**
+     * Starts looking up the hostname, once
+     */
+    static void resolveHostname() {
+        if (!hostnameLookupStarted.compareAndSet(false, true)) {
+            return;
+        }
+        Thread lookup = new Thread(() -> {
+            try {
+                localHostname = InetAddress.getLocalHost().getCanonicalHostName();
+            } catch (UnknownHostException e) {
+                System.err.println("Failed to find hostname "+e.getMessage());
+                localHostname = FALLBACK_HOSTNAME;
+            }
+        }, "GelfHostnameLookup");
+        lookup.setDaemon(true);
+        lookup.start();
+    }
+
+    /**
+     * Sets the hostname put on messages that have none, ahead of the
+     * configured {@link #GRAYLOG_HOSTNAME}. Null or empty clears it.
+     */
+    @Override
+    public void setLoggedAsHostname(final String hostname) {
+        loggedAsHostname = Objects.nonNull(hostname) && !hostname.trim().isEmpty() ? hostname.trim() : null;
+    }
+
+    @Override
+    public void setSyslogLevels(final boolean syslogLevels) {
+        this.syslogLevels = syslogLevels;
+    }
+
+    /**
+     * @return the hostname set with {@link #setLoggedAsHostname(String)}, or null
+     */
+    protected String getLoggedAsHostname() {
+        return loggedAsHostname;
+    }
+
+    /**
+     * @return true if the levels of queued messages are syslog levels
+     */
+    protected boolean isSyslogLevels() {
+        return syslogLevels;
+    }
+
+    /**
+     * @return the current configuration
+     */
+    protected GelfTransporterConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * @return how many times a batch is written before its messages are dropped
+     */
+    protected int getMaxAttempts() {
+        return config.getMaxAttempts();
+    }
+
+    @Activate
+    protected void activate(final Map<String, Object> config) {
+        resolveHostname();
+        String metricsName = getMetricsName();
+        if (null != metricsName) {
+            metrics.publish(metricsName);
+        }
+
+        GelfTransporterConfig next = snapshot(config);
+        this.config = next;
+        active.set(next.isActive());
+        if (next.isActive()) {
+            start(next);
+        }
+    }
+
+    /**
+     * Applies a new configuration. Settings read per message apply straight
+     * away, without pausing the sender. A new queue, endpoint or transport
+     * setting is picked up by the sending thread: queued messages move to
+     * the new queue ahead of anything newer, and the old transport is given
+     * what was queued for it before the new one is started.
+     */
+    @Modified
+    protected void modified(final Map<String, Object> config) {
+        GelfTransporterConfig previous = this.config;
+        GelfTransporterConfig next = snapshot(config);
+
+        if (!next.isActive()) {
+            this.config = next;
+            if (previous.isActive()) {
+                shutdown(previous.getShutdownDrainMillis());
+            }
+            return;
+        }
+
+        if (!previous.isActive()) {
+            this.config = next;
+            active.set(true);
+            start(next);
+            return;
+        }
+
+        // Everything read per message applies from here on
+        this.config = next;
+        if (isDelegating()) {
+            // Nothing is queued here, the subclass passes the configuration on
+            appliedConfig = next;
+            hostname = next.getHost();
+            port = next.getPort();
+            return;
+        }
+
+        ThreadPoolExecutor executor = executorService;
+        if (null != executor) {
+            executor.setKeepAliveTime(Math.max(1, next.getIdleMillis()), TimeUnit.MILLISECONDS);
+            executor.allowCoreThreadTimeOut(next.getIdleMillis() > 0);
+        }
+
+        if (!next.sameQueue(previous) || !next.sameTransport(previous)) {
+            reconfigure.set(true);
+            startSender();
+            wakeSender();
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        deactivate(config.getShutdownDrainMillis());
+    }
+
+    /**
+     * Deactivates, giving queued messages a deadline of the caller's
+     *
+     * @param drainMillis longest to spend sending what is queued
+     */
+    protected void deactivate(final long drainMillis) {
+        shutdown(drainMillis);
+        metrics.unpublish();
+    }
+
+    /**
+     * Stops taking messages and gives the sender until the deadline to
+     * write, or spool, everything queued or buffered. Then the transport is
+     * stopped, and whatever is left is dropped and counted as abandoned.
+     *
+     * @param drainMillis longest to spend sending what is queued, 0 to drop it
+     */
+    private void shutdown(final long drainMillis) {
+        // Terminate service
+        terminateService();
+
+        long before = metrics.getSentCount() + metrics.getSpooledCount();
+        stopDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, drainMillis));
+        if (drainMillis > 0 && null != executorService) {
+            awaitFlushed(stopDeadlineNanos);
+        }
+
+        // Terminate threading
+        heldOnStop = 0;
+        ThreadPoolExecutor stopped = terminateThreading();
+
+        // Terminate transport. A write the sender is stuck in is only ended by the
+        // interrupt from cancelling it, which closes the channel, so this can wait on it
+        stopTransport();
+
+        if (!awaitSenderStopped(stopped)) {
+            // It may still take and write queued messages, so they cannot be
+            // counted as abandoned. Leave them for the next sender
+            System.err.println("GELF sender did not stop in time, leaving its queue in place");
+            return;
+        }
+        long abandoned = heldOnStop + takeUnsent().size() + discardQueued();
+        long flushed = metrics.getSentCount() + metrics.getSpooledCount() - before;
+        if (abandoned > 0) {
+            metrics.dropped(GelfMetrics.DROP_SHUTDOWN, abandoned);
+            System.err.println(String.format("GELF logging stopped, flushed %d messages and abandoned %d",
+                    flushed, abandoned));
+        } else {
+            trace("GELF logging stopped, flushed %d messages", flushed);
+        }
+    }
+
+    /**
+     * Empties every queue, once the sender has stopped
+     *
+     * @return how many messages were thrown away
+     */
+    private long discardQueued() {
+        long discarded = 0;
+        for (RetiredQueue retired : retiredQueues) {
+            for (GelfMessageSource source = retired.queue.poll(); null != source; source = retired.queue.poll()) {
+                discarded++;
+            }
+            metrics.retireQueue(retired.queue);
+        }
+        retiredQueues.clear();
+        GelfRingBuffer<GelfMessageSource> queue = gelfMessageQueue;
+        for (GelfMessageSource source = queue.poll(); null != source; source = queue.poll()) {
+            discarded++;
+        }
+        return discarded;
+    }
+
+    @Override
+    public boolean flush(final long timeout, final TimeUnit unit) {
+        if (!active.get()) {
+            return gelfMessageQueue.isEmpty();
+        }
+        return awaitFlushed(System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /**
+     * Takes a flush ticket and waits for the sender to complete it
+     *
+     * @param deadlineNanos when to give up, from {@link System#nanoTime()}
+     * @return true if everything queued before the call was written in time
+     */
+    private boolean awaitFlushed(final long deadlineNanos) {
+        long ticket = flushRequested.incrementAndGet();
+        startSender();
+        wakeSender();
+        synchronized (flushLock) {
+            while (flushCompleted < ticket) {
+                long remaining = deadlineNanos - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(flushLock, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a configuration, saying why if it cannot be used
+     */
+    private GelfTransporterConfig snapshot(final Map<String, Object> properties) {
+        GelfTransporterConfig next = new GelfTransporterConfig(properties);
+        if (next.isEnabled() && !next.isActive() && next.isConsoleMessages()) {
+            System.out.println("Cannot start gelf bundle, a host is not configured.");
+        }
+        return next;
+    }
+
+    /**
+     * Builds the queue and transport and starts sending, while nothing is running
+     */
+    private void start(final GelfTransporterConfig next) {
+        if (!isDelegating()) {
+            applyQueue(next);
+        }
+        appliedConfig = next;
+        switching = false;
+        hostname = next.getHost();
+        port = next.getPort();
+
+        trace("Enabling GELF logging to %s:%d", hostname, port);
+        startTransport(next.getHelper());
+        if (!isDelegating()) {
+            initializeThreading(next);
+        }
+    }
+
+    /**
+     * A transporter that hands every message straight to other transporters
+     * has no use for a queue or sending thread of its own, so neither is
+     * built. It overrides the logging and flush methods to pass messages on,
+     * and applies configuration changes to the others from
+     * {@link #modified(Map)}.
+     *
+     * @return true if messages are passed on rather than queued here
+     */
+    protected boolean isDelegating() {
+        return false;
+    }
+
+    /**
+     * Sets up whatever the subclass needs to reach the configured
+     * {@link #hostname} and {@link #port}. This must not block for long,
+     * a subclass that cannot connect now should try again later.
+     *
+     * @param helper  contains all Felix properties defined for this service
+     */
+    protected abstract void startTransport(IronValueHelper helper);
+
+    /**
+     * Tears down the transport, closing any connections
+     */
+    protected abstract void stopTransport();
+
+    /**
+     * @return when {@link #stopTransport()} has to give up on writes still
+     *     in progress, from {@link System#nanoTime()}. This is the shutdown
+     *     drain deadline, or the switch deadline when changing endpoints.
+     */
+    protected long getStopDeadlineNanos() {
+        return stopDeadlineNanos;
+    }
+
+    /**
+     * Called after {@link #stopTransport()} when switching to a new
+     * endpoint, for the messages the transport took but never wrote. They
+     * are sent through the new transport ahead of anything still queued.
+     *
+     * @return the messages, or an empty list if there are none
+     */
+    protected List<GelfMessage> takeUnsent() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Moves the transport to a new endpoint or transport settings, once the
+     * old one has been given everything queued for it. Called from the
+     * sending thread, so never for a transporter that {@link #isDelegating()}.
+     *
+     * @param next the configuration to start the transport for
+     * @return the messages the old transport never wrote
+     */
+    protected List<GelfMessage> switchTransport(final GelfTransporterConfig next) {
+        stopTransport();
+        List<GelfMessage> unsent = new ArrayList<>(takeUnsent());
+        hostname = next.getHost();
+        port = next.getPort();
+        startTransport(next.getHelper());
+        return unsent;
+    }
+
+    /**
+     * Takes one serialized message. Called only from the sending thread.
+     *
+     * @param frame the serialized message, only valid for the duration of the call
+     * @param message the message it was serialized from. Once the transport
+     *     is done with it, written or dropped, it calls {@link GelfMessage#recycle()}
+     * @return false if the transport cannot take the message yet, it is
+     *     kept ahead of everything still queued and sent again later
+     * @throws RuntimeException if the message cannot be taken at all, it is
+     *     dropped and recycled, so the transport must not keep it
+     */
+    protected abstract boolean send(ByteBuffer frame, GelfMessage message);
+
+    /**
+     * Called from the sending thread whenever {@link #lingerRemainingNanos()}
+     * runs out, so partial batches can be written.
+     *
+     * @param force true to write whatever is buffered even if it is not due
+     */
+    protected abstract void flush(boolean force);
+
+    /**
+     * @return false if the transport cannot accept messages right now,
+     *     in which case they are left on the queue
+     */
+    protected boolean isReady() {
+        return true;
+    }
+
+    /**
+     * Checked before the sending thread is released for being idle
+     *
+     * @return true if nothing is buffered or waiting to be written again
+     */
+    protected boolean isIdle() {
+        return true;
+    }
+
+    /**
+     * @return the name the metrics are published under, null to not publish them
+     */
+    protected String getMetricsName() {
+        return getClass().getSimpleName();
+    }
+
+    /**
+     * @return how long until buffered data needs to be flushed
+     */
+    protected long lingerRemainingNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(GRAYLOG_QUEUE_POLL_MILLIS);
+    }
+
+    /**
+     * Wakes up the sending thread if it is waiting for the transport
+     * to become ready, or for a message. A retired queue is only waited
+     * on while it has messages, so waking the current one is enough.
+     */
+    protected void wakeSender() {
+        gelfMessageQueue.wakeConsumer();
+        Thread sender = senderThread;
+        if (null != sender) {
+            LockSupport.unpark(sender);
+        }
+    }
+
+    /**
+     * Puts a new queue in place if the queue settings changed. Anything
+     * already queued stays where it is and is sent ahead of the new queue.
+     *
+     * @param next the configuration to build the queue for
+     */
+    private void applyQueue(final GelfTransporterConfig next) {
+        if (next.sameQueue(appliedConfig) && GelfTransporterConfig.INACTIVE != appliedConfig) {
+            return;
+        }
+        GelfRingBuffer<GelfMessageSource> oldQueue = gelfMessageQueue;
+        gelfMessageQueue = newQueue(next);
+        // A logging thread may still be blocked putting a message on the old queue
+        retiredQueues.add(new RetiredQueue(oldQueue,
+                GRAYLOG_QUEUE_POLL_MILLIS + Math.max(0, appliedConfig.getQueueBlockMillis())));
+    }
+
+    /**
+     * @return the oldest queue that still has messages on it, the current
+     *     queue once every retired one is empty
+     */
+    private GelfRingBuffer<GelfMessageSource> nextQueue() {
+        long now = System.nanoTime();
+        for (int i = 0; i < retiredQueues.size();) {
+            RetiredQueue retired = retiredQueues.get(i);
+            if (!retired.queue.isEmpty()) {
+                return retired.queue;
+            }
+            if (now - retired.forgetNanos >= 0) {
+                metrics.retireQueue(retired.queue);
+                retiredQueues.remove(i);
+            } else {
+                i++;
+            }
+        }
+        return gelfMessageQueue;
+    }
+
+    private GelfRingBuffer<GelfMessageSource> newQueue(final GelfTransporterConfig next) {
+        AtomicBoolean noTrace = new AtomicBoolean(false);
+        int dropLevel = next.getQueueDropLevel();
+        return new GelfRingBuffer<>(next.getQueueCapacity(), next.getOverflowPolicy(), next.getQueueBlockMillis(),
+                m -> GelfMessageConverter.isLessSevere(m.getLevel(),
+                        GelfMessageConverter.gelfLevelFromOsgiLevel(dropLevel, noTrace, syslogLevels), syslogLevels));
+    }
+
+    /**
+     * @param reason why messages were dropped
+     * @return how many messages the queue dropped for that reason
+     */
+    public long getDropCount(final DropReason reason) {
+        return metrics.getQueueDropCount(reason);
+    }
+
+    /**
+     * @return how many messages were dropped after running out of write attempts
+     */
+    public long getRetryDropCount() {
+        return metrics.getDropCount(GelfMetrics.DROP_RETRY);
+    }
+
+    /**
+     * Drops the messages of a batch that ran out of write attempts
+     *
+     * @param messages the messages being dropped
+     */
+    protected void dropAfterRetries(final List<GelfMessage> messages) {
+        metrics.dropped(GelfMetrics.DROP_RETRY, messages.size());
+        trace("Dropping %d Gelf Messages after %d failed write attempts", messages.size(), getMaxAttempts());
+    }
+
+    /**
+     * Takes messages off the queue so another transporter can send them.
+     * They are counted as rerouted drops here.
+     *
+     * This may be called from any thread while the sender is running. The
+     * sender may already hold messages taken before these, which this
+     * transporter then sends after the rerouted ones were, so rerouting can
+     * reorder messages across the two.
+     *
+     * @param into where to add the messages
+     * @param max most messages to take
+     * @return how many were taken
+     */
+    protected int drainQueued(final List<GelfMessageSource> into, final int max) {
+        int count = gelfMessageQueue.drainTo(into, max);
+        if (count > 0) {
+            metrics.dropped(GelfMetrics.DROP_REROUTED, count);
+        }
+        return count;
+    }
+
+    /**
+     * @return the pipeline's counters and latencies
+     */
+    public GelfMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return how full the message queue is, from 0 to 1
+     */
+    protected double getQueueFill() {
+        GelfRingBuffer<GelfMessageSource> queue = gelfMessageQueue;
+        return (double) queue.size() / queue.capacity();
+    }
+
+    /**
+     * Initialize any properties that are used by the threading mechanism
+     *
+     * @param next the configuration being started
+     */
+    private void initializeThreading(final GelfTransporterConfig next) {
+        if (null == executorService) {
+            // Only one task ever runs, the thread goes away with it when idle
+            int idleMillis = next.getIdleMillis();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, Math.max(1, idleMillis), TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(),
+                    ThreadPoolUtils.getThreadFactory(getClass().getSimpleName(), new AtomicInteger(0)));
+            executor.allowCoreThreadTimeOut(idleMillis > 0);
+
+            senderRunning = new AtomicBoolean(false);
+            executorService = executor;
+            gelfMessageProcessingActive.set(true);
+            startSender();
+        }
+    }
+
+    /**
+     * Starts the sending task if it is not running
+     */
+    private void startSender() {
+        AtomicBoolean running = senderRunning;
+        ThreadPoolExecutor executor = executorService;
+        if (null != executor && gelfMessageProcessingActive.get() && running.compareAndSet(false, true)) {
+            try {
+                processGelfMessageFuture = executor.submit(() -> processGelfMessageQueue(running));
+            } catch (RejectedExecutionException e) {
+                // Shutting down
+                running.set(false);
+            }
+        }
+    }
+
+    /**
+     * Set any properties that used by the service itself to allow for terminsation
+     */
+    private void terminateService() {
+        active.set(false);
+    }
+
+    /**
+     * Terminate threading, letting the sender finish what it is writing
+     *
+     * @return the executor that was shut down, null if there was none
+     */
+    private ThreadPoolExecutor terminateThreading() {
+        gelfMessageProcessingActive.set(false);
+        wakeSender();
+
+        Future<?> future = processGelfMessageFuture;
+        if (Objects.nonNull(future)) {
+            try {
+                future.get(GRAYLOG_SENDER_STOP_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+            } catch (ExecutionException | CancellationException e) {
+                /* Already stopped */ }
+        }
+
+        ThreadPoolExecutor executor = executorService;
+        executorService = null;
+        if (null != executor) {
+            executor.shutdown();
+        }
+        return executor;
+    }
+
+    /**
+     * Waits for a sender that was told to stop to actually return, so the
+     * queue and transport are not touched while it may still use them
+     *
+     * @param executor the executor the sender ran on, may be null
+     * @return true if no sender is running any more
+     */
+    private boolean awaitSenderStopped(final ThreadPoolExecutor executor) {
+        if (null == executor) {
+            return true;
+        }
+        try {
+            return executor.awaitTermination(GRAYLOG_SENDER_STOP_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public void logGelfMessage(final GelfMessage message) {
+        logGelfMessage(message, e -> { });
+    }
+
+    /**
+     * Queues a message. It is sent later, so the only failure reported to
+     * onException is the queue turning it away.
+     */
+    @Override
+    public void logGelfMessage(final GelfMessage message, final Consumer<IOException> onException) {
+        if (!active.get()) {
+            return; // We aren't running
+        }
+
+        if (!enqueue(message)) {
+            trace("No space available to queue Gelf Message '%s' at timestamp '%d'.", message.short_message, message.timestamp);
+            onException.accept(new IOException("No space available to queue the Gelf Message"));
+        }
+    }
+
+    @Override
+    public void logGelfMessageSource(final GelfMessageSource source) {
+        if (active.get() && !enqueue(source)) {
+            trace("No space available to queue a Gelf Message.");
+        }
+    }
+
+    /**
+     * Adds a message to the queue, which applies the overflow policy, and
+     * starts the sender if it is not running
+     *
+     * @param source the message to queue
+     * @return false if the transporter is not running or the queue turned it away
+     */
+    boolean enqueue(final GelfMessageSource source) {
+        if (!active.get()) {
+            return false;
+        }
+        metrics.offered();
+        if (!gelfMessageQueue.offer(source)) {
+            return false;
+        }
+        if (!senderRunning.get()) {
+            startSender();
+        }
+        return true;
+    }
+
+    @Override
+    public void logFiltered(final String reason) {
+        if (active.get()) {
+            metrics.filteredByCaller(reason);
+        }
+    }
+
+    /**
+     * This is the background thread to process the Gelf Message queue. It
+     * returns once it has been idle for the idle timeout, and is started
+     * again by the next message queued.
+     *
+     * @param running cleared when this stops, so the next message restarts it
+     */
+    private void processGelfMessageQueue(final AtomicBoolean running) {
+        if (!gelfMessageProcessingActive.get()) {
+            running.set(false);
+            return; // We aren't running
+        }
+
+        senderThread = Thread.currentThread();
+        // Messages taken off the queue and not yet accepted by the transport,
+        // these always go before anything still queued
+        List<GelfMessage> gelfMessages = new ArrayList<>();
+        List<GelfMessageSource> drained = new ArrayList<>();
+        long lastMessageNanos = System.nanoTime();
+        boolean released = false;
+
+        try {
+            // A sender that outlived its executor must not compete with the next one
+            while (gelfMessageProcessingActive.get() && running == senderRunning) {
+                if (reconfigure.getAndSet(false)) {
+                    reconfigure();
+                }
+                GelfRingBuffer<GelfMessageSource> queue = nextQueue();
+                if (switching && isDrainedForSwitch(queue, gelfMessages)) {
+                    switching = false;
+                    stopDeadlineNanos = switchDeadlineNanos;
+                    trace("Switching GELF logging from %s:%d to %s:%d",
+                            hostname, port, appliedConfig.getHost(), appliedConfig.getPort());
+                    gelfMessages.addAll(0, switchTransport(appliedConfig));
+                }
+                if (flushServing != flushRequested.get()) {
+                    // Everything queued now has to be written for the flush to complete
+                    flushServing = flushRequested.get();
+                    flushOwed = queuedCount();
+                }
+                if (isFlushPending() && flushOwed <= 0 && gelfMessages.isEmpty()) {
+                    flush(true);
+                    if (isIdle()) {
+                        completeFlush(flushServing);
+                    }
+                }
+                long waitNanos = lingerRemainingNanos();
+
+                if (!isReady()) {
+                    // Leave messages queued until the transport catches up
+                    LockSupport.parkNanos(this, waitNanos);
+                    lastMessageNanos = System.nanoTime();
+                } else {
+                    if (gelfMessages.isEmpty() && switching && switchOwed <= 0) {
+                        // Anything newer is for the new transport, wait for the old one to finish
+                        LockSupport.parkNanos(this, waitNanos);
+                    } else if (gelfMessages.isEmpty()) {
+                        // This waits until an element is available, or a partial batch is due
+                        GelfMessageSource first = queue.poll(waitNanos, TimeUnit.NANOSECONDS);
+                        if (null != first) {
+                            drained.add(first);
+                            queue.drainTo(drained,
+                                    switching ? (int) Math.min(GRAYLOG_DRAIN_MAX, switchOwed - 1) : GRAYLOG_DRAIN_MAX);
+                            flushOwed -= drained.size();
+                            switchOwed -= drained.size();
+                            drained.forEach(source -> prepare(source, gelfMessages));
+                            drained.clear();
+                            lastMessageNanos = System.nanoTime();
+                        }
+                    }
+
+                    int sent = 0;
+                    while (sent < gelfMessages.size() && processGelfMessage(gelfMessages.get(sent))) {
+                        sent++;
+                    }
+                    gelfMessages.subList(0, sent).clear();
+                }
+
+                flush(false);
+
+                long idleNanos = TimeUnit.MILLISECONDS.toNanos(config.getIdleMillis());
+                if (idleNanos > 0 && gelfMessages.isEmpty() && !switching && !isFlushPending()
+                        && System.nanoTime() - lastMessageNanos >= idleNanos) {
+                    flush(true);
+                    if (isIdle()) {
+                        running.set(false);
+                        // A message queued just before the flag was cleared did not restart us
+                        if (queue.isEmpty() || !running.compareAndSet(false, true)) {
+                            released = true;
+                            trace("GELF sender idle, releasing its thread");
+                            return;
+                        }
+                    }
+                    lastMessageNanos = System.nanoTime();
+                }
+            }
+        } finally {
+            if (running == senderRunning) {
+                senderThread = null;
+                heldOnStop = gelfMessages.size();
+            }
+            if (!released) {
+                running.set(false);
+            }
+        }
+    }
+
+    /**
+     * @param deadlineNanos a deadline from {@link System#nanoTime()}
+     * @return nanoseconds left until it, never negative
+     */
+    protected static long remainingNanos(final long deadlineNanos) {
+        return Math.max(0, deadlineNanos - System.nanoTime());
+    }
+
+    /**
+     * @return true if a flush ticket is waiting on the sender
+     */
+    private boolean isFlushPending() {
+        synchronized (flushLock) {
+            return flushCompleted != flushServing;
+        }
+    }
+
+    private void completeFlush(final long ticket) {
+        synchronized (flushLock) {
+            flushCompleted = ticket;
+            flushLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return how many messages are waiting on the queue and any retired ones
+     */
+    private long queuedCount() {
+        long count = gelfMessageQueue.size();
+        for (RetiredQueue retired : retiredQueues) {
+            count += retired.queue.size();
+        }
+        return count;
+    }
+
+    /**
+     * Catches the queue and transport up with the current configuration.
+     * A new queue takes over straight away, the old one is emptied first.
+     * A new transport waits until the old one has written what was queued.
+     */
+    private void reconfigure() {
+        GelfTransporterConfig next = config;
+        if (!next.isActive()) {
+            return;
+        }
+        applyQueue(next);
+        if (!switching && !next.sameTransport(appliedConfig)) {
+            switching = true;
+            switchOwed = queuedCount();
+            switchDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(GRAYLOG_SWITCH_DRAIN_MILLIS);
+        }
+        appliedConfig = next;
+    }
+
+    /**
+     * @return true once everything queued before a switch has been written,
+     *     or the old transport has run out of time to write it. Messages
+     *     queued after the switch was asked for wait for the new transport.
+     */
+    private boolean isDrainedForSwitch(final GelfRingBuffer<GelfMessageSource> queue,
+            final List<GelfMessage> gelfMessages) {
+        if (System.nanoTime() - switchDeadlineNanos >= 0) {
+            return true;
+        }
+        if (!gelfMessages.isEmpty() || switchOwed > 0 || queue != gelfMessageQueue) {
+            return false;
+        }
+        flush(true);
+        return isIdle();
+    }
+
+    /**
+     * Builds a message as it comes off the queue, filling in the hostname
+     * and the configured fields and cutting it down to the size limits, once
+     *
+     * @param source what to build the message from
+     * @param messages where to add the message
+     */
+    private void prepare(final GelfMessageSource source, final List<GelfMessage> messages) {
+        GelfMessage message;
+        try {
+            message = source.toGelfMessage();
+        } catch (RuntimeException e) {
+            metrics.dropped(GelfMetrics.DROP_CONVERSION, 1);
+            trace("Failed to build Gelf Message, dropping it due to -- %s", e.getMessage());
+            return;
+        }
+        if (null == message) {
+            metrics.filteredOnSend();
+            return;
+        }
+
+        // Set the hostname as a last resort if we didn't get one passed in
+        GelfTransporterConfig current = config;
+        if (Objects.isNull(message.host) || message.host.trim().isEmpty()) {
+            String loggedAs = loggedAsHostname;
+            message.host = null != loggedAs ? loggedAs : current.getSourceHostname().orElseGet(
+                    AbstractGelfTransporter::getHostname);
+        }
+        // Shared with every message, not copied into each
+        message.staticFields = current.getAdditionalFields();
+        if (current.getLimits().apply(message)) {
+            trace("Gelf Message '%.40s' was cut down to the size limits", message.short_message);
+        }
+        messages.add(message);
+    }
+
+    /**
+     * Serialize a message and hand it to the transport
+     *
+     * @param message message to send via GELF
+     * @return false if the transport could not take it yet
+     */
+    private boolean processGelfMessage(final GelfMessage message) {
+        ByteBuffer frame;
+        try {
+            long start = System.nanoTime();
+            frame = config.isUseJackson() ? ByteBuffer.wrap(mapper.writeValueAsBytes(message)) : encoder.encode(message);
+            metrics.recordSerialization(System.nanoTime() - start);
+        } catch (IOException | RuntimeException e) {
+            metrics.dropped(GelfMetrics.DROP_SERIALIZATION, 1);
+            trace("Failed to serialize message, dropping it due to -- %s", e.getMessage());
+            message.recycle();
+            return true;
+        }
+
+        try {
+            return send(frame, message);
+        } catch (RuntimeException e) {
+            metrics.dropped(GelfMetrics.DROP_WRITE, 1);
+            trace("Failed to send message, dropping it due to -- %s", e.getMessage());
+            // A transport that throws has not kept the message
+            message.recycle();
+            return true;
+        }
+    }
+
+    /**
+     * Writes a potentially formatted message to the console, if enabled
+     *
+     * @param format String format, like String.format
+     * @param args Argument list, like String.format
+     */
+    protected void trace(final String format, final Object...args) {
+        if (config.isConsoleMessages()) {
+            System.out.println(String.format(format, args));
+        }
+    }
+}
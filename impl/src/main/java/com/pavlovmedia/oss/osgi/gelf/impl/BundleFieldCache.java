@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+
+/**
+ * Keeps the GELF fields describing each bundle, so the headers are only
+ * read once per bundle rather than once per log entry. The field maps are
+ * immutable and shared by every message from that bundle.
+ *
+ * Register this as a {@link BundleListener} so an updated or uninstalled
+ * bundle's fields are rebuilt.
+ */
+public class BundleFieldCache implements BundleListener {
+    static final String BUNDLE_ID = "Bundle-Id";
+    static final String BUNDLE_SYMBOLIC_NAME = "Bundle-SymbolicName";
+    static final String BUNDLE_VERSION = "Bundle-Version";
+    static final String BUNDLE_NAME = "Bundle-Name";
+
+    private final Map<Long, Map<String, String>> fields = new ConcurrentHashMap<>();
+
+    /**
+     * @param bundle the bundle that logged
+     * @return the bundle's fields, never modified
+     */
+    public Map<String, String> getFields(final Bundle bundle) {
+        // A plain get first, computeIfAbsent locks even when the key is present on Java 8
+        Map<String, String> cached = fields.get(bundle.getBundleId());
+        if (null == cached) {
+            cached = fields.computeIfAbsent(bundle.getBundleId(), id -> buildFields(bundle));
+        }
+        return cached;
+    }
+
+    @Override
+    public void bundleChanged(final BundleEvent event) {
+        if (BundleEvent.UPDATED == event.getType() || BundleEvent.UNINSTALLED == event.getType()) {
+            fields.remove(event.getBundle().getBundleId());
+        }
+    }
+
+    /**
+     * Reads the fields straight from the bundle, without caching
+     * @param bundle the bundle that logged
+     * @return the bundle's fields
+     */
+    public static Map<String, String> buildFields(final Bundle bundle) {
+        Map<String, String> built = new LinkedHashMap<>();
+        built.put(BUNDLE_ID, Long.toString(bundle.getBundleId()));
+        built.put(BUNDLE_SYMBOLIC_NAME, bundle.getSymbolicName());
+
+        @SuppressWarnings("rawtypes")
+        Dictionary headers = bundle.getHeaders();
+        putHeader(built, headers, BUNDLE_VERSION);
+        putHeader(built, headers, BUNDLE_NAME);
+        return Collections.unmodifiableMap(built);
+    }
+
+    private static void putHeader(final Map<String, String> built,
+            @SuppressWarnings("rawtypes") final Dictionary headers, final String name) {
+        Object value = headers.get(name);
+        if (null != value) {
+            built.put(name, value.toString());
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.service.log.LogService;
+
+/**
+ * Decides from the logging bundle and level whether an entry is sent at all.
+ *
+ * Rules are "pattern:level" pairs, where the pattern matches a bundle
+ * symbolic name with * and ? wildcards and the level is the least severe
+ * OSGi level to send (error, warning, info, debug or off). The first
+ * matching rule wins, bundles without a match get the default level.
+ *
+ * The rules are worked out once per bundle into a table indexed by bundle
+ * id, so checking an entry is one array read. The table is rebuilt when
+ * the rules change and a bundle's slot is cleared when it is installed,
+ * updated or uninstalled; register this as a {@link BundleListener}.
+ */
+public class BundleLevelFilter implements BundleListener {
+    /** Send nothing from the bundle */
+    static final int OFF = 0;
+
+    /** The bundle's level has not been worked out yet */
+    private static final int UNRESOLVED = -1;
+
+    /** Bundle ids above this are looked up in a map instead */
+    private static final int MAX_TABLE_SIZE = 1 << 16;
+
+    private volatile Rules rules = new Rules(LogService.LOG_DEBUG, Collections.emptyList());
+    private volatile int[] levels = new int[0];
+    private final ConcurrentMap<Long, Integer> overflow = new ConcurrentHashMap<>();
+
+    /**
+     * Replaces the rules and rebuilds the table for the given bundles
+     * @param defaultLevel level for bundles no rule matches
+     * @param ruleSpecs "pattern:level" rules, in order, invalid ones are ignored
+     * @param bundles the installed bundles, others are worked out as they log
+     */
+    public void configure(final int defaultLevel, final List<String> ruleSpecs, final Bundle[] bundles) {
+        List<Rule> parsed = new ArrayList<>();
+        for (String spec : ruleSpecs) {
+            int colon = spec.lastIndexOf(':');
+            if (colon > 0) {
+                int level = parseLevel(spec.substring(colon + 1));
+                if (UNRESOLVED != level) {
+                    parsed.add(new Rule(spec.substring(0, colon).trim(), level));
+                }
+            }
+        }
+        Rules newRules = new Rules(Math.max(OFF, defaultLevel), parsed);
+
+        long maxId = -1;
+        for (Bundle bundle : bundles) {
+            maxId = Math.max(maxId, bundle.getBundleId());
+        }
+        int[] table = new int[(int) Math.min(MAX_TABLE_SIZE, maxId + 1)];
+        Arrays.fill(table, UNRESOLVED);
+        for (Bundle bundle : bundles) {
+            if (bundle.getBundleId() < table.length) {
+                table[(int) bundle.getBundleId()] = newRules.levelFor(bundle.getSymbolicName());
+            }
+        }
+
+        // Under the same lock as resolve, so a slow resolve cannot put back the old table
+        synchronized (this) {
+            rules = newRules;
+            levels = table;
+            overflow.clear();
+        }
+    }
+
+    /**
+     * @param bundle the bundle that logged, may be null
+     * @param osgiLevel the OSGi level of the entry
+     * @return true if the entry should be sent
+     */
+    public boolean isLogged(final Bundle bundle, final int osgiLevel) {
+        int max;
+        if (null == bundle) {
+            max = rules.defaultLevel;
+        } else {
+            int[] table = levels;
+            long id = bundle.getBundleId();
+            max = id < table.length ? table[(int) id] : UNRESOLVED;
+            if (UNRESOLVED == max) {
+                max = resolve(bundle);
+            }
+        }
+        // Levels past debug are trace, treated as debug
+        return Math.min(osgiLevel, LogService.LOG_DEBUG) <= max;
+    }
+
+    @Override
+    public void bundleChanged(final BundleEvent event) {
+        switch (event.getType()) {
+            case BundleEvent.INSTALLED:
+            case BundleEvent.UPDATED:
+            case BundleEvent.UNINSTALLED:
+                long id = event.getBundle().getBundleId();
+                synchronized (this) {
+                    int[] table = levels;
+                    if (id < table.length) {
+                        table[(int) id] = UNRESOLVED;
+                    } else {
+                        overflow.remove(id);
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Works out a bundle's level and remembers it, growing the table if needed
+     */
+    private int resolve(final Bundle bundle) {
+        long id = bundle.getBundleId();
+        if (id >= MAX_TABLE_SIZE) {
+            Integer known = overflow.get(id);
+            if (null != known) {
+                return known;
+            }
+        }
+
+        Rules current = rules;
+        int level = current.levelFor(bundle.getSymbolicName());
+
+        synchronized (this) {
+            // Only keep the answer if the rules did not change underneath us
+            if (current != rules) {
+                return level;
+            }
+            if (id >= MAX_TABLE_SIZE) {
+                overflow.put(id, level);
+                return level;
+            }
+            int[] table = levels;
+            if (id >= table.length) {
+                int[] grown = Arrays.copyOf(table, (int) Math.min(MAX_TABLE_SIZE, Math.max(id + 1, table.length * 2L)));
+                Arrays.fill(grown, table.length, grown.length, UNRESOLVED);
+                table = grown;
+            }
+            table[(int) id] = level;
+            levels = table;
+        }
+        return level;
+    }
+
+    /**
+     * @return the OSGi level for a name or number, or UNRESOLVED if it is not one
+     */
+    static int parseLevel(final String value) {
+        String level = value.trim().toLowerCase(Locale.ROOT);
+        switch (level) {
+            case "off":
+            case "none":
+                return OFF;
+            case "error":
+                return LogService.LOG_ERROR;
+            case "warn":
+            case "warning":
+                return LogService.LOG_WARNING;
+            case "info":
+                return LogService.LOG_INFO;
+            case "debug":
+            case "trace":
+                return LogService.LOG_DEBUG;
+            default:
+                try {
+                    return Math.max(OFF, Math.min(LogService.LOG_DEBUG, Integer.parseInt(level)));
+                } catch (NumberFormatException e) {
+                    return UNRESOLVED;
+                }
+        }
+    }
+
+    /**
+     * An immutable rule set
+     */
+    private static final class Rules {
+        final int defaultLevel;
+        final List<Rule> rules;
+
+        Rules(final int defaultLevel, final List<Rule> rules) {
+            this.defaultLevel = defaultLevel;
+            this.rules = rules;
+        }
+
+        int levelFor(final String symbolicName) {
+            if (null != symbolicName) {
+                for (Rule rule : rules) {
+                    if (rule.pattern.matcher(symbolicName).matches()) {
+                        return rule.level;
+                    }
+                }
+            }
+            return defaultLevel;
+        }
+    }
+
+    private static final class Rule {
+        final Pattern pattern;
+        final int level;
+
+        Rule(final String glob, final int level) {
+            StringBuilder regex = new StringBuilder();
+            for (String part : glob.split("(?=[*?])|(?<=[*?])")) {
+                if ("*".equals(part)) {
+                    regex.append(".*");
+                } else if ("?".equals(part)) {
+                    regex.append('.');
+                } else if (!part.isEmpty()) {
+                    regex.append(Pattern.quote(part));
+                }
+            }
+            this.pattern = Pattern.compile(regex.toString());
+            this.level = level;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of whether an endpoint should be sent to.
+ *
+ * The breaker starts closed. After a number of failures in a row it opens,
+ * and stays open for at least the open time. Once that has passed a probe
+ * is due, and a successful probe half opens it so messages are sent again.
+ * A failure while half open opens it again, a successful write closes it.
+ *
+ * Checking the breaker is a volatile read, so it can be done for every
+ * message on the logging threads.
+ */
+public class GelfCircuitBreaker {
+    /**
+     * Where the breaker stands
+     */
+    public enum State {
+        /** Sending normally */
+        CLOSED,
+        /** Not sending until a probe succeeds */
+        OPEN,
+        /** Sending again, the next write decides */
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final AtomicInteger failures = new AtomicInteger(0);
+    private final LongAdder trips = new LongAdder();
+
+    private volatile State state = State.CLOSED;
+    private volatile long openedNanos;
+
+    /**
+     * @param failureThreshold failures in a row that open the breaker
+     * @param openMillis how long the breaker stays open before probing
+     */
+    public GelfCircuitBreaker(final int failureThreshold, final long openMillis) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, openMillis));
+    }
+
+    /**
+     * @return true unless the breaker is open
+     */
+    public boolean allowRequest() {
+        return State.OPEN != state;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return how many times the breaker has opened
+     */
+    public long getTripCount() {
+        return trips.sum();
+    }
+
+    /**
+     * @return true if the breaker is open and has been for the open time
+     */
+    public boolean isProbeDue() {
+        return State.OPEN == state && System.nanoTime() - openedNanos >= openNanos;
+    }
+
+    /**
+     * The endpoint answered a probe, send to it again
+     */
+    public void probeSucceeded() {
+        if (State.OPEN == state) {
+            state = State.HALF_OPEN;
+        }
+    }
+
+    /**
+     * The endpoint did not answer a probe, wait another open time
+     */
+    public void probeFailed() {
+        if (State.OPEN == state) {
+            openedNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * A write went through
+     */
+    public void recordSuccess() {
+        if (0 != failures.get()) {
+            failures.set(0);
+        }
+        if (State.CLOSED != state) {
+            state = State.CLOSED;
+        }
+    }
+
+    /**
+     * A connection or write failed
+     */
+    public void recordFailure() {
+        State current = state;
+        if (State.HALF_OPEN == current
+                || (State.CLOSED == current && failures.incrementAndGet() >= failureThreshold)) {
+            failures.set(0);
+            openedNanos = System.nanoTime();
+            state = State.OPEN;
+            trips.increment();
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.LongConsumer;
+
+/**
+ * A persistent FIFO of encoded GELF frames, kept in a directory of fixed
+ * size memory-mapped segment files so appends are plain sequential memory
+ * writes.
+ *
+ * Each segment starts with a small header holding how far it has been
+ * replayed, followed by length prefixed frames. A frame's length is written
+ * after its bytes, so a segment is recovered after a restart by reading
+ * records until the first zero length. Frames are read with {@link #peek()}
+ * and {@link #advance()}, and only forgotten once {@link #commit()} is
+ * called after they were written successfully; {@link #rewind()} goes back
+ * to the last commit.
+ *
+ * When the spool grows past its size limit the oldest segment is deleted,
+ * unread frames and all, and how many were lost is handed to the owner.
+ * Nothing here is synchronized, the spool belongs to
+ * the thread that sends messages.
+ */
+public class GelfDiskSpool implements Closeable {
+    private static final String SEGMENT_PREFIX = "gelf-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+
+    private static final int MAGIC = 0x47454c46; // GELF
+    private static final int MAGIC_OFFSET = 0;
+    private static final int READ_OFFSET = 8;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 4;
+    private static final int MIN_SEGMENT_BYTES = 64 * 1024;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final LongConsumer evicted;
+    private long nextSegmentId;
+
+    /** The segment the last {@link #peek()} came from */
+    private Segment peeked;
+
+    /**
+     * Opens a spool, picking up any segments left by a previous run
+     * @param directory where segment files live, created if needed
+     * @param segmentBytes size of each segment file
+     * @param maxBytes total size of all segments before the oldest is evicted
+     * @param evicted takes how many unread frames each evicted segment held
+     * @throws IOException if the directory or an existing segment cannot be opened
+     */
+    public GelfDiskSpool(final Path directory, final int segmentBytes, final long maxBytes,
+            final LongConsumer evicted) throws IOException {
+        this.directory = directory;
+        this.evicted = Objects.requireNonNull(evicted, "evicted is Null");
+        this.segmentBytes = Math.max(MIN_SEGMENT_BYTES, segmentBytes);
+        this.maxBytes = Math.max(this.segmentBytes, maxBytes);
+
+        Files.createDirectories(directory);
+        List<Path> existing = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            files.forEach(existing::add);
+        }
+        // Ids are zero padded so names sort in write order
+        existing.sort(null);
+        for (Path file : existing) {
+            long id = segmentId(file);
+            Segment segment = id < 0 ? null : Segment.open(file);
+            if (null == segment || segment.isFullyRead()) {
+                Files.deleteIfExists(file);
+            } else {
+                segments.addLast(segment);
+            }
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+        }
+    }
+
+    /**
+     * Adds a frame to the end of the spool
+     * @param frame the encoded message, its remaining bytes are copied
+     * @return false if the frame is too big to ever fit in a segment
+     * @throws IOException if a new segment cannot be created
+     */
+    public boolean append(final ByteBuffer frame) throws IOException {
+        int length = frame.remaining();
+        if (HEADER_SIZE + RECORD_HEADER_SIZE + length > segmentBytes) {
+            return false;
+        }
+
+        Segment tail = segments.peekLast();
+        if (null == tail || !tail.canAppend(length)) {
+            tail = roll(tail);
+        }
+        tail.append(frame);
+        return true;
+    }
+
+    /**
+     * @return the oldest frame not yet read, or null if there is none.
+     *     The buffer is only valid until the next call on the spool.
+     */
+    public ByteBuffer peek() {
+        for (Segment segment : segments) {
+            if (segment.hasUnread()) {
+                peeked = segment;
+                return segment.peek();
+            }
+        }
+        peeked = null;
+        return null;
+    }
+
+    /**
+     * Moves past the frame returned by the last {@link #peek()}
+     */
+    public void advance() {
+        if (null != peeked) {
+            peeked.advance();
+            peeked = null;
+        }
+    }
+
+    /**
+     * Forgets every frame read so far, deleting segments that are used up
+     * @throws IOException if a used up segment cannot be deleted
+     */
+    public void commit() throws IOException {
+        peeked = null;
+        for (Segment segment : segments) {
+            segment.commit();
+        }
+        deleteFullyRead();
+    }
+
+    /**
+     * Goes back to the last {@link #commit()}, so the same frames are read again
+     */
+    public void rewind() {
+        peeked = null;
+        segments.forEach(Segment::rewind);
+    }
+
+    /**
+     * @return true if everything appended has been committed
+     */
+    public boolean isEmpty() {
+        for (Segment segment : segments) {
+            if (!segment.isFullyRead()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        rewind();
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+    }
+
+    /**
+     * Starts a new segment, evicting the oldest ones if that takes the
+     * spool over its size limit
+     */
+    private Segment roll(final Segment previous) throws IOException {
+        if (null != previous) {
+            previous.map.force();
+        }
+        deleteFullyRead();
+
+        while (!segments.isEmpty() && (long) (segments.size() + 1) * segmentBytes > maxBytes) {
+            Segment oldest = segments.removeFirst();
+            long unread = oldest.countUnread();
+            oldest.delete();
+            if (unread > 0) {
+                evicted.accept(unread);
+            }
+        }
+
+        Path file = directory.resolve(String.format("%s%019d%s", SEGMENT_PREFIX, nextSegmentId++, SEGMENT_SUFFIX));
+        Segment segment = Segment.create(file, segmentBytes);
+        segments.addLast(segment);
+        return segment;
+    }
+
+    private void deleteFullyRead() throws IOException {
+        Iterator<Segment> iterator = segments.iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (!segment.isFullyRead()) {
+                return;
+            }
+            iterator.remove();
+            segment.delete();
+        }
+    }
+
+    private static long segmentId(final Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * One mapped segment file
+     */
+    private static final class Segment {
+        final Path file;
+        final FileChannel channel;
+        final MappedByteBuffer map;
+        final ByteBuffer readView;
+        int writePosition;
+        int readPosition;
+        int cursor;
+
+        private Segment(final Path file, final FileChannel channel, final MappedByteBuffer map) {
+            this.file = file;
+            this.channel = channel;
+            this.map = map;
+            this.readView = map.duplicate();
+        }
+
+        static Segment create(final Path file, final int size) throws IOException {
+            FileChannel channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer map = channel.map(MapMode.READ_WRITE, 0, size);
+            map.putInt(MAGIC_OFFSET, MAGIC);
+            map.putInt(READ_OFFSET, HEADER_SIZE);
+            Segment segment = new Segment(file, channel, map);
+            segment.writePosition = HEADER_SIZE;
+            segment.readPosition = HEADER_SIZE;
+            segment.cursor = HEADER_SIZE;
+            return segment;
+        }
+
+        /**
+         * @return the segment, or null if the file is not a valid segment
+         */
+        static Segment open(final Path file) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                channel.close();
+                return null;
+            }
+            MappedByteBuffer map = channel.map(MapMode.READ_WRITE, 0, size);
+            if (MAGIC != map.getInt(MAGIC_OFFSET)) {
+                channel.close();
+                return null;
+            }
+
+            Segment segment = new Segment(file, channel, map);
+            int position = HEADER_SIZE;
+            while (position + RECORD_HEADER_SIZE <= size) {
+                int length = map.getInt(position);
+                if (length <= 0 || position + RECORD_HEADER_SIZE + length > size) {
+                    break;
+                }
+                position += RECORD_HEADER_SIZE + length;
+            }
+            segment.writePosition = position;
+            int read = map.getInt(READ_OFFSET);
+            segment.readPosition = read < HEADER_SIZE || read > position ? HEADER_SIZE : read;
+            segment.cursor = segment.readPosition;
+            return segment;
+        }
+
+        boolean canAppend(final int length) {
+            return writePosition + RECORD_HEADER_SIZE + length <= map.capacity();
+        }
+
+        void append(final ByteBuffer frame) {
+            int length = frame.remaining();
+            map.clear();
+            map.position(writePosition + RECORD_HEADER_SIZE);
+            map.put(frame);
+            // The length goes in last, it is what makes the record visible on recovery
+            map.putInt(writePosition, length);
+            writePosition += RECORD_HEADER_SIZE + length;
+        }
+
+        boolean hasUnread() {
+            return cursor < writePosition;
+        }
+
+        boolean isFullyRead() {
+            return readPosition >= writePosition;
+        }
+
+        ByteBuffer peek() {
+            int length = map.getInt(cursor);
+            readView.clear();
+            readView.position(cursor + RECORD_HEADER_SIZE);
+            readView.limit(cursor + RECORD_HEADER_SIZE + length);
+            return readView;
+        }
+
+        void advance() {
+            cursor += RECORD_HEADER_SIZE + map.getInt(cursor);
+        }
+
+        void commit() {
+            if (readPosition != cursor) {
+                readPosition = cursor;
+                map.putInt(READ_OFFSET, readPosition);
+            }
+        }
+
+        void rewind() {
+            cursor = readPosition;
+        }
+
+        long countUnread() {
+            long count = 0;
+            for (int position = readPosition; position < writePosition; position += RECORD_HEADER_SIZE + map.getInt(position)) {
+                count++;
+            }
+            return count;
+        }
+
+        void close() throws IOException {
+            map.force();
+            channel.close();
+        }
+
+        void delete() throws IOException {
+            // The mapping itself is released when the buffer is collected
+            channel.close();
+            Files.deleteIfExists(file);
+        }
+    }
+}
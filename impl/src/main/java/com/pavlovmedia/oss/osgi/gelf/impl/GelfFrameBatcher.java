@@ -0,0 +1,285 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Collects null delimited GELF frames into a single reusable direct buffer
+ * so a whole batch goes out in one gathering write instead of two writes
+ * per message.
+ *
+ * This is not thread safe. It is filled by the thread draining the queue,
+ * and once {@link #seal()}ed it may be handed to another thread to write.
+ *
+ * @param <M> the message type kept alongside each frame so it can be re-queued
+ */
+public class GelfFrameBatcher<M> {
+    /** There is a bug in GELF that requires us to end every frame with a null byte */
+    private static final byte DELIMITER = '\0';
+
+    private final ByteBuffer buffer;
+    private final ByteBuffer[] gather = new ByteBuffer[3];
+    private final ByteBuffer delimiter = ByteBuffer.allocateDirect(1).put(0, DELIMITER);
+    private final long lingerNanos;
+    private final List<M> pending = new ArrayList<>();
+    /** Given each message when the batch is written or thrown away */
+    private final Consumer<M> release;
+
+    private ByteBuffer oversized;
+    private long firstFrameNanos;
+    private long sealedNanos;
+    private long byteCount;
+    private int gatherCount;
+    private int failedAttempts;
+
+    /**
+     * @param flushBytes once this many bytes are buffered the batch should be written
+     * @param lingerMillis the longest a frame should sit in the buffer before being written
+     */
+    public GelfFrameBatcher(final int flushBytes, final long lingerMillis) {
+        this(flushBytes, lingerMillis, m -> { });
+    }
+
+    /**
+     * @param flushBytes once this many bytes are buffered the batch should be written
+     * @param lingerMillis the longest a frame should sit in the buffer before being written
+     * @param release given each message once the batch is done with it, like
+     *     {@link com.pavlovmedia.oss.osgi.gelf.lib.GelfMessage#recycle()}
+     */
+    public GelfFrameBatcher(final int flushBytes, final long lingerMillis, final Consumer<M> release) {
+        this.release = release;
+        this.buffer = ByteBuffer.allocateDirect(Math.max(1024, flushBytes));
+        this.lingerNanos = Math.max(0, lingerMillis) * 1_000_000L;
+        gather[0] = buffer;
+    }
+
+    /**
+     * @return true if the next frame can be added without a flush
+     */
+    public boolean canAppend(final int frameLength) {
+        return 0 == gatherCount && null == oversized && frameLength + 1 <= buffer.remaining();
+    }
+
+    /**
+     * Adds a frame to the batch. If the frame will not fit, call {@link #flush}
+     * first. A single frame bigger than the buffer is copied aside and
+     * written in the same gathering write as the rest of the batch.
+     *
+     * @param frame the encoded GELF message, without a delimiter. Only the
+     *     remaining bytes are read, and the buffer may be reused after this returns.
+     * @param message the message, for re-queueing if the write fails
+     */
+    public void append(final ByteBuffer frame, final M message) {
+        if (pending.isEmpty()) {
+            firstFrameNanos = System.nanoTime();
+        }
+        byteCount += frame.remaining() + 1;
+        if (canAppend(frame.remaining())) {
+            buffer.put(frame).put(DELIMITER);
+        } else {
+            oversized = ByteBuffer.allocate(frame.remaining());
+            oversized.put(frame);
+            oversized.flip();
+        }
+        pending.add(message);
+    }
+
+    public boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * @return bytes in the batch, delimiters included
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * @return when the batch was sealed, by {@link System#nanoTime()}
+     */
+    public long getSealedNanos() {
+        return sealedNanos;
+    }
+
+    /**
+     * @return true if the buffer hit its byte limit or the oldest frame hit its linger time
+     */
+    public boolean shouldFlush() {
+        return !pending.isEmpty()
+                && (null != oversized || !buffer.hasRemaining() || lingerRemainingNanos() <= 0);
+    }
+
+    /**
+     * @return how long until the linger time expires, 0 if it already has
+     */
+    public long lingerRemainingNanos() {
+        if (pending.isEmpty()) {
+            return lingerNanos;
+        }
+        return Math.max(0, lingerNanos - (System.nanoTime() - firstFrameNanos));
+    }
+
+    /**
+     * @return the messages in the current batch
+     */
+    public List<M> getPending() {
+        return Collections.unmodifiableList(pending);
+    }
+
+    /**
+     * Hands each frame in the batch, without its delimiter, to the consumer
+     * in the order they were appended. The buffer passed is only valid
+     * during the call.
+     */
+    public void forEachFrame(final Consumer<ByteBuffer> consumer) {
+        ByteBuffer frames = buffer.duplicate();
+        int end = 0 == gatherCount ? buffer.position() : buffer.limit();
+        int start = 0;
+        for (int i = 0; i < end; i++) {
+            if (DELIMITER == frames.get(i)) {
+                frames.limit(i).position(start);
+                consumer.accept(frames);
+                frames.limit(frames.capacity());
+                start = i + 1;
+            }
+        }
+        if (null != oversized) {
+            ByteBuffer frame = oversized.duplicate();
+            frame.rewind();
+            consumer.accept(frame);
+        }
+    }
+
+    /**
+     * Writes the batch in one gathering write (looping only on partial writes)
+     * and resets. On failure the batch is left as is so the caller can decide
+     * what to do with {@link #getPending()} before calling {@link #reset()}.
+     *
+     * @param channel a blocking channel to write to
+     * @throws IOException if the write fails
+     */
+    public void flush(final GatheringByteChannel channel) throws IOException {
+        write(channel);
+        reset();
+    }
+
+    /**
+     * Writes the batch like {@link #flush} but keeps it, so it can be
+     * {@link #rewind()}ed and written again until it is {@link #reset()}.
+     *
+     * @param channel a blocking channel to write to
+     * @throws IOException if the write fails
+     */
+    public void write(final GatheringByteChannel channel) throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        seal();
+        while (!writeTo(channel)) {
+            // A blocking channel only returns early on a partial write
+        }
+    }
+
+    /**
+     * Stops accepting frames and readies the batch for {@link #writeTo}
+     */
+    public void seal() {
+        if (0 != gatherCount) {
+            return;
+        }
+        buffer.flip();
+        gatherCount = 1;
+        sealedNanos = System.nanoTime();
+        if (null != oversized) {
+            gather[gatherCount++] = oversized;
+            delimiter.clear();
+            gather[gatherCount++] = delimiter;
+        }
+    }
+
+    /**
+     * Makes one gathering write of a sealed batch. This is what a
+     * non-blocking writer calls each time the channel is writable.
+     *
+     * @param channel where to write
+     * @return true once the whole batch has been written
+     * @throws IOException if the write fails
+     */
+    public boolean writeTo(final GatheringByteChannel channel) throws IOException {
+        seal();
+        channel.write(gather, 0, gatherCount);
+        return !gather[gatherCount - 1].hasRemaining();
+    }
+
+    /**
+     * Starts a sealed batch over from its first byte, to write it again
+     * after a failed write. Frames that were partly or fully written
+     * before the failure are written again.
+     */
+    public void rewind() {
+        for (int i = 0; i < gatherCount; i++) {
+            gather[i].rewind();
+        }
+    }
+
+    /**
+     * Counts a failed write of this batch
+     * @return how many writes of this batch have failed
+     */
+    public int recordFailedAttempt() {
+        return ++failedAttempts;
+    }
+
+    /**
+     * Takes the messages out of the batch without releasing them, so they
+     * can be sent again. The frames are left for {@link #reset()}.
+     *
+     * @return the messages that were in the batch
+     */
+    public List<M> takePending() {
+        List<M> taken = new ArrayList<>(pending);
+        pending.clear();
+        return taken;
+    }
+
+    /**
+     * Throws away the current batch, releasing its messages
+     */
+    public void reset() {
+        for (M message : pending) {
+            if (null != message) {
+                release.accept(message);
+            }
+        }
+        buffer.clear();
+        gatherCount = 0;
+        oversized = null;
+        gather[1] = null;
+        gather[2] = null;
+        failedAttempts = 0;
+        byteCount = 0;
+        pending.clear();
+    }
+}
@@ -15,9 +15,20 @@
  */
 package com.pavlovmedia.oss.osgi.gelf.impl;
 
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
@@ -25,14 +36,21 @@ import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.PropertyUnbounded;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
 import org.osgi.service.log.LogEntry;
 import org.osgi.service.log.LogListener;
 import org.osgi.service.log.LogReaderService;
+import org.osgi.service.log.LogService;
 
 import com.pavlovmedia.oss.osgi.gelf.impl.external.IronValueHelper;
+import com.pavlovmedia.oss.osgi.gelf.impl.external.ThreadPoolUtils;
 import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessage;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessagePool;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessageSource;
 import com.pavlovmedia.oss.osgi.gelf.lib.IGelfTransporter;
 
 /**
@@ -40,7 +58,15 @@ import com.pavlovmedia.oss.osgi.gelf.lib.IGelfTransporter;
  * and will register and unregister this target.
  * 
  * Connection options are passed in using the configuration manager.
- * Note, this is TCP GELF only.
+ * Messages go to whichever transporter is configured, TCP or UDP GELF.
+ * 
+ * The logging thread only checks the level and queues the entry, it is
+ * converted later on the transporter's thread. Repeated entries and storms
+ * from one bundle can be held back first, see {@link LogStormControl}.
+ * 
+ * On activation whatever the log service kept from before is sent first,
+ * oldest first, so messages from startup are not lost. An entry that also
+ * arrives as a live event afterwards is only sent once.
  * 
  * @author Shawn Dempsay
  *
@@ -51,25 +77,153 @@ import com.pavlovmedia.oss.osgi.gelf.lib.IGelfTransporter;
     @Property(name=GelfLogSink.TRACE_ENABLE, boolValue=false, label="Trace Enable", description="Log messages with unknown levels as debug"),
     @Property(name=GelfLogSink.GELF_HOSTNAME, label="Hostname to log", description="If non-empty, this will be used as the hostname in logging messages"),
     @Property(name=GelfLogSink.SYSLOG_LEVELS, label="Use syslog levels", boolValue=false,
-        description="Syslog error levels are inverted from what we were using for GELF, use these if your graylog needs to merge with syslog messages")
+        description="Syslog error levels are inverted from what we were using for GELF, use these if your graylog needs to merge with syslog messages"),
+    @Property(name=GelfLogSink.DISTINCT_FULL_MESSAGE, boolValue=false, label="Distinct full message",
+        description="Only send full_message for exceptions and multi-line messages, whose first line becomes short_message"),
+    @Property(name=GelfLogSink.LEVEL_DEFAULT, intValue=LogService.LOG_DEBUG, label="Default level",
+        description="Least severe OSGi level to send when no bundle rule matches (0=off, 1=error .. 4=debug)"),
+    @Property(name=GelfLogSink.LEVEL_RULES, value="", unbounded=PropertyUnbounded.VECTOR, label="Bundle levels",
+        description="Bundle symbolic name pattern and level pairs, like com.example.noisy.*:warning. * and ? are wildcards, the first match wins"),
+    @Property(name=GelfLogSink.STORM_RATE, intValue=0, label="Rate limit",
+        description="Most messages per second sent for each bundle and level, 0 for no limit"),
+    @Property(name=GelfLogSink.STORM_BURST, intValue=0, label="Rate limit burst",
+        description="Messages a bundle and level can send at once before the rate limit applies, 0 for one second's worth"),
+    @Property(name=GelfLogSink.STORM_DUPLICATE_WINDOW, intValue=0, label="Duplicate window",
+        description="Milliseconds during which repeats of a message are counted instead of sent, then summarized in one message. 0 sends every repeat"),
+    @Property(name=GelfLogSink.EXCEPTION_CACHE_SIZE, intValue=GelfLogSink.EXCEPTION_CACHE_SIZE_DEFAULT, label="Stack trace cache",
+        description="Most rendered stack traces to keep for exceptions that repeat, 0 to render every one"),
+    @Property(name=GelfLogSink.EXCEPTION_MAX_FRAMES, intValue=0, label="Stack frames",
+        description="Most frames sent for each exception and cause, 0 for all of them"),
+    @Property(name=GelfLogSink.EXCEPTION_MAX_DEPTH, intValue=0, label="Exception causes",
+        description="Most causes sent below an exception, 0 for all of them"),
+    @Property(name=GelfLogSink.REPLAY_MAX_AGE, intValue=GelfLogSink.REPLAY_MAX_AGE_DEFAULT, label="Replay age",
+        description="On activation, send what the log service kept from up to this many milliseconds ago, 0 to send none of it"),
+    @Property(name=GelfLogSink.REPLAY_LEVEL, intValue=LogService.LOG_INFO, label="Replay level",
+        description="Least severe OSGi level sent from what the log service kept (1=error .. 4=debug)"),
+    @Property(name=GelfLogSink.GELF_SERVER_TARGET, value=GelfLogSink.GELF_SERVER_TARGET_DEFAULT, label="Transporter",
+        description="Filter picking the transporter to send through by its gelf.protocol (tcp, nio, pooled, cluster, udp or http), like (gelf.protocol=udp)")
 })
 public class GelfLogSink implements LogListener {
     static final String TRACE_ENABLE = "graylog.trace.enable";
     static final String GELF_HOSTNAME = "graylog.hostname";
     static final String SYSLOG_LEVELS = "useSyslogLevels";
+    static final String DISTINCT_FULL_MESSAGE = "graylog.fullMessage.distinct";
+    static final String LEVEL_DEFAULT = "graylog.level.default";
+    static final String LEVEL_RULES = "graylog.level.rules";
+    static final String STORM_RATE = "graylog.storm.ratePerSecond";
+    static final String STORM_BURST = "graylog.storm.burst";
+    static final String STORM_DUPLICATE_WINDOW = "graylog.storm.duplicateWindowMillis";
+    static final String EXCEPTION_CACHE_SIZE = "graylog.exception.cacheSize";
+    static final int EXCEPTION_CACHE_SIZE_DEFAULT = 256;
+    static final String EXCEPTION_MAX_FRAMES = "graylog.exception.maxFrames";
+    static final String EXCEPTION_MAX_DEPTH = "graylog.exception.maxDepth";
+    static final String REPLAY_MAX_AGE = "graylog.replay.maxAgeMillis";
+    static final int REPLAY_MAX_AGE_DEFAULT = 300000;
+    static final String REPLAY_LEVEL = "graylog.replay.level";
+    /** SCR reads the reference's target filter from this property */
+    static final String GELF_SERVER_TARGET = "gelfServer.target";
+    static final String GELF_SERVER_TARGET_DEFAULT = "(" + IGelfTransporter.PROTOCOL + "=*)";
+    
+    /** Most converted messages kept for reuse once the transporter has written them */
+    private static final int MESSAGE_POOL_SIZE = 1024;
+    
+    /** Fastest that summaries of suppressed duplicates are checked for */
+    private static final long STORM_FLUSH_MIN_MILLIS = 50;
     
     @Reference
     LogReaderService readerService;
     
-    @Reference
+    @Reference(target=GELF_SERVER_TARGET_DEFAULT)
     IGelfTransporter gelfServer;
     
     private AtomicBoolean traceOn = new AtomicBoolean(false);
+    private final BundleFieldCache bundleFields = new BundleFieldCache();
+    private final BundleLevelFilter levelFilter = new BundleLevelFilter();
+    private final LogStormControl stormControl = new LogStormControl(this::logSuppressed);
+    private final GelfMessagePool messagePool = new GelfMessagePool(MESSAGE_POOL_SIZE);
+    private ScheduledExecutorService stormFlusher;
+    private volatile GelfMessageConverter.Context converterContext = new GelfMessageConverter.Context(
+            bundleFields, new StackTraceCache(EXCEPTION_CACHE_SIZE_DEFAULT, 0, 0),
+            GelfMessageConverter.Settings.DEFAULT, messagePool);
+    private BundleContext context;
+    
+    /** Held while the backlog is replayed, live events wait for it */
+    private final Object replayLock = new Object();
+    /** Set while live events may repeat a replayed entry */
+    private volatile boolean replayWatch;
+    /** The replayed entries not yet seen live, and the newest of their times */
+    private Set<EntryKey> replayed = Collections.emptySet();
+    private long replayedUntil;
     
     @Activate
-    protected void activate(final Map<String, Object> config) {
+    protected void activate(final BundleContext context, final Map<String, Object> config) {
+        this.context = context;
         configure(config);
-        readerService.addLogListener(this);
+        context.addBundleListener(bundleFields);
+        context.addBundleListener(levelFilter);
+        
+        IronValueHelper helper = new IronValueHelper(config);
+        int maxAgeMillis = helper.getInteger(REPLAY_MAX_AGE).orElse(REPLAY_MAX_AGE_DEFAULT);
+        if (maxAgeMillis <= 0) {
+            readerService.addLogListener(this);
+            return;
+        }
+        // Live events wait until the backlog is queued ahead of them
+        synchronized (replayLock) {
+            long now = System.currentTimeMillis();
+            replayWatch = true;
+            readerService.addLogListener(this);
+            replay(now - maxAgeMillis, helper.getInteger(REPLAY_LEVEL).orElse(LogService.LOG_INFO));
+        }
+    }
+    
+    /**
+     * Sends what the log service kept, oldest first. The entries sent are
+     * remembered until live events get past them, so that ones delivered
+     * both ways are only sent once.
+     * 
+     * @param oldest the earliest entry time to send
+     * @param level the least severe OSGi level to send
+     */
+    private void replay(final long oldest, final int level) {
+        List<LogEntry> backlog = new ArrayList<>();
+        Enumeration<?> log = readerService.getLog();
+        // The log is newest first
+        while (log.hasMoreElements()) {
+            LogEntry entry = (LogEntry) log.nextElement();
+            if (entry.getTime() < oldest) {
+                break;
+            }
+            if (entry.getLevel() <= level) {
+                backlog.add(entry);
+            }
+        }
+        Collections.reverse(backlog);
+        
+        Set<EntryKey> sent = new HashSet<>();
+        replayedUntil = Long.MIN_VALUE;
+        for (LogEntry entry : backlog) {
+            send(entry);
+            sent.add(new EntryKey(entry));
+            replayedUntil = Math.max(replayedUntil, entry.getTime());
+        }
+        replayed = sent;
+        replayWatch = !sent.isEmpty();
+    }
+    
+    /**
+     * @return true if a live event is an entry that was already replayed
+     */
+    private boolean wasReplayed(final LogEntry entry) {
+        synchronized (replayLock) {
+            if (entry.getTime() > replayedUntil) {
+                // Live events are in order, nothing after this can be a repeat
+                replayWatch = false;
+                replayed = Collections.emptySet();
+                return false;
+            }
+            return replayed.remove(new EntryKey(entry));
+        }
     }
     
     @Modified
@@ -81,17 +235,160 @@ public class GelfLogSink implements LogListener {
         traceOn.set(IronValueHelper.getBoolean(config.get(TRACE_ENABLE)));
         // The other side can handle null and empty strings
         gelfServer.setLoggedAsHostname((String) config.get(GELF_HOSTNAME));
-        GelfMessageConverter.setSyslogLevels(
-                IronValueHelper.getBoolean(config.get(SYSLOG_LEVELS)));
+        GelfMessageConverter.Settings settings = new GelfMessageConverter.Settings(
+                IronValueHelper.getBoolean(config.get(SYSLOG_LEVELS)),
+                IronValueHelper.getBoolean(config.get(DISTINCT_FULL_MESSAGE)));
+        gelfServer.setSyslogLevels(settings.isSyslogLevels());
+        
+        IronValueHelper helper = new IronValueHelper(config);
+        levelFilter.configure(
+                helper.getInteger(LEVEL_DEFAULT).orElse(LogService.LOG_DEBUG),
+                helper.getStringList(LEVEL_RULES),
+                null == context ? new Bundle[0] : context.getBundles());
+        StackTraceCache traces = new StackTraceCache(
+                helper.getInteger(EXCEPTION_CACHE_SIZE).orElse(EXCEPTION_CACHE_SIZE_DEFAULT),
+                helper.getInteger(EXCEPTION_MAX_FRAMES).orElse(0),
+                helper.getInteger(EXCEPTION_MAX_DEPTH).orElse(0));
+        converterContext = new GelfMessageConverter.Context(bundleFields, traces, settings, messagePool);
+        
+        stopStormFlusher();
+        stormControl.configure(
+                helper.getInteger(STORM_RATE).orElse(0),
+                helper.getInteger(STORM_BURST).orElse(0),
+                helper.getInteger(STORM_DUPLICATE_WINDOW).orElse(0));
+        long windowMillis = stormControl.getDuplicateWindowMillis();
+        if (windowMillis > 0) {
+            long period = Math.max(STORM_FLUSH_MIN_MILLIS, windowMillis / 2);
+            stormFlusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = ThreadPoolUtils.getThreadFactory("GelfLogSink-storm", new AtomicInteger(0)).newThread(r);
+                thread.setDaemon(true);
+                return thread;
+            });
+            stormFlusher.scheduleAtFixedRate(() -> stormControl.flushExpired(false), period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    private void stopStormFlusher() {
+        if (null != stormFlusher) {
+            stormFlusher.shutdownNow();
+            stormFlusher = null;
+        }
     }
     
     @Deactivate
-    protected void deactivate() {
+    protected void deactivate(final BundleContext context) {
         readerService.removeLogListener(this);
+        stopStormFlusher();
+        stormControl.flushExpired(true);
+        context.removeBundleListener(levelFilter);
+        context.removeBundleListener(bundleFields);
+        this.context = null;
+        synchronized (replayLock) {
+            replayWatch = false;
+            replayed = Collections.emptySet();
+        }
     }
 
     public void logged(final LogEntry entry) {
-        Optional<GelfMessage> message = GelfMessageConverter.fromOsgiMessage(entry, traceOn);
-        message.ifPresent(gelfServer::logGelfMessage);
+        if (replayWatch && wasReplayed(entry)) {
+            return;
+        }
+        send(entry);
+    }
+    
+    private void send(final LogEntry entry) {
+        if (!levelFilter.isLogged(entry.getBundle(), entry.getLevel())
+                || !GelfMessageConverter.isLogged(entry.getLevel(), traceOn, converterContext.getSettings())) {
+            gelfServer.logFiltered(IGelfTransporter.FILTERED_LEVEL);
+            return;
+        }
+        String filtered = stormControl.filter(entry);
+        if (null != filtered) {
+            gelfServer.logFiltered(filtered);
+            return;
+        }
+        gelfServer.logGelfMessageSource(new PendingEntry(entry, null));
+    }
+    
+    private void logSuppressed(final LogStormControl.Suppressed suppressed) {
+        gelfServer.logGelfMessageSource(new PendingEntry(suppressed.getEntry(), suppressed));
+    }
+    
+    /**
+     * Epoch milliseconds as GELF writes timestamps, seconds with a fraction
+     */
+    private static String gelfTimestamp(final long millis) {
+        return BigDecimal.valueOf(millis, 3).toPlainString();
+    }
+    
+    /**
+     * What tells a replayed entry and its live event apart from other entries
+     */
+    private static final class EntryKey {
+        private final long time;
+        private final int level;
+        private final long bundleId;
+        private final String message;
+        
+        EntryKey(final LogEntry entry) {
+            this.time = entry.getTime();
+            this.level = entry.getLevel();
+            this.bundleId = null == entry.getBundle() ? -1 : entry.getBundle().getBundleId();
+            this.message = entry.getMessage();
+        }
+        
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof EntryKey)) {
+                return false;
+            }
+            EntryKey other = (EntryKey) obj;
+            return time == other.time && level == other.level && bundleId == other.bundleId
+                    && Objects.equals(message, other.message);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hash(time, level, bundleId, message);
+        }
+    }
+    
+    /**
+     * A log entry waiting on the transporter's queue to be converted, or
+     * the summary of its suppressed duplicates
+     */
+    private final class PendingEntry implements GelfMessageSource {
+        private final LogEntry entry;
+        private final LogStormControl.Suppressed suppressed;
+        /** The settings and caches when the entry was logged, a later change does not apply to it */
+        private final GelfMessageConverter.Context context;
+        
+        PendingEntry(final LogEntry entry, final LogStormControl.Suppressed suppressed) {
+            this.entry = entry;
+            this.suppressed = suppressed;
+            this.context = converterContext;
+        }
+        
+        @Override
+        public int getLevel() {
+            return GelfMessageConverter.gelfLevelFromOsgiLevel(entry.getLevel(), traceOn, context.getSettings().isSyslogLevels());
+        }
+        
+        @Override
+        public long getOrderingKey() {
+            return null == entry.getBundle() ? -1 : entry.getBundle().getBundleId();
+        }
+        
+        @Override
+        public GelfMessage toGelfMessage() {
+            GelfMessage message = GelfMessageConverter.fromOsgiMessage(entry, traceOn, context).orElse(null);
+            if (null != message && null != suppressed) {
+                message.timestamp = suppressed.getLastTime();
+                message.additionalFields.put("suppressed_count", Long.toString(suppressed.getCount()));
+                message.additionalFields.put("suppressed_first_timestamp", gelfTimestamp(suppressed.getFirstTime()));
+                message.additionalFields.put("suppressed_last_timestamp", gelfTimestamp(suppressed.getLastTime()));
+            }
+            return message;
+        }
     }
 }
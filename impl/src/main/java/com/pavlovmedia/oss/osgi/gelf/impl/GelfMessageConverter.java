@@ -15,10 +15,6 @@
  */
 package com.pavlovmedia.oss.osgi.gelf.impl;
 
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.util.Dictionary;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -26,6 +22,7 @@ import org.osgi.service.log.LogEntry;
 import org.osgi.service.log.LogService;
 
 import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessage;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessagePool;
 
 /**
  * This is a utility class that will convert an OSGi LogEntry into
@@ -36,14 +33,69 @@ import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessage;
  */
 public final class GelfMessageConverter {
     private static int MAX_LEVEL = 3;
-    private static boolean SYSLOG_LEVELS;
     
     private GelfMessageConverter() { }
     
-
+    /**
+     * How a sink wants its entries converted. Each sink keeps its own, so
+     * one sink's configuration cannot change how another's entries look.
+     */
+    public static final class Settings {
+        /** GELF levels, full_message always sent */
+        public static final Settings DEFAULT = new Settings(false, false);
+        
+        private final boolean syslogLevels;
+        private final boolean distinctFullMessage;
+        
+        /**
+         * @param syslogLevels true to use syslog levels, which run the other way
+         * @param distinctFullMessage true to only send full_message when it says
+         *     more than short_message: the stack trace of an exception, or the
+         *     whole of a multi-line message whose first line becomes short_message
+         */
+        public Settings(final boolean syslogLevels, final boolean distinctFullMessage) {
+            this.syslogLevels = syslogLevels;
+            this.distinctFullMessage = distinctFullMessage;
+        }
+        
+        public boolean isSyslogLevels() {
+            return syslogLevels;
+        }
+        
+        public boolean isDistinctFullMessage() {
+            return distinctFullMessage;
+        }
+    }
     
-    public static void setSyslogLevels(final boolean syslogLevels) {
-        SYSLOG_LEVELS = syslogLevels;
+    /**
+     * What a sink converts its entries with: its caches, settings and pool
+     */
+    public static final class Context {
+        /** No caches or pool, GELF levels and full_message always sent */
+        public static final Context DEFAULT = new Context(null, null, Settings.DEFAULT, null);
+        
+        private final BundleFieldCache bundleFields;
+        private final StackTraceCache traces;
+        private final Settings settings;
+        private final GelfMessagePool pool;
+        
+        /**
+         * @param bundleFields where to get the bundle's fields, null to read the headers every time
+         * @param traces where to get rendered stack traces, null to render them every time
+         * @param settings the sink's conversion settings, null for {@link Settings#DEFAULT}
+         * @param pool where to take messages from, null to make new ones
+         */
+        public Context(final BundleFieldCache bundleFields, final StackTraceCache traces, final Settings settings,
+                final GelfMessagePool pool) {
+            this.bundleFields = bundleFields;
+            this.traces = traces;
+            this.settings = null == settings ? Settings.DEFAULT : settings;
+            this.pool = pool;
+        }
+        
+        public Settings getSettings() {
+            return settings;
+        }
     }
     
     /**
@@ -54,13 +106,34 @@ public final class GelfMessageConverter {
      * @return A GelfMessage object that represents the same data
      */
     public static Optional<GelfMessage> fromOsgiMessage(final LogEntry entry, final AtomicBoolean traceOn) {
-        GelfMessage message = new GelfMessage();
-        message.short_message = entry.getMessage();
-        message.full_message = entry.getMessage();
+        return fromOsgiMessage(entry, traceOn, Context.DEFAULT);
+    }
+    
+    /**
+     * Takes an OSGi LogEntry and converts it into a GelfMessage, using a
+     * sink's caches and settings. A message taken from the pool is recycled
+     * by the transporter once it has been written.
+     * @param entry The OSGi LogEntry
+     * @param context the caches, settings and pool to convert with
+     * @return A GelfMessage object that represents the same data
+     */
+    public static Optional<GelfMessage> fromOsgiMessage(final LogEntry entry, final AtomicBoolean traceOn,
+            final Context context) {
+        Settings settings = context.settings;
+        GelfMessagePool pool = context.pool;
+        GelfMessage message = null == pool ? new GelfMessage() : pool.acquire();
+        if (settings.isDistinctFullMessage()) {
+            message.short_message = firstLine(entry.getMessage());
+            message.full_message = message.short_message == entry.getMessage() ? null : entry.getMessage();
+        } else {
+            message.short_message = entry.getMessage();
+            message.full_message = entry.getMessage();
+        }
         message.timestamp = entry.getTime();
-        message.level = gelfLevelFromOsgiLevel(entry.getLevel(), traceOn);
+        message.level = gelfLevelFromOsgiLevel(entry.getLevel(), traceOn, settings.isSyslogLevels());
         
-        if (!SYSLOG_LEVELS && message.level > MAX_LEVEL) {
+        if (!settings.isSyslogLevels() && message.level > MAX_LEVEL) {
+            message.recycle();
             return Optional.empty();
         }
         
@@ -68,35 +141,98 @@ public final class GelfMessageConverter {
         // Graylog will reformat it to replace newlines with 
         // html breaks for correct displays.
         if (null != entry.getException()) {
-            try (StringWriter sw = new StringWriter();
-                  PrintWriter pw = new PrintWriter(sw, true);) {
-                entry.getException().printStackTrace(pw);
-                message.full_message = sw.toString();    
-            } catch (IOException e1) {
-                // These will come close,so there really
-                // isn't anything to do with them.
-            }
+            StackTraceCache traces = null == context.traces ? new StackTraceCache(0, 0, 0) : context.traces;
+            StackTraceCache.Rendered rendered = traces.render(entry.getException());
+            message.full_message = rendered.getTrace();
+            message.additionalFields.put("exception_fingerprint", rendered.getFingerprint());
         }
         
-        message.additionalFields.put("Bundle-Id", ""+entry.getBundle().getBundleId());
-        message.additionalFields.put("Bundle-SymbolicName", entry.getBundle().getSymbolicName());
-        
-        @SuppressWarnings("rawtypes")
-        Dictionary d = entry.getBundle().getHeaders();
-        
-        message.additionalFields.put("Bundle-Version", d.get("Bundle-Version").toString());
-        message.additionalFields.put("Bundle-Name", d.get("Bundle-Name").toString());
+        if (null != entry.getBundle()) {
+            message.sharedFields = null == context.bundleFields
+                    ? BundleFieldCache.buildFields(entry.getBundle())
+                    : context.bundleFields.getFields(entry.getBundle());
+        }
         
         return Optional.of(message);
     }
     
+    /**
+     * @param text a message, may be null
+     * @return the text up to its first line break, the same instance if it has none
+     */
+    static String firstLine(final String text) {
+        if (null == text) {
+            return null;
+        }
+        int end = text.indexOf('\n');
+        if (end < 0) {
+            return text;
+        }
+        if (end > 0 && '\r' == text.charAt(end - 1)) {
+            end--;
+        }
+        return text.substring(0, end);
+    }
+    
+    /**
+     * The level check {@link #fromOsgiMessage} makes, without building anything
+     * @param osgiLevel an OSGi LogService level
+     * @return true if an entry at this level would be converted
+     */
+    public static boolean isLogged(final int osgiLevel, final AtomicBoolean traceOn) {
+        return isLogged(osgiLevel, traceOn, Settings.DEFAULT);
+    }
+
+    /**
+     * The level check {@link #fromOsgiMessage} makes, without building anything
+     * @param osgiLevel an OSGi LogService level
+     * @param settings the sink's conversion settings
+     * @return true if an entry at this level would be converted
+     */
+    public static boolean isLogged(final int osgiLevel, final AtomicBoolean traceOn, final Settings settings) {
+        return settings.isSyslogLevels() || gelfLevelFromOsgiLevel(osgiLevel, traceOn, false) <= MAX_LEVEL;
+    }
+
+    /**
+     * Compares two GELF levels, taking into account that syslog levels
+     * run in the opposite direction.
+     * @param gelfLevel the level to check
+     * @param thresholdLevel the level to compare against
+     * @return true if gelfLevel is less severe than thresholdLevel
+     */
+    public static boolean isLessSevere(final int gelfLevel, final int thresholdLevel) {
+        return isLessSevere(gelfLevel, thresholdLevel, false);
+    }
+
+    /**
+     * Compares two GELF levels on either scale
+     * @param gelfLevel the level to check
+     * @param thresholdLevel the level to compare against
+     * @param syslogLevels true if both are syslog levels
+     * @return true if gelfLevel is less severe than thresholdLevel
+     */
+    public static boolean isLessSevere(final int gelfLevel, final int thresholdLevel, final boolean syslogLevels) {
+        return syslogLevels ? gelfLevel > thresholdLevel : gelfLevel < thresholdLevel;
+    }
+
     /**
      * Converts the OSGi error level into the GELF error level
      * @param osgiLevel an OSGi LegService level
      * @return The matching GELF log level
      */
     public static int gelfLevelFromOsgiLevel(final int osgiLevel, final AtomicBoolean traceOn) {
-        if (SYSLOG_LEVELS) {
+        return gelfLevelFromOsgiLevel(osgiLevel, traceOn, false);
+    }
+
+    /**
+     * Converts the OSGi error level into the GELF or syslog level
+     * @param osgiLevel an OSGi LegService level
+     * @param syslogLevels true for a syslog level
+     * @return The matching log level
+     */
+    public static int gelfLevelFromOsgiLevel(final int osgiLevel, final AtomicBoolean traceOn,
+            final boolean syslogLevels) {
+        if (syslogLevels) {
             switch (osgiLevel) {
                 case LogService.LOG_ERROR:
                     return 1;
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfFields;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessage;
+
+/**
+ * Caps on how big a message may get, applied before it is serialized so
+ * one huge message cannot hold up the stream or be turned away by Graylog.
+ *
+ * Lengths are UTF-8 bytes, counted from the chars as they are scanned
+ * rather than by encoding the string. Strings are cut on a character
+ * boundary, never in the middle of a surrogate pair. A message that was
+ * cut in any way gets a _truncated field set to true, which does not count
+ * against the field limit.
+ *
+ * When there are too many fields the transporter's static fields are kept
+ * first, then the message's own, then the shared ones like the bundle headers.
+ */
+public class GelfMessageLimits {
+    /** No limits at all */
+    public static final GelfMessageLimits NONE = new GelfMessageLimits(0, 0, 0, 0);
+
+    static final String TRUNCATED_FIELD = "truncated";
+
+    private final int shortMessageBytes;
+    private final int fullMessageBytes;
+    private final int maxFields;
+    private final int fieldValueBytes;
+
+    /**
+     * Each limit is off when 0
+     * @param shortMessageBytes most bytes of short_message
+     * @param fullMessageBytes most bytes of full_message
+     * @param maxFields most additional fields, shared ones included
+     * @param fieldValueBytes most bytes of each additional field's value
+     */
+    public GelfMessageLimits(final int shortMessageBytes, final int fullMessageBytes,
+            final int maxFields, final int fieldValueBytes) {
+        this.shortMessageBytes = Math.max(0, shortMessageBytes);
+        this.fullMessageBytes = Math.max(0, fullMessageBytes);
+        this.maxFields = Math.max(0, maxFields);
+        this.fieldValueBytes = Math.max(0, fieldValueBytes);
+    }
+
+    /**
+     * @return true if any limit is set
+     */
+    public boolean isEnabled() {
+        return shortMessageBytes > 0 || fullMessageBytes > 0 || maxFields > 0 || fieldValueBytes > 0;
+    }
+
+    /**
+     * Cuts the message down to the limits
+     * @param message the message, changed in place
+     * @return true if anything was cut
+     */
+    public boolean apply(final GelfMessage message) {
+        if (!isEnabled()) {
+            return false;
+        }
+
+        boolean truncated = false;
+        String shortMessage = truncate(message.short_message, shortMessageBytes);
+        if (shortMessage != message.short_message) {
+            message.short_message = shortMessage;
+            truncated = true;
+        }
+        String fullMessage = truncate(message.full_message, fullMessageBytes);
+        if (fullMessage != message.full_message) {
+            message.full_message = fullMessage;
+            truncated = true;
+        }
+        if (!fieldsFit(message)) {
+            limitFields(message);
+            truncated = true;
+        }
+
+        if (truncated) {
+            message.additionalFields.put(TRUNCATED_FIELD, "true");
+        }
+        return truncated;
+    }
+
+    /**
+     * Walks the fields the way they are sent: a key in a higher layer hides
+     * the same key further down, so it is counted once
+     * @return true if the fields are within both the count and value limits
+     */
+    private boolean fieldsFit(final GelfMessage message) {
+        Map<String, String> statics = message.staticFields;
+        Map<String, String> own = message.additionalFields;
+        int limit = maxFields > 0 ? maxFields : Integer.MAX_VALUE;
+        int count = 0;
+
+        for (Map.Entry<String, String> field : statics.entrySet()) {
+            if (null != field.getValue() && (++count > limit || !valueFits(field.getValue()))) {
+                return false;
+            }
+        }
+        if (own instanceof GelfFields) {
+            // Read by position, without an iterator or entries
+            GelfFields fields = (GelfFields) own;
+            for (int i = 0; i < fields.size(); i++) {
+                String value = fields.value(i);
+                if (null != value && !statics.containsKey(fields.name(i))
+                        && (++count > limit || !valueFits(value))) {
+                    return false;
+                }
+            }
+        } else {
+            for (Map.Entry<String, String> field : own.entrySet()) {
+                if (null != field.getValue() && !statics.containsKey(field.getKey())
+                        && (++count > limit || !valueFits(field.getValue()))) {
+                    return false;
+                }
+            }
+        }
+        for (Map.Entry<String, String> field : message.sharedFields.entrySet()) {
+            if (null != field.getValue() && !own.containsKey(field.getKey()) && !statics.containsKey(field.getKey())
+                    && (++count > limit || !valueFits(field.getValue()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean valueFits(final String value) {
+        return value == truncate(value, fieldValueBytes);
+    }
+
+    /**
+     * Rebuilds the fields within the limits. The shared and static fields
+     * can not be changed, so what is kept of them is copied into the
+     * message's own.
+     */
+    private void limitFields(final GelfMessage message) {
+        int budget = maxFields > 0 ? maxFields : Integer.MAX_VALUE;
+        GelfFields fields = new GelfFields();
+        // Highest priority first, a key in a higher layer hides the same key further down
+        List<Map<String, String>> layers = Arrays.asList(message.staticFields, message.additionalFields,
+                message.sharedFields);
+        for (int layer = 0; layer < layers.size(); layer++) {
+            for (Map.Entry<String, String> field : layers.get(layer).entrySet()) {
+                if (fields.size() >= budget) {
+                    break;
+                }
+                if (null != field.getValue() && !isHidden(layers, layer, field.getKey())) {
+                    fields.put(field.getKey(), truncate(field.getValue(), fieldValueBytes));
+                }
+            }
+        }
+
+        message.staticFields = Collections.emptyMap();
+        message.sharedFields = Collections.emptyMap();
+        message.additionalFields = fields;
+    }
+
+    /**
+     * @return true if a layer above the given one has the key
+     */
+    private static boolean isHidden(final List<Map<String, String>> layers, final int layer, final String key) {
+        for (int above = 0; above < layer; above++) {
+            if (layers.get(above).containsKey(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Cuts a string to at most a number of UTF-8 bytes
+     * @param value the string, may be null
+     * @param maxBytes the limit, 0 for none
+     * @return the same instance if it fits, otherwise its longest prefix that does
+     */
+    static String truncate(final String value, final int maxBytes) {
+        // No char takes more than three bytes, a surrogate pair takes four for two chars
+        if (null == value || 0 == maxBytes || value.length() <= maxBytes / 3) {
+            return value;
+        }
+
+        int length = value.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            int size;
+            if (c < 0x80) {
+                size = 1;
+            } else if (c < 0x800) {
+                size = 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                size = 4;
+            } else {
+                size = 3;
+            }
+            if (bytes + size > maxBytes) {
+                return value.substring(0, i);
+            }
+            bytes += size;
+            if (4 == size) {
+                i++;
+            }
+        }
+        return value;
+    }
+}
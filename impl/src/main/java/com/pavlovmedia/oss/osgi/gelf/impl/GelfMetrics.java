@@ -0,0 +1,375 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.ServiceRegistration;
+
+import com.pavlovmedia.oss.osgi.gelf.impl.GelfRingBuffer.DropReason;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessageSource;
+import com.pavlovmedia.oss.osgi.gelf.lib.IGelfMetrics;
+
+/**
+ * The metrics of one transporter.
+ *
+ * Counters are {@link LongAdder}s, so logging threads updating them do not
+ * contend. The logging thread only pays for one increment: enqueued is
+ * worked out from what was offered less what the queue turned away, and
+ * the queue already counts its own drops. Latencies go into log-linear
+ * histograms that are only written by the sending and writing threads.
+ * Reading sums everything up without stopping anyone.
+ *
+ * {@link #publish(String)} registers these as an {@link IGelfMetrics}
+ * service, when running in a framework, and as a platform MXBean.
+ */
+public class GelfMetrics implements GelfMetricsMXBean {
+    static final String OBJECT_NAME = "com.pavlovmedia.oss.osgi.gelf:type=GelfMetrics,name=";
+
+    static final String DROP_RETRY = "RETRY";
+    static final String DROP_SERIALIZATION = "SERIALIZATION";
+    static final String DROP_CONVERSION = "CONVERSION";
+    static final String DROP_SPOOL = "SPOOL";
+    static final String DROP_TOO_LARGE = "TOO_LARGE";
+    static final String DROP_WRITE = "WRITE";
+    static final String DROP_REROUTED = "REROUTED";
+    static final String DROP_SHUTDOWN = "SHUTDOWN";
+
+    private final Supplier<GelfRingBuffer<GelfMessageSource>> queue;
+    private final LongAdder offered = new LongAdder();
+    private final LongAdder filteredByCaller = new LongAdder();
+    private final LongAdder filteredOnSend = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder spooled = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder[] retiredQueueDrops = new LongAdder[DropReason.values().length];
+    private final ConcurrentMap<String, LongAdder> drops = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> filtered = new ConcurrentHashMap<>();
+    private final Histogram serializationNanos = new Histogram();
+    private final Histogram writeNanos = new Histogram();
+    private volatile long connectedSinceMillis;
+
+    private String transporter = "";
+    private ObjectName objectName;
+    private ServiceRegistration<IGelfMetrics> registration;
+
+    /**
+     * @param queue the transporter's current queue, for its depth and drop counts
+     */
+    public GelfMetrics(final Supplier<GelfRingBuffer<GelfMessageSource>> queue) {
+        this.queue = Objects.requireNonNull(queue, "queue is Null");
+        for (int i = 0; i < retiredQueueDrops.length; i++) {
+            retiredQueueDrops[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Registers the metrics as a service and an MXBean under the transporter's name
+     */
+    public synchronized void publish(final String name) {
+        unpublish();
+        transporter = name;
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName candidate = new ObjectName(OBJECT_NAME + ObjectName.quote(name));
+            if (!server.isRegistered(candidate)) {
+                server.registerMBean(this, candidate);
+                objectName = candidate;
+            }
+        } catch (JMException | RuntimeException e) {
+            System.err.println("Failed to register GELF metrics MXBean " + e.getMessage());
+        }
+
+        Bundle bundle = FrameworkUtil.getBundle(GelfMetrics.class);
+        BundleContext context = null == bundle ? null : bundle.getBundleContext();
+        if (null != context) {
+            Hashtable<String, Object> properties = new Hashtable<>();
+            properties.put(TRANSPORTER, name);
+            registration = context.registerService(IGelfMetrics.class, this, properties);
+        }
+    }
+
+    /**
+     * Removes the service and MXBean, if they were registered
+     */
+    public synchronized void unpublish() {
+        if (null != registration) {
+            try {
+                registration.unregister();
+            } catch (IllegalStateException e) {
+                /* Already gone with the bundle */ }
+            registration = null;
+        }
+        if (null != objectName) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                /* Do nothing */ }
+            objectName = null;
+        }
+    }
+
+    /** A message was offered to the queue */
+    void offered() {
+        offered.increment();
+    }
+
+    /**
+     * The caller filtered out a message without offering it
+     * @param reason why, or null if the caller did not say
+     */
+    void filteredByCaller(final String reason) {
+        filteredByCaller.increment();
+        if (null != reason) {
+            filtered.computeIfAbsent(reason, r -> new LongAdder()).increment();
+        }
+    }
+
+    /** A queued message turned out to have nothing to send */
+    void filteredOnSend() {
+        filteredOnSend.increment();
+    }
+
+    /**
+     * Keeps the drop counts of a queue that is being replaced
+     */
+    void retireQueue(final GelfRingBuffer<GelfMessageSource> old) {
+        for (DropReason reason : DropReason.values()) {
+            retiredQueueDrops[reason.ordinal()].add(old.getDropCount(reason));
+        }
+    }
+
+    /**
+     * Counts messages dropped for a reason the queue does not know about
+     */
+    public void dropped(final String reason, final long count) {
+        drops.computeIfAbsent(reason, r -> new LongAdder()).add(count);
+    }
+
+    long getDropCount(final String reason) {
+        LongAdder count = drops.get(reason);
+        return null == count ? 0 : count.sum();
+    }
+
+    long getQueueDropCount(final DropReason reason) {
+        return queue.get().getDropCount(reason) + retiredQueueDrops[reason.ordinal()].sum();
+    }
+
+    void recordSerialization(final long nanos) {
+        serializationNanos.record(nanos);
+    }
+
+    /**
+     * Counts a successful write
+     * @param messages how many messages it held
+     * @param bytes how many bytes were written
+     * @param nanos how long it took
+     */
+    public void recordWrite(final int messages, final long bytes, final long nanos) {
+        sent.add(messages);
+        bytesSent.add(bytes);
+        writeNanos.record(nanos);
+    }
+
+    /**
+     * Counts messages written to the spool instead of the transport
+     * @param messages how many were spooled
+     */
+    public void spooled(final int messages) {
+        spooled.add(messages);
+    }
+
+    /** The transport connected */
+    public void connected() {
+        connects.increment();
+        connectedSinceMillis = System.currentTimeMillis();
+    }
+
+    /** The transport lost or closed its connection */
+    public void disconnected() {
+        connectedSinceMillis = 0;
+    }
+
+    @Override
+    public String getTransporter() {
+        return transporter;
+    }
+
+    @Override
+    public long getReceivedCount() {
+        return offered.sum() + filteredByCaller.sum();
+    }
+
+    @Override
+    public long getFilteredCount() {
+        return filteredByCaller.sum() + filteredOnSend.sum();
+    }
+
+    @Override
+    public long getEnqueuedCount() {
+        // Dropping the oldest still takes the new message
+        return offered.sum() - getQueueDropCount(DropReason.NEWEST)
+                - getQueueDropCount(DropReason.BELOW_LEVEL) - getQueueDropCount(DropReason.BLOCK_TIMEOUT);
+    }
+
+    @Override
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    @Override
+    public long getSpooledCount() {
+        return spooled.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public Map<String, Long> getDropCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (DropReason reason : DropReason.values()) {
+            counts.put(reason.name(), getQueueDropCount(reason));
+        }
+        drops.forEach((reason, count) -> counts.put(reason, count.sum()));
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getFilteredCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        filtered.forEach((reason, count) -> counts.put(reason, count.sum()));
+        return counts;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queue.get().size();
+    }
+
+    @Override
+    public long getSerializationNanos(final double percentile) {
+        return serializationNanos.percentile(percentile);
+    }
+
+    @Override
+    public long getWriteLatencyNanos(final double percentile) {
+        return writeNanos.percentile(percentile);
+    }
+
+    @Override
+    public long getReconnectCount() {
+        return Math.max(0, connects.sum() - 1);
+    }
+
+    @Override
+    public long getConnectionUptimeMillis() {
+        long since = connectedSinceMillis;
+        return 0 == since ? 0 : System.currentTimeMillis() - since;
+    }
+
+    @Override
+    public long getSerializationNanosP50() {
+        return getSerializationNanos(50);
+    }
+
+    @Override
+    public long getSerializationNanosP99() {
+        return getSerializationNanos(99);
+    }
+
+    @Override
+    public long getWriteLatencyNanosP50() {
+        return getWriteLatencyNanos(50);
+    }
+
+    @Override
+    public long getWriteLatencyNanosP99() {
+        return getWriteLatencyNanos(99);
+    }
+
+    /**
+     * A log-linear histogram in the style of HdrHistogram: every power of
+     * two is split into 16 buckets, so a value is reported within about
+     * 6% of what was recorded, from 1ns up to hours.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS / 2 + SUB_BUCKETS / 2);
+
+        void record(final long value) {
+            counts.incrementAndGet(index(Math.max(0, value)));
+        }
+
+        long percentile(final double percentile) {
+            long total = 0;
+            long[] snapshot = new long[counts.length()];
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+
+            long target = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100.0);
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= target && seen > 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        private static int index(final long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+            int sub = (int) (value >>> magnitude) - SUB_BUCKETS / 2;
+            return magnitude * SUB_BUCKETS / 2 + SUB_BUCKETS / 2 + sub;
+        }
+
+        private static long upperBound(final int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int magnitude = (index - SUB_BUCKETS / 2) / (SUB_BUCKETS / 2);
+            int sub = (index - SUB_BUCKETS / 2) % (SUB_BUCKETS / 2) + SUB_BUCKETS / 2;
+            return ((long) (sub + 1) << magnitude) - 1;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import com.pavlovmedia.oss.osgi.gelf.lib.IGelfMetrics;
+
+/**
+ * The JMX view of {@link GelfMetrics}. The common percentiles are
+ * attributes so consoles can chart them, any other percentile is an
+ * operation.
+ */
+public interface GelfMetricsMXBean extends IGelfMetrics {
+    long getSerializationNanosP50();
+
+    long getSerializationNanosP99();
+
+    long getWriteLatencyNanosP50();
+
+    long getWriteLatencyNanosP99();
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+
+/**
+ * A bounded, preallocated, lock-free queue used to hand messages from
+ * the logging threads to the sending thread.
+ *
+ * This is a sequence-numbered ring (Vyukov style). Any number of threads
+ * can offer and any number can take: besides the sender, the drop-oldest
+ * and drop-below-level policies evict from the producer side, and a
+ * transporter may drain the queue to reroute it. Only one thread at a
+ * time should wait in {@link #poll(long, TimeUnit)}.
+ *
+ * When the ring is full the configured {@link OverflowPolicy} decides what
+ * happens, and every drop is counted by {@link DropReason}.
+ *
+ * @param <E> element type
+ */
+public class GelfRingBuffer<E> {
+    /** How long a blocked producer parks between attempts */
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * What to do with a message when the ring is full
+     */
+    public enum OverflowPolicy {
+        /** Discard the message being offered */
+        DROP_NEWEST,
+        /** Evict the oldest queued message to make room */
+        DROP_OLDEST,
+        /**
+         * Discard the message if it is below the configured level, otherwise
+         * evict the oldest if that one is, otherwise discard the message
+         */
+        DROP_BELOW_LEVEL,
+        /** Wait up to the configured timeout for room, then discard */
+        BLOCK;
+
+        /**
+         * Parses a configuration value such as "dropOldest" or "DROP_OLDEST"
+         * @param value the configured value
+         * @param defaultPolicy what to use if the value is not recognized
+         * @return the matching policy
+         */
+        public static OverflowPolicy fromString(final String value, final OverflowPolicy defaultPolicy) {
+            if (null == value) {
+                return defaultPolicy;
+            }
+            String normalized = value.trim().replaceAll("[-_ ]", "");
+            for (OverflowPolicy policy : values()) {
+                if (policy.name().replace("_", "").equalsIgnoreCase(normalized)) {
+                    return policy;
+                }
+            }
+            return defaultPolicy;
+        }
+    }
+
+    /**
+     * Why a message never made it onto the ring
+     */
+    public enum DropReason {
+        NEWEST,
+        OLDEST,
+        BELOW_LEVEL,
+        BLOCK_TIMEOUT
+    }
+
+    private final int mask;
+    private final AtomicReferenceArray<E> buffer;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong(0);
+    private final AtomicLong tail = new AtomicLong(0);
+
+    private final OverflowPolicy policy;
+    private final long blockTimeoutNanos;
+    private final Predicate<E> belowLevel;
+    private final LongAdder[] drops = new LongAdder[DropReason.values().length];
+
+    private volatile Thread waitingConsumer;
+    /** Set by {@link #wakeConsumer()}, a waiting poll returns early when it sees it */
+    private final AtomicBoolean wakeRequested = new AtomicBoolean(false);
+
+    /**
+     * Creates a new ring
+     * @param requestedCapacity minimum capacity, rounded up to a power of two
+     * @param policy what to do when full
+     * @param blockTimeoutMillis for {@link OverflowPolicy#BLOCK}, how long to wait for room
+     * @param belowLevel for {@link OverflowPolicy#DROP_BELOW_LEVEL}, true for messages that may be discarded
+     */
+    public GelfRingBuffer(final int requestedCapacity, final OverflowPolicy policy,
+            final long blockTimeoutMillis, final Predicate<E> belowLevel) {
+        int capacity = Integer.highestOneBit(Math.max(2, requestedCapacity) - 1) << 1;
+        this.mask = capacity - 1;
+        this.buffer = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.policy = Objects.requireNonNull(policy, "policy is Null");
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, blockTimeoutMillis));
+        this.belowLevel = Objects.requireNonNull(belowLevel, "belowLevel is Null");
+        for (int i = 0; i < drops.length; i++) {
+            drops[i] = new LongAdder();
+        }
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return an estimate of the number of queued elements
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @param reason the drop reason
+     * @return how many messages were dropped for that reason
+     */
+    public long getDropCount(final DropReason reason) {
+        return drops[reason.ordinal()].sum();
+    }
+
+    /**
+     * Offers an element, applying the overflow policy if the ring is full
+     * @param element the element to add
+     * @return true if the element was queued
+     */
+    public boolean offer(final E element) {
+        if (tryOffer(element)) {
+            return true;
+        }
+
+        switch (policy) {
+            case DROP_BELOW_LEVEL:
+                if (belowLevel.test(element)) {
+                    drops[DropReason.BELOW_LEVEL.ordinal()].increment();
+                    return false;
+                }
+                return evictBelowLevelAndOffer(element);
+            case DROP_OLDEST:
+                return evictAndOffer(element);
+            case BLOCK:
+                return blockAndOffer(element);
+            case DROP_NEWEST:
+            default:
+                drops[DropReason.NEWEST.ordinal()].increment();
+                return false;
+        }
+    }
+
+    /**
+     * Offers an element without applying the overflow policy
+     * @param element the element to add
+     * @return true if there was room
+     */
+    public boolean tryOffer(final E element) {
+        Objects.requireNonNull(element, "element is Null");
+        long pos = tail.get();
+        for (;;) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    buffer.lazySet(index, element);
+                    // A full volatile write so a parking consumer can't miss it
+                    sequences.set(index, pos + 1);
+                    signalConsumer();
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * @return the oldest element, or null if the ring is empty
+     */
+    public E poll() {
+        long pos = head.get();
+        for (;;) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    E element = buffer.get(index);
+                    buffer.lazySet(index, null);
+                    sequences.lazySet(index, pos + mask + 1);
+                    return element;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    /**
+     * Waits for an element to become available. Producers only signal one
+     * waiting thread, so only the sending thread should call this.
+     * @param timeout how long to wait
+     * @param unit the unit of the timeout
+     * @return the oldest element, or null on timeout, interrupt or
+     *     {@link #wakeConsumer()}
+     */
+    public E poll(final long timeout, final TimeUnit unit) {
+        E element = poll();
+        if (null != element) {
+            return element;
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        waitingConsumer = Thread.currentThread();
+        try {
+            while (null == (element = poll())) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || Thread.currentThread().isInterrupted() || wakeRequested.getAndSet(false)) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            return element;
+        } finally {
+            waitingConsumer = null;
+        }
+    }
+
+    /**
+     * Makes a {@link #poll(long, TimeUnit)} that is waiting return null
+     * straight away, or the next one if none is waiting, so the consumer
+     * can look at whatever else it has to do
+     */
+    public void wakeConsumer() {
+        wakeRequested.set(true);
+        signalConsumer();
+    }
+
+    /**
+     * Moves up to maxElements into the target collection
+     * @param target where to put the elements
+     * @param maxElements the most to move
+     * @return the number of elements moved
+     */
+    public int drainTo(final Collection<? super E> target, final int maxElements) {
+        int count = 0;
+        E element;
+        while (count < maxElements && null != (element = poll())) {
+            target.add(element);
+            count++;
+        }
+        return count;
+    }
+
+    private boolean evictAndOffer(final E element) {
+        while (!tryOffer(element)) {
+            if (null != poll()) {
+                drops[DropReason.OLDEST.ordinal()].increment();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes room by evicting the oldest only while it is below the level,
+     * so a queued error is never given up for the message being offered
+     */
+    private boolean evictBelowLevelAndOffer(final E element) {
+        while (!tryOffer(element)) {
+            long pos = head.get();
+            int index = (int) pos & mask;
+            if (sequences.get(index) != pos + 1) {
+                // Taken or not yet published, look again
+                continue;
+            }
+            E oldest = buffer.get(index);
+            if (null == oldest || head.get() != pos) {
+                continue;
+            }
+            if (!belowLevel.test(oldest)) {
+                drops[DropReason.NEWEST.ordinal()].increment();
+                return false;
+            }
+            if (head.compareAndSet(pos, pos + 1)) {
+                buffer.lazySet(index, null);
+                sequences.lazySet(index, pos + mask + 1);
+                drops[DropReason.OLDEST.ordinal()].increment();
+            }
+        }
+        return true;
+    }
+
+    private boolean blockAndOffer(final E element) {
+        long deadline = System.nanoTime() + blockTimeoutNanos;
+        while (!tryOffer(element)) {
+            if (deadline - System.nanoTime() <= 0 || Thread.currentThread().isInterrupted()) {
+                drops[DropReason.BLOCK_TIMEOUT.ordinal()].increment();
+                return false;
+            }
+            LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+        }
+        return true;
+    }
+
+    private void signalConsumer() {
+        Thread consumer = waitingConsumer;
+        if (null != consumer) {
+            LockSupport.unpark(consumer);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import com.pavlovmedia.oss.osgi.gelf.impl.GelfRingBuffer.OverflowPolicy;
+import com.pavlovmedia.oss.osgi.gelf.impl.external.IronValueHelper;
+
+/**
+ * One transporter configuration, read once and never changed. A transporter
+ * swaps in a new one when it is reconfigured, so everything read while a
+ * message is handled comes from the same configuration.
+ *
+ * The settings fall in three groups: those read per message, which apply
+ * as soon as the snapshot is swapped, the queue settings, and everything
+ * else, which the transport was built from and needs it rebuilt.
+ */
+public final class GelfTransporterConfig {
+    /** Nothing configured, not active */
+    static final GelfTransporterConfig INACTIVE = new GelfTransporterConfig(Collections.emptyMap());
+
+    /** Settings that never need the transport rebuilt */
+    private static final Set<String> LIVE_PROPERTIES = new HashSet<>(Arrays.asList(
+            AbstractGelfTransporter.GRAYLOG_ACTIVE,
+            AbstractGelfTransporter.GRAYLOG_LOG_CONSOLE,
+            AbstractGelfTransporter.GRAYLOG_ADD_FIELDS,
+            AbstractGelfTransporter.GRAYLOG_IDLE_MILLIS,
+            AbstractGelfTransporter.GRAYLOG_HOSTNAME,
+            AbstractGelfTransporter.GRAYLOG_QUEUE_CAPACITY,
+            AbstractGelfTransporter.GRAYLOG_QUEUE_OVERFLOW,
+            AbstractGelfTransporter.GRAYLOG_QUEUE_DROP_LEVEL,
+            AbstractGelfTransporter.GRAYLOG_QUEUE_BLOCK_MILLIS,
+            AbstractGelfTransporter.GRAYLOG_RETRY_MAX_ATTEMPTS,
+            AbstractGelfTransporter.GRAYLOG_LIMIT_SHORT_MESSAGE_BYTES,
+            AbstractGelfTransporter.GRAYLOG_LIMIT_FULL_MESSAGE_BYTES,
+            AbstractGelfTransporter.GRAYLOG_LIMIT_FIELDS,
+            AbstractGelfTransporter.GRAYLOG_LIMIT_FIELD_VALUE_BYTES,
+            AbstractGelfTransporter.GRAYLOG_ENCODER,
+            AbstractGelfTransporter.GRAYLOG_SHUTDOWN_DRAIN_MILLIS));
+
+    private final Map<String, Object> properties;
+    private final IronValueHelper helper;
+
+    private final boolean enabled;
+    private final String host;
+    private final int port;
+    private final boolean consoleMessages;
+    private final Map<String, String> additionalFields;
+    private final Optional<String> sourceHostname;
+    private final int maxAttempts;
+    private final GelfMessageLimits limits;
+    private final boolean useJackson;
+    private final int idleMillis;
+    private final int shutdownDrainMillis;
+
+    private final int queueCapacity;
+    private final OverflowPolicy overflowPolicy;
+    private final int queueBlockMillis;
+    private final int queueDropLevel;
+
+    /**
+     * @param config the component properties, copied
+     */
+    public GelfTransporterConfig(final Map<String, Object> config) {
+        properties = Collections.unmodifiableMap(new HashMap<>(config));
+        helper = new IronValueHelper(properties);
+
+        enabled = helper.getBoolean(AbstractGelfTransporter.GRAYLOG_ACTIVE).orElse(false);
+        host = helper.getString(AbstractGelfTransporter.GRAYLOG_HOST).orElse(null);
+        port = helper.getInteger(AbstractGelfTransporter.GRAYLOG_PORT).orElse(AbstractGelfTransporter.GRAYLOG_PORT_DEFAULT);
+        consoleMessages = helper.getBoolean(AbstractGelfTransporter.GRAYLOG_LOG_CONSOLE).orElse(false);
+        additionalFields = Collections.unmodifiableMap(helper.getStringList(AbstractGelfTransporter.GRAYLOG_ADD_FIELDS)
+                .stream().map(e -> e.split(":")).filter(a -> a.length == 2)
+                .collect(Collectors.toMap(a -> a[0].trim(), a -> a[1].trim(), (a, b) -> b)));
+        sourceHostname = helper.getString(AbstractGelfTransporter.GRAYLOG_HOSTNAME).map(String::trim)
+                .filter(h -> !h.isEmpty());
+        maxAttempts = Math.max(1, helper.getInteger(AbstractGelfTransporter.GRAYLOG_RETRY_MAX_ATTEMPTS)
+                .orElse(AbstractGelfTransporter.GRAYLOG_RETRY_MAX_ATTEMPTS_DEFAULT));
+        limits = new GelfMessageLimits(
+                helper.getInteger(AbstractGelfTransporter.GRAYLOG_LIMIT_SHORT_MESSAGE_BYTES).orElse(0),
+                helper.getInteger(AbstractGelfTransporter.GRAYLOG_LIMIT_FULL_MESSAGE_BYTES).orElse(0),
+                helper.getInteger(AbstractGelfTransporter.GRAYLOG_LIMIT_FIELDS).orElse(0),
+                helper.getInteger(AbstractGelfTransporter.GRAYLOG_LIMIT_FIELD_VALUE_BYTES).orElse(0));
+        useJackson = AbstractGelfTransporter.GRAYLOG_ENCODER_JACKSON.equalsIgnoreCase(
+                helper.getString(AbstractGelfTransporter.GRAYLOG_ENCODER)
+                    .orElse(AbstractGelfTransporter.GRAYLOG_ENCODER_DEFAULT).trim());
+        idleMillis = Math.max(0, helper.getInteger(AbstractGelfTransporter.GRAYLOG_IDLE_MILLIS)
+                .orElse(AbstractGelfTransporter.GRAYLOG_IDLE_MILLIS_DEFAULT));
+        shutdownDrainMillis = Math.max(0, helper.getInteger(AbstractGelfTransporter.GRAYLOG_SHUTDOWN_DRAIN_MILLIS)
+                .orElse(AbstractGelfTransporter.GRAYLOG_SHUTDOWN_DRAIN_MILLIS_DEFAULT));
+
+        queueCapacity = Math.max(2, helper.getInteger(AbstractGelfTransporter.GRAYLOG_QUEUE_CAPACITY)
+                .orElse(AbstractGelfTransporter.GRAYLOG_QUEUE_CAPACITY_DEFAULT));
+        overflowPolicy = OverflowPolicy.fromString(
+                helper.getString(AbstractGelfTransporter.GRAYLOG_QUEUE_OVERFLOW)
+                    .orElse(AbstractGelfTransporter.GRAYLOG_QUEUE_OVERFLOW_DEFAULT),
+                OverflowPolicy.DROP_NEWEST);
+        queueBlockMillis = helper.getInteger(AbstractGelfTransporter.GRAYLOG_QUEUE_BLOCK_MILLIS)
+                .orElse(AbstractGelfTransporter.GRAYLOG_QUEUE_BLOCK_MILLIS_DEFAULT);
+        queueDropLevel = helper.getInteger(AbstractGelfTransporter.GRAYLOG_QUEUE_DROP_LEVEL)
+                .orElse(AbstractGelfTransporter.GRAYLOG_QUEUE_DROP_LEVEL_DEFAULT);
+    }
+
+    /**
+     * @return the properties, for whatever a transport reads itself
+     */
+    public IronValueHelper getHelper() {
+        return helper;
+    }
+
+    /**
+     * @return true if the active flag is set, even without a host
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return true if enabled and there is a host to send to
+     */
+    public boolean isActive() {
+        return enabled && null != host;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public boolean isConsoleMessages() {
+        return consoleMessages;
+    }
+
+    public Map<String, String> getAdditionalFields() {
+        return additionalFields;
+    }
+
+    /**
+     * @return the hostname to put on messages that have none, if configured
+     */
+    public Optional<String> getSourceHostname() {
+        return sourceHostname;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public GelfMessageLimits getLimits() {
+        return limits;
+    }
+
+    public boolean isUseJackson() {
+        return useJackson;
+    }
+
+    public int getIdleMillis() {
+        return idleMillis;
+    }
+
+    /**
+     * @return longest to spend sending what is queued when stopping
+     */
+    public int getShutdownDrainMillis() {
+        return shutdownDrainMillis;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public int getQueueBlockMillis() {
+        return queueBlockMillis;
+    }
+
+    public int getQueueDropLevel() {
+        return queueDropLevel;
+    }
+
+    /**
+     * @return true if a queue built for the other configuration fits this one
+     */
+    public boolean sameQueue(final GelfTransporterConfig other) {
+        return queueCapacity == other.queueCapacity && overflowPolicy == other.overflowPolicy
+                && queueBlockMillis == other.queueBlockMillis && queueDropLevel == other.queueDropLevel;
+    }
+
+    /**
+     * @return true if a transport built for the other configuration fits
+     *     this one: the same endpoint, and no transport setting changed
+     */
+    public boolean sameTransport(final GelfTransporterConfig other) {
+        if (!Objects.equals(host, other.host) || port != other.port) {
+            return false;
+        }
+        Set<String> keys = new HashSet<>(properties.keySet());
+        keys.addAll(other.properties.keySet());
+        keys.removeAll(LIVE_PROPERTIES);
+        for (String key : keys) {
+            if (!Objects.deepEquals(properties.get(key), other.properties.get(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+import org.osgi.framework.Bundle;
+import org.osgi.service.log.LogEntry;
+
+import com.pavlovmedia.oss.osgi.gelf.lib.IGelfTransporter;
+
+/**
+ * Keeps a log storm from flooding the queue.
+ *
+ * Repeats of an entry (same bundle, level, message and exception class)
+ * inside the duplicate window are counted instead of sent. The first copy
+ * goes out as usual, and once its window has passed the count is handed to
+ * the summary consumer as a {@link Suppressed}, which the caller sends as a
+ * single message. Call {@link #flushExpired(boolean)} periodically so the
+ * summary goes out even when the storm stops.
+ *
+ * What gets through is then rate limited per bundle and level with a token
+ * bucket, kept as a theoretical arrival time in one array slot and updated
+ * with a compare and set.
+ *
+ * Memory is fixed: duplicates are tracked in a table of striped slots, each
+ * holding one key, and the buckets are a fixed array. Keys that hash to the
+ * same slot replace each other, keys that hash to the same bucket share it.
+ *
+ * Nothing is counted here, {@link #filter(LogEntry)} gives the reason an
+ * entry was held back so the caller can count it with the transporter's
+ * other metrics.
+ */
+public class LogStormControl {
+    /** Duplicate slots, a power of two */
+    private static final int SLOTS = 1024;
+
+    /** Token buckets, a power of two */
+    private static final int BUCKETS = 1024;
+
+    private final Consumer<Suppressed> summaries;
+    private final Slot[] slots = new Slot[SLOTS];
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private volatile Settings settings = new Settings(0, 0, 0);
+
+    /**
+     * @param summaries takes the count of each window that suppressed
+     *          duplicates, called from whichever thread closes the window
+     */
+    public LogStormControl(final Consumer<Suppressed> summaries) {
+        this.summaries = Objects.requireNonNull(summaries, "summaries is Null");
+        for (int i = 0; i < SLOTS; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    /**
+     * @param ratePerSecond entries per second for each bundle and level, 0 for no limit
+     * @param burst entries a bucket can send at once, 0 for one second's worth
+     * @param duplicateWindowMillis how long repeats of an entry are collapsed, 0 to send them all
+     */
+    public void configure(final int ratePerSecond, final int burst, final long duplicateWindowMillis) {
+        flushExpired(true);
+
+        long now = System.nanoTime();
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, now);
+        }
+        long intervalNanos = ratePerSecond > 0 ? Math.max(1, TimeUnit.SECONDS.toNanos(1) / ratePerSecond) : 0;
+        long burstCount = burst > 0 ? burst : Math.max(1, ratePerSecond);
+        settings = new Settings(intervalNanos, intervalNanos * burstCount, Math.max(0, duplicateWindowMillis));
+    }
+
+    /**
+     * @return the duplicate window in milliseconds, 0 when duplicates are not collapsed
+     */
+    public long getDuplicateWindowMillis() {
+        return settings.windowMillis;
+    }
+
+    /**
+     * @return null if the entry should be sent, otherwise why it was held
+     *     back, {@link IGelfTransporter#FILTERED_DUPLICATE} or
+     *     {@link IGelfTransporter#FILTERED_RATE_LIMIT}
+     */
+    public String filter(final LogEntry entry) {
+        Settings current = settings;
+        if (current.windowMillis > 0 && isDuplicate(entry, current.windowMillis)) {
+            return IGelfTransporter.FILTERED_DUPLICATE;
+        }
+        if (current.intervalNanos > 0 && !takeToken(entry, current)) {
+            return IGelfTransporter.FILTERED_RATE_LIMIT;
+        }
+        return null;
+    }
+
+    /**
+     * Hands over the counts of windows that have ended
+     * @param all true to hand over every count, open windows included
+     */
+    public void flushExpired(final boolean all) {
+        long windowMillis = settings.windowMillis;
+        long now = System.currentTimeMillis();
+        for (Slot slot : slots) {
+            Suppressed summary = null;
+            synchronized (slot) {
+                if (null != slot.message && (all || now - slot.windowStart >= windowMillis)) {
+                    summary = slot.clear();
+                }
+            }
+            if (null != summary) {
+                summaries.accept(summary);
+            }
+        }
+    }
+
+    private boolean isDuplicate(final LogEntry entry, final long windowMillis) {
+        long bundleId = bundleId(entry.getBundle());
+        int level = entry.getLevel();
+        String message = String.valueOf(entry.getMessage());
+        Class<?> exceptionClass = null == entry.getException() ? null : entry.getException().getClass();
+
+        int hash = mix((keyHash(bundleId, level) * 31 + message.hashCode()) * 31
+                + System.identityHashCode(exceptionClass));
+        Slot slot = slots[hash & (SLOTS - 1)];
+
+        long now = System.currentTimeMillis();
+        Suppressed summary = null;
+        synchronized (slot) {
+            if (null != slot.message && slot.matches(bundleId, level, message, exceptionClass)
+                    && now - slot.windowStart < windowMillis) {
+                slot.suppress(entry);
+                return true;
+            }
+            // A new key, or the window has ended, so this one starts a window
+            if (null != slot.message) {
+                summary = slot.clear();
+            }
+            slot.open(bundleId, level, message, exceptionClass, now);
+        }
+        if (null != summary) {
+            summaries.accept(summary);
+        }
+        return false;
+    }
+
+    private boolean takeToken(final LogEntry entry, final Settings current) {
+        long bundleId = bundleId(entry.getBundle());
+        int index = mix(keyHash(bundleId, entry.getLevel())) & (BUCKETS - 1);
+        long now = System.nanoTime();
+        while (true) {
+            long arrival = buckets.get(index);
+            long next = (arrival - now > 0 ? arrival : now) + current.intervalNanos;
+            if (next - now > current.burstNanos) {
+                return false;
+            }
+            if (buckets.compareAndSet(index, arrival, next)) {
+                return true;
+            }
+        }
+    }
+
+    private static long bundleId(final Bundle bundle) {
+        return null == bundle ? -1 : bundle.getBundleId();
+    }
+
+    private static int keyHash(final long bundleId, final int level) {
+        return (int) (bundleId ^ (bundleId >>> 32)) * 31 + level;
+    }
+
+    /**
+     * The murmur3 finalizer, spreads the bits so the low ones pick a slot
+     */
+    private static int mix(final int value) {
+        int h = value;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static final class Settings {
+        final long intervalNanos;
+        final long burstNanos;
+        final long windowMillis;
+
+        Settings(final long intervalNanos, final long burstNanos, final long windowMillis) {
+            this.intervalNanos = intervalNanos;
+            this.burstNanos = burstNanos;
+            this.windowMillis = windowMillis;
+        }
+    }
+
+    /**
+     * One tracked key and its open window, guarded by its own monitor
+     */
+    private static final class Slot {
+        long bundleId;
+        int level;
+        String message;
+        Class<?> exceptionClass;
+        long windowStart;
+
+        LogEntry first;
+        long firstTime;
+        long lastTime;
+        long count;
+
+        boolean matches(final long bundleId, final int level, final String message, final Class<?> exceptionClass) {
+            return this.bundleId == bundleId && this.level == level
+                    && this.exceptionClass == exceptionClass && this.message.equals(message);
+        }
+
+        void open(final long bundleId, final int level, final String message,
+                final Class<?> exceptionClass, final long now) {
+            this.bundleId = bundleId;
+            this.level = level;
+            this.message = message;
+            this.exceptionClass = exceptionClass;
+            this.windowStart = now;
+        }
+
+        void suppress(final LogEntry entry) {
+            if (0 == count++) {
+                first = entry;
+                firstTime = entry.getTime();
+            }
+            lastTime = entry.getTime();
+        }
+
+        /**
+         * Empties the slot
+         * @return the window's count, or null if nothing was suppressed
+         */
+        Suppressed clear() {
+            Suppressed summary = count > 0 ? new Suppressed(first, count, firstTime, lastTime) : null;
+            message = null;
+            exceptionClass = null;
+            first = null;
+            count = 0;
+            return summary;
+        }
+    }
+
+    /**
+     * The duplicates collapsed in one window
+     */
+    public static final class Suppressed {
+        private final LogEntry entry;
+        private final long count;
+        private final long firstTime;
+        private final long lastTime;
+
+        Suppressed(final LogEntry entry, final long count, final long firstTime, final long lastTime) {
+            this.entry = entry;
+            this.count = count;
+            this.firstTime = firstTime;
+            this.lastTime = lastTime;
+        }
+
+        /**
+         * @return the first suppressed copy
+         */
+        public LogEntry getEntry() {
+            return entry;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return when the first suppressed copy was logged, in epoch milliseconds
+         */
+        public long getFirstTime() {
+            return firstTime;
+        }
+
+        /**
+         * @return when the last suppressed copy was logged, in epoch milliseconds
+         */
+        public long getLastTime() {
+            return lastTime;
+        }
+    }
+}
@@ -0,0 +1,728 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.PropertyOption;
+import org.apache.felix.scr.annotations.PropertyUnbounded;
+import org.apache.felix.scr.annotations.Service;
+
+import com.pavlovmedia.oss.osgi.gelf.impl.GelfRingBuffer.DropReason;
+import com.pavlovmedia.oss.osgi.gelf.impl.external.IronValueHelper;
+import com.pavlovmedia.oss.osgi.gelf.impl.external.ThreadPoolUtils;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessage;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessageSource;
+import com.pavlovmedia.oss.osgi.gelf.lib.IGelfTransporter;
+
+/**
+ * A TCP GELF transporter for a Graylog cluster, sending to a list of
+ * endpoints rather than one host.
+ *
+ * With the failover policy everything goes to the first healthy endpoint
+ * in the list, and the next healthy one takes over while it is down. With
+ * the weighted policy messages are spread over the healthy endpoints in
+ * proportion to their weights. Fan-out endpoints, like an archive, get a
+ * copy of every message whichever policy is used.
+ *
+ * Each endpoint is a complete {@link PavlovGelfTcpTransporter} with its own
+ * queue and sending thread, so a slow endpoint only backs up its own queue,
+ * and its own {@link GelfCircuitBreaker}. The cluster has no queue or
+ * thread of its own. Endpoints whose breaker is open, or whose queue is
+ * nearly full, are passed over. Messages still queued for
+ * an endpoint when its breaker opens are handed to the others. Once the
+ * open time has passed the endpoint is probed with a plain connection, and
+ * sent to again if that connects.
+ *
+ * Fan-out endpoints are probed the same way so their breakers report how
+ * they stand, but they are never passed over: each keeps its copies queued,
+ * or spooled, until it is back.
+ */
+@Component(metatype = true, policy = ConfigurationPolicy.REQUIRE, immediate = true)
+@Service(value = IGelfTransporter.class)
+@Properties({
+        @Property(name = IGelfTransporter.PROTOCOL, value = "cluster", propertyPrivate = true),
+        @Property(
+            name = PavlovGelfClusterTransporter.GRAYLOG_CLUSTER_ENDPOINTS,
+            value = "",
+            unbounded = PropertyUnbounded.VECTOR,
+            label = "Endpoints",
+            description = "Graylog inputs as host:port:weight, in order of preference, the port and weight are optional. IPv6 addresses go in brackets"),
+        @Property(
+            name = PavlovGelfClusterTransporter.GRAYLOG_CLUSTER_POLICY,
+            value = PavlovGelfClusterTransporter.GRAYLOG_CLUSTER_POLICY_DEFAULT,
+            label = "Policy",
+            description = "How messages are spread over the endpoints",
+            options = {
+                @PropertyOption(name = "failover", value = "Everything to the first healthy endpoint"),
+                @PropertyOption(name = "weighted", value = "Spread over the healthy endpoints by weight")
+            }),
+        @Property(
+            name = PavlovGelfClusterTransporter.GRAYLOG_CLUSTER_FANOUT,
+            value = "",
+            unbounded = PropertyUnbounded.VECTOR,
+            label = "Fan-out endpoints",
+            description = "Graylog inputs as host:port that get a copy of every message"),
+        @Property(
+            name = PavlovGelfClusterTransporter.GRAYLOG_CLUSTER_FAILURE_THRESHOLD,
+            intValue = PavlovGelfClusterTransporter.GRAYLOG_CLUSTER_FAILURE_THRESHOLD_DEFAULT,
+            label = "Failure threshold",
+            description = "Connection or write failures in a row before an endpoint is taken out of rotation"),
+        @Property(
+            name = PavlovGelfClusterTransporter.GRAYLOG_CLUSTER_OPEN_MILLIS,
+            intValue = PavlovGelfClusterTransporter.GRAYLOG_CLUSTER_OPEN_MILLIS_DEFAULT,
+            label = "Out of rotation time",
+            description = "Milliseconds before an endpoint taken out of rotation is probed again")
+        })
+public class PavlovGelfClusterTransporter extends AbstractGelfTransporter {
+    static final String GRAYLOG_CLUSTER_ENDPOINTS = "graylog.cluster.endpoints";
+
+    static final String GRAYLOG_CLUSTER_POLICY = "graylog.cluster.policy";
+    static final String GRAYLOG_CLUSTER_POLICY_WEIGHTED = "weighted";
+    static final String GRAYLOG_CLUSTER_POLICY_DEFAULT = "failover";
+
+    static final String GRAYLOG_CLUSTER_FANOUT = "graylog.cluster.fanout";
+
+    static final String GRAYLOG_CLUSTER_FAILURE_THRESHOLD = "graylog.cluster.failureThreshold";
+    static final int GRAYLOG_CLUSTER_FAILURE_THRESHOLD_DEFAULT = 3;
+
+    static final String GRAYLOG_CLUSTER_OPEN_MILLIS = "graylog.cluster.openMillis";
+    static final int GRAYLOG_CLUSTER_OPEN_MILLIS_DEFAULT = 10000;
+
+    /** How often open breakers are probed and their queues moved */
+    static final long GRAYLOG_CLUSTER_CHECK_MILLIS = 250;
+
+    /** How long a probe waits to connect */
+    static final int GRAYLOG_CLUSTER_PROBE_TIMEOUT_MILLIS = 1000;
+
+    /** Queue fill above which an endpoint is passed over */
+    static final double GRAYLOG_CLUSTER_SLOW_FILL = 0.9;
+
+    /**
+     * One endpoint of the cluster
+     */
+    static final class Endpoint extends PavlovGelfTcpTransporter {
+        private final String name;
+        private final int weight;
+        private final GelfCircuitBreaker breaker;
+
+        Endpoint(final String name, final int weight, final GelfCircuitBreaker breaker) {
+            this.name = name;
+            this.weight = weight;
+            this.breaker = breaker;
+        }
+
+        /**
+         * @return true if the breaker is not open and the queue is not backing up
+         */
+        boolean isHealthy() {
+            return breaker.allowRequest() && getQueueFill() < GRAYLOG_CLUSTER_SLOW_FILL;
+        }
+
+        @Override
+        protected void connectionFailed() {
+            boolean wasOpen = !breaker.allowRequest();
+            breaker.recordFailure();
+            if (!wasOpen && !breaker.allowRequest()) {
+                trace("GELF endpoint %s:%d is down, taking it out of rotation", hostname, port);
+            }
+        }
+
+        @Override
+        protected void writeSucceeded() {
+            breaker.recordSuccess();
+        }
+
+        @Override
+        protected String getMetricsName() {
+            return name;
+        }
+    }
+
+    /**
+     * A parsed host:port:weight entry. An IPv6 literal goes in brackets,
+     * like [::1]:12201:2.
+     */
+    static final class Address {
+        final String host;
+        final int port;
+        final int weight;
+
+        Address(final String host, final int port, final int weight) {
+            this.host = host;
+            this.port = port;
+            this.weight = weight;
+        }
+
+        /**
+         * @return the address, or empty if the entry is not valid
+         */
+        static Optional<Address> parse(final String entry, final int defaultPort) {
+            String trimmed = entry.trim();
+            String host;
+            String rest;
+            if (trimmed.startsWith("[")) {
+                int close = trimmed.indexOf(']');
+                if (close < 0) {
+                    return Optional.empty();
+                }
+                host = trimmed.substring(1, close);
+                rest = trimmed.substring(close + 1);
+                if (!rest.isEmpty() && ':' != rest.charAt(0)) {
+                    return Optional.empty();
+                }
+            } else {
+                int colon = trimmed.indexOf(':');
+                host = colon < 0 ? trimmed : trimmed.substring(0, colon);
+                rest = colon < 0 ? "" : trimmed.substring(colon);
+            }
+
+            String[] parts = rest.isEmpty() ? new String[0] : rest.substring(1).split(":");
+            if (host.trim().isEmpty() || parts.length > 2) {
+                return Optional.empty();
+            }
+            try {
+                int port = parts.length > 0 ? Integer.parseInt(parts[0].trim()) : defaultPort;
+                int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+                return Optional.of(new Address(host.trim(), port, Math.max(1, weight)));
+            } catch (NumberFormatException e) {
+                return Optional.empty();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return (host.indexOf(':') < 0 ? host : "[" + host + "]") + ":" + port;
+        }
+    }
+
+    /**
+     * A message going to the fan-out endpoints as well. It is built once,
+     * by whichever endpoint gets to it first. Every endpoint but the last to
+     * take it sends a copy, the last one sends the message itself, so it
+     * goes back to its pool once sent. If every endpoint has its copy
+     * before the dispatcher lets go, the dispatcher recycles it. An endpoint
+     * that throws it away queued, like a queue dropping its oldest, never
+     * takes its copy, and the message is then left to the garbage collector.
+     */
+    static final class SharedMessage implements GelfMessageSource {
+        private final GelfMessageSource source;
+        private GelfMessage message;
+        private boolean built;
+        /** Endpoints still to take their copy, and the dispatcher until it is done */
+        private int holders = 1;
+
+        SharedMessage(final GelfMessageSource source) {
+            this.source = source;
+        }
+
+        /**
+         * @return true if the endpoint queued it, and so will take a copy
+         */
+        boolean offer(final Endpoint endpoint) {
+            synchronized (this) {
+                holders++;
+            }
+            if (endpoint.enqueue(this)) {
+                return true;
+            }
+            release();
+            return false;
+        }
+
+        /**
+         * The dispatcher is done, or an endpoint turned the message away
+         */
+        synchronized void release() {
+            if (0 == --holders && null != message) {
+                message.recycle();
+            }
+        }
+
+        @Override
+        public int getLevel() {
+            return source.getLevel();
+        }
+
+        @Override
+        public long getOrderingKey() {
+            return source.getOrderingKey();
+        }
+
+        @Override
+        public synchronized GelfMessage toGelfMessage() {
+            if (!built) {
+                message = source.toGelfMessage();
+                built = true;
+            }
+            holders--;
+            if (null == message) {
+                return null;
+            }
+
+            return 0 == holders ? message : message.copy();
+        }
+    }
+
+    private Map<String, Object> config = new HashMap<>();
+    private volatile Endpoint[] endpoints = new Endpoint[0];
+    private volatile Endpoint[] fanout = new Endpoint[0];
+    private volatile boolean weighted;
+    private List<Object> layout = new ArrayList<>();
+    private ScheduledExecutorService checker;
+
+    /** Only used by the checker */
+    private final List<GelfMessageSource> stranded = new ArrayList<>();
+
+    @Override
+    protected void activate(final Map<String, Object> config) {
+        this.config = withHost(config);
+        super.activate(this.config);
+    }
+
+    @Override
+    protected void modified(final Map<String, Object> config) {
+        this.config = withHost(config);
+        boolean wasActive = active.get();
+        super.modified(this.config);
+        if (!wasActive || !active.get()) {
+            // Starting or stopping the cluster started or stopped the endpoints
+            return;
+        }
+
+        // Different endpoints restart them all, anything else is passed on
+        IronValueHelper helper = new IronValueHelper(this.config);
+        if (!layout.equals(layout(helper))) {
+            stopTransport();
+            startTransport(helper);
+        } else {
+            weighted = isWeighted(helper);
+            for (Endpoint endpoint : endpoints) {
+                endpoint.modified(endpointConfig(helper, endpoint.hostname, endpoint.port));
+            }
+            for (Endpoint endpoint : fanout) {
+                endpoint.modified(endpointConfig(helper, endpoint.hostname, endpoint.port));
+            }
+        }
+    }
+
+    @Override
+    protected boolean isDelegating() {
+        return true;
+    }
+
+    /**
+     * graylog.host is optional when endpoints are listed, the first one stands in for it
+     */
+    private static Map<String, Object> withHost(final Map<String, Object> config) {
+        Map<String, Object> copy = new HashMap<>(config);
+        IronValueHelper helper = new IronValueHelper(copy);
+        if (!helper.getString(GRAYLOG_HOST).filter(host -> !host.trim().isEmpty()).isPresent()) {
+            addresses(helper, GRAYLOG_CLUSTER_ENDPOINTS).stream().findFirst().ifPresent(first -> {
+                copy.put(GRAYLOG_HOST, first.host);
+                copy.put(GRAYLOG_PORT, first.port);
+            });
+        }
+        return copy;
+    }
+
+    private static List<Address> addresses(final IronValueHelper helper, final String property) {
+        int defaultPort = helper.getInteger(GRAYLOG_PORT).orElse(GRAYLOG_PORT_DEFAULT);
+        List<Address> addresses = new ArrayList<>();
+        for (String entry : helper.getStringList(property)) {
+            if (!entry.trim().isEmpty()) {
+                Address.parse(entry, defaultPort).ifPresent(addresses::add);
+            }
+        }
+        return addresses;
+    }
+
+    private static boolean isWeighted(final IronValueHelper helper) {
+        return GRAYLOG_CLUSTER_POLICY_WEIGHTED.equalsIgnoreCase(
+                helper.getString(GRAYLOG_CLUSTER_POLICY).orElse(GRAYLOG_CLUSTER_POLICY_DEFAULT).trim());
+    }
+
+    /**
+     * @return everything that needs the endpoints restarted when it changes
+     */
+    private static List<Object> layout(final IronValueHelper helper) {
+        List<Object> layout = new ArrayList<>();
+        addresses(helper, GRAYLOG_CLUSTER_ENDPOINTS).forEach(a -> layout.add(a + ":" + a.weight));
+        layout.add("fanout");
+        addresses(helper, GRAYLOG_CLUSTER_FANOUT).forEach(a -> layout.add(a.toString()));
+        layout.add(helper.getInteger(GRAYLOG_CLUSTER_FAILURE_THRESHOLD).orElse(GRAYLOG_CLUSTER_FAILURE_THRESHOLD_DEFAULT));
+        layout.add(helper.getInteger(GRAYLOG_CLUSTER_OPEN_MILLIS).orElse(GRAYLOG_CLUSTER_OPEN_MILLIS_DEFAULT));
+        return layout;
+    }
+
+    @Override
+    protected void startTransport(final IronValueHelper helper) {
+        weighted = isWeighted(helper);
+        int failureThreshold = helper.getInteger(GRAYLOG_CLUSTER_FAILURE_THRESHOLD)
+                .orElse(GRAYLOG_CLUSTER_FAILURE_THRESHOLD_DEFAULT);
+        int openMillis = helper.getInteger(GRAYLOG_CLUSTER_OPEN_MILLIS).orElse(GRAYLOG_CLUSTER_OPEN_MILLIS_DEFAULT);
+
+        List<Address> addresses = addresses(helper, GRAYLOG_CLUSTER_ENDPOINTS);
+        if (addresses.isEmpty()) {
+            addresses = Arrays.asList(new Address(hostname, port, 1));
+        }
+        endpoints = startEndpoints(helper, addresses, failureThreshold, openMillis);
+        fanout = startEndpoints(helper, addresses(helper, GRAYLOG_CLUSTER_FANOUT), failureThreshold, openMillis);
+        layout = layout(helper);
+
+        checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = ThreadPoolUtils.getThreadFactory(getClass().getSimpleName() + "-health",
+                    new AtomicInteger(0)).newThread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+        checker.scheduleWithFixedDelay(this::checkEndpoints,
+                GRAYLOG_CLUSTER_CHECK_MILLIS, GRAYLOG_CLUSTER_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+
+        trace("GELF logging to %s (%s) with fan-out to %s", addresses, weighted ? "weighted" : "failover",
+                addresses(helper, GRAYLOG_CLUSTER_FANOUT));
+    }
+
+    private Endpoint[] startEndpoints(final IronValueHelper helper, final List<Address> addresses,
+            final int failureThreshold, final int openMillis) {
+        Endpoint[] started = new Endpoint[addresses.size()];
+        for (int i = 0; i < started.length; i++) {
+            Address address = addresses.get(i);
+            started[i] = new Endpoint(getClass().getSimpleName() + "-" + address, address.weight,
+                    new GelfCircuitBreaker(failureThreshold, openMillis));
+            started[i].setLoggedAsHostname(getLoggedAsHostname());
+            started[i].setSyslogLevels(isSyslogLevels());
+            started[i].activate(endpointConfig(helper, address.host, address.port));
+        }
+        return started;
+    }
+
+    @Override
+    protected void stopTransport() {
+        if (null != checker) {
+            checker.shutdownNow();
+            checker = null;
+        }
+
+        // Every endpoint drains against the same deadline
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(getConfig().getShutdownDrainMillis());
+        Endpoint[] stopping = endpoints;
+        Endpoint[] stoppingFanout = fanout;
+        endpoints = new Endpoint[0];
+        fanout = new Endpoint[0];
+        for (Endpoint endpoint : stopping) {
+            endpoint.deactivate(TimeUnit.NANOSECONDS.toMillis(remainingNanos(deadline)));
+        }
+        for (Endpoint endpoint : stoppingFanout) {
+            endpoint.deactivate(TimeUnit.NANOSECONDS.toMillis(remainingNanos(deadline)));
+        }
+    }
+
+    @Override
+    public boolean flush(final long timeout, final TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean flushed = true;
+        for (Endpoint endpoint : endpoints) {
+            flushed &= endpoint.flush(remainingNanos(deadline), TimeUnit.NANOSECONDS);
+        }
+        for (Endpoint endpoint : fanout) {
+            flushed &= endpoint.flush(remainingNanos(deadline), TimeUnit.NANOSECONDS);
+        }
+        return flushed;
+    }
+
+    /**
+     * @return the configuration for one endpoint, with a spool directory of its own
+     */
+    private Map<String, Object> endpointConfig(final IronValueHelper helper, final String host, final int port) {
+        Map<String, Object> endpoint = new HashMap<>(config);
+        endpoint.put(GRAYLOG_HOST, host);
+        endpoint.put(GRAYLOG_PORT, port);
+        helper.getString(PavlovGelfTcpTransporter.GRAYLOG_SPOOL_DIRECTORY)
+            .filter(directory -> !directory.trim().isEmpty())
+            .ifPresent(directory -> endpoint.put(PavlovGelfTcpTransporter.GRAYLOG_SPOOL_DIRECTORY,
+                    new File(directory.trim(), host + "-" + port).getPath()));
+        return endpoint;
+    }
+
+    /**
+     * Picks the endpoint for a message. If none is healthy the policy is
+     * applied to all of them, so messages queue up rather than being lost.
+     */
+    private Endpoint route(final Endpoint[] current) {
+        if (!weighted) {
+            for (Endpoint endpoint : current) {
+                if (endpoint.isHealthy()) {
+                    return endpoint;
+                }
+            }
+            return current[0];
+        }
+
+        int total = 0;
+        for (Endpoint endpoint : current) {
+            if (endpoint.isHealthy()) {
+                total += endpoint.weight;
+            }
+        }
+        boolean anyHealthy = total > 0;
+        if (!anyHealthy) {
+            for (Endpoint endpoint : current) {
+                total += endpoint.weight;
+            }
+        }
+
+        // A weighted random pick balances like weighted round robin without a shared counter
+        int pick = ThreadLocalRandom.current().nextInt(total);
+        for (Endpoint endpoint : current) {
+            if (!anyHealthy || endpoint.isHealthy()) {
+                pick -= endpoint.weight;
+                if (pick < 0) {
+                    return endpoint;
+                }
+            }
+        }
+        return current[current.length - 1];
+    }
+
+    /**
+     * Probes open breakers that are due, and moves messages off endpoints
+     * whose breaker is open. Fan-out endpoints are only probed.
+     */
+    private void checkEndpoints() {
+        Endpoint[] current = endpoints;
+        for (Endpoint endpoint : current) {
+            probeIfDue(endpoint);
+            if (!endpoint.breaker.allowRequest()) {
+                reroute(endpoint, current);
+            }
+        }
+        for (Endpoint endpoint : fanout) {
+            probeIfDue(endpoint);
+        }
+    }
+
+    private void probeIfDue(final Endpoint endpoint) {
+        GelfCircuitBreaker breaker = endpoint.breaker;
+        if (breaker.isProbeDue()) {
+            if (probe(endpoint)) {
+                breaker.probeSucceeded();
+                trace("GELF endpoint %s:%d is answering, putting it back in rotation",
+                        endpoint.hostname, endpoint.port);
+            } else {
+                breaker.probeFailed();
+            }
+        }
+    }
+
+    private boolean probe(final Endpoint endpoint) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(endpoint.hostname, endpoint.port),
+                    GRAYLOG_CLUSTER_PROBE_TIMEOUT_MILLIS);
+            return true;
+        } catch (IOException e) {
+            trace("GELF endpoint %s:%d is still down => %s", endpoint.hostname, endpoint.port, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Hands whatever is queued for an endpoint to the healthy ones, if there are any
+     */
+    private void reroute(final Endpoint from, final Endpoint[] current) {
+        boolean elsewhere = false;
+        for (Endpoint endpoint : current) {
+            elsewhere |= endpoint != from && endpoint.isHealthy();
+        }
+        if (!elsewhere || 0 == from.drainQueued(stranded, Integer.MAX_VALUE)) {
+            return;
+        }
+
+        trace("Moving %d Gelf Messages off %s:%d", stranded.size(), from.hostname, from.port);
+        for (GelfMessageSource source : stranded) {
+            route(current).logGelfMessageSource(source);
+        }
+        stranded.clear();
+    }
+
+    @Override
+    public void setLoggedAsHostname(final String hostname) {
+        super.setLoggedAsHostname(hostname);
+        for (Endpoint endpoint : endpoints) {
+            endpoint.setLoggedAsHostname(hostname);
+        }
+        for (Endpoint endpoint : fanout) {
+            endpoint.setLoggedAsHostname(hostname);
+        }
+    }
+
+    @Override
+    public void setSyslogLevels(final boolean syslogLevels) {
+        super.setSyslogLevels(syslogLevels);
+        for (Endpoint endpoint : endpoints) {
+            endpoint.setSyslogLevels(syslogLevels);
+        }
+        for (Endpoint endpoint : fanout) {
+            endpoint.setSyslogLevels(syslogLevels);
+        }
+    }
+
+    /**
+     * Reports the message to onException if the endpoint it was routed to
+     * turned it away. Fan-out endpoints turning away their copy is only
+     * counted in their metrics.
+     */
+    @Override
+    public void logGelfMessage(final GelfMessage message, final Consumer<IOException> onException) {
+        if (active.get() && !dispatch(message)) {
+            trace("No endpoint could queue Gelf Message '%s' at timestamp '%d'.", message.short_message, message.timestamp);
+            onException.accept(new IOException("No GELF endpoint could queue the Gelf Message"));
+        }
+    }
+
+    @Override
+    public void logGelfMessageSource(final GelfMessageSource source) {
+        if (active.get() && !dispatch(source)) {
+            trace("No endpoint could queue a Gelf Message.");
+        }
+    }
+
+    /**
+     * Queues a message on the endpoint it is routed to, and a copy on each
+     * fan-out endpoint
+     *
+     * @return false if the routed endpoint turned it away
+     */
+    private boolean dispatch(final GelfMessageSource source) {
+        Endpoint[] current = endpoints;
+        if (0 == current.length) {
+            return false;
+        }
+
+        Endpoint[] copies = fanout;
+        if (0 == copies.length) {
+            return route(current).enqueue(source);
+        }
+        SharedMessage message = new SharedMessage(source);
+        boolean queued = message.offer(route(current));
+        for (Endpoint endpoint : copies) {
+            message.offer(endpoint);
+        }
+        message.release();
+        return queued;
+    }
+
+    @Override
+    public void logFiltered(final String reason) {
+        Endpoint[] current = endpoints;
+        if (active.get() && current.length > 0) {
+            route(current).logFiltered(reason);
+        }
+    }
+
+    @Override
+    public long getDropCount(final DropReason reason) {
+        long count = 0;
+        for (Endpoint endpoint : endpoints) {
+            count += endpoint.getDropCount(reason);
+        }
+        for (Endpoint endpoint : fanout) {
+            count += endpoint.getDropCount(reason);
+        }
+        return count;
+    }
+
+    @Override
+    public long getRetryDropCount() {
+        long count = 0;
+        for (Endpoint endpoint : endpoints) {
+            count += endpoint.getRetryDropCount();
+        }
+        for (Endpoint endpoint : fanout) {
+            count += endpoint.getRetryDropCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the metrics of each endpoint, fan-out endpoints last
+     */
+    public List<GelfMetrics> getEndpointMetrics() {
+        List<GelfMetrics> metrics = new ArrayList<>();
+        for (Endpoint endpoint : endpoints) {
+            metrics.add(endpoint.getMetrics());
+        }
+        for (Endpoint endpoint : fanout) {
+            metrics.add(endpoint.getMetrics());
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the breaker state of each endpoint, keyed by host:port,
+     *     fan-out endpoints last
+     */
+    public Map<String, GelfCircuitBreaker.State> getEndpointStates() {
+        Map<String, GelfCircuitBreaker.State> states = new LinkedHashMap<>();
+        for (Endpoint endpoint : endpoints) {
+            states.put(endpoint.hostname + ":" + endpoint.port, endpoint.breaker.getState());
+        }
+        for (Endpoint endpoint : fanout) {
+            states.put(endpoint.hostname + ":" + endpoint.port, endpoint.breaker.getState());
+        }
+        return states;
+    }
+
+    /**
+     * Each endpoint publishes its own
+     */
+    @Override
+    protected String getMetricsName() {
+        return null;
+    }
+
+    @Override
+    protected boolean send(final ByteBuffer frame, final GelfMessage message) {
+        // Never called, messages go straight to the endpoints
+        return true;
+    }
+
+    @Override
+    protected void flush(final boolean force) {
+        // Never called, nothing is buffered here
+    }
+}
@@ -0,0 +1,582 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+
+import com.pavlovmedia.oss.osgi.gelf.impl.external.IronValueHelper;
+import com.pavlovmedia.oss.osgi.gelf.impl.external.ThreadPoolUtils;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessage;
+import com.pavlovmedia.oss.osgi.gelf.lib.IGelfTransporter;
+
+/**
+ * A GELF transporter for the Graylog GELF HTTP input, for sites that can
+ * only reach Graylog through an HTTP load balancer.
+ *
+ * The sending thread fills request bodies, and a small pool of request
+ * threads POSTs them. At most {@link #GRAYLOG_HTTP_MAX_IN_FLIGHT} requests
+ * are outstanding; when they all are, messages stay on the queue until one
+ * finishes. Requests go over {@link HttpURLConnection}, which keeps
+ * connections alive between requests as long as each response is read to
+ * the end. The JDK keeps up to http.maxConnections (5 by default) idle
+ * connections per host, raise it along with the requests in flight.
+ *
+ * With bulk enabled a request carries as many newline separated messages
+ * as fit in {@link #GRAYLOG_BATCH_BYTES}, or whatever arrived within
+ * {@link #GRAYLOG_BATCH_LINGER_MILLIS}; the input needs bulk receiving
+ * turned on for this. Bodies can be gzip compressed.
+ *
+ * A request that fails to connect, or gets a 5xx or 429 back, is sent again
+ * after an exponential backoff, up to {@link #GRAYLOG_RETRY_MAX_ATTEMPTS}
+ * times. Any other error status drops it. With more than one request in
+ * flight messages can arrive out of order.
+ *
+ * When the transport stops, requests still in flight are given until the
+ * drain deadline. The messages of any that are not done by then are kept
+ * with the unsent ones, so they are sent again or counted as abandoned.
+ */
+@Component(metatype = true, policy = ConfigurationPolicy.REQUIRE, immediate = true)
+@Service(value = IGelfTransporter.class)
+@Properties({
+        @Property(name = IGelfTransporter.PROTOCOL, value = "http", propertyPrivate = true),
+        @Property(
+            name = PavlovGelfHttpTransporter.GRAYLOG_HTTP_PATH,
+            value = PavlovGelfHttpTransporter.GRAYLOG_HTTP_PATH_DEFAULT,
+            label = "Path",
+            description = "Path of the GELF HTTP input"),
+        @Property(
+            name = PavlovGelfHttpTransporter.GRAYLOG_HTTP_SECURE,
+            boolValue = false,
+            label = "HTTPS",
+            description = "Send over HTTPS rather than HTTP"),
+        @Property(
+            name = PavlovGelfHttpTransporter.GRAYLOG_HTTP_GZIP,
+            boolValue = false,
+            label = "Compress",
+            description = "Gzip request bodies"),
+        @Property(
+            name = PavlovGelfHttpTransporter.GRAYLOG_HTTP_BULK,
+            boolValue = false,
+            label = "Bulk",
+            description = "Send several newline separated messages per request, the input needs bulk receiving enabled"),
+        @Property(
+            name = PavlovGelfHttpTransporter.GRAYLOG_HTTP_MAX_IN_FLIGHT,
+            intValue = PavlovGelfHttpTransporter.GRAYLOG_HTTP_MAX_IN_FLIGHT_DEFAULT,
+            label = "Requests in flight",
+            description = "Most requests outstanding at once, 1 keeps messages in order"),
+        @Property(
+            name = PavlovGelfHttpTransporter.GRAYLOG_HTTP_TIMEOUT_MILLIS,
+            intValue = PavlovGelfHttpTransporter.GRAYLOG_HTTP_TIMEOUT_MILLIS_DEFAULT,
+            label = "Request timeout",
+            description = "Milliseconds to wait for a connection, and then for the response"),
+        @Property(
+            name = PavlovGelfHttpTransporter.GRAYLOG_HTTP_RETRY_MIN_MILLIS,
+            intValue = PavlovGelfHttpTransporter.GRAYLOG_HTTP_RETRY_MIN_MILLIS_DEFAULT,
+            label = "Retry delay",
+            description = "First delay in milliseconds before sending a failed request again, doubled on each failure"),
+        @Property(
+            name = PavlovGelfHttpTransporter.GRAYLOG_HTTP_RETRY_MAX_MILLIS,
+            intValue = PavlovGelfHttpTransporter.GRAYLOG_HTTP_RETRY_MAX_MILLIS_DEFAULT,
+            label = "Maximum retry delay",
+            description = "Longest delay in milliseconds before sending a failed request again")
+        })
+public class PavlovGelfHttpTransporter extends AbstractGelfTransporter {
+    static final String GRAYLOG_HTTP_PATH = "graylog.http.path";
+    static final String GRAYLOG_HTTP_PATH_DEFAULT = "/gelf";
+
+    static final String GRAYLOG_HTTP_SECURE = "graylog.http.secure";
+    static final String GRAYLOG_HTTP_GZIP = "graylog.http.gzip";
+    static final String GRAYLOG_HTTP_BULK = "graylog.http.bulk";
+
+    static final String GRAYLOG_HTTP_MAX_IN_FLIGHT = "graylog.http.maxInFlight";
+    static final int GRAYLOG_HTTP_MAX_IN_FLIGHT_DEFAULT = 4;
+
+    static final String GRAYLOG_HTTP_TIMEOUT_MILLIS = "graylog.http.timeoutMillis";
+    static final int GRAYLOG_HTTP_TIMEOUT_MILLIS_DEFAULT = 10000;
+
+    static final String GRAYLOG_HTTP_RETRY_MIN_MILLIS = "graylog.http.retryMinMillis";
+    static final int GRAYLOG_HTTP_RETRY_MIN_MILLIS_DEFAULT = 100;
+
+    static final String GRAYLOG_HTTP_RETRY_MAX_MILLIS = "graylog.http.retryMaxMillis";
+    static final int GRAYLOG_HTTP_RETRY_MAX_MILLIS_DEFAULT = 10000;
+
+    private URL url;
+    private boolean gzip;
+    private boolean bulk;
+    private int batchBytes;
+    private long lingerNanos;
+    private int maxInFlight;
+    private int timeoutMillis;
+    private long retryMinMillis;
+    private long retryMaxMillis;
+
+    private ExecutorService requests;
+    private Semaphore inFlight = new Semaphore(0);
+    /** Set once a request has gone through, cleared when one cannot connect */
+    private volatile boolean reachable;
+
+    /** Owned by the sending thread */
+    private Body filling;
+    /** What was left in the filling body when the transport stopped */
+    private final List<GelfMessage> unsent = new ArrayList<>();
+    /** Bodies back from the request threads, ready to fill again */
+    private final ConcurrentLinkedQueue<Body> free = new ConcurrentLinkedQueue<>();
+    /** Bodies a request thread is sending or waiting to send again */
+    private final Set<Body> posting = ConcurrentHashMap.newKeySet();
+
+    @Override
+    protected void startTransport(final IronValueHelper helper) {
+        String path = helper.getString(GRAYLOG_HTTP_PATH).orElse(GRAYLOG_HTTP_PATH_DEFAULT).trim();
+        try {
+            url = new URL(helper.getBoolean(GRAYLOG_HTTP_SECURE).orElse(false) ? "https" : "http",
+                    hostname, port, path.startsWith("/") ? path : "/" + path);
+        } catch (MalformedURLException e) {
+            trace("GELF HTTP endpoint is not valid, nothing will be sent => %s", e.getMessage());
+            url = null;
+        }
+        gzip = helper.getBoolean(GRAYLOG_HTTP_GZIP).orElse(false);
+        bulk = helper.getBoolean(GRAYLOG_HTTP_BULK).orElse(false);
+        batchBytes = Math.max(1024, helper.getInteger(GRAYLOG_BATCH_BYTES).orElse(GRAYLOG_BATCH_BYTES_DEFAULT));
+        lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0,
+                helper.getInteger(GRAYLOG_BATCH_LINGER_MILLIS).orElse(GRAYLOG_BATCH_LINGER_MILLIS_DEFAULT)));
+        maxInFlight = Math.max(1, helper.getInteger(GRAYLOG_HTTP_MAX_IN_FLIGHT).orElse(GRAYLOG_HTTP_MAX_IN_FLIGHT_DEFAULT));
+        timeoutMillis = Math.max(1, helper.getInteger(GRAYLOG_HTTP_TIMEOUT_MILLIS).orElse(GRAYLOG_HTTP_TIMEOUT_MILLIS_DEFAULT));
+        retryMinMillis = Math.max(1, helper.getInteger(GRAYLOG_HTTP_RETRY_MIN_MILLIS)
+                .orElse(GRAYLOG_HTTP_RETRY_MIN_MILLIS_DEFAULT));
+        retryMaxMillis = Math.max(retryMinMillis, helper.getInteger(GRAYLOG_HTTP_RETRY_MAX_MILLIS)
+                .orElse(GRAYLOG_HTTP_RETRY_MAX_MILLIS_DEFAULT));
+
+        filling = new Body(batchBytes);
+        inFlight = new Semaphore(maxInFlight);
+        requests = Executors.newFixedThreadPool(maxInFlight, r -> {
+            Thread thread = ThreadPoolUtils.getThreadFactory("PavlovGelfHttpTransporter-request",
+                    new AtomicInteger(0)).newThread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+        trace("GELF logging over HTTP to %s", url);
+    }
+
+    @Override
+    protected void stopTransport() {
+        if (null != requests) {
+            requests.shutdown();
+            try {
+                requests.awaitTermination(remainingNanos(getStopDeadlineNanos()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // Whatever is still in flight is given up on, its request thread leaves the messages alone
+            for (Body body : posting) {
+                if (body.take()) {
+                    unsent.addAll(body.messages);
+                }
+            }
+            // This ends the retry waits, a request already on the wire runs to its timeout
+            requests.shutdownNow();
+            try {
+                requests.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            requests = null;
+        }
+        if (reachable) {
+            reachable = false;
+            metrics.disconnected();
+        }
+        for (Body body = free.poll(); null != body; body = free.poll()) {
+            body.end();
+        }
+        if (null != filling) {
+            // Kept to be sent again, not recycled
+            unsent.addAll(filling.messages);
+            filling.messages.clear();
+            filling.end();
+        }
+    }
+
+    @Override
+    protected List<GelfMessage> takeUnsent() {
+        List<GelfMessage> taken = new ArrayList<>(unsent);
+        unsent.clear();
+        return taken;
+    }
+
+    /**
+     * Not ready while every request is in flight
+     */
+    @Override
+    protected boolean isReady() {
+        return inFlight.availablePermits() > 0;
+    }
+
+    @Override
+    protected long lingerRemainingNanos() {
+        if (filling.isEmpty() || 0 == inFlight.availablePermits()) {
+            return super.lingerRemainingNanos();
+        }
+        return Math.max(0, lingerNanos - (System.nanoTime() - filling.firstNanos));
+    }
+
+    /**
+     * Idle once the filling body has been handed to a request thread
+     * and every request has finished
+     */
+    @Override
+    protected boolean isIdle() {
+        return filling.isEmpty() && inFlight.availablePermits() >= maxInFlight;
+    }
+
+    @Override
+    protected boolean send(final ByteBuffer frame, final GelfMessage message) {
+        if (!filling.isEmpty() && (!bulk || filling.length + frame.remaining() + 1 > batchBytes)) {
+            if (!dispatch()) {
+                return false;
+            }
+        }
+        filling.append(frame, message);
+
+        if (!bulk || filling.length >= batchBytes) {
+            dispatch();
+        }
+        return true;
+    }
+
+    @Override
+    protected void flush(final boolean force) {
+        if (!filling.isEmpty() && (force || System.nanoTime() - filling.firstNanos >= lingerNanos)) {
+            dispatch();
+        }
+    }
+
+    /**
+     * Hands the filling body to a request thread
+     * @return false if every request is already in flight
+     */
+    private boolean dispatch() {
+        if (!inFlight.tryAcquire()) {
+            return false;
+        }
+
+        Body body = filling;
+        Body next = free.poll();
+        filling = null == next ? new Body(batchBytes) : next;
+        posting.add(body);
+        try {
+            requests.execute(() -> post(body));
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            posting.remove(body);
+            metrics.dropped(GelfMetrics.DROP_WRITE, body.messages.size());
+            inFlight.release();
+            body.reset();
+            body.end();
+        }
+        return true;
+    }
+
+    /**
+     * Sends one body, on a request thread, retrying with backoff while the
+     * endpoint is failing. Its messages are only counted once the body is
+     * {@link Body#finish()}ed, they belong to {@link #stopTransport()} if
+     * it took them first.
+     */
+    private void post(final Body body) {
+        try {
+            if (null == url) {
+                if (body.finish()) {
+                    metrics.dropped(GelfMetrics.DROP_WRITE, body.messages.size());
+                }
+                return;
+            }
+            byte[] payload = gzip ? body.compress() : body.bytes;
+            int length = gzip ? body.compressedLength : body.length;
+
+            for (int attempt = 1;; attempt++) {
+                long start = System.nanoTime();
+                int status;
+                try {
+                    status = request(payload, length);
+                } catch (IOException e) {
+                    trace("GELF HTTP request to %s failed => %s", url, e.getMessage());
+                    status = -1;
+                }
+
+                if (status >= 200 && status < 300) {
+                    if (body.finish()) {
+                        metrics.recordWrite(body.messages.size(), length, System.nanoTime() - start);
+                    }
+                    if (!reachable) {
+                        reachable = true;
+                        metrics.connected();
+                    }
+                    return;
+                }
+                if (status < 0 && reachable) {
+                    reachable = false;
+                    metrics.disconnected();
+                }
+                if (status >= 0 && status < 500 && 429 != status) {
+                    if (body.finish()) {
+                        metrics.dropped(GelfMetrics.DROP_WRITE, body.messages.size());
+                        trace("Graylog answered HTTP %d, dropping %d Gelf Messages", status, body.messages.size());
+                    }
+                    return;
+                }
+                if (attempt >= getMaxAttempts()) {
+                    if (body.finish()) {
+                        dropAfterRetries(body.messages);
+                    }
+                    return;
+                }
+
+                long delayMillis = Math.min(retryMaxMillis, retryMinMillis << Math.min(attempt - 1, 30));
+                trace("GELF HTTP request got %d, trying again in %dms", status, delayMillis);
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    // Stopping, the messages were taken before the interrupt
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        } finally {
+            posting.remove(body);
+            if (body.finish()) {
+                // Ended some other way, nothing has counted the messages yet
+                metrics.dropped(GelfMetrics.DROP_WRITE, body.messages.size());
+            }
+            if (body.isTaken()) {
+                // The messages were kept by stopTransport, the body is not reused
+                body.end();
+            } else {
+                body.reset();
+                free.offer(body);
+            }
+            inFlight.release();
+            wakeSender();
+        }
+    }
+
+    /**
+     * Makes one POST
+     * @return the response status
+     */
+    private int request(final byte[] payload, final int length) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setUseCaches(false);
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            connection.setFixedLengthStreamingMode(length);
+            connection.setRequestProperty("Content-Type", "application/json");
+            if (gzip) {
+                connection.setRequestProperty("Content-Encoding", "gzip");
+            }
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(payload, 0, length);
+            }
+
+            int status = connection.getResponseCode();
+            // Reading the response to the end lets the connection be kept alive
+            InputStream response = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            if (null != response) {
+                try (InputStream in = response) {
+                    byte[] discard = new byte[256];
+                    while (in.read(discard) >= 0) {
+                        // Nothing to keep
+                    }
+                }
+            }
+            return status;
+        } catch (IOException e) {
+            // Do not keep a connection that failed
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * A request body, filled by the sending thread and then owned by a
+     * request thread until it is sent
+     */
+    private static final class Body {
+        private static final int GZIP_HEADER_BYTES = 10;
+        private static final int GZIP_TRAILER_BYTES = 8;
+
+        private static final int POSTING = 0;
+        private static final int FINISHED = 1;
+        private static final int TAKEN = 2;
+
+        private byte[] bytes;
+        private int length;
+        private long firstNanos;
+        private final List<GelfMessage> messages = new ArrayList<>();
+
+        private byte[] compressed;
+        private int compressedLength;
+        private Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        /** Whether the request thread or the stopping transport has the messages */
+        private final AtomicInteger state = new AtomicInteger(POSTING);
+
+        Body(final int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        boolean isEmpty() {
+            return messages.isEmpty();
+        }
+
+        /**
+         * Adds a frame, followed by a newline
+         */
+        void append(final ByteBuffer frame, final GelfMessage message) {
+            if (messages.isEmpty()) {
+                firstNanos = System.nanoTime();
+            }
+            int needed = length + frame.remaining() + 1;
+            if (needed > bytes.length) {
+                byte[] grown = new byte[Math.max(bytes.length * 2, needed)];
+                System.arraycopy(bytes, 0, grown, 0, length);
+                bytes = grown;
+            }
+            int frameLength = frame.remaining();
+            frame.get(bytes, length, frameLength);
+            length += frameLength;
+            bytes[length++] = '\n';
+            messages.add(message);
+        }
+
+        /**
+         * Gzips the body into {@link #compressed}, reusing the deflater
+         * @return the compressed bytes, {@link #compressedLength} long
+         */
+        byte[] compress() {
+            if (null == deflater) {
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            }
+            int capacity = length + length / 1000 + 64;
+            if (null == compressed || compressed.length < capacity) {
+                compressed = new byte[capacity];
+            }
+
+            // The same header GZIPOutputStream writes
+            compressed[0] = (byte) 0x1f;
+            compressed[1] = (byte) 0x8b;
+            compressed[2] = Deflater.DEFLATED;
+            for (int i = 3; i < GZIP_HEADER_BYTES; i++) {
+                compressed[i] = 0;
+            }
+            int position = GZIP_HEADER_BYTES;
+
+            deflater.reset();
+            deflater.setInput(bytes, 0, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (position == compressed.length - GZIP_TRAILER_BYTES) {
+                    byte[] grown = new byte[compressed.length * 2];
+                    System.arraycopy(compressed, 0, grown, 0, position);
+                    compressed = grown;
+                }
+                position += deflater.deflate(compressed, position, compressed.length - GZIP_TRAILER_BYTES - position);
+            }
+
+            crc.reset();
+            crc.update(bytes, 0, length);
+            position = writeIntLE(compressed, position, (int) crc.getValue());
+            compressedLength = writeIntLE(compressed, position, length);
+            return compressed;
+        }
+
+        private static int writeIntLE(final byte[] out, final int start, final int value) {
+            out[start] = (byte) value;
+            out[start + 1] = (byte) (value >>> 8);
+            out[start + 2] = (byte) (value >>> 16);
+            out[start + 3] = (byte) (value >>> 24);
+            return start + 4;
+        }
+
+        /**
+         * Called by the request thread once the body is sent or dropped
+         * @return false if the stopping transport took the messages first
+         */
+        boolean finish() {
+            return state.compareAndSet(POSTING, FINISHED);
+        }
+
+        /**
+         * Called by the stopping transport for a body still in flight
+         * @return false if the request thread finished with it first
+         */
+        boolean take() {
+            return state.compareAndSet(POSTING, TAKEN);
+        }
+
+        boolean isTaken() {
+            return TAKEN == state.get();
+        }
+
+        /**
+         * Empties the body, recycling its messages
+         */
+        void reset() {
+            length = 0;
+            compressedLength = 0;
+            messages.forEach(GelfMessage::recycle);
+            messages.clear();
+            state.set(POSTING);
+        }
+
+        /**
+         * Frees the deflater, the messages are left alone
+         */
+        void end() {
+            if (null != deflater) {
+                deflater.end();
+                deflater = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,552 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+
+import com.pavlovmedia.oss.osgi.gelf.impl.external.IronValueHelper;
+import com.pavlovmedia.oss.osgi.gelf.impl.external.ThreadPoolUtils;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessage;
+import com.pavlovmedia.oss.osgi.gelf.lib.IGelfTransporter;
+
+/**
+ * A TCP GELF transporter built on a non-blocking {@link SocketChannel}.
+ *
+ * The sending thread only fills batches. A selector thread owns the
+ * connection: it connects without blocking, writes whatever the socket
+ * will take whenever it is writable, and when the connection drops it
+ * reconnects on an exponential backoff timer. While it is disconnected
+ * messages simply stay on the queue, so neither the sending thread nor
+ * the logging threads ever wait on a reconnect.
+ *
+ * A batch whose write fails stays with the selector thread and is written
+ * again, from the start, once reconnected; it is dropped after
+ * {@link #GRAYLOG_RETRY_MAX_ATTEMPTS} failed writes. The last batch written
+ * is kept too, since a server that closed the connection lets that write
+ * succeed, and is written again ahead of the failed one. A new connection
+ * takes one batch and nothing more until it has been seen open a while.
+ */
+@Component(metatype = true, policy = ConfigurationPolicy.REQUIRE, immediate = true)
+@Service(value = IGelfTransporter.class)
+@Properties({
+        @Property(name = IGelfTransporter.PROTOCOL, value = "nio", propertyPrivate = true),
+        @Property(
+            name = PavlovGelfNioTransporter.GRAYLOG_RECONNECT_MIN_MILLIS,
+            intValue = PavlovGelfNioTransporter.GRAYLOG_RECONNECT_MIN_MILLIS_DEFAULT,
+            label = "Reconnect delay",
+            description = "First delay in milliseconds before reconnecting, doubled on each failure"),
+        @Property(
+            name = PavlovGelfNioTransporter.GRAYLOG_RECONNECT_MAX_MILLIS,
+            intValue = PavlovGelfNioTransporter.GRAYLOG_RECONNECT_MAX_MILLIS_DEFAULT,
+            label = "Maximum reconnect delay",
+            description = "Longest delay in milliseconds between reconnect attempts")
+        })
+public class PavlovGelfNioTransporter extends AbstractGelfTransporter {
+    static final String GRAYLOG_RECONNECT_MIN_MILLIS = "graylog.reconnect.minMillis";
+    static final int GRAYLOG_RECONNECT_MIN_MILLIS_DEFAULT = 100;
+
+    static final String GRAYLOG_RECONNECT_MAX_MILLIS = "graylog.reconnect.maxMillis";
+    static final int GRAYLOG_RECONNECT_MAX_MILLIS_DEFAULT = 30000;
+
+    /** How long the sending thread parks while waiting for a batch to be written */
+    private static final long HANDOFF_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    /** How long the connection may sit unwritten before it is checked ahead of a write */
+    private static final long PROBE_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(GRAYLOG_QUEUE_POLL_MILLIS);
+
+    private long reconnectMinMillis;
+    private long reconnectMaxMillis;
+
+    private volatile boolean running;
+    private volatile boolean connected;
+    /** Opened by the selector thread, null until it is and while a broken one is replaced */
+    private volatile Selector selector;
+    private Thread selectorThread;
+
+    // Owned by the selector thread
+    private SocketChannel channel;
+    private SelectionKey key;
+    private long reconnectDelayMillis;
+    private long nextConnectNanos;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(64);
+    /**
+     * The last batch written, kept until the connection is seen to be open
+     * after it. Once the next batch is written it goes back to be filled.
+     */
+    private GelfFrameBatcher<GelfMessage> unconfirmed;
+    private long lastWriteNanos;
+    /** The connection failed before the unconfirmed batch was seen through */
+    private volatile boolean resendUnconfirmed;
+    /**
+     * The connection has been seen open a while after its last write. Until
+     * then only one batch is written, so a server that accepts and closes
+     * can only lose the unconfirmed one.
+     */
+    private boolean connectionConfirmed;
+    /** The in-flight batch has been partly or fully written on this connection */
+    private boolean batchStarted;
+
+    // Owned by the sending thread
+    private GelfFrameBatcher<GelfMessage> filling;
+
+    /** A sealed batch waiting for, or in the middle of, being written */
+    private final AtomicReference<GelfFrameBatcher<GelfMessage>> handoff = new AtomicReference<>();
+    /** An empty batch to fill next, always there while nothing is handed off */
+    private final AtomicReference<GelfFrameBatcher<GelfMessage>> free = new AtomicReference<>();
+
+    @Override
+    protected void startTransport(final IronValueHelper helper) {
+        int batchBytes = helper.getInteger(GRAYLOG_BATCH_BYTES).orElse(GRAYLOG_BATCH_BYTES_DEFAULT);
+        int lingerMillis = helper.getInteger(GRAYLOG_BATCH_LINGER_MILLIS).orElse(GRAYLOG_BATCH_LINGER_MILLIS_DEFAULT);
+        filling = new GelfFrameBatcher<>(batchBytes, lingerMillis, GelfMessage::recycle);
+        free.set(new GelfFrameBatcher<>(batchBytes, lingerMillis, GelfMessage::recycle));
+        handoff.set(null);
+        unconfirmed = new GelfFrameBatcher<>(batchBytes, lingerMillis, GelfMessage::recycle);
+        resendUnconfirmed = false;
+        lastWriteNanos = System.nanoTime();
+
+        reconnectMinMillis = Math.max(1, helper.getInteger(GRAYLOG_RECONNECT_MIN_MILLIS)
+                .orElse(GRAYLOG_RECONNECT_MIN_MILLIS_DEFAULT));
+        reconnectMaxMillis = Math.max(reconnectMinMillis, helper.getInteger(GRAYLOG_RECONNECT_MAX_MILLIS)
+                .orElse(GRAYLOG_RECONNECT_MAX_MILLIS_DEFAULT));
+        reconnectDelayMillis = reconnectMinMillis;
+        nextConnectNanos = System.nanoTime();
+
+        // The selector thread opens the selector, and keeps trying if it cannot
+        selector = null;
+        running = true;
+        selectorThread = ThreadPoolUtils.getThreadFactory("PavlovGelfNioTransporter-selector", new AtomicInteger(0))
+                .newThread(this::runSelector);
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    @Override
+    protected void stopTransport() {
+        running = false;
+        Selector current = selector;
+        if (null != current) {
+            current.wakeup();
+        }
+        if (null != selectorThread) {
+            // It may be waiting to open the selector again
+            LockSupport.unpark(selectorThread);
+            try {
+                selectorThread.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            selectorThread = null;
+        }
+        if (null != selector) {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                /* Do nothing */ }
+            selector = null;
+        }
+    }
+
+    @Override
+    protected boolean isReady() {
+        return connected;
+    }
+
+    @Override
+    protected long lingerRemainingNanos() {
+        return filling.isEmpty() ? super.lingerRemainingNanos() : filling.lingerRemainingNanos();
+    }
+
+    /**
+     * Idle once the filling batch has been handed to the selector thread
+     * and written, and nothing is waiting to be written again
+     */
+    @Override
+    protected boolean isIdle() {
+        return filling.isEmpty() && null == handoff.get() && !resendUnconfirmed;
+    }
+
+    /**
+     * The unconfirmed batch if the connection failed after it, the batch
+     * the selector thread had not finished, then the one being filled.
+     * Only safe once the selector thread has stopped.
+     */
+    @Override
+    protected List<GelfMessage> takeUnsent() {
+        List<GelfMessage> unsent = new ArrayList<>();
+        if (null != unconfirmed) {
+            if (resendUnconfirmed) {
+                unsent.addAll(unconfirmed.takePending());
+            }
+            unconfirmed.reset();
+        }
+        resendUnconfirmed = false;
+        GelfFrameBatcher<GelfMessage> batch = handoff.getAndSet(null);
+        if (null != batch) {
+            unsent.addAll(batch.takePending());
+            batch.reset();
+            free.set(batch);
+        }
+        if (null != filling) {
+            unsent.addAll(filling.takePending());
+            filling.reset();
+        }
+        return unsent;
+    }
+
+    @Override
+    protected boolean send(final ByteBuffer frame, final GelfMessage message) {
+        if (!filling.canAppend(frame.remaining())) {
+            // Wait for the writer to finish the previous batch, this is back
+            // pressure from a slow reader, never a reconnect
+            while (!handOff() && connected && running) {
+                LockSupport.parkNanos(this, HANDOFF_PARK_NANOS);
+            }
+            if (!filling.isEmpty()) {
+                return false;
+            }
+        }
+        filling.append(frame, message);
+
+        if (filling.shouldFlush()) {
+            handOff();
+        }
+        return true;
+    }
+
+    @Override
+    protected void flush(final boolean force) {
+        if (force || filling.shouldFlush()) {
+            handOff();
+        }
+    }
+
+    /**
+     * Gives the filling batch to the selector thread if it is free
+     * @return true if there is nothing left in the filling batch
+     */
+    private boolean handOff() {
+        if (filling.isEmpty()) {
+            return true;
+        }
+        Selector current = selector;
+        if (null == current || null != handoff.get()) {
+            // Nothing would write it without a selector, keep filling
+            return false;
+        }
+
+        GelfFrameBatcher<GelfMessage> sealed = filling;
+        sealed.seal();
+        filling = free.getAndSet(null);
+        handoff.set(sealed);
+        current.wakeup();
+        return true;
+    }
+
+    /**
+     * The selector thread, this owns the channel. It only stops once the
+     * transport is stopped, anything going wrong in between drops the
+     * connection and backs off before the next attempt.
+     */
+    private void runSelector() {
+        while (running) {
+            if (null == selector && !openSelector()) {
+                continue;
+            }
+            try {
+                if (null == channel && System.nanoTime() - nextConnectNanos >= 0) {
+                    startConnect();
+                }
+
+                if (connected && !connectionConfirmed && System.nanoTime() - lastWriteNanos >= PROBE_IDLE_NANOS) {
+                    confirmConnection();
+                }
+
+                if (null != key && key.isValid() && connected && hasWritable()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+
+                long timeoutMillis = GRAYLOG_QUEUE_POLL_MILLIS;
+                if (null == channel) {
+                    timeoutMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextConnectNanos - System.nanoTime()));
+                } else if (connected && !connectionConfirmed) {
+                    timeoutMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(lastWriteNanos + PROBE_IDLE_NANOS
+                            - System.nanoTime()));
+                }
+                selector.select(timeoutMillis);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey selected = keys.next();
+                    keys.remove();
+                    handleKey(selected);
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!running) {
+                    break;
+                }
+                onFailure(e);
+                // Only select throws IOException, either way the selector is no good
+                if (e instanceof IOException || !selector.isOpen()) {
+                    closeSelector();
+                }
+            }
+        }
+        closeChannel();
+    }
+
+    /**
+     * Opens the selector, at the start or in place of a broken one. If it
+     * cannot be opened this waits out the reconnect backoff before the
+     * next attempt rather than spinning.
+     *
+     * @return true if there is a selector to use
+     */
+    private boolean openSelector() {
+        try {
+            selector = Selector.open();
+            return true;
+        } catch (IOException e) {
+            trace("GELF logging failed to open a selector, retrying in %dms => %s",
+                    reconnectDelayMillis, e.getMessage());
+            nextConnectNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(reconnectDelayMillis);
+            reconnectDelayMillis = Math.min(reconnectMaxMillis, reconnectDelayMillis * 2);
+            LockSupport.parkNanos(this, remainingNanos(nextConnectNanos));
+            return false;
+        }
+    }
+
+    /**
+     * Throws away a broken selector. The channel was closed with it, the
+     * next connection registers with the selector opened in its place.
+     */
+    private void closeSelector() {
+        Selector broken = selector;
+        selector = null;
+        try {
+            broken.close();
+        } catch (IOException e) {
+            /* Do nothing */ }
+    }
+
+    private void startConnect() {
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(new InetSocketAddress(hostname, port))) {
+                key = channel.register(selector, SelectionKey.OP_READ);
+                onConnected();
+            } else {
+                key = channel.register(selector, SelectionKey.OP_CONNECT);
+            }
+        } catch (IOException | RuntimeException e) {
+            onFailure(e);
+        }
+    }
+
+    private void handleKey(final SelectionKey selected) {
+        if (!selected.isValid()) {
+            return;
+        }
+        try {
+            if (selected.isConnectable()) {
+                if (channel.finishConnect()) {
+                    selected.interestOps(SelectionKey.OP_READ);
+                    onConnected();
+                }
+                return;
+            }
+
+            if (selected.isReadable()) {
+                checkOpen();
+            }
+
+            if (selected.isValid() && selected.isWritable() && writeBatches()) {
+                selected.interestOps(SelectionKey.OP_READ);
+                wakeSender();
+            }
+        } catch (IOException | RuntimeException e) {
+            onFailure(e);
+        }
+    }
+
+    /**
+     * Writes what the socket will take, the unconfirmed batch first after a
+     * failure. A connection that has been idle is checked before it is
+     * written to, otherwise a closed one is only found by a failed write.
+     *
+     * @return true once there is nothing left to write
+     */
+    private boolean writeBatches() throws IOException {
+        if (resendUnconfirmed) {
+            if (!unconfirmed.writeTo(channel)) {
+                return false;
+            }
+            lastWriteNanos = System.nanoTime();
+            resendUnconfirmed = false;
+        } else if (connectionConfirmed && System.nanoTime() - lastWriteNanos >= PROBE_IDLE_NANOS) {
+            checkOpen();
+            unconfirmed.reset();
+        }
+
+        GelfFrameBatcher<GelfMessage> batch = handoff.get();
+        if (null == batch || !canWriteNext()) {
+            return true;
+        }
+        batchStarted = true;
+        if (!batch.writeTo(channel)) {
+            return false;
+        }
+        batchStarted = false;
+        lastWriteNanos = System.nanoTime();
+        metrics.recordWrite(batch.getPending().size(), batch.getByteCount(), lastWriteNanos - batch.getSealedNanos());
+
+        // The new batch is what may not have arrived now, the one before it did
+        GelfFrameBatcher<GelfMessage> delivered = unconfirmed;
+        unconfirmed = batch;
+        delivered.reset();
+        free.set(delivered);
+        handoff.set(null);
+        return true;
+    }
+
+    /**
+     * @return true if there is something the connection can take now
+     */
+    private boolean hasWritable() {
+        return resendUnconfirmed || (null != handoff.get() && canWriteNext());
+    }
+
+    /**
+     * @return true if writing the next batch would not let go of one that
+     *     may not have arrived
+     */
+    private boolean canWriteNext() {
+        return connectionConfirmed || unconfirmed.isEmpty();
+    }
+
+    /**
+     * Called once a new connection has been open a while after its last
+     * write. A server that accepted it only to close it has done so by
+     * now, so what was written on it arrived.
+     */
+    private void confirmConnection() {
+        try {
+            checkOpen();
+        } catch (IOException e) {
+            onFailure(e);
+            return;
+        }
+        unconfirmed.reset();
+        connectionConfirmed = true;
+        reconnectDelayMillis = reconnectMinMillis;
+    }
+
+    /**
+     * Graylog never talks back, a read only tells us the socket closed
+     */
+    private void checkOpen() throws IOException {
+        readBuffer.clear();
+        if (channel.read(readBuffer) < 0) {
+            throw new IOException("Connection closed by remote host");
+        }
+    }
+
+    private void onConnected() {
+        trace("GELF logging connection succeeded to %s:%d", hostname, port);
+        // Nothing is confirmed by a connection the server may not have
+        // accepted yet, the backoff is only reset once it is
+        connectionConfirmed = false;
+        lastWriteNanos = System.nanoTime();
+        // Batches left over from the last connection are written again in full
+        if (resendUnconfirmed) {
+            unconfirmed.rewind();
+        }
+        GelfFrameBatcher<GelfMessage> batch = handoff.get();
+        if (null != batch) {
+            batch.rewind();
+        }
+        connected = true;
+        metrics.connected();
+        wakeSender();
+    }
+
+    /**
+     * Drops the connection and schedules the next connection attempt. The
+     * in-flight batch, and the unconfirmed one before it, are kept for the
+     * next connection unless the in-flight one is out of write attempts. Only
+     * a batch that had started to be written uses up an attempt.
+     */
+    private void onFailure(final Exception e) {
+        trace("GELF logging connection to %s:%d failed, retrying in %dms => %s",
+                hostname, port, reconnectDelayMillis, e.getMessage());
+        boolean wasConnected = connected;
+        closeChannel();
+        if (wasConnected && !unconfirmed.isEmpty()) {
+            resendUnconfirmed = true;
+        }
+
+        GelfFrameBatcher<GelfMessage> batch = handoff.get();
+        if (null != batch && batchStarted && batch.recordFailedAttempt() >= getMaxAttempts()) {
+            dropAfterRetries(batch.getPending());
+            batch.reset();
+            unconfirmed.reset();
+            resendUnconfirmed = false;
+            free.set(batch);
+            handoff.set(null);
+        }
+        batchStarted = false;
+
+        nextConnectNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(reconnectDelayMillis);
+        reconnectDelayMillis = Math.min(reconnectMaxMillis, reconnectDelayMillis * 2);
+        wakeSender();
+    }
+
+    private void closeChannel() {
+        if (connected) {
+            metrics.disconnected();
+        }
+        connected = false;
+        if (null != key) {
+            key.cancel();
+            key = null;
+        }
+        if (null != channel) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                /* Do nothing */ }
+            channel = null;
+        }
+    }
+}
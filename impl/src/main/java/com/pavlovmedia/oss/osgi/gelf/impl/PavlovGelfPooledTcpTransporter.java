@@ -0,0 +1,324 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.PropertyOption;
+import org.apache.felix.scr.annotations.Service;
+
+import com.pavlovmedia.oss.osgi.gelf.impl.GelfRingBuffer.DropReason;
+import com.pavlovmedia.oss.osgi.gelf.impl.external.IronValueHelper;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessage;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessageSource;
+import com.pavlovmedia.oss.osgi.gelf.lib.IGelfTransporter;
+
+/**
+ * A TCP GELF transporter that spreads messages over several connections
+ * to the same input, so encoding and writing are not held to one thread
+ * and one TCP stream.
+ *
+ * Each connection is a complete {@link PavlovGelfTcpTransporter} with its
+ * own queue, sending thread, batching and retries, and takes the same
+ * properties, spool settings included. Each connection gets an equal share
+ * of the queue capacity, spool size and replay rate, and a spool directory
+ * of its own under the configured one. Sending threads are released when
+ * idle like any other transporter's.
+ *
+ * The pool itself has no queue or sending thread, messages go straight to
+ * a connection's queue. They are sharded by bundle, which keeps each
+ * bundle's messages in order, or handed out round robin, which balances
+ * best but can reorder them. Metrics are published per connection.
+ */
+@Component(metatype = true, policy = ConfigurationPolicy.REQUIRE, immediate = true)
+@Service(value = IGelfTransporter.class)
+@Properties({
+        @Property(name = IGelfTransporter.PROTOCOL, value = "pooled", propertyPrivate = true),
+        @Property(
+            name = PavlovGelfPooledTcpTransporter.GRAYLOG_POOL_CONNECTIONS,
+            intValue = PavlovGelfPooledTcpTransporter.GRAYLOG_POOL_CONNECTIONS_DEFAULT,
+            label = "Connections",
+            description = "Number of TCP connections to the Graylog input, each with its own queue and thread"),
+        @Property(
+            name = PavlovGelfPooledTcpTransporter.GRAYLOG_POOL_SHARDING,
+            value = PavlovGelfPooledTcpTransporter.GRAYLOG_POOL_SHARDING_DEFAULT,
+            label = "Sharding",
+            description = "How messages are assigned to connections",
+            options = {
+                @PropertyOption(name = "bundle", value = "By bundle, keeping each bundle's messages in order"),
+                @PropertyOption(name = "roundRobin", value = "Round robin, spreading messages evenly")
+            })
+        })
+public class PavlovGelfPooledTcpTransporter extends AbstractGelfTransporter {
+    static final String GRAYLOG_POOL_CONNECTIONS = "graylog.pool.connections";
+    static final int GRAYLOG_POOL_CONNECTIONS_DEFAULT = 4;
+
+    static final String GRAYLOG_POOL_SHARDING = "graylog.pool.sharding";
+    static final String GRAYLOG_POOL_SHARDING_ROUND_ROBIN = "roundRobin";
+    static final String GRAYLOG_POOL_SHARDING_DEFAULT = "bundle";
+
+    /**
+     * One connection of the pool
+     */
+    static final class Lane extends PavlovGelfTcpTransporter {
+        private final String name;
+
+        Lane(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        protected String getMetricsName() {
+            return name;
+        }
+    }
+
+    private Map<String, Object> config = new HashMap<>();
+    private volatile Lane[] lanes = new Lane[0];
+    private volatile boolean roundRobin;
+    /** The next lane for round robin, and for messages without a bundle */
+    private final AtomicInteger nextLane = new AtomicInteger();
+
+    @Override
+    protected void activate(final Map<String, Object> config) {
+        this.config = new HashMap<>(config);
+        super.activate(config);
+    }
+
+    @Override
+    protected void modified(final Map<String, Object> config) {
+        this.config = new HashMap<>(config);
+        boolean wasActive = active.get();
+        super.modified(config);
+        if (!wasActive || !active.get()) {
+            // Starting or stopping the pool started or stopped the lanes
+            return;
+        }
+
+        // A new lane count restarts the lanes, anything else is passed on
+        IronValueHelper helper = new IronValueHelper(config);
+        Lane[] current = lanes;
+        if (current.length != connectionCount(helper)) {
+            // The new lanes take messages while the old ones drain
+            startTransport(helper);
+            stopLanes(current);
+            // Lanes are named by position, so the metrics can only take the names now
+            for (Lane lane : lanes) {
+                lane.getMetrics().publish(lane.getMetricsName());
+            }
+        } else {
+            roundRobin = isRoundRobin(helper);
+            for (int i = 0; i < current.length; i++) {
+                current[i].modified(laneConfig(helper, i, current.length));
+            }
+        }
+    }
+
+    @Override
+    protected boolean isDelegating() {
+        return true;
+    }
+
+    @Override
+    protected void startTransport(final IronValueHelper helper) {
+        int count = connectionCount(helper);
+        roundRobin = isRoundRobin(helper);
+
+        Lane[] started = new Lane[count];
+        for (int i = 0; i < count; i++) {
+            started[i] = new Lane(getClass().getSimpleName() + "-" + i);
+            started[i].setLoggedAsHostname(getLoggedAsHostname());
+            started[i].setSyslogLevels(isSyslogLevels());
+            started[i].activate(laneConfig(helper, i, count));
+        }
+        lanes = started;
+        trace("GELF logging over %d connections to %s:%d", count, hostname, port);
+    }
+
+    /**
+     * The lanes drain one after another against the same deadline
+     */
+    @Override
+    protected void stopTransport() {
+        Lane[] stopping = lanes;
+        lanes = new Lane[0];
+        stopLanes(stopping);
+    }
+
+    private void stopLanes(final Lane[] stopping) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(getConfig().getShutdownDrainMillis());
+        for (Lane lane : stopping) {
+            lane.deactivate(TimeUnit.NANOSECONDS.toMillis(remainingNanos(deadline)));
+        }
+    }
+
+    @Override
+    public boolean flush(final long timeout, final TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean flushed = true;
+        for (Lane lane : lanes) {
+            flushed &= lane.flush(remainingNanos(deadline), TimeUnit.NANOSECONDS);
+        }
+        return flushed;
+    }
+
+    private static int connectionCount(final IronValueHelper helper) {
+        return Math.max(1, helper.getInteger(GRAYLOG_POOL_CONNECTIONS).orElse(GRAYLOG_POOL_CONNECTIONS_DEFAULT));
+    }
+
+    private static boolean isRoundRobin(final IronValueHelper helper) {
+        return GRAYLOG_POOL_SHARDING_ROUND_ROBIN.equalsIgnoreCase(
+                helper.getString(GRAYLOG_POOL_SHARDING).orElse(GRAYLOG_POOL_SHARDING_DEFAULT).trim());
+    }
+
+    /**
+     * @return the configuration for one lane, with its share of the limits
+     */
+    private Map<String, Object> laneConfig(final IronValueHelper helper, final int index, final int count) {
+        Map<String, Object> lane = new HashMap<>(config);
+        lane.put(GRAYLOG_QUEUE_CAPACITY, Math.max(2,
+                helper.getInteger(GRAYLOG_QUEUE_CAPACITY).orElse(GRAYLOG_QUEUE_CAPACITY_DEFAULT) / count));
+
+        helper.getString(PavlovGelfTcpTransporter.GRAYLOG_SPOOL_DIRECTORY)
+            .filter(directory -> !directory.trim().isEmpty())
+            .ifPresent(directory -> {
+                lane.put(PavlovGelfTcpTransporter.GRAYLOG_SPOOL_DIRECTORY,
+                        new File(directory.trim(), "connection-" + index).getPath());
+                lane.put(PavlovGelfTcpTransporter.GRAYLOG_SPOOL_MAX_MB, Math.max(1,
+                        helper.getInteger(PavlovGelfTcpTransporter.GRAYLOG_SPOOL_MAX_MB)
+                            .orElse(PavlovGelfTcpTransporter.GRAYLOG_SPOOL_MAX_MB_DEFAULT) / count));
+                lane.put(PavlovGelfTcpTransporter.GRAYLOG_SPOOL_REPLAY_PER_SECOND, Math.max(1,
+                        helper.getInteger(PavlovGelfTcpTransporter.GRAYLOG_SPOOL_REPLAY_PER_SECOND)
+                            .orElse(PavlovGelfTcpTransporter.GRAYLOG_SPOOL_REPLAY_PER_SECOND_DEFAULT) / count));
+            });
+        return lane;
+    }
+
+    /**
+     * @return the lane for an ordering key, or null if there are none
+     */
+    private Lane lane(final long orderingKey) {
+        Lane[] current = lanes;
+        if (0 == current.length) {
+            return null;
+        }
+        if (roundRobin || orderingKey < 0) {
+            return current[(nextLane.getAndIncrement() & Integer.MAX_VALUE) % current.length];
+        }
+        return current[(int) ((orderingKey ^ (orderingKey >>> 32)) & Integer.MAX_VALUE) % current.length];
+    }
+
+    @Override
+    public void setLoggedAsHostname(final String hostname) {
+        super.setLoggedAsHostname(hostname);
+        for (Lane lane : lanes) {
+            lane.setLoggedAsHostname(hostname);
+        }
+    }
+
+    @Override
+    public void setSyslogLevels(final boolean syslogLevels) {
+        super.setSyslogLevels(syslogLevels);
+        for (Lane lane : lanes) {
+            lane.setSyslogLevels(syslogLevels);
+        }
+    }
+
+    @Override
+    public void logGelfMessage(final GelfMessage message, final Consumer<IOException> onException) {
+        Lane lane = active.get() ? lane(message.getOrderingKey()) : null;
+        if (null != lane) {
+            lane.logGelfMessage(message, onException);
+        }
+    }
+
+    @Override
+    public void logGelfMessageSource(final GelfMessageSource source) {
+        Lane lane = active.get() ? lane(source.getOrderingKey()) : null;
+        if (null != lane) {
+            lane.logGelfMessageSource(source);
+        }
+    }
+
+    @Override
+    public void logFiltered(final String reason) {
+        Lane lane = active.get() ? lane(-1) : null;
+        if (null != lane) {
+            lane.logFiltered(reason);
+        }
+    }
+
+    @Override
+    public long getDropCount(final DropReason reason) {
+        long count = 0;
+        for (Lane lane : lanes) {
+            count += lane.getDropCount(reason);
+        }
+        return count;
+    }
+
+    @Override
+    public long getRetryDropCount() {
+        long count = 0;
+        for (Lane lane : lanes) {
+            count += lane.getRetryDropCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the metrics of each connection
+     */
+    public List<GelfMetrics> getConnectionMetrics() {
+        List<GelfMetrics> connections = new ArrayList<>();
+        for (Lane lane : lanes) {
+            connections.add(lane.getMetrics());
+        }
+        return connections;
+    }
+
+    /**
+     * Each lane publishes its own
+     */
+    @Override
+    protected String getMetricsName() {
+        return null;
+    }
+
+    @Override
+    protected boolean send(final ByteBuffer frame, final GelfMessage message) {
+        // Never called, messages go straight to the lanes
+        return true;
+    }
+
+    @Override
+    protected void flush(final boolean force) {
+        // Never called, nothing is buffered here
+    }
+}
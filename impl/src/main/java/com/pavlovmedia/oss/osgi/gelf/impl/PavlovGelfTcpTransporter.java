@@ -1,231 +1,203 @@
 package com.pavlovmedia.oss.osgi.gelf.impl;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Consumer;
-import java.util.stream.Collectors;
-
-import org.apache.felix.scr.annotations.Activate;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.ConfigurationPolicy;
-import org.apache.felix.scr.annotations.Deactivate;
-import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
-import org.apache.felix.scr.annotations.PropertyUnbounded;
 import org.apache.felix.scr.annotations.Service;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.pavlovmedia.oss.osgi.gelf.impl.external.IronValueHelper;
-import com.pavlovmedia.oss.osgi.gelf.impl.external.ThreadPoolUtils;
 import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessage;
 import com.pavlovmedia.oss.osgi.gelf.lib.IGelfTransporter;
 
 /**
  * PavlovGelfTcpTransporter
+ *
+ * A batch that fails to write is kept, and written again once reconnected,
+ * before anything newer. The sending thread stops draining the queue while
+ * it waits, so nothing is reordered. A batch that keeps failing is dropped
+ * after {@link #GRAYLOG_RETRY_MAX_ATTEMPTS} writes.
+ *
+ * A connection the server has closed still takes a write or two before
+ * failing, so each write first checks the server has not closed its end.
+ * What was written since the last check that passed is kept, and written
+ * again first after reconnecting. That can send a message twice but does
+ * not lose it, unless the server closes with more than that unread.
+ *
+ * With a spool directory configured, frames that cannot be sent because
+ * Graylog is down, or because the queue is backing up, are written to a
+ * {@link GelfDiskSpool} instead. Once connected the spool is replayed,
+ * oldest first, at a limited rate alongside live messages.
  */
 @Component(metatype = true, policy = ConfigurationPolicy.REQUIRE, immediate = true)
 @Service(value = IGelfTransporter.class)
 @Properties({
+        @Property(name = IGelfTransporter.PROTOCOL, value = "tcp", propertyPrivate = true),
         @Property(
-            name = PavlovGelfTcpTransporter.GRAYLOG_ACTIVE,
-            boolValue = false,
-            label = "Active",
-            description = "Graylog2 Active"),
-        @Property(
-            name = PavlovGelfTcpTransporter.GRAYLOG_HOST,
-            label = "Host",
-            description = "Graylog2 Target Host"),
-        @Property(
-            name = PavlovGelfTcpTransporter.GRAYLOG_PORT,
-            intValue = PavlovGelfTcpTransporter.GRAYLOG_PORT_DEFAULT,
-            label = "Port",
-            description = "Graylog2 Port"),
+            name = PavlovGelfTcpTransporter.GRAYLOG_SPOOL_DIRECTORY,
+            value = "",
+            label = "Spool directory",
+            description = "If non-empty, messages that cannot be sent are kept on disk here until Graylog is back"),
         @Property(
-            name = PavlovGelfTcpTransporter.GRAYLOG_LOG_CONSOLE,
-            boolValue = false,
-            label = "Console Messages",
-            description = "Log messages to the console"),
+            name = PavlovGelfTcpTransporter.GRAYLOG_SPOOL_SEGMENT_BYTES,
+            intValue = PavlovGelfTcpTransporter.GRAYLOG_SPOOL_SEGMENT_BYTES_DEFAULT,
+            label = "Spool segment size",
+            description = "Size in bytes of each spool file"),
         @Property(
-            name = PavlovGelfTcpTransporter.GRAYLOG_ADD_FIELDS,
-            value = "",
-            unbounded = PropertyUnbounded.VECTOR,
-            label = "Additional Fields",
-            description = "Additional fields to add to the record in key:value pairs"),
+            name = PavlovGelfTcpTransporter.GRAYLOG_SPOOL_MAX_MB,
+            intValue = PavlovGelfTcpTransporter.GRAYLOG_SPOOL_MAX_MB_DEFAULT,
+            label = "Spool limit",
+            description = "Most disk space in megabytes the spool may use, the oldest messages are dropped beyond it"),
         @Property(
-            name = PavlovGelfTcpTransporter.GRAYLOG_THREAD_POOL_SIZE,
-            intValue = PavlovGelfTcpTransporter.GRAYLOG_THREAD_POOL_SIZE_DEFAULT,
-            label = "thread Pool size",
-            description = "message processing thread pool size (minimum 10)"),
+            name = PavlovGelfTcpTransporter.GRAYLOG_SPOOL_HIGH_WATER_PERCENT,
+            intValue = PavlovGelfTcpTransporter.GRAYLOG_SPOOL_HIGH_WATER_PERCENT_DEFAULT,
+            label = "Spool high water mark",
+            description = "Percentage of the queue capacity above which messages are spooled even while connected"),
         @Property(
-                name=PavlovGelfTcpTransporter.GRAYLOG_HOSTNAME, 
-                label="Source hostname", 
-                description="If non-empty, this will be used as the hostname in logging messages")
+            name = PavlovGelfTcpTransporter.GRAYLOG_SPOOL_REPLAY_PER_SECOND,
+            intValue = PavlovGelfTcpTransporter.GRAYLOG_SPOOL_REPLAY_PER_SECOND_DEFAULT,
+            label = "Spool replay rate",
+            description = "Most spooled messages per second to replay once connected")
         })
-public class PavlovGelfTcpTransporter implements IGelfTransporter {
-    static final String GRAYLOG_ACTIVE = "graylog.active";
-    static final String GRAYLOG_HOST = "graylog.host";
-    static final String GRAYLOG_LOG_CONSOLE = "graylog.console";
-    static final String GRAYLOG_ADD_FIELDS = "graylog.additional.fields";
-
-    static final String GRAYLOG_PORT = "graylog.port";
-    static final int GRAYLOG_PORT_DEFAULT = 12201;
+public class PavlovGelfTcpTransporter extends AbstractGelfTransporter {
+    static final String GRAYLOG_SPOOL_DIRECTORY = "graylog.spool.directory";
 
-    static final String GRAYLOG_THREAD_POOL_SIZE = "graylog.poolSize";
-    static final int GRAYLOG_THREAD_POOL_SIZE_DEFAULT = 10;
-    
-    static final String GRAYLOG_HOSTNAME = "source.hostname";
+    static final String GRAYLOG_SPOOL_SEGMENT_BYTES = "graylog.spool.segmentBytes";
+    static final int GRAYLOG_SPOOL_SEGMENT_BYTES_DEFAULT = 16 * 1024 * 1024;
 
-    static final int GRAYLOG_SLEEP_DEFAULT_IN_MILLIS = 1000;
+    static final String GRAYLOG_SPOOL_MAX_MB = "graylog.spool.maxMegabytes";
+    static final int GRAYLOG_SPOOL_MAX_MB_DEFAULT = 1024;
 
-    private static String _HOSTNAME;
-    
-    private final ObjectMapper mapper = new ObjectMapper();
+    static final String GRAYLOG_SPOOL_HIGH_WATER_PERCENT = "graylog.spool.highWaterPercent";
+    static final int GRAYLOG_SPOOL_HIGH_WATER_PERCENT_DEFAULT = 80;
 
-    private AtomicBoolean active = new AtomicBoolean(false);
-    private AtomicBoolean consoleMessages = new AtomicBoolean(false);
-    private String hostname;
-    private int port;
-    private Map<String, String> additionalFields = Collections.emptyMap();
+    static final String GRAYLOG_SPOOL_REPLAY_PER_SECOND = "graylog.spool.replayPerSecond";
+    static final int GRAYLOG_SPOOL_REPLAY_PER_SECOND_DEFAULT = 5000;
 
     private final Object socketLock = new Object();
-    private Optional<Socket> transport = Optional.empty();
-    private Optional<OutputStream> outputStream = Optional.empty();
+    private Optional<SocketChannel> transport = Optional.empty();
 
-    private ExecutorService executorService;
-
-    private Future<?> processGelfMessageFuture;
-    private LinkedBlockingQueue<GelfMessage> gelfMessageQueue = new LinkedBlockingQueue<>();
-    private AtomicBoolean gelfMessageProcessingActive = new AtomicBoolean(false);
+    /** How long the connection goes without a write before it is checked ahead of the next one */
+    private static final long PROBE_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(GRAYLOG_QUEUE_POLL_MILLIS);
 
+    private GelfFrameBatcher<GelfMessage> batcher;
+    /** The batch failed to write and is waiting for a connection to try again */
+    private boolean retryPending;
     /**
-     * Can set a hostname for this sink
-     * @param hostname
+     * The last batch written, kept until the connection is seen to be open
+     * after it. A server that closed the connection lets that write succeed
+     * and only fails the one after it. The two batches swap on each write.
      */
-    public static void setHostname(final String hostname) {
-        if (Objects.nonNull(hostname) && !hostname.trim().isEmpty()) {
-            _HOSTNAME = hostname.trim();
-        } else {
-            _HOSTNAME = null;
-        }
-    }
-    
-    /**
-     * This method will determine the hostname and then cache it
-     * for future use.
-     * @return the hostname of the system
-     */
-    public static String getHostname() {
-        if (null == _HOSTNAME) {
-            try {
-                _HOSTNAME = InetAddress.getLocalHost().getCanonicalHostName();
-            } catch (UnknownHostException e) {
-                System.err.println("Failed to find hostname "+e.getMessage());
-                _HOSTNAME = "Unknown";
-            }
-        }
-        return _HOSTNAME;
-    }
+    private GelfFrameBatcher<GelfMessage> unconfirmed;
+    /** The connection failed before the unconfirmed batch was seen through */
+    private boolean resendUnconfirmed;
+    private final ByteBuffer probe = ByteBuffer.allocate(1);
+    private long lastWriteNanos;
+    private long nextConnectNanos;
+
+    // Spooling, all owned by the sending thread
+    private Optional<GelfDiskSpool> spool = Optional.empty();
+    private double spoolHighWater;
+    private int replayPerSecond;
+    private double replayTokens;
+    private long lastReplayNanos;
 
     @Override
-    public void setLoggedAsHostname(String hostname) {
-        setHostname(hostname);
+    protected void startTransport(final IronValueHelper helper) {
+        int batchBytes = helper.getInteger(GRAYLOG_BATCH_BYTES).orElse(GRAYLOG_BATCH_BYTES_DEFAULT);
+        int lingerMillis = helper.getInteger(GRAYLOG_BATCH_LINGER_MILLIS).orElse(GRAYLOG_BATCH_LINGER_MILLIS_DEFAULT);
+        batcher = new GelfFrameBatcher<>(batchBytes, lingerMillis, GelfMessage::recycle);
+        unconfirmed = new GelfFrameBatcher<>(batchBytes, lingerMillis, GelfMessage::recycle);
+        retryPending = false;
+        resendUnconfirmed = false;
+        // The sending thread connects, activation does not wait on DNS or the connection
+        nextConnectNanos = System.nanoTime();
+        initializeSpool(helper);
     }
-    
-    @Activate
-    protected void activate(final Map<String, Object> config) {
-        IronValueHelper helper = new IronValueHelper(config);
 
-        // Initialize service parameters
-        initializeService(helper);
-
-        // Initialize socket parameters
-        if (active.get()) {
-            trace("Enabling GELF logging to %s:%d", hostname, port);
-            initializeSocket();
-        }
-
-        // Initialize threading parameters
-        transport.ifPresent(t -> initializeThreading(helper));
+    @Override
+    protected void stopTransport() {
+        terminateSocket();
+        terminateSpool();
     }
 
-    @Modified
-    protected void modified(final Map<String, Object> config) {
-        IronValueHelper helper = new IronValueHelper(config);
-
-        // Terminate service
-        terminateService();
-
-        // Terminate threading
-        terminateThreading();
-
-        // Initialize service parameters
-        initializeService(helper);
-
-        // Initialize threading parameters
-        transport.ifPresent(t -> initializeThreading(helper));
+    /**
+     * The batch that was never written. Spooled frames stay in the spool
+     * and are replayed by whichever transport opens it next.
+     */
+    @Override
+    protected List<GelfMessage> takeUnsent() {
+        List<GelfMessage> unsent = new ArrayList<>();
+        if (null != batcher) {
+            batcher.takePending().stream().filter(Objects::nonNull).forEach(unsent::add);
+            batcher.reset();
+        }
+        retryPending = false;
+        // The old connection was closed cleanly, what it took was delivered
+        if (null != unconfirmed) {
+            unconfirmed.reset();
+        }
+        resendUnconfirmed = false;
+        return unsent;
     }
 
-    @Deactivate
-    protected void deactivate() {
-        // Terminate service
-        terminateService();
-
-        // Terminate threading
-        terminateThreading();
+    /**
+     * Opens the spool if one is configured, picking up anything left from
+     * before a restart
+     */
+    private void initializeSpool(final IronValueHelper helper) {
+        Optional<String> directory = helper.getString(GRAYLOG_SPOOL_DIRECTORY).map(String::trim)
+                .filter(d -> !d.isEmpty());
+        if (!directory.isPresent()) {
+            return;
+        }
 
-        // Terminate socket
-        terminateSocket();
+        spoolHighWater = helper.getInteger(GRAYLOG_SPOOL_HIGH_WATER_PERCENT)
+                .orElse(GRAYLOG_SPOOL_HIGH_WATER_PERCENT_DEFAULT) / 100.0;
+        replayPerSecond = Math.max(1, helper.getInteger(GRAYLOG_SPOOL_REPLAY_PER_SECOND)
+                .orElse(GRAYLOG_SPOOL_REPLAY_PER_SECOND_DEFAULT));
+        replayTokens = 0;
+        lastReplayNanos = System.nanoTime();
+        try {
+            spool = Optional.of(new GelfDiskSpool(Paths.get(directory.get()),
+                    helper.getInteger(GRAYLOG_SPOOL_SEGMENT_BYTES).orElse(GRAYLOG_SPOOL_SEGMENT_BYTES_DEFAULT),
+                    helper.getInteger(GRAYLOG_SPOOL_MAX_MB).orElse(GRAYLOG_SPOOL_MAX_MB_DEFAULT) * 1024L * 1024L,
+                    this::spoolEvicted));
+            trace("GELF spooling to %s", directory.get());
+        } catch (IOException e) {
+            trace("GELF spool could not be opened in %s, continuing without it => %s", directory.get(), e.getMessage());
+        }
     }
 
-
     /**
-     * Initialize any properties that are used by the service itself
-     *
-     * @param helper  contains all Felix properties defined for this service
+     * The spool was full and threw away its oldest segment
      */
-    private void initializeService(final IronValueHelper helper) {
-        consoleMessages.set(helper.getBoolean(GRAYLOG_LOG_CONSOLE).orElse(false));
-
-        // Check for the active flag that denotes GELF should be enabled
-        active.set(helper.getBoolean(GRAYLOG_ACTIVE).orElse(false));
-
-        if (active.get()) {
-            // See if we have additional fields to pass along
-            List<String> graylogFields = helper.getStringList(GRAYLOG_ADD_FIELDS);
-            additionalFields = graylogFields.stream().map(e -> e.split(":")).filter(a -> a.length == 2)
-                    .collect(Collectors.toMap(a -> a[0].trim(), a -> a[1].trim()));
-
-            // Check to see if we have a host, if not the rest doesn't matter
-            Optional<String> oHostName = helper.getString(GRAYLOG_HOST);
-
-            if (!oHostName.isPresent()) {
-                trace("Cannot start gelf bundle, a host is not configured.");
-                active.set(false);
-            } else {
-                hostname = oHostName.get();
-                port = helper.getInteger(GRAYLOG_PORT).orElse(GRAYLOG_PORT_DEFAULT);
-            }
-            
-            helper.getString(GRAYLOG_HOSTNAME).ifPresent(PavlovGelfTcpTransporter::setHostname);
-        }
+    private void spoolEvicted(final long count) {
+        metrics.dropped(GelfMetrics.DROP_SPOOL, count);
+        trace("GELF spool is full, dropped its %d oldest Gelf Messages", count);
     }
 
+    private void terminateSpool() {
+        spool.ifPresent(s -> {
+            try {
+                s.close();
+            } catch (IOException e) {
+                /* Do nothing */ }
+        });
+        spool = Optional.empty();
+    }
 
     /**
      * Initialize socket operations if needed
@@ -235,50 +207,23 @@ public class PavlovGelfTcpTransporter implements IGelfTransporter {
             if (!transport.isPresent()) {
                 try {
                     InetAddress address = InetAddress.getByName(hostname);
-                    Socket trans = new Socket(address, port);
-                    trans.setSoTimeout(500);
-                    trans.shutdownInput();
+                    SocketChannel trans = SocketChannel.open(new InetSocketAddress(address, port));
                     transport = Optional.of(trans);
-                    outputStream = Optional.of(trans.getOutputStream());
+                    // Checked before its first write, the server may have closed it already
+                    lastWriteNanos = System.nanoTime() - PROBE_IDLE_NANOS;
+                    metrics.connected();
 
                     trace("GELF logging connection succeeded to %s:%d", hostname, port);
                 } catch (IOException e) {
                     trace("GELF logging failed to connect to %s:%d => %s", hostname, port, e.getMessage());
 
                     transport = Optional.empty();
-                    outputStream = Optional.empty();
+                    connectionFailed();
                 }
             }
         }
     }
 
-    /**
-     * Initialize any properties that are used by the threading mechanism
-     *
-     * @param helper  contains all Felix properties defined for this service
-     */
-    private void initializeThreading(final IronValueHelper helper) {
-        if (null == executorService) {
-            int threadPoolSize = helper.getInteger(GRAYLOG_THREAD_POOL_SIZE).orElse(GRAYLOG_THREAD_POOL_SIZE_DEFAULT);
-            threadPoolSize = Math.max(threadPoolSize, GRAYLOG_THREAD_POOL_SIZE_DEFAULT);
-
-            executorService = Executors.newFixedThreadPool(
-                threadPoolSize,
-                ThreadPoolUtils.getThreadFactory("PavlovGelfTcpTransporter", new AtomicInteger(0)));
-
-            gelfMessageProcessingActive.set(true);
-            processGelfMessageFuture = executorService.submit(this::processGelfMessageQueue);
-        }
-    }
-
-
-    /**
-     * Set any properties that used by the service itself to allow for terminsation
-     */
-    private void terminateService() {
-        active.set(false);
-    }
-
     /**
      * Terminate socket operations
      */
@@ -293,137 +238,295 @@ public class PavlovGelfTcpTransporter implements IGelfTransporter {
                     /* Do nothing */ }
 
                 transport = Optional.empty();
-                outputStream = Optional.empty();
+                metrics.disconnected();
             });
         }
     }
 
     /**
-     * Terminate threading
+     * Called when connecting or writing fails
      */
-    private void terminateThreading() {
-        gelfMessageProcessingActive.set(false);
+    protected void connectionFailed() {
+        // Nothing by default
+    }
 
-        if (Objects.nonNull(processGelfMessageFuture)) {
-            processGelfMessageFuture.cancel(true);
-        }
+    /**
+     * Called after each batch is written
+     */
+    protected void writeSucceeded() {
+        // Nothing by default
+    }
 
-        if (null != executorService && !executorService.isShutdown()) {
-            executorService.shutdown();
-            executorService = null;
+    @Override
+    protected long lingerRemainingNanos() {
+        if (retryPending) {
+            return Math.max(0, nextConnectNanos - System.nanoTime());
         }
+        return batcher.isEmpty() ? super.lingerRemainingNanos() : batcher.lingerRemainingNanos();
     }
 
+    /**
+     * Not ready while a failed batch is waiting to be written again
+     */
+    @Override
+    protected boolean isReady() {
+        if (retryPending) {
+            flushBatch();
+        }
+        return !retryPending;
+    }
 
+    /**
+     * Idle once the batch is written and the spool replayed
+     */
     @Override
-    public void logGelfMessage(final GelfMessage message) {
-        logGelfMessage(message, e -> { });
+    protected boolean isIdle() {
+        return batcher.isEmpty() && !retryPending && !resendUnconfirmed
+                && (!spool.isPresent() || spool.get().isEmpty());
     }
 
+    /**
+     * Add a message to the current batch, writing the batch
+     * out first if the message will not fit.
+     */
     @Override
-    public void logGelfMessage(final GelfMessage message, final Consumer<IOException> onException) {
-        if (!active.get()) {
-            return; // We aren't running
+    protected boolean send(final ByteBuffer frame, final GelfMessage message) {
+        if (spool.isPresent() && shouldSpool()) {
+            spoolFrame(frame);
+            message.recycle();
+            return true;
         }
 
-        // Set the hostname as a last resort if we didn't get one passed in
-        if (Objects.isNull(message.host) || message.host.trim().isEmpty()) {
-            message.host = getHostname();
+        if (!batcher.canAppend(frame.remaining())) {
+            flushBatch();
+            if (!batcher.isEmpty()) {
+                return false;
+            }
         }
+        batcher.append(frame, message);
 
-        // Add the event to the queue
-        if (!gelfMessageQueue.offer(message)) {
-            trace("No space available to queue Gelf Message '%s' at timestamp '%d'.", message.short_message, message.timestamp);
+        if (batcher.shouldFlush()) {
+            flushBatch();
         }
+        return true;
     }
 
+    @Override
+    protected void flush(final boolean force) {
+        if (force || batcher.shouldFlush()) {
+            flushBatch();
+        }
+        replaySpool();
+    }
 
     /**
-     * This is the background thread to process the Gelf Message queue
+     * @return true if a message should go to the spool rather than the socket
      */
-    private void processGelfMessageQueue() {
-        if (!active.get()) {
-            return; // We aren't running
+    private boolean shouldSpool() {
+        if (getQueueFill() >= spoolHighWater) {
+            return true;
         }
+        reconnectIfDue();
+        return !transport.isPresent();
+    }
 
+    /**
+     * After a failure, reconnect attempts are made at most once a second
+     */
+    private void reconnectIfDue() {
+        if (!transport.isPresent() && System.nanoTime() - nextConnectNanos >= 0) {
+            nextConnectNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(GRAYLOG_SLEEP_DEFAULT_IN_MILLIS);
+            initializeSocket();
+        }
+    }
 
-        List<GelfMessage> gelfMessages = new ArrayList<>();
-
-        while (gelfMessageProcessingActive.get()) {
+    private void spoolFrame(final ByteBuffer frame) {
+        spool.ifPresent(s -> {
             try {
-                gelfMessages.clear();
-                gelfMessages.add(gelfMessageQueue.take()); // This waits until an element is available
-
-                gelfMessageQueue.drainTo(gelfMessages);
-
-                gelfMessages.forEach(this::processGelfMessage);
-            } catch (InterruptedException e) {
-                // NOOP
+                if (s.append(frame)) {
+                    metrics.spooled(1);
+                } else {
+                    metrics.dropped(GelfMetrics.DROP_SPOOL, 1);
+                    trace("Gelf Message of %d bytes is too big to spool, dropping it", frame.remaining());
+                }
+            } catch (IOException e) {
+                metrics.dropped(GelfMetrics.DROP_SPOOL, 1);
+                trace("Failed to spool Gelf Message, dropping it => %s", e.getMessage());
             }
-        }
+        });
     }
 
-
     /**
-     * Write a message to Gelf
-     *
-     * @param message message to send via GELF
+     * Sends spooled frames, oldest first, within the replay rate. Nothing
+     * is replayed while the queue is above the high water mark, and a frame
+     * only leaves the spool once the write containing it succeeds.
      */
-    private void processGelfMessage(final GelfMessage message) {
-        if (!active.get()) {
-            return; // We aren't running
+    private void replaySpool() {
+        if (!spool.isPresent() || spool.get().isEmpty()) {
+            lastReplayNanos = System.nanoTime();
+            return;
+        }
+
+        long now = System.nanoTime();
+        replayTokens = Math.min(replayPerSecond,
+                replayTokens + (now - lastReplayNanos) * replayPerSecond / 1e9);
+        lastReplayNanos = now;
+        if (replayTokens < 1 || getQueueFill() >= spoolHighWater) {
+            return;
         }
 
+        reconnectIfDue();
 
-        if (!additionalFields.isEmpty()) {
-            message.additionalFields.putAll(additionalFields);
+        // Live messages first, the batch is reused for the replay
+        flushBatch();
+        if (!batcher.isEmpty()) {
+            return;
         }
 
+        GelfDiskSpool s = spool.get();
         synchronized (socketLock) {
-            initializeSocket();
+            transport.ifPresent(trans -> {
+                try {
+                    for (ByteBuffer frame = s.peek(); null != frame && replayTokens >= 1; frame = s.peek()) {
+                        if (!batcher.canAppend(frame.remaining()) && !batcher.isEmpty()) {
+                            writeBatch(trans);
+                            s.commit();
+                        }
+                        batcher.append(frame, null);
+                        s.advance();
+                        replayTokens--;
+                    }
+                    writeBatch(trans);
+                    s.commit();
+                } catch (IOException e) {
+                    terminateSocket();
+                    connectionFailed();
+                    trace("Failed to replay spooled messages, keeping them due to -- %s", e.getMessage());
+                    batcher.reset();
+                    s.rewind();
+                    // Replayed frames already committed may not have arrived
+                    resendUnconfirmed = !unconfirmed.isEmpty();
+                    retryPending = resendUnconfirmed;
+                }
+            });
+        }
+    }
+
+    /**
+     * Write the current batch to Gelf. If that fails the batch goes to the
+     * spool, or is kept to be written again after reconnecting.
+     */
+    private void flushBatch() {
+        if (batcher.isEmpty() && !resendUnconfirmed) {
+            return;
+        }
+
+        synchronized (socketLock) {
+            reconnectIfDue();
 
             if (!transport.isPresent()) {
-                // Re-queue the message
+                if (spool.isPresent()) {
+                    spoolUnsent();
+                } else {
+                    retryPending = true;
+                }
+                return;
+            }
+
+            transport.ifPresent(trans -> {
                 try {
-                    Thread.sleep(GRAYLOG_SLEEP_DEFAULT_IN_MILLIS);
-                } catch (InterruptedException e) {
-                    // NOOP
+                    if (retryPending) {
+                        batcher.seal();
+                        batcher.rewind();
+                    }
+                    writeBatch(trans);
+                    retryPending = false;
+                } catch (IOException e) {
+                    // Be sure to drop the connection so we get reconnected
+                    terminateSocket();
+                    connectionFailed();
+                    nextConnectNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(GRAYLOG_SLEEP_DEFAULT_IN_MILLIS);
+                    resendUnconfirmed = !unconfirmed.isEmpty();
+
+                    if (spool.isPresent()) {
+                        trace("Failed to write batch, spooling messages due to -- %s", e.getMessage());
+                        spoolUnsent();
+                    } else if (batcher.recordFailedAttempt() >= getMaxAttempts()) {
+                        dropAfterRetries(batcher.getPending());
+                        batcher.reset();
+                        unconfirmed.reset();
+                        resendUnconfirmed = false;
+                        retryPending = false;
+                    } else {
+                        trace("Failed to write batch, retrying after reconnecting due to -- %s", e.getMessage());
+                        retryPending = true;
+                    }
                 }
+            });
+        }
+    }
 
-                logGelfMessage(message);
-            } else {
-                transport.ifPresent(trans -> {
-                    outputStream.ifPresent(os -> {
-                        try {
-                            byte[] messageBytes = mapper.writeValueAsBytes(message);
-                            os.write(messageBytes);
-                            // There is a bug in GELF that requires us to end with a null byte
-                            os.write(new byte[] { '\0' });
-                        } catch (IOException e) {
-                            // Be sure to drop the connection so we get reconnected
-                            terminateSocket();
-
-                            trace("Failed to serialize message, re-queueing message due to -- %s", e.getMessage());
-
-                            // Re-queue the message
-                            logGelfMessage(message);
-                        }
-                    });
-                });
-            }
+    /**
+     * Sends the frames that may not have arrived and the batch to the spool
+     */
+    private void spoolUnsent() {
+        if (resendUnconfirmed) {
+            unconfirmed.forEachFrame(this::spoolFrame);
         }
+        unconfirmed.reset();
+        resendUnconfirmed = false;
+        batcher.forEachFrame(this::spoolFrame);
+        batcher.reset();
+        retryPending = false;
     }
 
+    /**
+     * Writes the batch, counting it in the metrics, and keeps it as the
+     * unconfirmed batch. After a failure the unconfirmed batch is written
+     * again first. A connection that has been idle is checked before it is
+     * written to, otherwise a closed one is only found by a failed write.
+     */
+    private void writeBatch(final SocketChannel trans) throws IOException {
+        if (resendUnconfirmed) {
+            unconfirmed.rewind();
+            unconfirmed.write(trans);
+            resendUnconfirmed = false;
+        } else if (System.nanoTime() - lastWriteNanos >= PROBE_IDLE_NANOS) {
+            if (isClosedByServer(trans)) {
+                throw new IOException("Connection closed by the server");
+            }
+            unconfirmed.reset();
+        }
+        if (batcher.isEmpty()) {
+            return;
+        }
+
+        int messages = batcher.getPending().size();
+        long bytes = batcher.getByteCount();
+        long start = System.nanoTime();
+        batcher.write(trans);
+        lastWriteNanos = System.nanoTime();
+        metrics.recordWrite(messages, bytes, lastWriteNanos - start);
+
+        // The new batch is what may not have arrived now, the one before it did
+        GelfFrameBatcher<GelfMessage> written = batcher;
+        unconfirmed.reset();
+        batcher = unconfirmed;
+        unconfirmed = written;
+        writeSucceeded();
+    }
 
     /**
-     * Writes a potentially formatted message to the console, if enabled
-     *
-     * @param format String format, like String.format
-     * @param args Argument list, like String.format
+     * Graylog never writes back, so the connection having anything to read,
+     * an end of stream or a reset, means the server has closed it
      */
-    private void trace(final String format, final Object...args) {
-        if (consoleMessages.get()) {
-            System.out.println(String.format(format, args));
+    private boolean isClosedByServer(final SocketChannel trans) throws IOException {
+        trans.configureBlocking(false);
+        try {
+            probe.clear();
+            return 0 != trans.read(probe);
+        } finally {
+            trans.configureBlocking(true);
         }
     }
-}
\ No newline at end of file
+}
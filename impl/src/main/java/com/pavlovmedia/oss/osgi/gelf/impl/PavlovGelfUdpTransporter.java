@@ -0,0 +1,372 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.PropertyOption;
+import org.apache.felix.scr.annotations.Service;
+
+import com.pavlovmedia.oss.osgi.gelf.impl.external.IronValueHelper;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessage;
+import com.pavlovmedia.oss.osgi.gelf.lib.IGelfTransporter;
+
+/**
+ * A UDP GELF transporter, for high volume logging that can live with
+ * the occasional lost message.
+ *
+ * Messages larger than one datagram are split into GELF chunks (magic
+ * bytes 0x1e 0x0f, an 8 byte message id, sequence number and count) up
+ * to the 128 chunk limit, and the payload can be GZIP or ZLIB compressed.
+ * The deflater and all datagram buffers are reused, so sending a message
+ * does not allocate.
+ */
+@Component(metatype = true, policy = ConfigurationPolicy.REQUIRE, immediate = true)
+@Service(value = IGelfTransporter.class)
+@Properties({
+        @Property(name = IGelfTransporter.PROTOCOL, value = "udp", propertyPrivate = true),
+        @Property(
+            name = PavlovGelfUdpTransporter.GRAYLOG_UDP_COMPRESSION,
+            value = PavlovGelfUdpTransporter.GRAYLOG_UDP_COMPRESSION_DEFAULT,
+            label = "Compression",
+            description = "Compression applied to each datagram payload",
+            options = {
+                @PropertyOption(name = "none", value = "None"),
+                @PropertyOption(name = "gzip", value = "GZIP"),
+                @PropertyOption(name = "zlib", value = "ZLIB")
+            }),
+        @Property(
+            name = PavlovGelfUdpTransporter.GRAYLOG_UDP_CHUNK_SIZE,
+            intValue = PavlovGelfUdpTransporter.GRAYLOG_UDP_CHUNK_SIZE_DEFAULT,
+            label = "Chunk size",
+            description = "Largest datagram to send, bigger messages are chunked (1420 for a typical WAN MTU)")
+        })
+public class PavlovGelfUdpTransporter extends AbstractGelfTransporter {
+    static final String GRAYLOG_UDP_COMPRESSION = "graylog.udp.compression";
+    static final String GRAYLOG_UDP_COMPRESSION_DEFAULT = "none";
+
+    static final String GRAYLOG_UDP_CHUNK_SIZE = "graylog.udp.chunkSize";
+    static final int GRAYLOG_UDP_CHUNK_SIZE_DEFAULT = 8192;
+
+    static final int GELF_CHUNK_HEADER_SIZE = 12;
+    static final int GELF_MAX_CHUNKS = 128;
+    static final byte GELF_CHUNK_MAGIC_1 = 0x1e;
+    static final byte GELF_CHUNK_MAGIC_2 = 0x0f;
+
+    private static final int GZIP_HEADER_SIZE = 10;
+    private static final int GZIP_TRAILER_SIZE = 8;
+    private static final byte[] GZIP_HEADER = {
+        0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    /**
+     * The payload compression, GELF servers detect it from the magic bytes
+     */
+    enum Compression {
+        NONE, GZIP, ZLIB;
+
+        static Compression fromString(final String value) {
+            for (Compression compression : values()) {
+                if (compression.name().equalsIgnoreCase(value.trim())) {
+                    return compression;
+                }
+            }
+            return NONE;
+        }
+    }
+
+    /**
+     * Everything the sender reuses between messages. Only the sending
+     * thread uses this, so there is one per transporter.
+     */
+    private static final class Buffers {
+        final Deflater gzipDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        final Deflater zlibDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, false);
+        final CRC32 crc = new CRC32();
+        byte[] input = new byte[8192];
+        byte[] payload = new byte[8192];
+        ByteBuffer datagram;
+
+        /**
+         * Frees the deflaters' native memory rather than waiting on the
+         * garbage collector
+         */
+        void end() {
+            gzipDeflater.end();
+            zlibDeflater.end();
+        }
+    }
+
+    /** Made when the transport starts and ended when it stops */
+    private Buffers buffers;
+
+    private Compression compression = Compression.NONE;
+    private int chunkSize = GRAYLOG_UDP_CHUNK_SIZE_DEFAULT;
+    private Optional<DatagramChannel> transport = Optional.empty();
+    private long nextConnectNanos;
+
+    @Override
+    protected void startTransport(final IronValueHelper helper) {
+        compression = Compression.fromString(
+                helper.getString(GRAYLOG_UDP_COMPRESSION).orElse(GRAYLOG_UDP_COMPRESSION_DEFAULT));
+        chunkSize = Math.max(GELF_CHUNK_HEADER_SIZE + 1,
+                helper.getInteger(GRAYLOG_UDP_CHUNK_SIZE).orElse(GRAYLOG_UDP_CHUNK_SIZE_DEFAULT));
+        endBuffers();
+        buffers = new Buffers();
+        // The sending thread resolves the host, activation does not wait on DNS
+        nextConnectNanos = System.nanoTime();
+    }
+
+    /**
+     * Opens the channel if it is not open and an attempt is due. After a
+     * failure, attempts are made at most once a second.
+     */
+    private void connectIfDue() {
+        if (transport.isPresent() || System.nanoTime() - nextConnectNanos < 0) {
+            return;
+        }
+        nextConnectNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(GRAYLOG_SLEEP_DEFAULT_IN_MILLIS);
+
+        DatagramChannel channel = null;
+        try {
+            InetSocketAddress address = new InetSocketAddress(hostname, port);
+            if (address.isUnresolved()) {
+                throw new UnknownHostException(hostname);
+            }
+            // Connecting a datagram channel does no I/O, it just fixes the destination
+            channel = DatagramChannel.open();
+            channel.connect(address);
+            transport = Optional.of(channel);
+            metrics.connected();
+            trace("GELF UDP logging to %s:%d", hostname, port);
+        } catch (IOException e) {
+            trace("GELF logging failed to open UDP channel to %s:%d => %s", hostname, port, e.getMessage());
+            if (null != channel) {
+                try {
+                    channel.close();
+                } catch (IOException ce) {
+                    /* Do nothing */ }
+            }
+        }
+    }
+
+    @Override
+    protected void stopTransport() {
+        transport.ifPresent(channel -> {
+            trace("Shutting down GELF logging");
+            try {
+                channel.close();
+            } catch (IOException e) {
+                /* Do nothing */ }
+        });
+        transport = Optional.empty();
+        metrics.disconnected();
+        endBuffers();
+    }
+
+    private void endBuffers() {
+        if (null != buffers) {
+            buffers.end();
+            buffers = null;
+        }
+    }
+
+    /**
+     * Not ready until the channel is open, messages stay queued meanwhile
+     */
+    @Override
+    protected boolean isReady() {
+        connectIfDue();
+        return transport.isPresent();
+    }
+
+    @Override
+    protected long lingerRemainingNanos() {
+        if (!transport.isPresent()) {
+            return Math.max(0, nextConnectNanos - System.nanoTime());
+        }
+        return super.lingerRemainingNanos();
+    }
+
+    @Override
+    protected void flush(final boolean force) {
+        // Every message goes out as soon as it is sent
+    }
+
+    /**
+     * Each message goes out as datagrams before this returns, so it is
+     * recycled straight away
+     */
+    @Override
+    protected boolean send(final ByteBuffer frame, final GelfMessage message) {
+        try {
+            write(frame, message);
+        } finally {
+            message.recycle();
+        }
+        return true;
+    }
+
+    private void write(final ByteBuffer frame, final GelfMessage message) {
+        if (!transport.isPresent()) {
+            return;
+        }
+
+        Buffers buf = buffers;
+        int length = compress(buf, frame);
+        int chunkPayload = chunkSize - GELF_CHUNK_HEADER_SIZE;
+        int chunkCount = length <= chunkSize ? 1 : (length + chunkPayload - 1) / chunkPayload;
+        if (chunkCount > GELF_MAX_CHUNKS) {
+            metrics.dropped(GelfMetrics.DROP_TOO_LARGE, 1);
+            trace("Dropping Gelf Message at timestamp '%d', %d bytes needs more than %d chunks",
+                    message.timestamp, length, GELF_MAX_CHUNKS);
+            return;
+        }
+
+        if (null == buf.datagram || buf.datagram.capacity() < chunkSize) {
+            buf.datagram = ByteBuffer.allocateDirect(chunkSize);
+        }
+
+        long start = System.nanoTime();
+        try {
+            DatagramChannel channel = transport.get();
+            if (1 == chunkCount) {
+                writeDatagram(channel, buf.datagram, buf.payload, 0, length);
+                metrics.recordWrite(1, length, System.nanoTime() - start);
+                return;
+            }
+
+            long messageId = ThreadLocalRandom.current().nextLong();
+            for (int sequence = 0; sequence < chunkCount; sequence++) {
+                int offset = sequence * chunkPayload;
+                ByteBuffer datagram = buf.datagram;
+                datagram.clear();
+                datagram.put(GELF_CHUNK_MAGIC_1).put(GELF_CHUNK_MAGIC_2)
+                    .putLong(messageId)
+                    .put((byte) sequence)
+                    .put((byte) chunkCount)
+                    .put(buf.payload, offset, Math.min(chunkPayload, length - offset));
+                datagram.flip();
+                channel.write(datagram);
+            }
+            metrics.recordWrite(1, length + chunkCount * GELF_CHUNK_HEADER_SIZE, System.nanoTime() - start);
+        } catch (IOException e) {
+            // UDP has no connection to lose, the message is simply gone
+            metrics.dropped(GelfMetrics.DROP_WRITE, 1);
+            trace("Failed to send Gelf Message at timestamp '%d' => %s", message.timestamp, e.getMessage());
+        }
+    }
+
+    private static void writeDatagram(final DatagramChannel channel, final ByteBuffer datagram,
+            final byte[] payload, final int offset, final int length) throws IOException {
+        datagram.clear();
+        datagram.put(payload, offset, length);
+        datagram.flip();
+        channel.write(datagram);
+    }
+
+    /**
+     * Compresses the frame into the reusable payload array
+     * @return the length of the payload
+     */
+    private int compress(final Buffers buf, final ByteBuffer frame) {
+        int length = frame.remaining();
+        byte[] input;
+        int inputOffset;
+        if (frame.hasArray()) {
+            input = frame.array();
+            inputOffset = frame.arrayOffset() + frame.position();
+        } else {
+            buf.input = ensureCapacity(buf.input, length, 0);
+            frame.duplicate().get(buf.input, 0, length);
+            input = buf.input;
+            inputOffset = 0;
+        }
+
+        switch (compression) {
+            case GZIP:
+                return gzip(buf, input, inputOffset, length);
+            case ZLIB:
+                return deflate(buf, buf.zlibDeflater, input, inputOffset, length, 0);
+            case NONE:
+            default:
+                buf.payload = ensureCapacity(buf.payload, length, 0);
+                System.arraycopy(input, inputOffset, buf.payload, 0, length);
+                return length;
+        }
+    }
+
+    private static int gzip(final Buffers buf, final byte[] input, final int offset, final int length) {
+        buf.payload = ensureCapacity(buf.payload, GZIP_HEADER_SIZE, 0);
+        System.arraycopy(GZIP_HEADER, 0, buf.payload, 0, GZIP_HEADER_SIZE);
+        int end = deflate(buf, buf.gzipDeflater, input, offset, length, GZIP_HEADER_SIZE);
+
+        buf.crc.reset();
+        buf.crc.update(input, offset, length);
+        buf.payload = ensureCapacity(buf.payload, end + GZIP_TRAILER_SIZE, end);
+        end = putIntLE(buf.payload, end, (int) buf.crc.getValue());
+        return putIntLE(buf.payload, end, length);
+    }
+
+    private static int deflate(final Buffers buf, final Deflater deflater,
+            final byte[] input, final int offset, final int length, final int start) {
+        deflater.reset();
+        deflater.setInput(input, offset, length);
+        deflater.finish();
+
+        int end = start;
+        while (!deflater.finished()) {
+            if (end == buf.payload.length) {
+                buf.payload = ensureCapacity(buf.payload, end * 2, end);
+            }
+            end += deflater.deflate(buf.payload, end, buf.payload.length - end);
+        }
+        return end;
+    }
+
+    private static int putIntLE(final byte[] target, final int offset, final int value) {
+        target[offset] = (byte) value;
+        target[offset + 1] = (byte) (value >>> 8);
+        target[offset + 2] = (byte) (value >>> 16);
+        target[offset + 3] = (byte) (value >>> 24);
+        return offset + 4;
+    }
+
+    /**
+     * Grows an array, keeping the first keep bytes
+     */
+    private static byte[] ensureCapacity(final byte[] array, final int needed, final int keep) {
+        if (array.length >= needed) {
+            return array;
+        }
+        byte[] grown = new byte[Math.max(needed, array.length * 2)];
+        System.arraycopy(array, 0, grown, 0, keep);
+        return grown;
+    }
+}
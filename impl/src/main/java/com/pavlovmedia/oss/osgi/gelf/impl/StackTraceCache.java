@@ -0,0 +1,235 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Renders exceptions the way {@link Throwable#printStackTrace()} does and
+ * remembers the most recently used renderings, so an exception thrown over
+ * and over is only rendered once.
+ *
+ * Each exception gets a fingerprint from the class and frames of every
+ * throwable in its cause chain. The fingerprint ignores messages, so
+ * Graylog can group the same failure with different details. The rendered
+ * text does include the messages, so a cached trace is only used when every
+ * message and frame matches too, otherwise it is rendered again.
+ *
+ * Traces can be cut down to a number of frames per throwable and a number
+ * of causes. The methods are synchronized, in practice only the sending
+ * thread calls them.
+ */
+public class StackTraceCache {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final int maxFrames;
+    private final int maxDepth;
+    /** Keyed by fingerprint, an entry is only used if its details match */
+    private final Map<Long, Rendered> cache;
+    private final StringBuilder builder = new StringBuilder(4096);
+
+    /**
+     * @param capacity most traces to keep, 0 to render every time
+     * @param maxFrames most frames written for each throwable, 0 for all of them
+     * @param maxDepth most causes written below the top exception, 0 for all of them
+     */
+    public StackTraceCache(final int capacity, final int maxFrames, final int maxDepth) {
+        this.maxFrames = Math.max(0, maxFrames);
+        this.maxDepth = Math.max(0, maxDepth);
+        int limit = Math.max(0, capacity);
+        this.cache = new LinkedHashMap<Long, Rendered>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, Rendered> eldest) {
+                return size() > limit;
+            }
+        };
+    }
+
+    /**
+     * @return the rendered trace and fingerprint for the exception
+     */
+    public synchronized Rendered render(final Throwable exception) {
+        long fingerprint = FNV_OFFSET;
+        List<Object> details = new ArrayList<>();
+        Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<Throwable> seenSuppressed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Throwable t = exception; null != t && seen.add(t); t = t.getCause()) {
+            StackTraceElement[] frames = t.getStackTrace();
+            fingerprint = hashFrames(fingerprint, t, frames);
+            addDetails(details, t, frames);
+            for (Throwable suppressed : t.getSuppressed()) {
+                addSuppressed(details, suppressed, seenSuppressed);
+            }
+        }
+
+        // Same fingerprint, different messages: render again and keep the newest
+        Rendered rendered = cache.get(fingerprint);
+        if (null == rendered || !rendered.details.equals(details)) {
+            rendered = new Rendered(hex(fingerprint), print(exception), details);
+            cache.put(fingerprint, rendered);
+        }
+        return rendered;
+    }
+
+    /**
+     * Writes the trace in the same layout as printStackTrace
+     */
+    private String print(final Throwable exception) {
+        builder.setLength(0);
+        Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        seen.add(exception);
+        builder.append(exception).append('\n');
+        StackTraceElement[] trace = exception.getStackTrace();
+        appendFrames(trace, trace.length, "");
+        for (Throwable suppressed : exception.getSuppressed()) {
+            printEnclosed(suppressed, trace, "Suppressed: ", "\t", seen, 0);
+        }
+        if (null != exception.getCause()) {
+            printEnclosed(exception.getCause(), trace, "Caused by: ", "", seen, 1);
+        }
+        return builder.toString();
+    }
+
+    private void printEnclosed(final Throwable t, final StackTraceElement[] enclosing, final String caption,
+            final String prefix, final Set<Throwable> seen, final int depth) {
+        if (!seen.add(t)) {
+            builder.append(prefix).append(caption).append("[CIRCULAR REFERENCE: ").append(t).append("]\n");
+            return;
+        }
+        if (maxDepth > 0 && depth > maxDepth) {
+            builder.append(prefix).append(caption).append(t.getClass().getName()).append(" ...\n");
+            return;
+        }
+
+        StackTraceElement[] trace = t.getStackTrace();
+        int m = trace.length - 1;
+        int n = enclosing.length - 1;
+        while (m >= 0 && n >= 0 && trace[m].equals(enclosing[n])) {
+            m--;
+            n--;
+        }
+        int unique = m + 1;
+
+        builder.append(prefix).append(caption).append(t).append('\n');
+        appendFrames(trace, unique, prefix);
+        if (unique < trace.length) {
+            builder.append(prefix).append("\t... ").append(trace.length - unique).append(" more\n");
+        }
+        for (Throwable suppressed : t.getSuppressed()) {
+            printEnclosed(suppressed, trace, "Suppressed: ", prefix + "\t", seen, depth);
+        }
+        if (null != t.getCause()) {
+            printEnclosed(t.getCause(), trace, "Caused by: ", prefix, seen, depth + 1);
+        }
+    }
+
+    private void appendFrames(final StackTraceElement[] trace, final int count, final String prefix) {
+        int written = maxFrames > 0 ? Math.min(count, maxFrames) : count;
+        for (int i = 0; i < written; i++) {
+            builder.append(prefix).append("\tat ").append(trace[i]).append('\n');
+        }
+        if (written < count) {
+            builder.append(prefix).append("\t... ").append(count - written).append(" frames omitted\n");
+        }
+    }
+
+    private static long hashFrames(final long hash, final Throwable t, final StackTraceElement[] frames) {
+        long h = hash(hash, t.getClass().getName().hashCode());
+        for (StackTraceElement frame : frames) {
+            h = hash(h, frame.getClassName().hashCode());
+            h = hash(h, frame.getMethodName().hashCode());
+            h = hash(h, frame.getLineNumber());
+        }
+        return h;
+    }
+
+    /**
+     * Adds what the rendering of one throwable is made from, its class and
+     * message as printed and its frames
+     */
+    private static void addDetails(final List<Object> details, final Throwable t, final StackTraceElement[] frames) {
+        details.add(t.toString());
+        details.add(Arrays.asList(frames));
+    }
+
+    /**
+     * Suppressed exceptions are rendered too, but are not part of the fingerprint
+     */
+    private static void addSuppressed(final List<Object> details, final Throwable t, final Set<Throwable> seen) {
+        if (!seen.add(t)) {
+            return;
+        }
+        addDetails(details, t, t.getStackTrace());
+        for (Throwable suppressed : t.getSuppressed()) {
+            addSuppressed(details, suppressed, seen);
+        }
+        if (null != t.getCause()) {
+            addSuppressed(details, t.getCause(), seen);
+        }
+    }
+
+    /**
+     * One FNV-1a step over an int
+     */
+    private static long hash(final long hash, final int value) {
+        return (hash ^ (value & 0xffffffffL)) * 0x100000001b3L;
+    }
+
+    private static String hex(final long value) {
+        char[] chars = new char[16];
+        for (int i = 15; i >= 0; i--) {
+            chars[i] = HEX[(int) ((value >>> ((15 - i) * 4)) & 0xf)];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * A rendered trace and the fingerprint of its structure
+     */
+    public static final class Rendered {
+        private final String fingerprint;
+        private final String trace;
+        /** The messages and frames the trace was rendered from */
+        private final List<Object> details;
+
+        Rendered(final String fingerprint, final String trace, final List<Object> details) {
+            this.fingerprint = fingerprint;
+            this.trace = trace;
+            this.details = details;
+        }
+
+        /**
+         * @return 16 hex digits identifying the exception classes and frames
+         */
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        public String getTrace() {
+            return trace;
+        }
+    }
+}
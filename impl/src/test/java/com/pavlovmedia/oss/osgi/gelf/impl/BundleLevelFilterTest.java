@@ -0,0 +1,159 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import static com.pavlovmedia.oss.osgi.gelf.impl.OsgiFakes.bundle;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.service.log.LogService;
+
+/**
+ * Checks the rule matching, and that a bundle's cached level is only
+ * thrown away by the events that can change its name.
+ */
+public class BundleLevelFilterTest {
+    private final BundleLevelFilter filter = new BundleLevelFilter();
+
+    @Test
+    public void testDefaultLevel() {
+        Bundle bundle = bundle(1, "com.example.one");
+        filter.configure(LogService.LOG_WARNING, Collections.emptyList(), new Bundle[] { bundle });
+
+        assertTrue(filter.isLogged(bundle, LogService.LOG_ERROR));
+        assertTrue(filter.isLogged(bundle, LogService.LOG_WARNING));
+        assertFalse(filter.isLogged(bundle, LogService.LOG_INFO));
+        assertTrue(filter.isLogged(null, LogService.LOG_WARNING));
+        assertFalse(filter.isLogged(null, LogService.LOG_DEBUG));
+    }
+
+    @Test
+    public void testGlobs() {
+        filter.configure(LogService.LOG_DEBUG, Arrays.asList(
+                "com.noisy.*:error", "org.?pache.felix:off", "exact.name:warning"), new Bundle[0]);
+
+        assertEquals(LogService.LOG_ERROR, levelOf(bundle(1, "com.noisy.one")));
+        assertEquals(LogService.LOG_ERROR, levelOf(bundle(2, "com.noisy.")));
+        assertEquals(BundleLevelFilter.OFF, levelOf(bundle(3, "org.apache.felix")));
+        assertEquals(BundleLevelFilter.OFF, levelOf(bundle(4, "org.xpache.felix")));
+        assertEquals(LogService.LOG_WARNING, levelOf(bundle(5, "exact.name")));
+
+        // Dots are literal and the whole name has to match
+        assertEquals(LogService.LOG_DEBUG, levelOf(bundle(6, "comXnoisyXone")));
+        assertEquals(LogService.LOG_DEBUG, levelOf(bundle(7, "org.aapache.felix")));
+        assertEquals(LogService.LOG_DEBUG, levelOf(bundle(8, "exact.name.more")));
+        assertEquals(LogService.LOG_DEBUG, levelOf(bundle(9, (String) null)));
+    }
+
+    @Test
+    public void testFirstMatchWins() {
+        filter.configure(LogService.LOG_DEBUG, Arrays.asList(
+                "com.example.special:debug", "com.example.*:error", "com.*:info"), new Bundle[0]);
+
+        assertEquals(LogService.LOG_DEBUG, levelOf(bundle(1, "com.example.special")));
+        assertEquals(LogService.LOG_ERROR, levelOf(bundle(2, "com.example.other")));
+        assertEquals(LogService.LOG_INFO, levelOf(bundle(3, "com.other")));
+    }
+
+    @Test
+    public void testInvalidRulesIgnored() {
+        filter.configure(LogService.LOG_DEBUG, Arrays.asList(
+                "no level", ":error", "com.a:loud", "com.b:2", "com.c:99"), new Bundle[0]);
+
+        assertEquals(LogService.LOG_DEBUG, levelOf(bundle(1, "com.a")));
+        assertEquals(LogService.LOG_WARNING, levelOf(bundle(2, "com.b")));
+        assertEquals(LogService.LOG_DEBUG, levelOf(bundle(3, "com.c")));
+    }
+
+    @Test
+    public void testLargeBundleIds() {
+        filter.configure(LogService.LOG_DEBUG, Collections.singletonList("com.big:error"), new Bundle[0]);
+        Bundle big = bundle(1L << 20, "com.big");
+        assertEquals(LogService.LOG_ERROR, levelOf(big));
+        assertEquals(LogService.LOG_ERROR, levelOf(big));
+    }
+
+    @Test
+    public void testReconfigure() {
+        Bundle bundle = bundle(1, "com.example");
+        filter.configure(LogService.LOG_DEBUG, Collections.singletonList("com.*:error"), new Bundle[] { bundle });
+        assertEquals(LogService.LOG_ERROR, levelOf(bundle));
+
+        filter.configure(LogService.LOG_DEBUG, Collections.singletonList("com.*:info"), new Bundle[] { bundle });
+        assertEquals(LogService.LOG_INFO, levelOf(bundle));
+    }
+
+    @Test
+    public void testUpdatedBundleIsWorkedOutAgain() {
+        assertInvalidatedBy(BundleEvent.UPDATED);
+    }
+
+    @Test
+    public void testUninstalledBundleIsWorkedOutAgain() {
+        assertInvalidatedBy(BundleEvent.UNINSTALLED);
+    }
+
+    @Test
+    public void testInstalledBundleIsWorkedOutAgain() {
+        assertInvalidatedBy(BundleEvent.INSTALLED);
+    }
+
+    @Test
+    public void testStartedBundleKeepsItsLevel() {
+        AtomicReference<String> name = new AtomicReference<>("com.quiet");
+        Bundle bundle = bundle(3, name);
+        filter.configure(LogService.LOG_DEBUG, Collections.singletonList("com.quiet:error"), new Bundle[] { bundle });
+        assertEquals(LogService.LOG_ERROR, levelOf(bundle));
+
+        name.set("com.loud");
+        filter.bundleChanged(new BundleEvent(BundleEvent.STARTED, bundle));
+        assertEquals(LogService.LOG_ERROR, levelOf(bundle));
+    }
+
+    /**
+     * A bundle keeps its id when it is updated, or when the id is reused,
+     * so its level has to be worked out again from the new name
+     */
+    private void assertInvalidatedBy(final int eventType) {
+        AtomicReference<String> name = new AtomicReference<>("com.quiet");
+        Bundle bundle = bundle(3, name);
+        filter.configure(LogService.LOG_DEBUG, Collections.singletonList("com.quiet:error"), new Bundle[] { bundle });
+        assertEquals(LogService.LOG_ERROR, levelOf(bundle));
+
+        name.set("com.loud");
+        filter.bundleChanged(new BundleEvent(eventType, bundle));
+        assertEquals(LogService.LOG_DEBUG, levelOf(bundle));
+    }
+
+    /**
+     * @return the least severe level the filter lets through for the bundle
+     */
+    private int levelOf(final Bundle bundle) {
+        int level = BundleLevelFilter.OFF;
+        while (level < LogService.LOG_DEBUG && filter.isLogged(bundle, level + 1)) {
+            level++;
+        }
+        return level;
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in for a Graylog GELF input. It listens for TCP
+ * (null delimited frames) and UDP (chunked and optionally GZIP/ZLIB
+ * compressed datagrams) on the same port number, and can be told to
+ * misbehave so reconnect and re-queue paths get exercised.
+ *
+ * It also takes GELF HTTP POSTs to /gelf on {@link #getHttpPort()}, one
+ * message or several newline separated ones, optionally gzipped. While any
+ * fault other than slow_read is in effect requests get a 503.
+ *
+ * Messages whose short_message looks like "load p=&lt;producer&gt; s=&lt;sequence&gt;"
+ * are tracked per producer to count losses, duplicates and reordering.
+ */
+public class FakeGraylogServer implements Closeable {
+    /**
+     * Ways the server can misbehave
+     */
+    public enum Fault {
+        /** Behave */
+        NONE,
+        /** Accept connections and close them straight away */
+        ACCEPT_THEN_CLOSE,
+        /** Read a few bytes at a time with pauses, so the sender's socket backs up */
+        SLOW_READ,
+        /** Reset every open connection, new ones are reset as they arrive */
+        RESET,
+        /** Stop listening so connections are refused */
+        REFUSE
+    }
+
+    private static final int SLOW_READ_BYTES = 512;
+    private static final long SLOW_READ_PAUSE_MILLIS = 20;
+    private static final int MAX_CHUNKS = 128;
+
+    private final int port;
+    private final DatagramChannel udp;
+    private final HttpServer http;
+    private final ExecutorService httpThreads;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final Map<Long, byte[][]> partialChunks = new ConcurrentHashMap<>();
+    private final Map<Integer, ProducerTracker> producers = new ConcurrentHashMap<>();
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong connectionsAccepted = new AtomicLong();
+
+    private volatile ServerSocket tcp;
+    private volatile Fault fault = Fault.NONE;
+    private volatile long faultEndsNanos;
+    private volatile boolean running = true;
+
+    /**
+     * Starts listening on a free port
+     */
+    public FakeGraylogServer() throws IOException {
+        tcp = new ServerSocket();
+        tcp.setReuseAddress(true);
+        tcp.bind(new InetSocketAddress("127.0.0.1", 0));
+        port = tcp.getLocalPort();
+
+        udp = DatagramChannel.open();
+        udp.bind(new InetSocketAddress("127.0.0.1", port));
+
+        http = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        http.createContext("/gelf", this::onRequest);
+        httpThreads = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "fake-graylog-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        http.setExecutor(httpThreads);
+        http.start();
+
+        start("fake-graylog-tcp-accept", this::acceptLoop);
+        start("fake-graylog-udp", this::udpLoop);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getHttpPort() {
+        return http.getAddress().getPort();
+    }
+
+    /**
+     * Misbehaves for a while, then goes back to normal
+     * @param newFault what to do
+     * @param duration how long to do it for
+     * @param unit unit of duration
+     */
+    public void inject(final Fault newFault, final long duration, final TimeUnit unit) {
+        faultEndsNanos = System.nanoTime() + unit.toNanos(duration);
+        fault = newFault;
+        if (Fault.RESET == newFault) {
+            connections.forEach(FakeGraylogServer::reset);
+        }
+        if (Fault.REFUSE == newFault) {
+            closeQuietly(tcp);
+        }
+    }
+
+    /**
+     * Closes every open connection, as a restarting server would. Faults
+     * other than RESET only affect new connections, this makes senders
+     * find them.
+     */
+    public void closeConnections() {
+        connections.forEach(FakeGraylogServer::closeQuietly);
+    }
+
+    /**
+     * @return frames received, whether or not they were tracked
+     */
+    public long getFrames() {
+        return frames.get();
+    }
+
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.get();
+    }
+
+    /**
+     * @return per producer delivery statistics, keyed by producer number
+     */
+    public Map<Integer, ProducerTracker> getProducers() {
+        return producers;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        closeQuietly(tcp);
+        connections.forEach(FakeGraylogServer::closeQuietly);
+        udp.close();
+        http.stop(0);
+        httpThreads.shutdownNow();
+    }
+
+    private Fault currentFault() {
+        Fault current = fault;
+        if (Fault.NONE != current && System.nanoTime() - faultEndsNanos >= 0) {
+            fault = Fault.NONE;
+            return Fault.NONE;
+        }
+        return current;
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            if (Fault.REFUSE == currentFault()) {
+                sleep(10);
+                continue;
+            }
+            try {
+                if (tcp.isClosed()) {
+                    ServerSocket reopened = new ServerSocket();
+                    reopened.setReuseAddress(true);
+                    reopened.bind(new InetSocketAddress("127.0.0.1", port));
+                    tcp = reopened;
+                }
+                Socket socket = tcp.accept();
+                connectionsAccepted.incrementAndGet();
+                Fault current = currentFault();
+                if (Fault.ACCEPT_THEN_CLOSE == current) {
+                    closeQuietly(socket);
+                } else if (Fault.RESET == current) {
+                    reset(socket);
+                } else {
+                    connections.add(socket);
+                    start("fake-graylog-tcp-read", () -> readLoop(socket));
+                }
+            } catch (IOException e) {
+                // Closed for REFUSE or shutdown, the loop decides what to do
+                sleep(10);
+            }
+        }
+    }
+
+    private void readLoop(final Socket socket) {
+        byte[] buffer = new byte[64 * 1024];
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        try (InputStream in = socket.getInputStream()) {
+            while (running) {
+                boolean slow = Fault.SLOW_READ == currentFault();
+                int read = in.read(buffer, 0, slow ? SLOW_READ_BYTES : buffer.length);
+                if (read < 0) {
+                    break;
+                }
+                for (int i = 0; i < read; i++) {
+                    if (0 == buffer[i]) {
+                        onFrame(frame.toByteArray());
+                        frame.reset();
+                    } else {
+                        frame.write(buffer[i]);
+                    }
+                }
+                if (slow) {
+                    sleep(SLOW_READ_PAUSE_MILLIS);
+                }
+            }
+        } catch (IOException e) {
+            // Reset or closed
+        } finally {
+            connections.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    private void onRequest(final HttpExchange exchange) throws IOException {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            try (InputStream in = exchange.getRequestBody()) {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    body.write(buffer, 0, read);
+                }
+            }
+
+            Fault current = currentFault();
+            if (Fault.SLOW_READ == current) {
+                sleep(SLOW_READ_PAUSE_MILLIS * 10);
+            } else if (Fault.NONE != current) {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+
+            byte[] messages = decompress(body.toByteArray());
+            int start = 0;
+            for (int i = 0; i <= messages.length; i++) {
+                if (i == messages.length || '\n' == messages[i]) {
+                    if (i > start) {
+                        byte[] frame = new byte[i - start];
+                        System.arraycopy(messages, start, frame, 0, frame.length);
+                        onFrame(frame);
+                    }
+                    start = i + 1;
+                }
+            }
+            exchange.sendResponseHeaders(202, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void udpLoop() {
+        ByteBuffer datagram = ByteBuffer.allocate(65536);
+        while (running) {
+            try {
+                datagram.clear();
+                udp.receive(datagram);
+                datagram.flip();
+                byte[] bytes = new byte[datagram.remaining()];
+                datagram.get(bytes);
+                onDatagram(bytes);
+            } catch (IOException e) {
+                // Closed on shutdown
+            }
+        }
+    }
+
+    private void onDatagram(final byte[] bytes) throws IOException {
+        if (bytes.length > 12 && 0x1e == bytes[0] && 0x0f == bytes[1]) {
+            long id = ByteBuffer.wrap(bytes, 2, 8).getLong();
+            int sequence = bytes[10] & 0xff;
+            int count = bytes[11] & 0xff;
+            if (count > MAX_CHUNKS || sequence >= count) {
+                return;
+            }
+            byte[][] chunks = partialChunks.computeIfAbsent(id, k -> new byte[count][]);
+            byte[] chunk = new byte[bytes.length - 12];
+            System.arraycopy(bytes, 12, chunk, 0, chunk.length);
+            synchronized (chunks) {
+                chunks[sequence] = chunk;
+                for (byte[] part : chunks) {
+                    if (null == part) {
+                        return;
+                    }
+                }
+            }
+            partialChunks.remove(id);
+            ByteArrayOutputStream whole = new ByteArrayOutputStream();
+            for (byte[] part : chunks) {
+                whole.write(part);
+            }
+            onFrame(decompress(whole.toByteArray()));
+        } else {
+            onFrame(decompress(bytes));
+        }
+    }
+
+    private static byte[] decompress(final byte[] payload) throws IOException {
+        InputStream in;
+        if (payload.length > 2 && 0x1f == payload[0] && (byte) 0x8b == payload[1]) {
+            in = new GZIPInputStream(new java.io.ByteArrayInputStream(payload));
+        } else if (payload.length > 2 && 0x78 == payload[0]) {
+            in = new InflaterInputStream(new java.io.ByteArrayInputStream(payload));
+        } else {
+            return payload;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private void onFrame(final byte[] bytes) {
+        frames.incrementAndGet();
+        String json = new String(bytes, StandardCharsets.UTF_8);
+        int start = json.indexOf("\"short_message\":\"load p=");
+        if (start < 0) {
+            return;
+        }
+        start += "\"short_message\":\"load p=".length();
+        int space = json.indexOf(" s=", start);
+        int end = json.indexOf('"', space);
+        if (space < 0 || end < 0) {
+            return;
+        }
+        int producer = Integer.parseInt(json.substring(start, space));
+        long sequence = Long.parseLong(json.substring(space + 3, end));
+        producers.computeIfAbsent(producer, k -> new ProducerTracker()).record(sequence);
+    }
+
+    private static void start(final String name, final Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void reset(final Socket socket) {
+        try {
+            // Linger of zero turns close into an RST
+            socket.setSoLinger(true, 0);
+        } catch (SocketException e) {
+            // Already gone
+        }
+        closeQuietly(socket);
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Delivery statistics for one producer's sequence numbers
+     */
+    public static final class ProducerTracker {
+        private final Set<Long> seen = ConcurrentHashMap.newKeySet();
+        private long lowest = -1;
+        private long highest = -1;
+        private long reordered;
+        private long duplicates;
+
+        synchronized void record(final long sequence) {
+            if (!seen.add(sequence)) {
+                duplicates++;
+                return;
+            }
+            if (-1 == lowest || sequence < lowest) {
+                lowest = sequence;
+            }
+            if (sequence < highest) {
+                reordered++;
+            } else {
+                highest = sequence;
+            }
+        }
+
+        public synchronized long getReceived() {
+            return seen.size();
+        }
+
+        /**
+         * @return the lowest sequence number seen, -1 if none
+         */
+        public synchronized long getLowest() {
+            return lowest;
+        }
+
+        /**
+         * @return the highest sequence number seen, -1 if none
+         */
+        public synchronized long getHighest() {
+            return highest;
+        }
+
+        public synchronized long getReordered() {
+            return reordered;
+        }
+
+        public synchronized long getDuplicates() {
+            return duplicates;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the spool against a temporary directory, reopening it the way a
+ * restarted bundle would.
+ */
+public class GelfDiskSpoolTest {
+    /** The smallest segment the spool makes */
+    private static final int SEGMENT_BYTES = 64 * 1024;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 4;
+
+    private Path directory;
+    private GelfDiskSpool spool;
+    private final AtomicLong evicted = new AtomicLong();
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("gelf-spool-test");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (null != spool) {
+            spool.close();
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testReadsInAppendOrder() throws Exception {
+        spool = open(SEGMENT_BYTES * 4L);
+        appendAll(0, 10, 10);
+
+        assertEquals(frames(0, 10), readAll());
+        assertNull(spool.peek());
+        assertFalse(spool.isEmpty());
+        spool.commit();
+        assertTrue(spool.isEmpty());
+    }
+
+    @Test
+    public void testRewindGoesBackToCommit() throws Exception {
+        spool = open(SEGMENT_BYTES * 4L);
+        appendAll(0, 5, 10);
+        assertEquals(frames(0, 2), read(2));
+        spool.commit();
+        assertEquals(frames(2, 4), read(2));
+
+        spool.rewind();
+        assertEquals(frames(2, 5), readAll());
+    }
+
+    @Test
+    public void testRecoveredAfterReopen() throws Exception {
+        spool = open(SEGMENT_BYTES * 4L);
+        appendAll(0, 5, 10);
+        assertEquals(frames(0, 2), read(2));
+        spool.commit();
+        // Read but not committed, so these come back
+        read(1);
+        spool.close();
+
+        spool = open(SEGMENT_BYTES * 4L);
+        assertEquals(frames(2, 5), readAll());
+
+        // New frames go after the recovered ones
+        appendAll(5, 7, 10);
+        spool.rewind();
+        assertEquals(frames(2, 7), readAll());
+    }
+
+    @Test
+    public void testPartlyWrittenRecordIgnored() throws Exception {
+        spool = open(SEGMENT_BYTES * 4L);
+        appendAll(0, 3, 10);
+        spool.close();
+        spool = null;
+
+        Path segment = segmentFiles().get(0);
+        int end = HEADER_SIZE + 3 * (RECORD_HEADER_SIZE + frame(0, 10).length);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            // Bytes written, the length that makes them visible was not
+            channel.write(ByteBuffer.wrap(frame(3, 10)), end + RECORD_HEADER_SIZE);
+        }
+
+        spool = open(SEGMENT_BYTES * 4L);
+        assertEquals(frames(0, 3), readAll());
+
+        // The next append takes the place of the partial record
+        appendAll(4, 5, 10);
+        spool.rewind();
+        List<String> expected = frames(0, 3);
+        expected.addAll(frames(4, 5));
+        assertEquals(expected, readAll());
+    }
+
+    @Test
+    public void testLengthPastEndIgnored() throws Exception {
+        spool = open(SEGMENT_BYTES * 4L);
+        appendAll(0, 2, 10);
+        spool.close();
+        spool = null;
+
+        Path segment = segmentFiles().get(0);
+        int end = HEADER_SIZE + 2 * (RECORD_HEADER_SIZE + frame(0, 10).length);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            ByteBuffer length = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            length.putInt(0, SEGMENT_BYTES);
+            channel.write(length, end);
+        }
+
+        spool = open(SEGMENT_BYTES * 4L);
+        assertEquals(frames(0, 2), readAll());
+    }
+
+    @Test
+    public void testOldestSegmentsEvicted() throws Exception {
+        spool = open(SEGMENT_BYTES * 2L);
+        int count = 300;
+        appendAll(0, count, 1000);
+
+        assertEquals(2, segmentFiles().size());
+        assertTrue(evicted.get() > 0);
+
+        // What is left is the newest frames, still in order
+        List<String> left = readAll();
+        assertEquals(count, evicted.get() + left.size());
+        assertEquals(frames((int) evicted.get(), count, 1000), left);
+    }
+
+    @Test
+    public void testReadSegmentsDeleted() throws Exception {
+        spool = open(SEGMENT_BYTES * 8L);
+        appendAll(0, 150, 1000);
+        assertEquals(3, segmentFiles().size());
+
+        // A bit over one segment's worth leaves the first one used up
+        read(70);
+        spool.commit();
+        assertEquals(2, segmentFiles().size());
+
+        readAll();
+        spool.commit();
+        assertTrue(segmentFiles().isEmpty());
+        assertEquals(0, evicted.get());
+    }
+
+    @Test
+    public void testTooBigRefused() throws Exception {
+        spool = open(SEGMENT_BYTES * 2L);
+        assertFalse(spool.append(ByteBuffer.wrap(new byte[SEGMENT_BYTES])));
+        assertTrue(spool.isEmpty());
+    }
+
+    private GelfDiskSpool open(final long maxBytes) throws IOException {
+        return new GelfDiskSpool(directory, SEGMENT_BYTES, maxBytes, evicted::addAndGet);
+    }
+
+    private void appendAll(final int from, final int to, final int size) throws IOException {
+        for (int i = from; i < to; i++) {
+            assertTrue(spool.append(ByteBuffer.wrap(frame(i, size))));
+        }
+    }
+
+    private List<String> read(final int count) {
+        List<String> read = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ByteBuffer frame = spool.peek();
+            byte[] bytes = new byte[frame.remaining()];
+            frame.get(bytes);
+            spool.advance();
+            read.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return read;
+    }
+
+    private List<String> readAll() {
+        List<String> read = new ArrayList<>();
+        for (ByteBuffer frame = spool.peek(); null != frame; frame = spool.peek()) {
+            byte[] bytes = new byte[frame.remaining()];
+            frame.get(bytes);
+            spool.advance();
+            read.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return read;
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.spool")) {
+            stream.forEach(files::add);
+        }
+        files.sort(null);
+        return files;
+    }
+
+    private static List<String> frames(final int from, final int to) {
+        return frames(from, to, 10);
+    }
+
+    private static List<String> frames(final int from, final int to, final int size) {
+        List<String> frames = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            frames.add(new String(frame(i, size), StandardCharsets.UTF_8));
+        }
+        return frames;
+    }
+
+    /**
+     * @return a frame of the given size starting with its sequence number
+     */
+    private static byte[] frame(final int sequence, final int size) {
+        byte[] frame = new byte[size];
+        Arrays.fill(frame, (byte) '.');
+        byte[] prefix = String.format("%06d", sequence).getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(prefix, 0, frame, 0, prefix.length);
+        return frame;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessage;
+
+/**
+ * Checks that strings are cut on UTF-8 byte counts without splitting a
+ * character, and that a cut message is marked.
+ */
+public class GelfMessageLimitsTest {
+    /** Two bytes each */
+    private static final String E_ACUTE = "\u00e9";
+    /** Three bytes each */
+    private static final String EURO = "\u20ac";
+    /** A surrogate pair, four bytes */
+    private static final String GRINNING = "\ud83d\ude00";
+
+    @Test
+    public void testFitsIsSameInstance() {
+        String value = "a" + E_ACUTE + EURO + GRINNING;
+        assertSame(value, GelfMessageLimits.truncate(value, 10));
+        assertSame(value, GelfMessageLimits.truncate(value, 0));
+        assertNull(GelfMessageLimits.truncate(null, 5));
+    }
+
+    @Test
+    public void testTwoByteChars() {
+        String value = E_ACUTE + E_ACUTE;
+        assertEquals(E_ACUTE, GelfMessageLimits.truncate(value, 3));
+        assertEquals(E_ACUTE, GelfMessageLimits.truncate(value, 2));
+        assertEquals("", GelfMessageLimits.truncate(value, 1));
+    }
+
+    @Test
+    public void testThreeByteChars() {
+        String value = EURO + EURO;
+        assertEquals(EURO, GelfMessageLimits.truncate(value, 5));
+        assertEquals(EURO, GelfMessageLimits.truncate(value, 3));
+        assertEquals("", GelfMessageLimits.truncate(value, 2));
+    }
+
+    @Test
+    public void testSurrogatePairNotSplit() {
+        String value = "a" + GRINNING + "b";
+        assertEquals("a", GelfMessageLimits.truncate(value, 2));
+        assertEquals("a", GelfMessageLimits.truncate(value, 4));
+        assertEquals("a" + GRINNING, GelfMessageLimits.truncate(value, 5));
+    }
+
+    @Test
+    public void testLongestPrefixThatFits() {
+        String value = "ab" + E_ACUTE + GRINNING + EURO + "c" + GRINNING + E_ACUTE + EURO;
+        int total = value.getBytes(StandardCharsets.UTF_8).length;
+        for (int max = 1; max <= total; max++) {
+            String cut = GelfMessageLimits.truncate(value, max);
+            int bytes = cut.getBytes(StandardCharsets.UTF_8).length;
+            assertTrue(value.startsWith(cut));
+            assertTrue("over " + max, bytes <= max);
+            assertFalse(!cut.isEmpty() && Character.isHighSurrogate(cut.charAt(cut.length() - 1)));
+            if (cut.length() < value.length()) {
+                String next = value.substring(0, value.offsetByCodePoints(cut.length(), 1));
+                assertTrue("not longest at " + max, next.getBytes(StandardCharsets.UTF_8).length > max);
+            }
+        }
+    }
+
+    @Test
+    public void testTruncatedMarker() {
+        GelfMessageLimits limits = new GelfMessageLimits(4, 0, 0, 0);
+        GelfMessage message = new GelfMessage();
+        message.short_message = "ab" + EURO;
+        message.full_message = "ab" + EURO;
+
+        assertTrue(limits.apply(message));
+        assertEquals("ab", message.short_message);
+        assertEquals("ab" + EURO, message.full_message);
+        assertEquals("true", message.additionalFields.get(GelfMessageLimits.TRUNCATED_FIELD));
+    }
+
+    @Test
+    public void testWithinLimitsNotMarked() {
+        GelfMessageLimits limits = new GelfMessageLimits(5, 5, 1, 5);
+        GelfMessage message = new GelfMessage();
+        message.short_message = "ab" + EURO;
+        message.additionalFields.put("field", E_ACUTE + E_ACUTE);
+
+        assertFalse(limits.apply(message));
+        assertFalse(message.additionalFields.containsKey(GelfMessageLimits.TRUNCATED_FIELD));
+    }
+
+    @Test
+    public void testOverriddenKeysCountedOnce() {
+        GelfMessage message = fieldLayers();
+        assertFalse(new GelfMessageLimits(0, 0, 3, 0).apply(message));
+        assertEquals(3, fieldCount(message));
+    }
+
+    @Test
+    public void testFieldsKeptByLayer() {
+        GelfMessage message = fieldLayers();
+        assertTrue(new GelfMessageLimits(0, 0, 2, 0).apply(message));
+
+        Map<String, String> sent = new HashMap<>();
+        message.forEachField(sent::put);
+        Map<String, String> expected = new HashMap<>();
+        expected.put("a", "static");
+        expected.put("b", "own");
+        // The marker does not count against the limit
+        expected.put(GelfMessageLimits.TRUNCATED_FIELD, "true");
+        assertEquals(expected, sent);
+    }
+
+    @Test
+    public void testFieldValueCut() {
+        GelfMessage message = new GelfMessage();
+        message.sharedFields = Collections.singletonMap("shared", EURO + EURO);
+
+        assertTrue(new GelfMessageLimits(0, 0, 0, 4).apply(message));
+        assertEquals(EURO, message.additionalFields.get("shared"));
+        assertEquals("true", message.additionalFields.get(GelfMessageLimits.TRUNCATED_FIELD));
+    }
+
+    /**
+     * @return a message with keys a and b in more than one layer, three distinct keys in all
+     */
+    private static GelfMessage fieldLayers() {
+        GelfMessage message = new GelfMessage();
+        message.staticFields = Collections.singletonMap("a", "static");
+        message.additionalFields.put("a", "own");
+        message.additionalFields.put("b", "own");
+        Map<String, String> shared = new HashMap<>();
+        shared.put("b", "shared");
+        shared.put("c", "shared");
+        message.sharedFields = shared;
+        return message;
+    }
+
+    private static int fieldCount(final GelfMessage message) {
+        int[] count = new int[1];
+        message.forEachField((name, value) -> count[0]++);
+        return count[0];
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.pavlovmedia.oss.osgi.gelf.impl.GelfRingBuffer.DropReason;
+import com.pavlovmedia.oss.osgi.gelf.impl.GelfRingBuffer.OverflowPolicy;
+
+/**
+ * Checks what each overflow policy keeps and drops once the ring is full,
+ * and what it counts each drop as.
+ */
+public class GelfRingBufferTest {
+    /** Levels at or above this are below the drop level, like debug */
+    private static final int DROPPABLE = 7;
+    private static final int ERROR = 3;
+
+    @Test
+    public void testCapacityRoundsUp() {
+        assertEquals(8, ring(5, OverflowPolicy.DROP_NEWEST, 0).capacity());
+        assertEquals(8, ring(8, OverflowPolicy.DROP_NEWEST, 0).capacity());
+        assertEquals(2, ring(0, OverflowPolicy.DROP_NEWEST, 0).capacity());
+    }
+
+    @Test
+    public void testFifo() {
+        GelfRingBuffer<Integer> ring = ring(4, OverflowPolicy.DROP_NEWEST, 0);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(ring.offer(i));
+            assertEquals(Integer.valueOf(i), ring.poll());
+        }
+        assertNull(ring.poll());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void testDropNewest() {
+        GelfRingBuffer<Integer> ring = ring(4, OverflowPolicy.DROP_NEWEST, 0);
+        fill(ring, 0, 4);
+        assertFalse(ring.offer(4));
+        assertFalse(ring.offer(5));
+
+        assertEquals(2, ring.getDropCount(DropReason.NEWEST));
+        assertEquals(0, ring.getDropCount(DropReason.OLDEST));
+        assertEquals(Arrays.asList(0, 1, 2, 3), drain(ring));
+    }
+
+    @Test
+    public void testDropOldest() {
+        GelfRingBuffer<Integer> ring = ring(4, OverflowPolicy.DROP_OLDEST, 0);
+        fill(ring, 0, 4);
+        assertTrue(ring.offer(4));
+        assertTrue(ring.offer(5));
+
+        assertEquals(2, ring.getDropCount(DropReason.OLDEST));
+        assertEquals(0, ring.getDropCount(DropReason.NEWEST));
+        assertEquals(Arrays.asList(2, 3, 4, 5), drain(ring));
+    }
+
+    @Test
+    public void testDropBelowLevelRejectsDroppable() {
+        GelfRingBuffer<Integer> ring = ring(4, OverflowPolicy.DROP_BELOW_LEVEL, 0);
+        repeat(ring, ERROR, 4);
+        assertFalse(ring.offer(DROPPABLE));
+
+        assertEquals(1, ring.getDropCount(DropReason.BELOW_LEVEL));
+        assertEquals(Arrays.asList(ERROR, ERROR, ERROR, ERROR), drain(ring));
+    }
+
+    @Test
+    public void testDropBelowLevelEvictsDroppableOldest() {
+        GelfRingBuffer<Integer> ring = ring(4, OverflowPolicy.DROP_BELOW_LEVEL, 0);
+        ring.offer(DROPPABLE);
+        ring.offer(DROPPABLE + 1);
+        ring.offer(ERROR);
+        ring.offer(ERROR + 1);
+        assertTrue(ring.offer(ERROR + 2));
+
+        assertEquals(1, ring.getDropCount(DropReason.OLDEST));
+        assertEquals(0, ring.getDropCount(DropReason.BELOW_LEVEL));
+        assertEquals(Arrays.asList(DROPPABLE + 1, ERROR, ERROR + 1, ERROR + 2), drain(ring));
+    }
+
+    @Test
+    public void testDropBelowLevelKeepsQueuedErrors() {
+        GelfRingBuffer<Integer> ring = ring(4, OverflowPolicy.DROP_BELOW_LEVEL, 0);
+        ring.offer(ERROR);
+        ring.offer(DROPPABLE);
+        ring.offer(DROPPABLE);
+        ring.offer(DROPPABLE);
+        // The oldest is an error, so the new error is the one turned away
+        assertFalse(ring.offer(ERROR + 1));
+
+        assertEquals(1, ring.getDropCount(DropReason.NEWEST));
+        assertEquals(0, ring.getDropCount(DropReason.OLDEST));
+        assertEquals(Arrays.asList(ERROR, DROPPABLE, DROPPABLE, DROPPABLE), drain(ring));
+    }
+
+    @Test
+    public void testBlockTimesOut() {
+        GelfRingBuffer<Integer> ring = ring(2, OverflowPolicy.BLOCK, 100);
+        fill(ring, 0, 2);
+
+        long start = System.nanoTime();
+        assertFalse(ring.offer(2));
+        long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("waited " + waitedMillis, waitedMillis >= 100);
+        assertEquals(1, ring.getDropCount(DropReason.BLOCK_TIMEOUT));
+        assertEquals(Arrays.asList(0, 1), drain(ring));
+    }
+
+    @Test
+    public void testBlockWaitsForRoom() throws Exception {
+        GelfRingBuffer<Integer> ring = ring(2, OverflowPolicy.BLOCK, 10000);
+        fill(ring, 0, 2);
+
+        Thread consumer = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                return;
+            }
+            ring.poll();
+        });
+        consumer.start();
+        assertTrue(ring.offer(2));
+        consumer.join();
+
+        assertEquals(0, ring.getDropCount(DropReason.BLOCK_TIMEOUT));
+        assertEquals(Arrays.asList(1, 2), drain(ring));
+    }
+
+    @Test
+    public void testPollWithTimeout() throws Exception {
+        GelfRingBuffer<Integer> ring = ring(2, OverflowPolicy.DROP_NEWEST, 0);
+        assertNull(ring.poll(10, TimeUnit.MILLISECONDS));
+
+        Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            ring.offer(1);
+        });
+        producer.start();
+        assertEquals(Integer.valueOf(1), ring.poll(10, TimeUnit.SECONDS));
+        producer.join();
+    }
+
+    @Test
+    public void testWakeEndsPoll() throws Exception {
+        GelfRingBuffer<Integer> ring = ring(2, OverflowPolicy.DROP_NEWEST, 0);
+        Thread waker = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            ring.wakeConsumer();
+        });
+        waker.start();
+
+        long start = System.nanoTime();
+        assertNull(ring.poll(10, TimeUnit.SECONDS));
+        long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        waker.join();
+
+        assertTrue("waited " + waitedMillis, waitedMillis < 5000);
+        // The wake is used up, the next poll waits out its timeout
+        start = System.nanoTime();
+        assertNull(ring.poll(50, TimeUnit.MILLISECONDS));
+        waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("waited " + waitedMillis, waitedMillis >= 50);
+        assertTrue(ring.offer(1));
+        assertEquals(Integer.valueOf(1), ring.poll(10, TimeUnit.SECONDS));
+    }
+
+    private static GelfRingBuffer<Integer> ring(final int capacity, final OverflowPolicy policy,
+            final long blockMillis) {
+        return new GelfRingBuffer<>(capacity, policy, blockMillis, level -> level >= DROPPABLE);
+    }
+
+    /**
+     * Offers from, from + 1 and so on
+     */
+    private static void fill(final GelfRingBuffer<Integer> ring, final int from, final int count) {
+        for (int i = 0; i < count; i++) {
+            assertTrue(ring.offer(from + i));
+        }
+    }
+
+    private static void repeat(final GelfRingBuffer<Integer> ring, final int value, final int count) {
+        for (int i = 0; i < count; i++) {
+            assertTrue(ring.offer(value));
+        }
+    }
+
+    private static List<Integer> drain(final GelfRingBuffer<Integer> ring) {
+        List<Integer> drained = new ArrayList<>();
+        ring.drainTo(drained, Integer.MAX_VALUE);
+        return drained;
+    }
+}
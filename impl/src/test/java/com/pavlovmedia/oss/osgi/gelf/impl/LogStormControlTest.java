@@ -0,0 +1,241 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import static com.pavlovmedia.oss.osgi.gelf.impl.OsgiFakes.bundle;
+import static com.pavlovmedia.oss.osgi.gelf.impl.OsgiFakes.entry;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogService;
+
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessage;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessageSource;
+import com.pavlovmedia.oss.osgi.gelf.lib.IGelfTransporter;
+
+/**
+ * Checks that duplicates collapse into one summary per window, and that
+ * the rate limit is kept per bundle and level.
+ */
+public class LogStormControlTest {
+    private static final long LONG_WINDOW_MILLIS = 60000;
+
+    private final List<LogStormControl.Suppressed> summaries = new CopyOnWriteArrayList<>();
+    private final LogStormControl control = new LogStormControl(summaries::add);
+
+    @Test
+    public void testDuplicatesCollapsedInWindow() {
+        control.configure(0, 0, LONG_WINDOW_MILLIS);
+        Bundle bundle = bundle(1);
+        assertNull(control.filter(entry(bundle, LogService.LOG_ERROR, "boom", 1000)));
+        LogEntry firstSuppressed = entry(bundle, LogService.LOG_ERROR, "boom", 1001);
+        assertEquals(IGelfTransporter.FILTERED_DUPLICATE, control.filter(firstSuppressed));
+        for (int time = 1002; time <= 1004; time++) {
+            assertEquals(IGelfTransporter.FILTERED_DUPLICATE, control.filter(entry(bundle, LogService.LOG_ERROR, "boom", time)));
+        }
+
+        // Still inside the window
+        control.flushExpired(false);
+        assertTrue(summaries.isEmpty());
+
+        control.flushExpired(true);
+        assertEquals(1, summaries.size());
+        LogStormControl.Suppressed summary = summaries.get(0);
+        assertEquals(4, summary.getCount());
+        assertEquals(1001, summary.getFirstTime());
+        assertEquals(1004, summary.getLastTime());
+        assertSame(firstSuppressed, summary.getEntry());
+    }
+
+    @Test
+    public void testDifferentEntriesNotCollapsed() {
+        control.configure(0, 0, LONG_WINDOW_MILLIS);
+        Bundle bundle = bundle(1);
+        assertNull(control.filter(entry(bundle, LogService.LOG_ERROR, "boom", 1000)));
+        assertNull(control.filter(entry(bundle, LogService.LOG_ERROR, "bang", 1001)));
+        assertNull(control.filter(entry(bundle, LogService.LOG_WARNING, "boom", 1002)));
+        assertNull(control.filter(entry(bundle(2), LogService.LOG_ERROR, "boom", 1003)));
+        assertNull(control.filter(entry(bundle, LogService.LOG_ERROR, "boom", new IllegalStateException(), 1004)));
+    }
+
+    @Test
+    public void testWindowEnds() throws Exception {
+        control.configure(0, 0, 50);
+        Bundle bundle = bundle(1);
+        assertNull(control.filter(entry(bundle, LogService.LOG_ERROR, "boom", 1000)));
+        assertEquals(IGelfTransporter.FILTERED_DUPLICATE, control.filter(entry(bundle, LogService.LOG_ERROR, "boom", 1001)));
+        assertEquals(IGelfTransporter.FILTERED_DUPLICATE, control.filter(entry(bundle, LogService.LOG_ERROR, "boom", 1002)));
+        Thread.sleep(80);
+
+        control.flushExpired(false);
+        assertEquals(1, summaries.size());
+        assertEquals(2, summaries.get(0).getCount());
+
+        // The next copy opens a new window
+        assertNull(control.filter(entry(bundle, LogService.LOG_ERROR, "boom", 1100)));
+    }
+
+    @Test
+    public void testReconfigureFlushesOpenWindows() {
+        control.configure(0, 0, LONG_WINDOW_MILLIS);
+        Bundle bundle = bundle(1);
+        control.filter(entry(bundle, LogService.LOG_ERROR, "boom", 1000));
+        control.filter(entry(bundle, LogService.LOG_ERROR, "boom", 1001));
+        control.filter(entry(bundle, LogService.LOG_ERROR, "boom", 1002));
+        assertTrue(summaries.isEmpty());
+
+        control.configure(0, 0, LONG_WINDOW_MILLIS);
+        assertEquals(1, summaries.size());
+        assertEquals(2, summaries.get(0).getCount());
+
+        // Nothing is left to hand over twice
+        control.flushExpired(true);
+        assertEquals(1, summaries.size());
+    }
+
+    @Test
+    public void testTokenBucketPerBundleAndLevel() {
+        control.configure(1, 3, 0);
+        Bundle one = bundle(1);
+        Bundle two = bundle(2);
+
+        assertEquals(3, admitted(one, LogService.LOG_ERROR, 10));
+        assertEquals(3, admitted(two, LogService.LOG_ERROR, 10));
+        assertEquals(3, admitted(one, LogService.LOG_WARNING, 10));
+    }
+
+    @Test
+    public void testTokenBucketRefills() throws Exception {
+        control.configure(20, 2, 0);
+        Bundle bundle = bundle(1);
+        assertEquals(2, admitted(bundle, LogService.LOG_ERROR, 5));
+
+        // One token every 50ms
+        Thread.sleep(120);
+        assertEquals(2, admitted(bundle, LogService.LOG_ERROR, 5));
+    }
+
+    @Test
+    public void testSinkSendsSummaryFields() {
+        List<GelfMessageSource> sent = new CopyOnWriteArrayList<>();
+        List<String> filtered = new CopyOnWriteArrayList<>();
+        GelfLogSink sink = new GelfLogSink();
+        sink.gelfServer = transporter(sent, filtered);
+        Map<String, Object> config = sinkConfig(LONG_WINDOW_MILLIS);
+        sink.configure(config);
+
+        for (int time = 1000; time <= 1003; time++) {
+            sink.logged(entry(null, LogService.LOG_ERROR, "boom", time));
+        }
+        assertEquals(1, sent.size());
+        assertEquals(Collections.nCopies(3, IGelfTransporter.FILTERED_DUPLICATE), filtered);
+
+        // Reconfiguring hands over the open window
+        sink.modified(sinkConfig(0));
+        assertEquals(2, sent.size());
+        GelfMessage summary = sent.get(1).toGelfMessage();
+        assertEquals("boom", summary.short_message);
+        assertEquals(1003, summary.timestamp);
+        assertEquals("3", summary.additionalFields.get("suppressed_count"));
+        assertEquals("1.001", summary.additionalFields.get("suppressed_first_timestamp"));
+        assertEquals("1.003", summary.additionalFields.get("suppressed_last_timestamp"));
+    }
+
+    @Test
+    public void testSinkGivesFilteredReason() {
+        List<GelfMessageSource> sent = new CopyOnWriteArrayList<>();
+        List<String> filtered = new CopyOnWriteArrayList<>();
+        GelfLogSink sink = new GelfLogSink();
+        sink.gelfServer = transporter(sent, filtered);
+        Map<String, Object> config = sinkConfig(0);
+        config.put(GelfLogSink.LEVEL_DEFAULT, LogService.LOG_WARNING);
+        config.put(GelfLogSink.STORM_RATE, 1);
+        config.put(GelfLogSink.STORM_BURST, 1);
+        sink.configure(config);
+
+        sink.logged(entry(null, LogService.LOG_DEBUG, "quiet", 1000));
+        sink.logged(entry(null, LogService.LOG_ERROR, "first", 1001));
+        sink.logged(entry(null, LogService.LOG_ERROR, "second", 1002));
+        assertEquals(1, sent.size());
+        assertEquals(Arrays.asList(IGelfTransporter.FILTERED_LEVEL, IGelfTransporter.FILTERED_RATE_LIMIT), filtered);
+    }
+
+    @Test
+    public void testMetricsCountFilteredByReason() {
+        GelfMetrics metrics = new GelfMetrics(() -> null);
+        metrics.filteredByCaller(IGelfTransporter.FILTERED_DUPLICATE);
+        metrics.filteredByCaller(IGelfTransporter.FILTERED_DUPLICATE);
+        metrics.filteredByCaller(IGelfTransporter.FILTERED_RATE_LIMIT);
+        metrics.filteredByCaller(null);
+
+        Map<String, Long> expected = new HashMap<>();
+        expected.put(IGelfTransporter.FILTERED_DUPLICATE, 2L);
+        expected.put(IGelfTransporter.FILTERED_RATE_LIMIT, 1L);
+        assertEquals(expected, metrics.getFilteredCounts());
+        assertEquals(4, metrics.getFilteredCount());
+    }
+
+    /**
+     * @return how many got through, the rest must have been rate limited
+     */
+    private int admitted(final Bundle bundle, final int level, final int tries) {
+        int admitted = 0;
+        for (int i = 0; i < tries; i++) {
+            String filtered = control.filter(entry(bundle, level, "message " + i, i));
+            if (null == filtered) {
+                admitted++;
+            } else {
+                assertEquals(IGelfTransporter.FILTERED_RATE_LIMIT, filtered);
+            }
+        }
+        return admitted;
+    }
+
+    private static Map<String, Object> sinkConfig(final long windowMillis) {
+        Map<String, Object> config = new HashMap<>();
+        config.put(GelfLogSink.TRACE_ENABLE, false);
+        config.put(GelfLogSink.SYSLOG_LEVELS, false);
+        config.put(GelfLogSink.DISTINCT_FULL_MESSAGE, false);
+        config.put(GelfLogSink.STORM_DUPLICATE_WINDOW, windowMillis);
+        return config;
+    }
+
+    private static IGelfTransporter transporter(final List<GelfMessageSource> sent, final List<String> filtered) {
+        return (IGelfTransporter) Proxy.newProxyInstance(IGelfTransporter.class.getClassLoader(),
+            new Class<?>[] { IGelfTransporter.class },
+            (proxy, method, args) -> {
+                if ("logGelfMessageSource".equals(method.getName())) {
+                    sent.add((GelfMessageSource) args[0]);
+                } else if ("logFiltered".equals(method.getName())) {
+                    filtered.add((String) args[0]);
+                }
+                return null;
+            });
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.osgi.framework.Bundle;
+import org.osgi.service.log.LogEntry;
+
+/**
+ * Stand-ins for the framework objects the sink and its filters look at.
+ * Only the methods they call are answered, anything else throws.
+ */
+final class OsgiFakes {
+    private OsgiFakes() {
+    }
+
+    static Bundle bundle(final long id) {
+        return bundle(id, (String) null);
+    }
+
+    static Bundle bundle(final long id, final String name) {
+        return bundle(id, new AtomicReference<>(name));
+    }
+
+    /**
+     * @param name the symbolic name, which can be changed to stand in for
+     *     an updated bundle
+     */
+    static Bundle bundle(final long id, final AtomicReference<String> name) {
+        return (Bundle) Proxy.newProxyInstance(Bundle.class.getClassLoader(), new Class<?>[] { Bundle.class },
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getBundleId":
+                        return id;
+                    case "getSymbolicName":
+                        return name.get();
+                    case "hashCode":
+                        return Long.hashCode(id);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return name.get();
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+
+    static LogEntry entry(final Bundle bundle, final int level, final String message, final long time) {
+        return entry(bundle, level, message, null, time);
+    }
+
+    static LogEntry entry(final Bundle bundle, final int level, final String message,
+            final Throwable exception, final long time) {
+        return (LogEntry) Proxy.newProxyInstance(LogEntry.class.getClassLoader(), new Class<?>[] { LogEntry.class },
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getBundle":
+                        return bundle;
+                    case "getLevel":
+                        return level;
+                    case "getMessage":
+                        return message;
+                    case "getException":
+                        return exception;
+                    case "getTime":
+                        return time;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.pavlovmedia.oss.osgi.gelf.impl.FakeGraylogServer.Fault;
+import com.pavlovmedia.oss.osgi.gelf.impl.FakeGraylogServer.ProducerTracker;
+import com.pavlovmedia.oss.osgi.gelf.impl.GelfCircuitBreaker.State;
+import com.pavlovmedia.oss.osgi.gelf.impl.PavlovGelfClusterTransporter.Address;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessage;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessagePool;
+
+/**
+ * Runs the cluster transporter against two {@link FakeGraylogServer}s,
+ * taking one down to check the breaker, failover and rerouting.
+ */
+public class PavlovGelfClusterTransporterTest {
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private FakeGraylogServer first;
+    private FakeGraylogServer second;
+    private PavlovGelfClusterTransporter transporter;
+
+    @Before
+    public void setUp() throws Exception {
+        first = new FakeGraylogServer();
+        second = new FakeGraylogServer();
+        transporter = new PavlovGelfClusterTransporter();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        transporter.deactivate();
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void testFailoverAndBack() throws Exception {
+        transporter.activate(config("failover", 1));
+        send(0, 100);
+        assertTrue("delivered", awaitReceived(first, 100));
+        assertEquals(0, received(second));
+
+        first.inject(Fault.REFUSE, 1500, TimeUnit.MILLISECONDS);
+        first.closeConnections();
+        // Spread out so the breaker opens part way through
+        for (int sequence = 100; sequence < 200; sequence++) {
+            send(sequence, sequence + 1);
+            Thread.sleep(10);
+        }
+        assertEquals(State.OPEN, state(first));
+        assertTrue("failed over", awaitReceived(second, 1));
+
+        // Once the probe finds it again the first endpoint takes over
+        assertTrue("back in rotation", awaitState(first, State.CLOSED, State.HALF_OPEN));
+        assertTrue("flushed", transporter.flush(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        Thread.sleep(100);
+        long onSecond = received(second);
+        send(200, 300);
+        assertTrue("flushed", transporter.flush(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        assertTrue("all delivered", awaitReceived(300));
+        assertEquals(onSecond, received(second));
+        assertEquals(State.CLOSED, state(first));
+    }
+
+    @Test
+    public void testWeightedRouting() throws Exception {
+        Map<String, Object> config = config("weighted", 3);
+        config.put(PavlovGelfClusterTransporter.GRAYLOG_CLUSTER_ENDPOINTS, new String[] {
+                "127.0.0.1:" + first.getPort() + ":3", "127.0.0.1:" + second.getPort() + ":1" });
+        transporter.activate(config);
+        send(0, 4000);
+        assertTrue("flushed", transporter.flush(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue("delivered", awaitReceived(4000));
+
+        long onFirst = received(first);
+        // Three to one, well outside of chance
+        assertTrue("first got " + onFirst, onFirst > 2700 && onFirst < 3300);
+    }
+
+    @Test
+    public void testRerouteQueuedMessages() throws Exception {
+        first.inject(Fault.REFUSE, 3000, TimeUnit.MILLISECONDS);
+        transporter.activate(config("failover", 2));
+
+        // The first is taken by the sender, which then waits to reconnect
+        // and leaves the rest on the queue until the breaker opens
+        send(0, 1);
+        Thread.sleep(200);
+        send(1, 100);
+        assertEquals(0, received(second));
+
+        assertTrue("moved", awaitReceived(second, 99));
+        assertEquals(State.OPEN, state(first));
+        assertTrue("rerouted", transporter.getEndpointMetrics().get(0).getDropCount(GelfMetrics.DROP_REROUTED) > 0);
+
+        // The one the first endpoint held on to goes once it is back
+        assertTrue("held message", awaitReceived(first, 1));
+    }
+
+    @Test
+    public void testFanoutGetsEveryMessage() throws Exception {
+        Map<String, Object> config = config("failover", 1);
+        config.put(PavlovGelfClusterTransporter.GRAYLOG_CLUSTER_ENDPOINTS,
+                new String[] { "127.0.0.1:" + first.getPort() });
+        config.put(PavlovGelfClusterTransporter.GRAYLOG_CLUSTER_FANOUT,
+                new String[] { "127.0.0.1:" + second.getPort() });
+        transporter.activate(config);
+        send(0, 100);
+        assertTrue("delivered", awaitReceived(first, 100));
+        assertTrue("copied", awaitReceived(second, 100));
+        assertEquals(2, transporter.getEndpointStates().size());
+
+        // Idle long enough that the next write checks the connection first
+        second.inject(Fault.REFUSE, 1000, TimeUnit.MILLISECONDS);
+        second.closeConnections();
+        Thread.sleep(AbstractGelfTransporter.GRAYLOG_QUEUE_POLL_MILLIS + 100);
+        send(100, 101);
+        assertTrue("fan-out breaker opened", awaitState(second, State.OPEN));
+        assertTrue("fan-out breaker probed", awaitState(second, State.HALF_OPEN, State.CLOSED));
+        assertTrue("fan-out copy kept", awaitReceived(second, 101));
+    }
+
+    @Test
+    public void testFanoutRecyclesOriginal() throws Exception {
+        Map<String, Object> config = config("failover", 1);
+        config.put(PavlovGelfClusterTransporter.GRAYLOG_CLUSTER_ENDPOINTS,
+                new String[] { "127.0.0.1:" + first.getPort() });
+        config.put(PavlovGelfClusterTransporter.GRAYLOG_CLUSTER_FANOUT,
+                new String[] { "127.0.0.1:" + second.getPort() });
+        transporter.activate(config);
+
+        // All taken up front, so none is handed out again once recycled
+        GelfMessagePool pool = new GelfMessagePool(200);
+        List<GelfMessage> messages = new ArrayList<>();
+        for (int sequence = 0; sequence < 100; sequence++) {
+            messages.add(pool.acquire());
+        }
+        for (int sequence = 0; sequence < 100; sequence++) {
+            GelfMessage message = messages.get(sequence);
+            message.host = "test";
+            message.short_message = "load p=0 s=" + sequence;
+            message.timestamp = System.currentTimeMillis();
+            message.level = 6;
+            transporter.logGelfMessage(message);
+        }
+        assertTrue("delivered", awaitReceived(first, 100));
+        assertTrue("copied", awaitReceived(second, 100));
+
+        // Each original goes back once, whichever endpoint sent it. The last
+        // batch written is kept until stopping, in case it has to be sent again.
+        transporter.deactivate();
+        assertEquals(100, pool.size());
+    }
+
+    @Test
+    public void testAddressParse() {
+        Address plain = Address.parse(" graylog ", 12201).get();
+        assertEquals("graylog", plain.host);
+        assertEquals(12201, plain.port);
+        assertEquals(1, plain.weight);
+
+        Address full = Address.parse("graylog:1234:3", 12201).get();
+        assertEquals("graylog", full.host);
+        assertEquals(1234, full.port);
+        assertEquals(3, full.weight);
+
+        Address v6 = Address.parse("[fe80::1]:1234:2", 12201).get();
+        assertEquals("fe80::1", v6.host);
+        assertEquals(1234, v6.port);
+        assertEquals(2, v6.weight);
+        assertEquals("[fe80::1]:1234", v6.toString());
+        assertEquals(12201, Address.parse("[::1]", 12201).get().port);
+
+        for (String invalid : new String[] { "", ":1234", "::1", "[::1", "[::1]1234", "[]:1234",
+                "graylog:port", "graylog:1:2:3" }) {
+            assertFalse(invalid, Address.parse(invalid, 12201).isPresent());
+        }
+    }
+
+    @Test
+    public void testModifiedMovesToNewEndpoints() throws Exception {
+        Map<String, Object> config = config("failover", 1);
+        config.put(PavlovGelfClusterTransporter.GRAYLOG_CLUSTER_ENDPOINTS,
+                new String[] { "127.0.0.1:" + first.getPort() });
+        transporter.activate(config);
+        send(0, 10);
+        assertTrue("delivered", awaitReceived(first, 10));
+
+        config.put(PavlovGelfClusterTransporter.GRAYLOG_CLUSTER_ENDPOINTS,
+                new String[] { "127.0.0.1:" + second.getPort() });
+        transporter.modified(config);
+        send(10, 20);
+        assertTrue("moved", awaitReceived(second, 10));
+        assertEquals(10, received(first));
+        assertEquals(1, transporter.getEndpointStates().size());
+    }
+
+    @Test
+    public void testOnExceptionWhenTurnedAway() throws Exception {
+        first.inject(Fault.REFUSE, TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        Map<String, Object> config = config("failover", 1);
+        config.put(PavlovGelfClusterTransporter.GRAYLOG_CLUSTER_ENDPOINTS,
+                new String[] { "127.0.0.1:" + first.getPort() });
+        config.put(AbstractGelfTransporter.GRAYLOG_QUEUE_CAPACITY, 2);
+        config.put(AbstractGelfTransporter.GRAYLOG_QUEUE_OVERFLOW, "dropNewest");
+        transporter.activate(config);
+
+        send(0, 1);
+        Thread.sleep(200);
+        AtomicInteger failures = new AtomicInteger();
+        for (int sequence = 1; sequence < 10; sequence++) {
+            transporter.logGelfMessage(message(sequence), e -> failures.incrementAndGet());
+        }
+        assertEquals(7, failures.get());
+    }
+
+    private void send(final int from, final int to) {
+        for (int sequence = from; sequence < to; sequence++) {
+            transporter.logGelfMessage(message(sequence));
+        }
+    }
+
+    private static GelfMessage message(final int sequence) {
+        GelfMessage message = new GelfMessage();
+        message.host = "test";
+        message.short_message = "load p=0 s=" + sequence;
+        message.timestamp = System.currentTimeMillis();
+        message.level = 6;
+        return message;
+    }
+
+    private static long received(final FakeGraylogServer server) {
+        ProducerTracker tracker = server.getProducers().get(0);
+        return null == tracker ? 0 : tracker.getReceived();
+    }
+
+    private static boolean awaitReceived(final FakeGraylogServer server, final long expected)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (received(server) < expected) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private boolean awaitReceived(final long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (received(first) + received(second) < expected) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private State state(final FakeGraylogServer server) {
+        return transporter.getEndpointStates().get("127.0.0.1:" + server.getPort());
+    }
+
+    private boolean awaitState(final FakeGraylogServer server, final State... states) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (System.nanoTime() - deadline < 0) {
+            State current = state(server);
+            for (State state : states) {
+                if (state == current) {
+                    return true;
+                }
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    private Map<String, Object> config(final String policy, final int failureThreshold) {
+        List<String> endpoints = new ArrayList<>();
+        endpoints.add("127.0.0.1:" + first.getPort());
+        endpoints.add("127.0.0.1:" + second.getPort());
+
+        Map<String, Object> config = new HashMap<>();
+        config.put(AbstractGelfTransporter.GRAYLOG_ACTIVE, true);
+        config.put(AbstractGelfTransporter.GRAYLOG_PORT, first.getPort());
+        config.put(AbstractGelfTransporter.GRAYLOG_QUEUE_OVERFLOW, "block");
+        config.put(AbstractGelfTransporter.GRAYLOG_QUEUE_BLOCK_MILLIS, 10000);
+        // Small batches, so a failed connection holds back few messages
+        config.put(AbstractGelfTransporter.GRAYLOG_BATCH_BYTES, 1024);
+        config.put(PavlovGelfClusterTransporter.GRAYLOG_CLUSTER_ENDPOINTS, endpoints.toArray(new String[0]));
+        config.put(PavlovGelfClusterTransporter.GRAYLOG_CLUSTER_POLICY, policy);
+        config.put(PavlovGelfClusterTransporter.GRAYLOG_CLUSTER_FAILURE_THRESHOLD, failureThreshold);
+        config.put(PavlovGelfClusterTransporter.GRAYLOG_CLUSTER_OPEN_MILLIS, 300);
+        return config;
+    }
+}
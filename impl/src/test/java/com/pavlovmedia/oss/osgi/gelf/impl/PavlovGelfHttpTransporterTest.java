@@ -0,0 +1,285 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessage;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the HTTP transporter against an embedded {@link HttpServer} that
+ * answers with scripted statuses, and checks what each request carried.
+ */
+public class PavlovGelfHttpTransporterTest {
+    private static final long FLUSH_SECONDS = 10;
+
+    private HttpServer server;
+    /** Statuses to answer with, in order, 202 once they run out */
+    private final ConcurrentLinkedQueue<Integer> statuses = new ConcurrentLinkedQueue<>();
+    private final List<Request> requests = new CopyOnWriteArrayList<>();
+    /** Held by requests while set, to keep them in flight */
+    private volatile CountDownLatch hold;
+    private PavlovGelfHttpTransporter transporter;
+
+    /**
+     * One request as it arrived
+     */
+    private static final class Request {
+        final String encoding;
+        final byte[] body;
+
+        Request(final String encoding, final byte[] body) {
+            this.encoding = encoding;
+            this.body = body;
+        }
+
+        /**
+         * @return the short message of each newline separated message,
+         *     decoded if gzipped
+         */
+        List<String> messages() throws IOException {
+            InputStream in = new ByteArrayInputStream(body);
+            if ("gzip".equals(encoding)) {
+                in = new GZIPInputStream(in);
+            }
+            String text = new String(readAll(in), StandardCharsets.UTF_8);
+            List<String> messages = new ArrayList<>();
+            for (String json : text.split("\n")) {
+                if (!json.isEmpty()) {
+                    int start = json.indexOf("load p=0 s=");
+                    messages.add(json.substring(start, json.indexOf('"', start)));
+                }
+            }
+            return messages;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/gelf", this::onRequest);
+        server.start();
+        transporter = new PavlovGelfHttpTransporter();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        CountDownLatch held = hold;
+        if (null != held) {
+            held.countDown();
+        }
+        transporter.deactivate();
+        server.stop(0);
+    }
+
+    @Test
+    public void testBulkBatchesMessages() throws Exception {
+        transporter.activate(config(true, false));
+        send(0, 20);
+        assertTrue("flushed", transporter.flush(FLUSH_SECONDS, TimeUnit.SECONDS));
+
+        assertTrue("batched into " + requests.size(), requests.size() < 20);
+        assertEquals(sequences(0, 20), received());
+    }
+
+    @Test
+    public void testWithoutBulkOneMessagePerRequest() throws Exception {
+        transporter.activate(config(false, false));
+        send(0, 5);
+        assertTrue("flushed", transporter.flush(FLUSH_SECONDS, TimeUnit.SECONDS));
+
+        assertEquals(5, requests.size());
+        assertEquals(sequences(0, 5), received());
+    }
+
+    @Test
+    public void testGzipBodyDecodes() throws Exception {
+        transporter.activate(config(true, true));
+        send(0, 20);
+        assertTrue("flushed", transporter.flush(FLUSH_SECONDS, TimeUnit.SECONDS));
+
+        for (Request request : requests) {
+            assertEquals("gzip", request.encoding);
+        }
+        assertEquals(sequences(0, 20), received());
+    }
+
+    @Test
+    public void testRetriesOnServerErrorAndTooManyRequests() throws Exception {
+        statuses.addAll(Arrays.asList(503, 429));
+        transporter.activate(config(false, false));
+        send(0, 1);
+        assertTrue("flushed", transporter.flush(FLUSH_SECONDS, TimeUnit.SECONDS));
+
+        assertEquals(3, requests.size());
+        for (Request request : requests) {
+            assertEquals(Arrays.asList(message(0)), request.messages());
+        }
+        assertEquals(1, transporter.getMetrics().getSentCount());
+        assertEquals(0, transporter.getRetryDropCount());
+    }
+
+    @Test
+    public void testDropsAfterRetries() throws Exception {
+        statuses.addAll(Arrays.asList(500, 500, 500));
+        transporter.activate(config(false, false));
+        send(0, 1);
+        assertTrue("flushed", transporter.flush(FLUSH_SECONDS, TimeUnit.SECONDS));
+
+        assertEquals(3, requests.size());
+        assertEquals(0, transporter.getMetrics().getSentCount());
+        assertEquals(1, transporter.getRetryDropCount());
+    }
+
+    @Test
+    public void testDropsOnClientError() throws Exception {
+        statuses.add(400);
+        transporter.activate(config(false, false));
+        send(0, 2);
+        assertTrue("flushed", transporter.flush(FLUSH_SECONDS, TimeUnit.SECONDS));
+
+        // The first is turned away and not sent again, the second goes through
+        assertEquals(2, requests.size());
+        assertEquals(Arrays.asList(message(1)), requests.get(1).messages());
+        assertEquals(1, transporter.getMetrics().getDropCount(GelfMetrics.DROP_WRITE));
+        assertEquals(1, transporter.getMetrics().getSentCount());
+    }
+
+    @Test
+    public void testInFlightCountedOnShutdown() throws Exception {
+        hold = new CountDownLatch(1);
+        transporter.activate(config(false, false));
+        send(0, 1);
+        awaitRequests(1);
+
+        transporter.deactivate(200);
+        assertEquals(1, transporter.getMetrics().getDropCount(GelfMetrics.DROP_SHUTDOWN));
+        assertEquals(0, transporter.getMetrics().getDropCount(GelfMetrics.DROP_WRITE));
+    }
+
+    private void onRequest(final HttpExchange exchange) throws IOException {
+        try {
+            byte[] body;
+            try (InputStream in = exchange.getRequestBody()) {
+                body = readAll(in);
+            }
+            requests.add(new Request(exchange.getRequestHeaders().getFirst("Content-Encoding"), body));
+
+            CountDownLatch held = hold;
+            if (null != held) {
+                held.await(FLUSH_SECONDS, TimeUnit.SECONDS);
+            }
+            Integer status = statuses.poll();
+            exchange.sendResponseHeaders(null == status ? 202 : status, -1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void send(final int from, final int to) {
+        for (int sequence = from; sequence < to; sequence++) {
+            GelfMessage message = new GelfMessage();
+            message.host = "test";
+            message.short_message = message(sequence);
+            message.timestamp = System.currentTimeMillis();
+            message.level = 6;
+            transporter.logGelfMessage(message);
+        }
+    }
+
+    private static String message(final int sequence) {
+        return "load p=0 s=" + sequence;
+    }
+
+    /**
+     * @return the short messages of every message that arrived, in order
+     */
+    private List<String> received() throws IOException {
+        List<String> received = new ArrayList<>();
+        for (Request request : requests) {
+            received.addAll(request.messages());
+        }
+        return received;
+    }
+
+    private static List<String> sequences(final int from, final int to) {
+        List<String> messages = new ArrayList<>();
+        for (int sequence = from; sequence < to; sequence++) {
+            messages.add(message(sequence));
+        }
+        return messages;
+    }
+
+    private void awaitRequests(final int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(FLUSH_SECONDS);
+        while (requests.size() < expected && System.nanoTime() - deadline < 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private Map<String, Object> config(final boolean bulk, final boolean gzip) {
+        Map<String, Object> config = new HashMap<>();
+        config.put(AbstractGelfTransporter.GRAYLOG_ACTIVE, true);
+        config.put(AbstractGelfTransporter.GRAYLOG_HOST, "127.0.0.1");
+        config.put(AbstractGelfTransporter.GRAYLOG_PORT, server.getAddress().getPort());
+        config.put(AbstractGelfTransporter.GRAYLOG_BATCH_LINGER_MILLIS, 200);
+        config.put(AbstractGelfTransporter.GRAYLOG_RETRY_MAX_ATTEMPTS, 3);
+        config.put(PavlovGelfHttpTransporter.GRAYLOG_HTTP_BULK, bulk);
+        config.put(PavlovGelfHttpTransporter.GRAYLOG_HTTP_GZIP, gzip);
+        // One at a time keeps the requests in order
+        config.put(PavlovGelfHttpTransporter.GRAYLOG_HTTP_MAX_IN_FLIGHT, 1);
+        config.put(PavlovGelfHttpTransporter.GRAYLOG_HTTP_RETRY_MIN_MILLIS, 10);
+        config.put(PavlovGelfHttpTransporter.GRAYLOG_HTTP_RETRY_MAX_MILLIS, 50);
+        config.put(PavlovGelfHttpTransporter.GRAYLOG_HTTP_TIMEOUT_MILLIS, 2000);
+        return config;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.pavlovmedia.oss.osgi.gelf.impl.FakeGraylogServer.ProducerTracker;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessage;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessageSource;
+
+/**
+ * Runs the pooled transporter against a {@link FakeGraylogServer}, with
+ * each producer standing in for a bundle, and checks how messages are
+ * spread over the connections.
+ */
+public class PavlovGelfPooledTcpTransporterTest {
+    private static final int CONNECTIONS = 4;
+    private static final int BUNDLES = 8;
+    private static final int PER_BUNDLE = 250;
+    private static final long TIMEOUT_MILLIS = 20000;
+
+    private FakeGraylogServer server;
+    private PavlovGelfPooledTcpTransporter transporter;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeGraylogServer();
+        transporter = new PavlovGelfPooledTcpTransporter();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        transporter.deactivate();
+        server.close();
+    }
+
+    @Test
+    public void testBundleShardingKeepsOrder() throws Exception {
+        transporter.activate(config("bundle", CONNECTIONS));
+        for (int sequence = 0; sequence < PER_BUNDLE; sequence++) {
+            for (int bundle = 0; bundle < BUNDLES; bundle++) {
+                send(bundle, sequence);
+            }
+        }
+        assertTrue("flushed", transporter.flush(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertDelivered(PER_BUNDLE);
+
+        // Each bundle stays on one lane, so each lane has whole bundles
+        List<GelfMetrics> lanes = transporter.getConnectionMetrics();
+        assertEquals(CONNECTIONS, lanes.size());
+        for (GelfMetrics lane : lanes) {
+            assertEquals(BUNDLES / CONNECTIONS * PER_BUNDLE, lane.getSentCount());
+        }
+    }
+
+    @Test
+    public void testRoundRobinSpreads() throws Exception {
+        transporter.activate(config("roundRobin", CONNECTIONS));
+        for (int sequence = 0; sequence < PER_BUNDLE * BUNDLES; sequence++) {
+            send(0, sequence);
+        }
+        assertTrue("flushed", transporter.flush(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        assertTrue("delivered", awaitReceived(0, PER_BUNDLE * BUNDLES));
+        assertEquals(0, server.getProducers().get(0).getDuplicates());
+        for (GelfMetrics lane : transporter.getConnectionMetrics()) {
+            assertEquals(PER_BUNDLE * BUNDLES / CONNECTIONS, lane.getSentCount());
+        }
+        assertEquals(CONNECTIONS, server.getConnectionsAccepted());
+    }
+
+    @Test
+    public void testConnectionCountChangeKeepsMessages() throws Exception {
+        Map<String, Object> config = config("bundle", CONNECTIONS);
+        transporter.activate(config);
+        Thread producer = new Thread(() -> {
+            for (int sequence = 0; sequence < PER_BUNDLE; sequence++) {
+                for (int bundle = 0; bundle < BUNDLES; bundle++) {
+                    send(bundle, sequence);
+                }
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        });
+        producer.start();
+
+        // Part way through the lanes are replaced
+        Thread.sleep(100);
+        config.put(PavlovGelfPooledTcpTransporter.GRAYLOG_POOL_CONNECTIONS, 2);
+        transporter.modified(config);
+        assertEquals(2, transporter.getConnectionMetrics().size());
+
+        producer.join(TIMEOUT_MILLIS);
+        assertTrue("flushed", transporter.flush(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        for (int bundle = 0; bundle < BUNDLES; bundle++) {
+            assertTrue("delivered " + bundle, awaitReceived(bundle, PER_BUNDLE));
+            assertEquals("duplicates", 0, server.getProducers().get(bundle).getDuplicates());
+        }
+        assertEquals(CONNECTIONS + 2, server.getConnectionsAccepted());
+    }
+
+    private void assertDelivered(final int perBundle) throws InterruptedException {
+        for (int bundle = 0; bundle < BUNDLES; bundle++) {
+            assertTrue("delivered " + bundle, awaitReceived(bundle, perBundle));
+            ProducerTracker tracker = server.getProducers().get(bundle);
+            assertEquals("reordered", 0, tracker.getReordered());
+            assertEquals("duplicates", 0, tracker.getDuplicates());
+        }
+    }
+
+    /**
+     * Flushing only means the lanes wrote, the server may still be reading
+     */
+    private boolean awaitReceived(final int bundle, final long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (System.nanoTime() - deadline < 0) {
+            ProducerTracker tracker = server.getProducers().get(bundle);
+            if (null != tracker && tracker.getReceived() >= expected) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    /**
+     * Sends one message, ordered by the bundle id the way the sink orders them
+     */
+    private void send(final int bundle, final int sequence) {
+        GelfMessage message = new GelfMessage();
+        message.host = "test";
+        message.short_message = "load p=" + bundle + " s=" + sequence;
+        message.timestamp = System.currentTimeMillis();
+        message.level = 6;
+        transporter.logGelfMessageSource(new GelfMessageSource() {
+            @Override
+            public int getLevel() {
+                return message.level;
+            }
+
+            @Override
+            public long getOrderingKey() {
+                return bundle;
+            }
+
+            @Override
+            public GelfMessage toGelfMessage() {
+                return message;
+            }
+        });
+    }
+
+    private Map<String, Object> config(final String sharding, final int connections) {
+        Map<String, Object> config = new HashMap<>();
+        config.put(AbstractGelfTransporter.GRAYLOG_ACTIVE, true);
+        config.put(AbstractGelfTransporter.GRAYLOG_HOST, "127.0.0.1");
+        config.put(AbstractGelfTransporter.GRAYLOG_PORT, server.getPort());
+        config.put(AbstractGelfTransporter.GRAYLOG_QUEUE_OVERFLOW, "block");
+        config.put(AbstractGelfTransporter.GRAYLOG_QUEUE_BLOCK_MILLIS, 10000);
+        config.put(PavlovGelfPooledTcpTransporter.GRAYLOG_POOL_CONNECTIONS, connections);
+        config.put(PavlovGelfPooledTcpTransporter.GRAYLOG_POOL_SHARDING, sharding);
+        return config;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.pavlovmedia.oss.osgi.gelf.impl.FakeGraylogServer.Fault;
+import com.pavlovmedia.oss.osgi.gelf.impl.FakeGraylogServer.ProducerTracker;
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessage;
+
+/**
+ * Runs the TCP transporter against a {@link FakeGraylogServer} that
+ * misbehaves part way through, and checks every message still arrives
+ * once, in order.
+ */
+public class PavlovGelfTcpTransporterTest {
+    private static final int MESSAGES = 2000;
+    private static final long FAULT_MILLIS = 1500;
+    private static final long DELIVERY_TIMEOUT_MILLIS = 20000;
+
+    private FakeGraylogServer server;
+    private PavlovGelfTcpTransporter transporter;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeGraylogServer();
+        transporter = new PavlovGelfTcpTransporter();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        transporter.deactivate();
+        server.close();
+    }
+
+    @Test
+    public void testAcceptThenClose() throws Exception {
+        sendThroughFault(Fault.ACCEPT_THEN_CLOSE);
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        sendThroughFault(Fault.RESET);
+    }
+
+    @Test
+    public void testRefusedPort() throws Exception {
+        sendThroughFault(Fault.REFUSE);
+    }
+
+    @Test
+    public void testRefusedAtStart() throws Exception {
+        server.inject(Fault.REFUSE, FAULT_MILLIS, TimeUnit.MILLISECONDS);
+        transporter.activate(config());
+        send(0, MESSAGES, 0);
+        assertDelivered(MESSAGES);
+    }
+
+    @Test
+    public void testEndpointSwitchMidStream() throws Exception {
+        try (FakeGraylogServer next = new FakeGraylogServer()) {
+            Map<String, Object> config = config();
+            transporter.activate(config);
+            send(0, MESSAGES / 2, 0);
+
+            // Logging carries on while the old connection is drained
+            config.put(AbstractGelfTransporter.GRAYLOG_PORT, next.getPort());
+            transporter.modified(config);
+            send(MESSAGES / 2, MESSAGES, 1);
+            assertTrue("flushed", transporter.flush(DELIVERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            awaitReceived(next, MESSAGES - received(server));
+
+            ProducerTracker first = server.getProducers().get(0);
+            ProducerTracker second = next.getProducers().get(0);
+            assertTrue("nothing before the switch", null != first);
+            assertTrue("nothing after the switch", null != second);
+            assertEquals("lost", MESSAGES, first.getReceived() + second.getReceived());
+            assertEquals(0, first.getLowest());
+            assertEquals("split", first.getHighest() + 1, second.getLowest());
+            assertEquals(MESSAGES - 1, second.getHighest());
+            for (ProducerTracker tracker : new ProducerTracker[] { first, second }) {
+                assertEquals("reordered", 0, tracker.getReordered());
+                assertEquals("duplicates", 0, tracker.getDuplicates());
+            }
+            assertEquals(1, next.getConnectionsAccepted());
+        }
+    }
+
+    @Test
+    public void testLiveChangeKeepsConnection() throws Exception {
+        Map<String, Object> config = config();
+        transporter.activate(config);
+        send(0, MESSAGES / 2, 0);
+        awaitReceived(MESSAGES / 2);
+
+        config.put(AbstractGelfTransporter.GRAYLOG_LOG_CONSOLE, true);
+        transporter.modified(config);
+        send(MESSAGES / 2, MESSAGES, 0);
+        assertDelivered(MESSAGES);
+        assertEquals("reconnected", 1, server.getConnectionsAccepted());
+    }
+
+    /**
+     * Sends half the messages over a working connection, then the rest
+     * while the fault is in effect and after it ends
+     */
+    private void sendThroughFault(final Fault fault) throws Exception {
+        transporter.activate(config());
+        send(0, MESSAGES / 2, 0);
+        awaitReceived(MESSAGES / 2);
+
+        server.inject(fault, FAULT_MILLIS, TimeUnit.MILLISECONDS);
+        server.closeConnections();
+        // Spread over about twice the fault, so some go out while it lasts
+        send(MESSAGES / 2, MESSAGES, FAULT_MILLIS * 2 / (MESSAGES / 2));
+        assertDelivered(MESSAGES);
+        assertTrue("reconnected", server.getConnectionsAccepted() > 1);
+    }
+
+    private void send(final int from, final int to, final long pauseMillis) throws InterruptedException {
+        for (int sequence = from; sequence < to; sequence++) {
+            GelfMessage message = new GelfMessage();
+            message.host = "test";
+            message.short_message = "load p=0 s=" + sequence;
+            message.timestamp = System.currentTimeMillis();
+            message.level = 6;
+            transporter.logGelfMessage(message);
+            if (pauseMillis > 0) {
+                Thread.sleep(pauseMillis);
+            }
+        }
+    }
+
+    private void assertDelivered(final int expected) throws InterruptedException {
+        awaitReceived(expected);
+        ProducerTracker tracker = server.getProducers().get(0);
+        assertEquals("lost", expected, null == tracker ? 0 : tracker.getReceived());
+        assertEquals("reordered", 0, tracker.getReordered());
+        assertEquals("dropped after retries", 0, transporter.getRetryDropCount());
+    }
+
+    private void awaitReceived(final long expected) throws InterruptedException {
+        awaitReceived(server, expected);
+    }
+
+    private static void awaitReceived(final FakeGraylogServer target, final long expected)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DELIVERY_TIMEOUT_MILLIS);
+        while (System.nanoTime() - deadline < 0) {
+            if (received(target) >= expected) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static long received(final FakeGraylogServer target) {
+        ProducerTracker tracker = target.getProducers().get(0);
+        return null == tracker ? 0 : tracker.getReceived();
+    }
+
+    private Map<String, Object> config() {
+        Map<String, Object> config = new HashMap<>();
+        config.put(AbstractGelfTransporter.GRAYLOG_ACTIVE, true);
+        config.put(AbstractGelfTransporter.GRAYLOG_HOST, "127.0.0.1");
+        config.put(AbstractGelfTransporter.GRAYLOG_PORT, server.getPort());
+        config.put(AbstractGelfTransporter.GRAYLOG_QUEUE_OVERFLOW, "block");
+        config.put(AbstractGelfTransporter.GRAYLOG_QUEUE_BLOCK_MILLIS, 10000);
+        return config;
+    }
+}
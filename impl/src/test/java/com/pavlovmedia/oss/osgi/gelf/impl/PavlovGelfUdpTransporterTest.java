@@ -0,0 +1,236 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.pavlovmedia.oss.osgi.gelf.lib.GelfMessage;
+
+/**
+ * Receives what the UDP transporter sends on a local channel, and checks
+ * the chunk framing and the compressed payloads.
+ */
+public class PavlovGelfUdpTransporterTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+    /** Small enough that a few kilobytes take several chunks */
+    private static final int CHUNK_SIZE = 100;
+
+    private DatagramChannel receiver;
+    private PavlovGelfUdpTransporter transporter;
+
+    @Before
+    public void setUp() throws Exception {
+        receiver = DatagramChannel.open();
+        receiver.bind(new InetSocketAddress("127.0.0.1", 0));
+        receiver.configureBlocking(false);
+        transporter = new PavlovGelfUdpTransporter();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        transporter.deactivate();
+        receiver.close();
+    }
+
+    @Test
+    public void testSmallMessageIsOneDatagram() throws Exception {
+        transporter.activate(config("none", 8192));
+        send("hello");
+
+        byte[] datagram = receive();
+        String json = new String(datagram, StandardCharsets.UTF_8);
+        assertTrue(json, json.startsWith("{") && json.contains("\"short_message\":\"hello\""));
+        assertEquals(0, receiveAll(200).size());
+    }
+
+    @Test
+    public void testChunkFraming() throws Exception {
+        transporter.activate(config("none", CHUNK_SIZE));
+        String text = randomText(2000);
+        send(text);
+
+        List<byte[]> chunks = receiveAll(500);
+        int count = chunks.size();
+        assertTrue("chunks " + count, count > 1);
+        long messageId = ByteBuffer.wrap(chunks.get(0), 2, 8).getLong();
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (int sequence = 0; sequence < count; sequence++) {
+            byte[] chunk = chunks.get(sequence);
+            assertTrue(chunk.length <= CHUNK_SIZE);
+            assertEquals(PavlovGelfUdpTransporter.GELF_CHUNK_MAGIC_1, chunk[0]);
+            assertEquals(PavlovGelfUdpTransporter.GELF_CHUNK_MAGIC_2, chunk[1]);
+            assertEquals(messageId, ByteBuffer.wrap(chunk, 2, 8).getLong());
+            assertEquals(sequence, chunk[10]);
+            assertEquals(count, chunk[11]);
+            payload.write(chunk, PavlovGelfUdpTransporter.GELF_CHUNK_HEADER_SIZE,
+                    chunk.length - PavlovGelfUdpTransporter.GELF_CHUNK_HEADER_SIZE);
+        }
+        assertTrue(new String(payload.toByteArray(), StandardCharsets.UTF_8).contains(text));
+    }
+
+    @Test
+    public void testTooManyChunksDropped() throws Exception {
+        transporter.activate(config("none", CHUNK_SIZE));
+        int chunkPayload = CHUNK_SIZE - PavlovGelfUdpTransporter.GELF_CHUNK_HEADER_SIZE;
+        send(randomText(PavlovGelfUdpTransporter.GELF_MAX_CHUNKS * chunkPayload));
+        assertTrue("flushed", transporter.flush(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        assertEquals(0, receiveAll(200).size());
+        assertEquals(1, transporter.getMetrics().getDropCount(GelfMetrics.DROP_TOO_LARGE));
+
+        // The next one still goes
+        send("after");
+        assertTrue(new String(receive(), StandardCharsets.UTF_8).contains("after"));
+    }
+
+    @Test
+    public void testGzipAndZlibDecodeToFrame() throws Exception {
+        String text = randomText(3000);
+        byte[] plain = reassembled("none", text);
+        assertTrue(new String(plain, StandardCharsets.UTF_8).contains(text));
+
+        byte[] gzip = reassembled("gzip", text);
+        assertEquals(0x1f, gzip[0] & 0xff);
+        assertEquals(0x8b, gzip[1] & 0xff);
+        assertEquals(new String(plain, StandardCharsets.UTF_8),
+                new String(readAll(new GZIPInputStream(new ByteArrayInputStream(gzip))), StandardCharsets.UTF_8));
+
+        byte[] zlib = reassembled("zlib", text);
+        assertEquals(0x78, zlib[0] & 0xff);
+        assertEquals(new String(plain, StandardCharsets.UTF_8),
+                new String(readAll(new InflaterInputStream(new ByteArrayInputStream(zlib))), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends a message with a fresh transporter and puts its chunks back together
+     */
+    private byte[] reassembled(final String compression, final String text) throws Exception {
+        transporter.deactivate();
+        transporter = new PavlovGelfUdpTransporter();
+        transporter.activate(config(compression, CHUNK_SIZE));
+        send(text);
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        List<byte[]> chunks = receiveAll(500);
+        for (byte[] chunk : chunks) {
+            if (chunks.size() > 1) {
+                payload.write(chunk, PavlovGelfUdpTransporter.GELF_CHUNK_HEADER_SIZE,
+                        chunk.length - PavlovGelfUdpTransporter.GELF_CHUNK_HEADER_SIZE);
+            } else {
+                payload.write(chunk);
+            }
+        }
+        return payload.toByteArray();
+    }
+
+    private void send(final String text) {
+        GelfMessage message = new GelfMessage();
+        message.host = "test";
+        message.short_message = text;
+        message.timestamp = 1000;
+        message.level = 6;
+        transporter.logGelfMessage(message);
+    }
+
+    private byte[] receive() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (null == receiver.receive(buffer)) {
+            assertTrue("nothing received", System.nanoTime() - deadline < 0);
+            Thread.sleep(5);
+        }
+        buffer.flip();
+        byte[] datagram = new byte[buffer.remaining()];
+        buffer.get(datagram);
+        return datagram;
+    }
+
+    /**
+     * @return every datagram until none arrives for the quiet time
+     */
+    private List<byte[]> receiveAll(final long quietMillis) throws Exception {
+        List<byte[]> datagrams = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        long quietUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(quietMillis);
+        while (System.nanoTime() - quietUntil < 0) {
+            buffer.clear();
+            if (null == receiver.receive(buffer)) {
+                Thread.sleep(5);
+                continue;
+            }
+            buffer.flip();
+            byte[] datagram = new byte[buffer.remaining()];
+            buffer.get(datagram);
+            datagrams.add(datagram);
+            quietUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(quietMillis);
+        }
+        return datagrams;
+    }
+
+    /**
+     * @return letters that compress poorly, so the payload still needs chunking
+     */
+    private static String randomText(final int length) {
+        Random random = new Random(length);
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append((char) ('a' + random.nextInt(26)));
+        }
+        return text.toString();
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private Map<String, Object> config(final String compression, final int chunkSize) throws IOException {
+        Map<String, Object> config = new HashMap<>();
+        config.put(AbstractGelfTransporter.GRAYLOG_ACTIVE, true);
+        config.put(AbstractGelfTransporter.GRAYLOG_HOST, "127.0.0.1");
+        config.put(AbstractGelfTransporter.GRAYLOG_PORT, ((InetSocketAddress) receiver.getLocalAddress()).getPort());
+        config.put(PavlovGelfUdpTransporter.GRAYLOG_UDP_COMPRESSION, compression);
+        config.put(PavlovGelfUdpTransporter.GRAYLOG_UDP_CHUNK_SIZE, chunkSize);
+        return config;
+    }
+}
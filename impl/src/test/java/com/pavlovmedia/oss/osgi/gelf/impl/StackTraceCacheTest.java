@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks rendered traces against {@link Throwable#printStackTrace()}, and
+ * that the cache only hands back a trace whose details match.
+ */
+public class StackTraceCacheTest {
+    private final StackTraceCache cache = new StackTraceCache(16, 0, 0);
+
+    @Test
+    public void testNestedCauses() {
+        Exception inner = new RuntimeException("inner");
+        Exception middle = new IllegalStateException("middle", inner);
+        Exception outer = new IOException("outer", middle);
+
+        assertEquals(printed(outer), cache.render(outer).getTrace());
+    }
+
+    @Test
+    public void testSuppressed() {
+        Exception outer = new IOException("outer", new RuntimeException("cause"));
+        Exception suppressed = new IllegalArgumentException("suppressed", new IllegalStateException("nested"));
+        suppressed.addSuppressed(new RuntimeException("deeper"));
+        outer.addSuppressed(suppressed);
+        outer.getCause().addSuppressed(new RuntimeException("on the cause"));
+
+        assertEquals(printed(outer), cache.render(outer).getTrace());
+    }
+
+    @Test
+    public void testCycle() {
+        Exception first = new IOException("first");
+        Exception second = new IllegalStateException("second", first);
+        first.initCause(second);
+
+        // The circular reference line differs between JDKs, the rest does not
+        String[] expected = printed(first).split("\n");
+        String[] actual = cache.render(first).getTrace().split("\n");
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i].contains("CIRCULAR REFERENCE")) {
+                assertTrue(actual[i], actual[i].contains("[CIRCULAR REFERENCE: " + first + "]"));
+            } else {
+                assertEquals(expected[i], actual[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testSameFingerprintDifferentMessage() {
+        List<Exception> thrown = new ArrayList<>();
+        for (String message : new String[] { "first", "second", "first" }) {
+            thrown.add(new IllegalStateException(message));
+        }
+
+        StackTraceCache.Rendered first = cache.render(thrown.get(0));
+        StackTraceCache.Rendered second = cache.render(thrown.get(1));
+        assertEquals(first.getFingerprint(), second.getFingerprint());
+        assertEquals(printed(thrown.get(1)), second.getTrace());
+        assertNotEquals(first.getTrace(), second.getTrace());
+
+        // The newest rendering is the one kept, and reused while it matches
+        assertSame(second, cache.render(thrown.get(1)));
+        assertEquals(printed(thrown.get(2)), cache.render(thrown.get(2)).getTrace());
+    }
+
+    @Test
+    public void testDifferentFramesDifferentFingerprint() {
+        Exception here = new IllegalStateException("same");
+        Exception there = thrownElsewhere();
+
+        assertNotEquals(cache.render(here).getFingerprint(), cache.render(there).getFingerprint());
+    }
+
+    private static Exception thrownElsewhere() {
+        return new IllegalStateException("same");
+    }
+
+    private static String printed(final Throwable exception) {
+        StringWriter out = new StringWriter();
+        try (PrintWriter writer = new PrintWriter(out)) {
+            exception.printStackTrace(writer);
+        }
+        return out.toString().replace(System.lineSeparator(), "\n");
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.lib;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A message's own additional fields, kept in parallel name and value arrays
+ * in the order they were added. A message usually has only a few, so a
+ * lookup is a scan; past {@link #INDEXED_SIZE} fields an index is kept too.
+ * Clearing keeps the arrays, so a recycled message adds fields without
+ * allocating.
+ *
+ * It is a {@link Map} so code written against the old HashMap keeps working,
+ * the encoder reads it through {@link #name(int)} and {@link #value(int)}.
+ * A field put with a null name is ignored rather than failing the caller,
+ * Graylog has no name to give it. Not thread safe, like the message it
+ * belongs to.
+ */
+public class GelfFields extends AbstractMap<String, String> {
+    /** Fields above which lookups go through a hash index */
+    static final int INDEXED_SIZE = 16;
+
+    private String[] names;
+    private String[] values;
+    private int size;
+    /** Name to position, only kept while there are more than INDEXED_SIZE fields */
+    private Map<String, Integer> index;
+
+    public GelfFields() {
+        this(4);
+    }
+
+    /**
+     * @param capacity fields to make room for, it grows as needed
+     */
+    public GelfFields(final int capacity) {
+        names = new String[Math.max(1, capacity)];
+        values = new String[names.length];
+    }
+
+    /**
+     * @return the name of the field at a position, from 0 to size() - 1
+     */
+    public String name(final int position) {
+        return names[position];
+    }
+
+    /**
+     * @return the value of the field at a position, from 0 to size() - 1
+     */
+    public String value(final int position) {
+        return values[position];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(final Object name) {
+        return indexOf(name) >= 0;
+    }
+
+    @Override
+    public String get(final Object name) {
+        int position = indexOf(name);
+        return position < 0 ? null : values[position];
+    }
+
+    @Override
+    public String put(final String name, final String value) {
+        if (null == name) {
+            return null;
+        }
+        int position = indexOf(name);
+        if (position >= 0) {
+            String previous = values[position];
+            values[position] = value;
+            return previous;
+        }
+
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        names[size] = name;
+        values[size] = value;
+        if (null != index) {
+            index.put(name, size);
+        }
+        size++;
+        if (null == index && size > INDEXED_SIZE) {
+            buildIndex();
+        }
+        return null;
+    }
+
+    @Override
+    public String remove(final Object name) {
+        int position = indexOf(name);
+        if (position < 0) {
+            return null;
+        }
+        String previous = values[position];
+        removeAt(position);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+        index = null;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private int indexOf(final Object name) {
+        if (null != index) {
+            Integer position = index.get(name);
+            return null == position ? -1 : position;
+        }
+        for (int i = 0; i < size; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void removeAt(final int position) {
+        int moved = size - position - 1;
+        System.arraycopy(names, position + 1, names, position, moved);
+        System.arraycopy(values, position + 1, values, position, moved);
+        size--;
+        names[size] = null;
+        values[size] = null;
+        if (null != index) {
+            if (size > INDEXED_SIZE) {
+                buildIndex();
+            } else {
+                index = null;
+            }
+        }
+    }
+
+    private void buildIndex() {
+        index = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            index.put(names[i], i);
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<String, String>> {
+        private int next;
+        private int last = -1;
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            final int position = last;
+            return new AbstractMap.SimpleEntry<String, String>(names[position], values[position]) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public String setValue(final String value) {
+                    values[position] = value;
+                    return super.setValue(value);
+                }
+            };
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            removeAt(last);
+            next = last;
+            last = -1;
+        }
+    }
+}
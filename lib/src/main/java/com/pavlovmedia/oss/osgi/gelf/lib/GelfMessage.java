@@ -15,19 +15,26 @@
  */
 package com.pavlovmedia.oss.osgi.gelf.lib;
 
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
+import java.util.function.BiConsumer;
 
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
 /**
  * Class representation of a GELF message. Used with the GelfMessageSerializer
  * to get the JSON needed for a GELF packet
+ * 
+ * The fields come from three places, none of them copied into another:
+ * the message's own {@link #additionalFields}, {@link #sharedFields} for
+ * each bundle and {@link #staticFields} configured on the transporter.
+ * A message taken from a {@link GelfMessagePool} goes back to it with
+ * {@link #recycle()} once it has been written.
  * @author Shawn Dempsay
  *
  */
 @JsonSerialize(using=GelfMessageSerializer.class)
-public class GelfMessage {
+public class GelfMessage implements GelfMessageSource {
 	public final String version = "1.1";
 	public String host;
 	@SuppressWarnings("checkstyle:membername")
@@ -38,6 +45,104 @@ public class GelfMessage {
 	/** Milliseconds since UNIX epoch */
 	public long timestamp;
 	public int level;
-	public Map<String,String> additionalFields = new HashMap<>();
+	/** The message's own fields, a {@link GelfFields} unless replaced */
+	public Map<String,String> additionalFields = new GelfFields();
+	
+	/**
+	 * Fields shared by many messages, like the sending bundle's headers.
+	 * This map is never modified, a key in additionalFields takes its place.
+	 */
+	public Map<String,String> sharedFields = Collections.emptyMap();
+	
+	/**
+	 * Fields the transporter adds to every message. This map is never
+	 * modified, and its keys take the place of the same keys in the others.
+	 * The encoder keeps the bytes for the last map it saw, so changed
+	 * fields need a new map.
+	 */
+	public Map<String,String> staticFields = Collections.emptyMap();
+	
+	/** The pool this message goes back to, null if it was made directly */
+	GelfMessagePool pool;
+	/** Set while the message is idle in its pool */
+	boolean pooled;
+	
+	@Override
+	public int getLevel() {
+		return level;
+	}
+	
+	@Override
+	public GelfMessage toGelfMessage() {
+		return this;
+	}
+	
+	/**
+	 * Hands each field that is sent to the consumer, skipping null values
+	 * and keys that another map takes the place of. The shared fields come
+	 * first, then the message's own, then the static ones.
+	 * @param consumer takes the name, without the leading underscore, and value
+	 */
+	public void forEachField(final BiConsumer<String, String> consumer) {
+		for (Map.Entry<String, String> field : sharedFields.entrySet()) {
+			if (null != field.getValue() && !additionalFields.containsKey(field.getKey())
+					&& !staticFields.containsKey(field.getKey())) {
+				consumer.accept(field.getKey(), field.getValue());
+			}
+		}
+		for (Map.Entry<String, String> field : additionalFields.entrySet()) {
+			if (null != field.getValue() && !staticFields.containsKey(field.getKey())) {
+				consumer.accept(field.getKey(), field.getValue());
+			}
+		}
+		for (Map.Entry<String, String> field : staticFields.entrySet()) {
+			if (null != field.getValue()) {
+				consumer.accept(field.getKey(), field.getValue());
+			}
+		}
+	}
+	
+	/**
+	 * @return a copy with its own fields copied and the shared maps shared,
+	 *     not from any pool
+	 */
+	public GelfMessage copy() {
+		GelfMessage copy = new GelfMessage();
+		copy.host = host;
+		copy.short_message = short_message;
+		copy.full_message = full_message;
+		copy.timestamp = timestamp;
+		copy.level = level;
+		copy.additionalFields.putAll(additionalFields);
+		copy.sharedFields = sharedFields;
+		copy.staticFields = staticFields;
+		return copy;
+	}
+	
+	/**
+	 * Clears the message and returns it to the pool it came from. Nothing
+	 * may use it afterwards. A message that did not come from a pool, or
+	 * was already recycled, is left alone.
+	 */
+	public void recycle() {
+		GelfMessagePool owner = pool;
+		if (null == owner || pooled) {
+			return;
+		}
+		pooled = true;
+		host = null;
+		short_message = null;
+		full_message = null;
+		timestamp = 0;
+		level = 0;
+		if (additionalFields instanceof GelfFields) {
+			additionalFields.clear();
+		} else {
+			additionalFields = new GelfFields();
+		}
+		sharedFields = Collections.emptyMap();
+		staticFields = Collections.emptyMap();
+		owner.release(this);
+	}
 	
 }
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.lib;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A streaming JSON encoder for GelfMessage that writes straight into a
+ * reusable buffer. It produces exactly the same bytes as
+ * {@link GelfMessageSerializer} without going through Jackson, so encoding a
+ * message does not allocate once the buffer has grown to size. The version
+ * and host, and the transporter's static fields, are encoded once and
+ * copied into each message as bytes.
+ *
+ * An encoder is not thread safe, each sending thread should have its own.
+ */
+public class GelfMessageEncoder {
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] VERSION_PREFIX = ascii("{\"version\":\"1.1\"");
+    private static final byte[] HOST = ascii(",\"host\":");
+    private static final byte[] SHORT_MESSAGE = ascii(",\"short_message\":");
+    private static final byte[] FULL_MESSAGE = ascii(",\"full_message\":");
+    private static final byte[] TIMESTAMP = ascii(",\"timestamp\":");
+    private static final byte[] LEVEL = ascii(",\"level\":");
+
+    /** Chars escaped per buffer check, a char needs at most six bytes */
+    private static final int SEGMENT_CHARS = 1024;
+
+    /** Escaped field names, shared between encoders */
+    private static final Map<String, byte[]> FIELD_NAMES = new ConcurrentHashMap<>();
+    private static final int FIELD_NAME_CACHE_LIMIT = 1024;
+
+    private byte[] buffer;
+    private ByteBuffer view;
+    private int position;
+
+    private String prefixHost;
+    private byte[] prefix;
+
+    private Map<String, String> suffixFields;
+    private byte[] suffix;
+
+    public GelfMessageEncoder() {
+        this(8192);
+    }
+
+    /**
+     * @param initialCapacity starting size of the buffer, it grows as needed
+     */
+    public GelfMessageEncoder(final int initialCapacity) {
+        buffer = new byte[Math.max(256, initialCapacity)];
+        view = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Encodes a message as GELF JSON
+     * @param message the message to encode
+     * @return a buffer holding the JSON, only valid until the next call
+     */
+    public ByteBuffer encode(final GelfMessage message) {
+        position = 0;
+
+        write(hostPrefix(message.host));
+        writeField(SHORT_MESSAGE, message.short_message);
+        writeField(FULL_MESSAGE, message.full_message);
+        write(TIMESTAMP);
+        writeTimestamp(message.timestamp);
+        write(LEVEL);
+        writeLong(message.level);
+        Map<String, String> own = message.additionalFields;
+        Map<String, String> statics = message.staticFields;
+        for (Map.Entry<String, String> field : message.sharedFields.entrySet()) {
+            if (null != field.getValue() && !own.containsKey(field.getKey()) && !statics.containsKey(field.getKey())) {
+                writeField(field.getKey(), field.getValue());
+            }
+        }
+        if (own instanceof GelfFields) {
+            // Read by position, no iterator or entries
+            GelfFields fields = (GelfFields) own;
+            for (int i = 0; i < fields.size(); i++) {
+                if (null != fields.value(i) && !statics.containsKey(fields.name(i))) {
+                    writeField(fields.name(i), fields.value(i));
+                }
+            }
+        } else {
+            for (Map.Entry<String, String> field : own.entrySet()) {
+                if (null != field.getValue() && !statics.containsKey(field.getKey())) {
+                    writeField(field.getKey(), field.getValue());
+                }
+            }
+        }
+        if (!statics.isEmpty()) {
+            write(staticSuffix(statics));
+        }
+        ensure(1);
+        buffer[position++] = '}';
+
+        view.clear();
+        view.limit(position);
+        return view;
+    }
+
+    /**
+     * @return the version and host fields, encoded once per host
+     */
+    private byte[] hostPrefix(final String host) {
+        if (null == prefix || (host != prefixHost && (null == host || !host.equals(prefixHost)))) {
+            int start = position;
+            write(VERSION_PREFIX);
+            writeField(HOST, host);
+            ensure(0);
+            byte[] encoded = new byte[position - start];
+            System.arraycopy(buffer, start, encoded, 0, encoded.length);
+            position = start;
+            prefix = encoded;
+            prefixHost = host;
+        }
+        return prefix;
+    }
+
+    /**
+     * The static fields are the same map for every message until the
+     * configuration changes, so they are encoded once per map
+     *
+     * @return the static fields, encoded
+     */
+    private byte[] staticSuffix(final Map<String, String> statics) {
+        if (statics != suffixFields) {
+            int start = position;
+            for (Map.Entry<String, String> field : statics.entrySet()) {
+                if (null != field.getValue()) {
+                    writeField(field.getKey(), field.getValue());
+                }
+            }
+            ensure(0);
+            byte[] encoded = new byte[position - start];
+            System.arraycopy(buffer, start, encoded, 0, encoded.length);
+            position = start;
+            suffix = encoded;
+            suffixFields = statics;
+        }
+        return suffix;
+    }
+
+    /**
+     * Writes a name and string value, or nothing if the value is null
+     */
+    private void writeField(final byte[] name, final String value) {
+        if (null != value) {
+            write(name);
+            writeString(value);
+        }
+    }
+
+    /**
+     * Writes an additional field, the name gets its leading underscore
+     */
+    private void writeField(final String name, final String value) {
+        write(fieldName(name));
+        writeString(value);
+    }
+
+    /**
+     * @return the bytes for ,"_name":
+     */
+    private byte[] fieldName(final String name) {
+        byte[] encoded = FIELD_NAMES.get(name);
+        if (null == encoded) {
+            int start = position;
+            ensure(2);
+            buffer[position++] = ',';
+            writeString("_" + name);
+            ensure(1);
+            buffer[position++] = ':';
+            encoded = new byte[position - start];
+            System.arraycopy(buffer, start, encoded, 0, encoded.length);
+            position = start;
+            if (FIELD_NAMES.size() < FIELD_NAME_CACHE_LIMIT) {
+                FIELD_NAMES.put(name, encoded);
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Milliseconds are written as seconds with four decimal places,
+     * the same as the serializer's BigDecimal rounded down.
+     */
+    private void writeTimestamp(final long millis) {
+        // Split before taking the sign off, Long.MIN_VALUE has no positive
+        long seconds = Math.abs(millis / 1000);
+        int fraction = (int) Math.abs(millis % 1000);
+        if (millis < 0) {
+            ensure(1);
+            buffer[position++] = '-';
+        }
+        writeLong(seconds);
+        ensure(5);
+        buffer[position++] = '.';
+        buffer[position++] = (byte) ('0' + fraction / 100);
+        buffer[position++] = (byte) ('0' + (fraction / 10) % 10);
+        buffer[position++] = (byte) ('0' + fraction % 10);
+        buffer[position++] = '0';
+    }
+
+    private void writeLong(final long value) {
+        if (value < 0) {
+            ensure(1);
+            buffer[position++] = '-';
+            if (value == Long.MIN_VALUE) {
+                write(ascii("9223372036854775808"));
+                return;
+            }
+            writeLong(-value);
+            return;
+        }
+
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        ensure(digits);
+        long v = value;
+        for (int i = position + digits - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        position += digits;
+    }
+
+    /**
+     * Writes a quoted, escaped JSON string as UTF-8, escaping the same
+     * characters Jackson does.
+     */
+    private void writeString(final String value) {
+        ensure(1);
+        buffer[position++] = '"';
+        int length = value.length();
+        for (int start = 0; start < length; start += SEGMENT_CHARS) {
+            writeSegment(value, start, Math.min(length, start + SEGMENT_CHARS));
+        }
+        ensure(1);
+        buffer[position++] = '"';
+    }
+
+    private void writeSegment(final String value, final int start, final int end) {
+        // Worst case is six bytes per char, for a unicode escape
+        ensure((end - start) * 6);
+        byte[] out = buffer;
+        int pos = position;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (c >= 0x20 && c != '"' && c != '\\') {
+                    out[pos++] = (byte) c;
+                    continue;
+                }
+                out[pos++] = '\\';
+                switch (c) {
+                    case '"':
+                    case '\\':
+                        out[pos++] = (byte) c;
+                        break;
+                    case '\b':
+                        out[pos++] = 'b';
+                        break;
+                    case '\t':
+                        out[pos++] = 't';
+                        break;
+                    case '\n':
+                        out[pos++] = 'n';
+                        break;
+                    case '\f':
+                        out[pos++] = 'f';
+                        break;
+                    case '\r':
+                        out[pos++] = 'r';
+                        break;
+                    default:
+                        pos = writeUnicodeEscape(out, pos, c);
+                }
+            } else if (c < 0x800) {
+                out[pos++] = (byte) (0xc0 | (c >> 6));
+                out[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // Jackson escapes surrogates rather than combining them
+                out[pos++] = '\\';
+                pos = writeUnicodeEscape(out, pos, c);
+            } else {
+                out[pos++] = (byte) (0xe0 | (c >> 12));
+                out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                out[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        position = pos;
+    }
+
+    /**
+     * Writes uXXXX, the backslash is already written
+     */
+    private static int writeUnicodeEscape(final byte[] out, final int start, final char c) {
+        int pos = start;
+        out[pos++] = 'u';
+        out[pos++] = HEX[(c >> 12) & 0xf];
+        out[pos++] = HEX[(c >> 8) & 0xf];
+        out[pos++] = HEX[(c >> 4) & 0xf];
+        out[pos++] = HEX[c & 0xf];
+        return pos;
+    }
+
+    private void write(final byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void ensure(final int needed) {
+        if (position + needed > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, position + needed)];
+            System.arraycopy(buffer, 0, grown, 0, position);
+            buffer = grown;
+            view = ByteBuffer.wrap(buffer);
+        }
+    }
+
+    private static byte[] ascii(final String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
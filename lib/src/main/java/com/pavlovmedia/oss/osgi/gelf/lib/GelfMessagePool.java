@@ -0,0 +1,65 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.lib;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A bounded pool of messages. A message taken from here goes back with
+ * {@link GelfMessage#recycle()} once its bytes have been written, and is
+ * handed out again cleared, keeping its field arrays.
+ *
+ * Messages are usually taken on one thread and recycled on another, so
+ * the pool is thread safe. When it is empty a new message is made, when
+ * it is full a recycled one is left for the garbage collector.
+ */
+public class GelfMessagePool {
+    private final ArrayBlockingQueue<GelfMessage> free;
+
+    /**
+     * @param capacity most idle messages kept
+     */
+    public GelfMessagePool(final int capacity) {
+        free = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    }
+
+    /**
+     * @return a cleared message that belongs to this pool
+     */
+    public GelfMessage acquire() {
+        GelfMessage message = free.poll();
+        if (null == message) {
+            message = new GelfMessage();
+        }
+        message.pool = this;
+        message.pooled = false;
+        return message;
+    }
+
+    /**
+     * @return how many messages are idle in the pool
+     */
+    public int size() {
+        return free.size();
+    }
+
+    /**
+     * Takes a cleared message back
+     */
+    void release(final GelfMessage message) {
+        free.offer(message);
+    }
+}
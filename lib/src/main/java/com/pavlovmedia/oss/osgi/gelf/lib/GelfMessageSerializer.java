@@ -25,7 +25,7 @@ import com.fasterxml.jackson.databind.SerializerProvider;
 
 /**
  * A serializer module for Jackson that will turn our GelfMessage
- * into JSON.
+ * into JSON. Fields that are null are left out.
  * 
  * @author Shawn Dempsay
  *
@@ -38,18 +38,38 @@ public class GelfMessageSerializer extends JsonSerializer<GelfMessage> {
             JsonProcessingException {
         jgen.writeStartObject();
         jgen.writeStringField("version", value.version);
-        jgen.writeStringField("host", value.host);
-        jgen.writeStringField("short_message", value.short_message);
-        jgen.writeStringField("full_message", value.full_message);
+        writeStringField(jgen, "host", value.host);
+        writeStringField(jgen, "short_message", value.short_message);
+        writeStringField(jgen, "full_message", value.full_message);
         
         BigDecimal bd = new BigDecimal(value.timestamp);
         bd = bd.divide(new BigDecimal(1000), 4, BigDecimal.ROUND_DOWN);
         jgen.writeNumberField("timestamp", bd);
         jgen.writeNumberField("level", value.level);
+        for (String key : value.sharedFields.keySet()) {
+            if (!value.additionalFields.containsKey(key) && !value.staticFields.containsKey(key)) {
+                writeStringField(jgen, "_"+key, value.sharedFields.get(key));
+            }
+        }
         for (String key : value.additionalFields.keySet()) {
-            jgen.writeStringField("_"+key, value.additionalFields.get(key));
+            if (!value.staticFields.containsKey(key)) {
+                writeStringField(jgen, "_"+key, value.additionalFields.get(key));
+            }
+        }
+        for (String key : value.staticFields.keySet()) {
+            writeStringField(jgen, "_"+key, value.staticFields.get(key));
         }
         jgen.writeEndObject();
     }
+    
+    /**
+     * Writes a string field, leaving it out altogether when it is null
+     */
+    private static void writeStringField(final JsonGenerator jgen, final String name,
+            final String value) throws IOException {
+        if (null != value) {
+            jgen.writeStringField(name, value);
+        }
+    }
 
 }
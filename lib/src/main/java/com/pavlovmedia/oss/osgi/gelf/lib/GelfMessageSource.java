@@ -0,0 +1,45 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.lib;
+
+/**
+ * Something that can be turned into a GelfMessage later, on the
+ * transporter's own thread. This lets a logging thread hand over whatever
+ * it already has, like the raw log entry, and leave the conversion,
+ * stack trace rendering and allocation to the transporter.
+ */
+public interface GelfMessageSource {
+    /**
+     * @return the GELF level, used to decide what to drop when the queue is full
+     */
+    int getLevel();
+
+    /**
+     * Messages with the same key are kept in order when a transporter
+     * spreads messages over several connections, like the id of the
+     * bundle that logged them.
+     * @return the key, or -1 if the order does not matter
+     */
+    default long getOrderingKey() {
+        return -1;
+    }
+
+    /**
+     * Builds the message. Called once, from the transporter's sending thread.
+     * @return the message, or null if there is nothing to send
+     */
+    GelfMessage toGelfMessage();
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.lib;
+
+import java.util.Map;
+
+/**
+ * Counters and latencies for one transporter's pipeline, registered as a
+ * service next to each transporter. Counts are totals since the
+ * transporter was activated, and reading them never holds up logging.
+ */
+public interface IGelfMetrics {
+    /** Service property naming the transporter the metrics belong to */
+    String TRANSPORTER = "gelf.transporter";
+
+    /**
+     * @return the name of the transporter
+     */
+    String getTransporter();
+
+    /**
+     * @return messages handed to the transporter, including those filtered out
+     */
+    long getReceivedCount();
+
+    /**
+     * @return messages filtered out by level, rate or duplicate checks
+     */
+    long getFilteredCount();
+
+    /**
+     * @return messages that made it onto the queue
+     */
+    long getEnqueuedCount();
+
+    /**
+     * @return messages written to the transport
+     */
+    long getSentCount();
+
+    /**
+     * @return messages written to a disk spool instead, to be sent later
+     */
+    long getSpooledCount();
+
+    /**
+     * @return bytes written to the transport, including frame delimiters
+     */
+    long getBytesSent();
+
+    /**
+     * @return messages dropped, by reason
+     */
+    Map<String, Long> getDropCounts();
+
+    /**
+     * @return messages the caller filtered out, by the reason it gave,
+     *     like {@link IGelfTransporter#FILTERED_DUPLICATE}
+     */
+    Map<String, Long> getFilteredCounts();
+
+    /**
+     * @return messages currently waiting on the queue
+     */
+    int getQueueDepth();
+
+    /**
+     * @param percentile from 0 to 100
+     * @return how long turning a message into JSON took, in nanoseconds
+     */
+    long getSerializationNanos(double percentile);
+
+    /**
+     * @param percentile from 0 to 100
+     * @return how long a write took, from being ready to write until the
+     *     transport took every byte, in nanoseconds
+     */
+    long getWriteLatencyNanos(double percentile);
+
+    /**
+     * @return how many times the connection was established again after the first
+     */
+    long getReconnectCount();
+
+    /**
+     * @return how long the current connection has been up, 0 when disconnected
+     */
+    long getConnectionUptimeMillis();
+}
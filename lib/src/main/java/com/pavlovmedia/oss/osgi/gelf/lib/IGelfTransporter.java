@@ -1,6 +1,7 @@
 package com.pavlovmedia.oss.osgi.gelf.lib;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 /**
@@ -9,9 +10,66 @@ import java.util.function.Consumer;
  *
  */
 public interface IGelfTransporter {
+    /**
+     * Service property naming how a transporter reaches Graylog: tcp, nio,
+     * pooled, cluster, udp or http. A sink picks one by filtering on it.
+     */
+    String PROTOCOL = "gelf.protocol";
+    
+    /** Reasons a caller gives {@link #logFiltered(String)} */
+    String FILTERED_LEVEL = "LEVEL";
+    String FILTERED_DUPLICATE = "DUPLICATE";
+    String FILTERED_RATE_LIMIT = "RATE_LIMIT";
+    
     void setLoggedAsHostname(String hostname);
     
+    /**
+     * Tells the transporter which scale the levels it is given are on, so
+     * it knows which messages are less severe when it has to drop some.
+     * The default does nothing.
+     * @param syslogLevels true if levels are syslog levels
+     */
+    default void setSyslogLevels(boolean syslogLevels) {
+        // Nothing is dropped by level
+    }
+    
     void logGelfMessage(GelfMessage message, Consumer<IOException> onException);
     
     void logGelfMessage(GelfMessage message);
+    
+    /**
+     * Queues a message that is built later on the transporter's thread.
+     * This does nothing but queue the source, so it is cheap enough to call
+     * from any logging thread. The default builds the message straight
+     * away and logs it, unless the source has nothing to send.
+     * @param source what the message will be built from
+     */
+    default void logGelfMessageSource(GelfMessageSource source) {
+        GelfMessage message = source.toGelfMessage();
+        if (null != message) {
+            logGelfMessage(message);
+        }
+    }
+    
+    /**
+     * Waits until everything queued so far has been written, or spooled,
+     * for checkpoints where logs must not be left behind. Messages are
+     * still taken while this waits. The default has nothing to wait for.
+     * @param timeout longest to wait
+     * @param unit the unit of timeout
+     * @return true if everything was written in time, false if not or if
+     *     the calling thread was interrupted
+     */
+    default boolean flush(long timeout, TimeUnit unit) {
+        return true;
+    }
+    
+    /**
+     * Counts a message the caller decided not to send, so it still shows
+     * up in the transporter's metrics. The default does nothing.
+     * @param reason why it was not sent, like {@link #FILTERED_LEVEL}
+     */
+    default void logFiltered(String reason) {
+        // Nothing to count
+    }
 }
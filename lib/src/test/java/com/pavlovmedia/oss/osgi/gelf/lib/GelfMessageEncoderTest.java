@@ -0,0 +1,267 @@
+/*
+ * Copyright 2014 Pavlov Media
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pavlovmedia.oss.osgi.gelf.lib;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The encoder has to write exactly the bytes {@link GelfMessageSerializer}
+ * does, these check it against Jackson field by field.
+ */
+public class GelfMessageEncoderTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final GelfMessageEncoder encoder = new GelfMessageEncoder(256);
+
+    @Test
+    public void testPlainMessage() throws Exception {
+        assertSameBytes(message("hello world"));
+    }
+
+    @Test
+    public void testEscapes() throws Exception {
+        GelfMessage message = message("quote \" backslash \\ slash / tab \t newline \n return \r");
+        message.full_message = "backspace \b form feed \f";
+        message.additionalFields.put("key \"quoted\"", "value \\ escaped");
+        assertSameBytes(message);
+    }
+
+    @Test
+    public void testControlCharacters() throws Exception {
+        StringBuilder controls = new StringBuilder();
+        for (char c = 0; c < 0x20; c++) {
+            controls.append(c);
+        }
+        controls.append('\u007f');
+        GelfMessage message = message(controls.toString());
+        message.additionalFields.put(controls.toString(), controls.toString());
+        assertSameBytes(message);
+    }
+
+    @Test
+    public void testNonAscii() throws Exception {
+        GelfMessage message = message("caf\u00e9 \u00fcber \u4e2d\u6587 \u20ac \u2028 \u2029 \ufeff \uffff");
+        message.additionalFields.put("cl\u00e9", "\u0080\u07ff\u0800");
+        assertSameBytes(message);
+    }
+
+    @Test
+    public void testNonBmp() throws Exception {
+        GelfMessage message = message("smile \ud83d\ude00 clef \ud834\udd1e");
+        message.full_message = "\udbff\udfff";
+        message.additionalFields.put("emoji", "\ud83d\ude80");
+        assertSameBytes(message);
+    }
+
+    @Test
+    public void testLoneSurrogates() throws Exception {
+        GelfMessage message = message("high \ud800 alone");
+        message.full_message = "low \udc00 alone";
+        message.additionalFields.put("reversed", "\udc00\ud800");
+        message.additionalFields.put("trailing", "end \ud83d");
+        assertSameBytes(message);
+    }
+
+    @Test
+    public void testNullFields() throws Exception {
+        GelfMessage message = message(null);
+        message.host = null;
+        message.full_message = null;
+        message.additionalFields.put("missing", null);
+        message.additionalFields.put("present", "yes");
+        assertSameBytes(message);
+    }
+
+    @Test
+    public void testEmptyFields() throws Exception {
+        GelfMessage message = message("");
+        message.host = "";
+        message.full_message = "";
+        message.additionalFields.put("", "");
+        message.additionalFields.put("empty", "");
+        assertSameBytes(message);
+    }
+
+    @Test
+    public void testNoFields() throws Exception {
+        GelfMessage message = new GelfMessage();
+        assertSameBytes(message);
+    }
+
+    @Test
+    public void testLongValues() throws Exception {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            value.append("line ").append(i).append("\t\"\u00e9\ud83d\ude00\"\n");
+        }
+        GelfMessage message = message(value.toString());
+        message.full_message = value.toString();
+        message.additionalFields.put("stack", value.toString());
+        assertSameBytes(message);
+    }
+
+    @Test
+    public void testManyOwnFields() throws Exception {
+        GelfMessage message = message("indexed");
+        for (int i = 0; i < GelfFields.INDEXED_SIZE * 2; i++) {
+            message.additionalFields.put("field" + i, "value" + i);
+        }
+        message.additionalFields.remove("field3");
+        message.additionalFields.put("field5", "replaced");
+        assertSameBytes(message);
+    }
+
+    @Test
+    public void testNullNameIgnored() throws Exception {
+        GelfMessage message = message("null name");
+        assertNull(message.additionalFields.put(null, "dropped"));
+        message.additionalFields.put("kept", "yes");
+        assertEquals(1, message.additionalFields.size());
+        assertNull(message.additionalFields.get(null));
+        assertSameBytes(message);
+    }
+
+    @Test
+    public void testOwnFieldsInAnotherMap() throws Exception {
+        GelfMessage message = message("hash map");
+        message.additionalFields = new HashMap<>();
+        message.additionalFields.put("one", "1");
+        message.additionalFields.put("two", null);
+        message.additionalFields.put("three", "3");
+        assertSameBytes(message);
+    }
+
+    @Test
+    public void testFieldLayers() throws Exception {
+        Map<String, String> shared = new LinkedHashMap<>();
+        shared.put("bundle", "shared");
+        shared.put("overridden", "shared");
+        shared.put("static", "shared");
+        shared.put("nothing", null);
+        Map<String, String> statics = new LinkedHashMap<>();
+        statics.put("static", "static");
+        statics.put("own", "static");
+        statics.put("unset", null);
+
+        GelfMessage message = message("layers");
+        message.sharedFields = Collections.unmodifiableMap(shared);
+        message.staticFields = Collections.unmodifiableMap(statics);
+        message.additionalFields.put("overridden", "own");
+        message.additionalFields.put("own", "own");
+        message.additionalFields.put("only", "own");
+        assertSameBytes(message);
+    }
+
+    @Test
+    public void testOwnNullHidesShared() throws Exception {
+        GelfMessage message = message("hidden");
+        message.sharedFields = Collections.singletonMap("hidden", "shared");
+        message.additionalFields.put("hidden", null);
+        assertSameBytes(message);
+    }
+
+    @Test
+    public void testStaticFieldsChange() throws Exception {
+        GelfMessage message = message("statics");
+        message.staticFields = Collections.singletonMap("environment", "one");
+        assertSameBytes(message);
+        // Same map, cached bytes
+        assertSameBytes(message);
+        message.staticFields = Collections.singletonMap("environment", "two");
+        assertSameBytes(message);
+        message.staticFields = Collections.emptyMap();
+        assertSameBytes(message);
+    }
+
+    @Test
+    public void testHostChange() throws Exception {
+        GelfMessage message = message("hosts");
+        assertSameBytes(message);
+        message.host = "other\"host";
+        assertSameBytes(message);
+        message.host = null;
+        assertSameBytes(message);
+        message.host = "localhost";
+        assertSameBytes(message);
+    }
+
+    @Test
+    public void testTimestamps() throws Exception {
+        long[] timestamps = {
+            0, 1, 9, 10, 99, 100, 999, 1000, 1001, 1234567890123L, 1234567890999L,
+            -1, -9, -999, -1000, -1001, -1234567890123L,
+            Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1 };
+        GelfMessage message = message("time");
+        for (long timestamp : timestamps) {
+            message.timestamp = timestamp;
+            assertSameBytes(message);
+        }
+    }
+
+    @Test
+    public void testLevels() throws Exception {
+        int[] levels = { 0, 7, -1, Integer.MAX_VALUE, Integer.MIN_VALUE };
+        GelfMessage message = message("level");
+        for (int level : levels) {
+            message.level = level;
+            assertSameBytes(message);
+        }
+    }
+
+    @Test
+    public void testRecycledMessage() throws Exception {
+        GelfMessagePool pool = new GelfMessagePool(1);
+        GelfMessage message = pool.acquire();
+        message.short_message = "first";
+        message.additionalFields.put("first", "1");
+        assertSameBytes(message);
+        message.recycle();
+
+        message = pool.acquire();
+        message.short_message = "second";
+        message.additionalFields.put("second", "2");
+        assertSameBytes(message);
+    }
+
+    private static GelfMessage message(final String shortMessage) {
+        GelfMessage message = new GelfMessage();
+        message.host = "localhost";
+        message.short_message = shortMessage;
+        message.full_message = "full message";
+        message.timestamp = 1234567890123L;
+        message.level = 6;
+        return message;
+    }
+
+    private void assertSameBytes(final GelfMessage message) throws Exception {
+        byte[] expected = mapper.writeValueAsBytes(message);
+        ByteBuffer encoded = encoder.encode(message);
+        byte[] actual = new byte[encoded.remaining()];
+        encoded.get(actual);
+        assertArrayEquals(new String(expected, "UTF-8"), expected, actual);
+    }
+}